@@ -1,5 +1,6 @@
 package org.tinyejb.core;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.lang.reflect.Method;
@@ -9,6 +10,11 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.ejb.EJBLocalObject;
@@ -20,12 +26,22 @@ import org.jdom.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tinyejb.core.EJBMetadata.BEAN_TYPE;
+import org.tinyejb.core.EJBMetadata.EJBMethodConcurrencyInfo;
 import org.tinyejb.core.EJBMetadata.EJBMethodTransactionInfo;
 import org.tinyejb.core.EJBMetadata.EJBMethodTransactionInfo.METHOD_INTF;
+import org.tinyejb.core.EJBMetadata.INSTANCE_MODE;
+import org.tinyejb.core.EJBMetadata.LOCK_TYPE;
+import org.tinyejb.core.EJBMetadata.POOL_EXHAUSTED_POLICY;
 import org.tinyejb.core.EJBMetadata.TRANSACTION_MANAGED_BY;
 import org.tinyejb.core.EJBMetadata.TRANSACTION_TYPE;
+import org.tinyejb.proxies.BeanDispatchTable;
+import org.tinyejb.proxies.BeanInstancePool;
 import org.tinyejb.proxies.EJBHomeBuilder;
+import org.tinyejb.proxies.FieldStateCodec;
 import org.tinyejb.proxies.IEJBHome;
+import org.tinyejb.proxies.ISessionStateCodec;
+import org.tinyejb.proxies.SessionSnapshot;
+import org.tinyejb.transaction.LocalTransactionManager;
 import org.tinyejb.utils.XMLStuff;
 
 public class EJBContainer implements Serializable {
@@ -40,20 +56,32 @@ public class EJBContainer implements Serializable {
 	 * be thread-safe. TinyEJB has an instance pool for Stateless session beans,
 	 * so each client call is serviced by a specific instance, and while the
 	 * call is going on, the instance remains unavailable for other clients.
-	 * There is a background task that keeps this pool small as possible, an the
-	 * following atribute configures the maximum time (in milleseconds) an
-	 * instance bean can stand idle, before the cleaner release it. Default
-	 * value is 2 minutes
+	 * There is a background task that sizes this pool by the observed demand,
+	 * and the following atribute configures the minimum time (in milleseconds)
+	 * an instance bean beyond that demand must stand idle, before the cleaner
+	 * release it. Default value is 2 minutes
 	 */
 	private long								pooledBeanMaxAge			= 120000;
 
+	/*
+	 * Adaptive pool sizing. Every 5 seconds, the peak of concurrent borrows of
+	 * each pool feeds a moving average, weighted by the smoothing factor (0..1,
+	 * higher reacts faster). Pools keep that average plus the headroom (a
+	 * fraction of it) and, on each run, trim this ratio of their excess
+	 * instances.
+	 */
+	private double								poolSizingSmoothing			= 0.3;
+	private double								poolSizingHeadroom			= 0.2;
+	private double								poolTrimRatio				= 0.25;
+
 	/*
 	 * This is an out-of-spec alternative for Stateless session beans. When the
 	 * following attribute is true, TinyEJB will serve all client calls with
 	 * only one session bean instance (ie. no instance poll is used) This
 	 * aproach performs better on applications that uses stateless beans as
 	 * business delegation or just take advantage on container transactions.
-	 * Obviously, singleton stateless beans are thread-unsafe
+	 * Obviously, singleton stateless beans are thread-unsafe. Beans can
+	 * override it with the <instance-mode> element on deployment descriptor.
 	 */
 	private boolean								useSingletonForStateless;
 
@@ -72,6 +100,77 @@ public class EJBContainer implements Serializable {
 	 */
 	private int									randomTimeToWaitOnStatefulCalls;
 
+	/*
+	 * Passivation of stateful session beans. A session idle for longer than
+	 * passivationIdleTimeout (milliseconds) is passivated, and so are the least
+	 * recently used ones while there are more than maxActiveStatefulSessions
+	 * active sessions, or heap usage is above passivationHeapThreshold (a
+	 * fraction of max heap). Passivated beans get ejbPassivate() and have their
+	 * state written to memory-mapped files on passivationDirectory (default is
+	 * java.io.tmpdir), out of the heap. The next call activates them again.
+	 * Zero disables each criterion, and all of them are disabled by default.
+	 */
+	private long								passivationIdleTimeout;
+	private int									maxActiveStatefulSessions;
+	private double								passivationHeapThreshold;
+	private String								passivationDirectory;
+
+	/*
+	 * Codec for the state of stateful beans, whenever it leaves the heap (i.e.
+	 * passivation). Default is FieldStateCodec, a compact binary format; when
+	 * it can't handle some state, or this is null, Java serialization is used.
+	 */
+	private ISessionStateCodec					sessionStateCodec			= new FieldStateCodec();
+
+	/*
+	 * Stateful sessions not called for this time (milliseconds) are removed by
+	 * the container, as clients that forget to call remove() would leak them.
+	 * Later calls on them fail with NoSuchObjectException (or the local
+	 * variant). Beans can override it with the <session-timeout> element on
+	 * deployment descriptor. Zero (the default) means sessions never expire.
+	 */
+	private long								statefulSessionTimeout;
+
+	/*
+	 * Warm restart of stateful sessions. When a file is set, undeploy writes
+	 * all live stateful sessions to it, and the next deploy restores them.
+	 * Restore is lazy: deploy reads just the snapshot index, and each session
+	 * comes back when a client uses its handle (see SessionHandle), with its
+	 * state decoded on the first call. It must be set before deploy, as only
+	 * sessions created while it's set can be written. Null (the default)
+	 * disables snapshots.
+	 */
+	private String								sessionSnapshotFile;
+	private transient SessionSnapshot			sessionSnapshot;
+
+	/*
+	 * When true, home and bean proxies are instances of classes generated at
+	 * deploy time (one for each home, local and remote interface), instead of
+	 * JDK dynamic proxies. Generated proxies dispatch each method straight to
+	 * its invocation plan. It needs ASM on classpath; otherwise, or when it is
+	 * false (the default), JDK proxies are used.
+	 */
+	private boolean								useGeneratedProxies;
+
+	/*
+	 * Standalone and batch deployments have no application server to provide
+	 * a JTA TransactionManager. When this is true and none is found on JNDI,
+	 * TinyEJB uses its own in-process one (see LocalTransactionManager), that
+	 * commits in one phase the transactions with a single resource. Default
+	 * is false, so the TransactionManager must come from JNDI.
+	 */
+	private boolean								useBuiltInTransactionManager;
+
+	/*
+	 * Transaction affinity for pooled stateless beans. When true, the first
+	 * call of a transaction borrows an instance from the pool, and the
+	 * instance serves the next calls of the same transaction, going back to
+	 * the pool only when the transaction completes. Beans can override it
+	 * with the <transaction-affinity> element on deployment descriptor.
+	 * Default is false.
+	 */
+	private boolean								statelessTransactionAffinity;
+
 	private AtomicReference<ContainerStatus>	status;
 
 	public EJBContainer() {
@@ -80,13 +179,26 @@ public class EJBContainer implements Serializable {
 	}
 
 	public TransactionManager getTransactionManager() {
-		return ResourceHolder.getTxManager();
+		TransactionManager txManager = ResourceHolder.getTxManager();
+
+		if (txManager == null && useBuiltInTransactionManager) {
+			txManager = LocalTransactionManager.getInstance();
+		}
+
+		return txManager;
 	}
 
 	public ContainerStatus getContainerStatus() {
 		return status.get();
 	}
 
+	/**
+	 * @return null if no bean of that name is deployed
+	 */
+	public EJBMetadata getDeployedBean(String ejbName) {
+		return deployedBeans.get(ejbName);
+	}
+
 	@SuppressWarnings("unchecked")
 	public void deployModuleFromDescriptor(List<InputStream> ejbDDsInputStream) throws Exception {
 		if (ejbDDsInputStream.isEmpty()) {
@@ -94,7 +206,13 @@ public class EJBContainer implements Serializable {
 		}
 
 		LOGGER.info("starting module deploy ...");
+
+		if (sessionSnapshotFile != null && sessionSnapshot == null) {
+			openSessionSnapshot();
+		}
+
 		int beanCount = 0;
+		PoolWarmUp warmUp = new PoolWarmUp();
 		for (InputStream ejbDDInputStream : ejbDDsInputStream) {
 			Element xml = XMLStuff.buildDomDocument(ejbDDInputStream).getRootElement();
 			ejbDDInputStream.close();
@@ -108,6 +226,7 @@ public class EJBContainer implements Serializable {
 					LOGGER.info("There is no session-bean on descriptor file");
 				} else {
 					Map<String, List<EJBMethodTransactionInfo>> listOfMethods = processAssemblyDescriptor(xml);
+					Map<String, List<EJBMethodConcurrencyInfo>> concurrencyMethods = processContainerConcurrency(xml);
 
 					for (Iterator<Element> ite = sessionBeans.iterator(); ite.hasNext();) {
 						Element sessionBean = ite.next();
@@ -123,7 +242,13 @@ public class EJBContainer implements Serializable {
 								LOGGER.info("no transaction info for bean '" + ejbmd.getName() + "'. Assuming 'Required' as default for all business methods.");
 							}
 
-							if (deployIt(ejbmd)) {
+							List<EJBMethodConcurrencyInfo> lstConcurrencyInfo = concurrencyMethods.get(ejbmd.getName());
+
+							if (lstConcurrencyInfo != null) {
+								ejbmd.addMethodConcurrencyInfo(lstConcurrencyInfo);
+							}
+
+							if (deployIt(ejbmd, warmUp)) {
 								beanCount++;
 							}
 						}
@@ -131,9 +256,39 @@ public class EJBContainer implements Serializable {
 				}
 			}
 		}
+
+		warmUp.await();
+
 		LOGGER.info("Total of " + beanCount + " bean(s) deployed.");
 	}
 
+	private void openSessionSnapshot() {
+		try {
+			sessionSnapshot = SessionSnapshot.open(new File(sessionSnapshotFile));
+
+			if (sessionSnapshot != null) {
+				LOGGER.info(sessionSnapshot.getSessionCount() + " stateful session(s) on snapshot '" + sessionSnapshotFile + "'");
+			}
+		} catch (Exception e) {
+			//a broken snapshot can't prevent the deploy
+			LOGGER.warn("Stateful sessions snapshot '" + sessionSnapshotFile + "' can't be restored: " + e.getMessage());
+		}
+	}
+
+	private void writeSessionSnapshot() {
+		try {
+			int count = SessionSnapshot.write(new File(sessionSnapshotFile), this, deployedBeans.values(), sessionSnapshot);
+			LOGGER.info(count + " stateful session(s) written to snapshot '" + sessionSnapshotFile + "'");
+		} catch (Exception e) {
+			LOGGER.warn("Stateful sessions snapshot '" + sessionSnapshotFile + "' can't be written: " + e.getMessage());
+		} finally {
+			if (sessionSnapshot != null) {
+				sessionSnapshot.close();
+				sessionSnapshot = null;
+			}
+		}
+	}
+
 	public void undeploy() {
 		/*
 		 * Undeploy process just unbinds home interfaces. Any thread using beans
@@ -143,6 +298,11 @@ public class EJBContainer implements Serializable {
 
 		status.set(ContainerStatus.SHUT_DOWN);
 
+		if (sessionSnapshotFile != null) {
+			//before homes shut down, as passivated sessions are read back from the passivation store
+			writeSessionSnapshot();
+		}
+
 		for (EJBMetadata ejbmd : deployedBeans.values()) {
 			LOGGER.info("undeploying '" + ejbmd.getName() + "' ...");
 
@@ -174,12 +334,34 @@ public class EJBContainer implements Serializable {
 
 	}
 
-	private boolean deployIt(EJBMetadata ejbmd) throws Exception {
+	private boolean deployIt(EJBMetadata ejbmd, PoolWarmUp warmUp) throws Exception {
 		try {
 
 			LOGGER.info("deploying " + ejbmd.getType() + " SessionBean '" + ejbmd.getName() + "' ...");
 			int bindCount = 0;
 
+			// bean class methods are resolved once, and shared by local and remote interfaces
+			ejbmd.setDispatchTable(new BeanDispatchTable(Class.forName(ejbmd.getEjbClassName(), true, EJBContainer.class.getClassLoader()), useGeneratedProxies));
+
+			// so are the transaction types of business methods
+			List<EJBMethodTransactionInfo> unresolved = ejbmd.resolveTransactionTypes(getClassOrNull(ejbmd.getLocalIntf()), getClassOrNull(ejbmd.getRemoteIntf()), getClassOrNull(ejbmd.getLocalHomeIntf()), getClassOrNull(ejbmd.getHomeIntf()));
+
+			for (EJBMethodTransactionInfo mti : unresolved) {
+				LOGGER.warn(ejbmd.getName() + ": container-transaction entry doesn't match any method of bean's interfaces: " + mti);
+			}
+
+			if (ejbmd.isConcurrencyManaged()) {
+				if (ejbmd.isStateless() && ejbmd.getInstanceMode() != INSTANCE_MODE.Singleton) {
+					LOGGER.info(ejbmd.getName() + ": container-managed concurrency ignored, as bean instances aren't shared (instance mode " + ejbmd.getInstanceMode() + ")");
+					ejbmd.setConcurrencyManaged(false);
+				} else {
+					//singleton stateless beans, or read-only methods of stateful beans
+					for (EJBMethodConcurrencyInfo mci : ejbmd.resolveConcurrencyInfo(getClassOrNull(ejbmd.getLocalIntf()), getClassOrNull(ejbmd.getRemoteIntf()))) {
+						LOGGER.warn(ejbmd.getName() + ": container-concurrency entry doesn't match any method of bean's interfaces: " + mci);
+					}
+				}
+			}
+
 			if (ejbmd.getHomeIntf() != null) {
 				// deploy remote home proxy
 				String jndiName = null;
@@ -193,7 +375,7 @@ public class EJBContainer implements Serializable {
 					jndiName = JAVA_COMP_ENV_EJB + homeIntfClass.getSimpleName();
 				}
 
-				IEJBHome home = EJBHomeBuilder.build(ejbmd, this, METHOD_INTF.Home);
+				IEJBHome home = EJBHomeBuilder.build(ejbmd, this, METHOD_INTF.Home, jndiName);
 				
 				LOGGER.info(ejbmd.getName() + ": remote factory bound to JNDI entry '" + jndiName + "'");
 				createSubcontext(jndiName);
@@ -216,7 +398,7 @@ public class EJBContainer implements Serializable {
 					jndiName = JAVA_COMP_ENV_EJB + localHomeIntfClass.getSimpleName();
 				}
 
-				IEJBHome home = EJBHomeBuilder.build(ejbmd, this, METHOD_INTF.LocalHome);
+				IEJBHome home = EJBHomeBuilder.build(ejbmd, this, METHOD_INTF.LocalHome, jndiName);
 				LOGGER.info(ejbmd.getName() + ": local factory bound to JNDI entry '" + jndiName + "'");
 				ResourceHolder.getJndiContext().bind(jndiName, home);
 				ejbmd.addJndiName(jndiName);
@@ -224,7 +406,15 @@ public class EJBContainer implements Serializable {
 			}
 
 			if (bindCount > 0) {
+				// pool is shared by both homes, so it's filled after both of them are ready
+				warmUp.prefill(ejbmd);
+
 				deployedBeans.put(ejbmd.getName(), ejbmd);
+
+				if (sessionSnapshot != null) {
+					sessionSnapshot.restoreInto(ejbmd);
+				}
+
 				LOGGER.info("'" + ejbmd.getName() + "' deployed on " + bindCount + " factories.");
 			} else {
 				LOGGER.info("Deploy of bean '" + ejbmd.getName() + "' canceled. No JNDI definition.");
@@ -267,6 +457,13 @@ public class EJBContainer implements Serializable {
 					ejbm.setLocalIntf(localIntf);
 					ejbm.setRemoteIntf(remoteIntf);
 
+					processInstanceMode(beanElem, ejbm);
+					ejbm.setConcurrencyManaged("Container".equals(XMLStuff.getChildElementText(beanElem, "concurrency-management-type")));
+					processInstancePool(beanElem, ejbm);
+					processSessionTimeout(beanElem, ejbm);
+					processTransactionAffinity(beanElem, ejbm);
+					processTransactionTimeout(beanElem, ejbm);
+
 					try {
 						checkEJBSpecViolations(ejbm);
 					} catch (Exception e) {
@@ -281,10 +478,142 @@ public class EJBContainer implements Serializable {
 		return null;
 	}
 
+	/*
+	 * TinyEJB specific setting for stateless beans, as a child of <session> element:
+	 * 
+	 * <instance-mode>Pooled | Singleton | ThreadConfined</instance-mode>
+	 * 
+	 * When absent, useSingletonForStateless decides between Singleton and Pooled.
+	 */
+	private void processInstanceMode(Element beanElem, EJBMetadata ejbm) {
+		String mode = XMLStuff.getChildElementText(beanElem, "instance-mode");
+
+		if (mode == null) {
+			return;
+		}
+
+		if (!ejbm.isStateless()) {
+			LOGGER.info("<instance-mode> ignored for stateful bean '" + ejbm.getName() + "'");
+			return;
+		}
+
+		ejbm.setInstanceMode(INSTANCE_MODE.valueOf(mode));
+	}
+
+	/*
+	 * TinyEJB specific setting for stateful beans, as a child of <session> element (milliseconds, zero for no timeout):
+	 * 
+	 * <session-timeout>1800000</session-timeout>
+	 * 
+	 * When absent, statefulSessionTimeout applies.
+	 */
+	private void processSessionTimeout(Element beanElem, EJBMetadata ejbm) {
+		String timeout = XMLStuff.getChildElementText(beanElem, "session-timeout");
+
+		if (timeout == null) {
+			return;
+		}
+
+		if (ejbm.isStateless()) {
+			LOGGER.info("<session-timeout> ignored for stateless bean '" + ejbm.getName() + "'");
+			return;
+		}
+
+		ejbm.setSessionTimeout(Long.parseLong(timeout));
+	}
+
+	/*
+	 * TinyEJB specific setting for pooled stateless beans, as a child of <session> element:
+	 * 
+	 * <transaction-affinity>true | false</transaction-affinity>
+	 * 
+	 * When absent, statelessTransactionAffinity applies.
+	 */
+	private void processTransactionAffinity(Element beanElem, EJBMetadata ejbm) {
+		String affinity = XMLStuff.getChildElementText(beanElem, "transaction-affinity");
+
+		if (affinity == null) {
+			return;
+		}
+
+		if (!ejbm.isStateless() || ejbm.getInstanceMode() != INSTANCE_MODE.Pooled) {
+			LOGGER.info("<transaction-affinity> ignored for bean '" + ejbm.getName() + "', as it's not pooled");
+			return;
+		}
+
+		ejbm.setTransactionAffinityEnabled(Boolean.valueOf(affinity));
+	}
+
+	/*
+	 * TinyEJB specific setting for container-managed transaction beans, as a child of <session> element (seconds, zero for the
+	 * TransactionManager's default):
+	 * 
+	 * <transaction-timeout>60</transaction-timeout>
+	 * 
+	 * It applies to the transactions the container begins for calls of the bean (Required and RequiresNew methods), unless the
+	 * method declares its own on container-transaction.
+	 */
+	private void processTransactionTimeout(Element beanElem, EJBMetadata ejbm) {
+		String timeout = XMLStuff.getChildElementText(beanElem, "transaction-timeout");
+
+		if (timeout == null) {
+			return;
+		}
+
+		if (ejbm.getTxManagedBy() != TRANSACTION_MANAGED_BY.Container) {
+			LOGGER.info("<transaction-timeout> ignored for bean '" + ejbm.getName() + "', as it manages its own transactions");
+			return;
+		}
+
+		ejbm.setTransactionTimeout(Integer.parseInt(timeout));
+	}
+
+	/*
+	 * TinyEJB specific settings for the stateless instance pool, as a child of <session> element:
+	 * 
+	 * <instance-pool>
+	 *     <min-size>2</min-size>
+	 *     <initial-size>10</initial-size>
+	 *     <max-size>20</max-size>
+	 *     <borrow-timeout>5000</borrow-timeout>
+	 *     <exhausted-policy>Fail | Wait | Grow</exhausted-policy>
+	 * </instance-pool>
+	 */
+	private void processInstancePool(Element beanElem, EJBMetadata ejbm) {
+		Element poolElem = beanElem.getChild("instance-pool");
+
+		if (poolElem == null) {
+			return;
+		}
+
+		if (!ejbm.isStateless() || ejbm.getInstanceMode() != INSTANCE_MODE.Pooled) {
+			LOGGER.info("<instance-pool> ignored for bean '" + ejbm.getName() + "', as it's not pooled");
+			return;
+		}
+
+		ejbm.setPoolMinSize(Integer.parseInt(XMLStuff.getChildElementText(poolElem, "min-size", "0")));
+		ejbm.setPoolInitialSize(Integer.parseInt(XMLStuff.getChildElementText(poolElem, "initial-size", "0")));
+		ejbm.setPoolMaxSize(Integer.parseInt(XMLStuff.getChildElementText(poolElem, "max-size", "0")));
+		ejbm.setPoolBorrowTimeout(Long.parseLong(XMLStuff.getChildElementText(poolElem, "borrow-timeout", String.valueOf(ejbm.getPoolBorrowTimeout()))));
+		ejbm.setPoolExhaustedPolicy(POOL_EXHAUSTED_POLICY.valueOf(XMLStuff.getChildElementText(poolElem, "exhausted-policy", ejbm.getPoolExhaustedPolicy().toString())));
+
+		if (ejbm.isPoolBounded() && ejbm.getPoolMinSize() > ejbm.getPoolMaxSize()) {
+			throw new IllegalStateException("<instance-pool> of bean '" + ejbm.getName() + "': min-size can't be greater than max-size.");
+		}
+
+		if (ejbm.isPoolBounded() && ejbm.getPoolInitialSize() > ejbm.getPoolMaxSize()) {
+			throw new IllegalStateException("<instance-pool> of bean '" + ejbm.getName() + "': initial-size can't be greater than max-size.");
+		}
+	}
+
 	private Class<?> getClass(String name) throws Exception {
 		return Class.forName(name, true, Thread.currentThread().getContextClassLoader());
 	}
 
+	private Class<?> getClassOrNull(String name) throws Exception {
+		return name != null ? getClass(name) : null;
+	}
+
 	private void checkEJBSpecViolations(EJBMetadata ejbm) throws Exception {
 		// checks some EJB spec violations.
 
@@ -367,6 +696,19 @@ public class EJBContainer implements Serializable {
 		}
 	}
 
+	/*
+	 * container-transaction entries take a TinyEJB specific transaction-timeout (seconds, zero for the TransactionManager's
+	 * default), for the transactions begun for calls of their methods. When absent, the bean's transaction timeout applies:
+	 * 
+	 * <container-transaction>
+	 *     <method>
+	 *         <ejb-name>MyBean</ejb-name>
+	 *         <method-name>buildReport</method-name>
+	 *     </method>
+	 *     <trans-attribute>RequiresNew</trans-attribute>
+	 *     <transaction-timeout>30</transaction-timeout>
+	 * </container-transaction>
+	 */
 	@SuppressWarnings("unchecked")
 	private Map<String, List<EJBMethodTransactionInfo>> processAssemblyDescriptor(Element xml) throws Exception {
 		Map<String, List<EJBMethodTransactionInfo>> result = new HashMap<String, List<EJBMethodTransactionInfo>>();
@@ -382,6 +724,7 @@ public class EJBContainer implements Serializable {
 				if (XMLStuff.checkRequiredChildren(containerTransactionElem, "method", "trans-attribute")) {
 					List<Element> methodElems = containerTransactionElem.getChildren("method");
 					TRANSACTION_TYPE txType = TRANSACTION_TYPE.valueOf(XMLStuff.getChildElementText(containerTransactionElem, "trans-attribute"));
+					int transactionTimeout = Integer.parseInt(XMLStuff.getChildElementText(containerTransactionElem, "transaction-timeout", "-1"));
 
 					for (Iterator<Element> ite2 = methodElems.iterator(); ite2.hasNext();) {
 						Element methodElem = ite2.next();
@@ -401,7 +744,7 @@ public class EJBContainer implements Serializable {
 							String methodName = XMLStuff.getChildElementText(methodElem, "method-name");
 							String signature = buildMethodSignature(methodElem, methodName, methodIntf);
 
-							EJBMethodTransactionInfo ejbMethod = new EJBMethodTransactionInfo(methodName, signature, txType, methodIntf);
+							EJBMethodTransactionInfo ejbMethod = new EJBMethodTransactionInfo(methodName, signature, txType, methodIntf, buildMethodParams(methodElem), transactionTimeout);
 
 							methods.add(ejbMethod);
 						}
@@ -413,6 +756,80 @@ public class EJBContainer implements Serializable {
 		return result;
 	}
 
+	/*
+	 * TinyEJB specific element on assembly-descriptor, for beans with container-managed concurrency. 
+	 * Methods are declared as in container-transaction, and access-timeout (milliseconds) is optional.
+	 * On stateful beans, Read methods (i.e. getters) may run concurrently on the same session, while all other methods are still serialized:
+	 * 
+	 * <container-concurrency>
+	 *     <method>
+	 *         <ejb-name>MyBean</ejb-name>
+	 *         <method-name>getPrice</method-name>
+	 *     </method>
+	 *     <lock-type>Read</lock-type>
+	 *     <access-timeout>5000</access-timeout>
+	 * </container-concurrency>
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, List<EJBMethodConcurrencyInfo>> processContainerConcurrency(Element xml) throws Exception {
+		Map<String, List<EJBMethodConcurrencyInfo>> result = new HashMap<String, List<EJBMethodConcurrencyInfo>>();
+
+		Element assemblyDescriptorElem = xml.getChild("assembly-descriptor");
+
+		if (assemblyDescriptorElem != null) {
+			for (Iterator<Element> ite = assemblyDescriptorElem.getChildren("container-concurrency").iterator(); ite.hasNext();) {
+				Element containerConcurrencyElem = ite.next();
+
+				if (XMLStuff.checkRequiredChildren(containerConcurrencyElem, "method", "lock-type")) {
+					LOCK_TYPE lockType = LOCK_TYPE.valueOf(XMLStuff.getChildElementText(containerConcurrencyElem, "lock-type"));
+					long accessTimeout = Long.parseLong(XMLStuff.getChildElementText(containerConcurrencyElem, "access-timeout", "-1"));
+
+					for (Iterator<Element> ite2 = containerConcurrencyElem.getChildren("method").iterator(); ite2.hasNext();) {
+						Element methodElem = ite2.next();
+
+						if (XMLStuff.checkRequiredChildren(methodElem, "ejb-name", "method-name")) {
+							String ejbName = XMLStuff.getChildElementText(methodElem, "ejb-name");
+
+							List<EJBMethodConcurrencyInfo> methods = result.get(ejbName);
+
+							if (methods == null) {
+								methods = new ArrayList<EJBMethodConcurrencyInfo>();
+								result.put(ejbName, methods);
+							}
+
+							METHOD_INTF methodIntf = METHOD_INTF.valueOf(XMLStuff.getChildElementText(methodElem, "method-intf", "Unknown"));
+							String methodName = XMLStuff.getChildElementText(methodElem, "method-name");
+
+							methods.add(new EJBMethodConcurrencyInfo(methodName, buildMethodSignature(methodElem, methodName, methodIntf), methodIntf, buildMethodParams(methodElem), lockType, accessTimeout));
+						}
+					}
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/*
+	 * method-params types, or null if the element is absent (entry applies to all overloaded methods)
+	 */
+	@SuppressWarnings("unchecked")
+	private String[] buildMethodParams(Element methodEle) {
+		Element params = methodEle.getChild("method-params");
+
+		if (params == null) {
+			return null;
+		}
+
+		List<String> result = new ArrayList<String>();
+
+		for (Iterator<Element> ite = params.getChildren("method-param").iterator(); ite.hasNext();) {
+			result.add(ite.next().getTextTrim());
+		}
+
+		return result.toArray(new String[result.size()]);
+	}
+
 	@SuppressWarnings("unchecked")
 	private String buildMethodSignature(Element methodEle, String methodName, METHOD_INTF methodIntf) throws Exception {
 		StringBuilder b = new StringBuilder();
@@ -451,6 +868,30 @@ public class EJBContainer implements Serializable {
 		this.useSingletonForStateless = useSingletonForStateless;
 	}
 
+	public boolean isUseGeneratedProxies() {
+		return useGeneratedProxies;
+	}
+
+	public void setUseGeneratedProxies(boolean useGeneratedProxies) {
+		this.useGeneratedProxies = useGeneratedProxies;
+	}
+
+	public boolean isStatelessTransactionAffinity() {
+		return statelessTransactionAffinity;
+	}
+
+	public void setStatelessTransactionAffinity(boolean statelessTransactionAffinity) {
+		this.statelessTransactionAffinity = statelessTransactionAffinity;
+	}
+
+	public boolean isUseBuiltInTransactionManager() {
+		return useBuiltInTransactionManager;
+	}
+
+	public void setUseBuiltInTransactionManager(boolean useBuiltInTransactionManager) {
+		this.useBuiltInTransactionManager = useBuiltInTransactionManager;
+	}
+
 	public long getPooledBeanMaxAge() {
 		return pooledBeanMaxAge;
 	}
@@ -459,10 +900,105 @@ public class EJBContainer implements Serializable {
 		this.pooledBeanMaxAge = pooledBeanMaxAge;
 	}
 
+	public double getPoolSizingSmoothing() {
+		return poolSizingSmoothing;
+	}
+
+	public void setPoolSizingSmoothing(double poolSizingSmoothing) {
+		if (poolSizingSmoothing <= 0 || poolSizingSmoothing > 1) {
+			throw new IllegalArgumentException("pool sizing smoothing must be in (0, 1]");
+		}
+		this.poolSizingSmoothing = poolSizingSmoothing;
+	}
+
+	public double getPoolSizingHeadroom() {
+		return poolSizingHeadroom;
+	}
+
+	public void setPoolSizingHeadroom(double poolSizingHeadroom) {
+		if (poolSizingHeadroom < 0) {
+			throw new IllegalArgumentException("pool sizing headroom can't be negative");
+		}
+		this.poolSizingHeadroom = poolSizingHeadroom;
+	}
+
+	public double getPoolTrimRatio() {
+		return poolTrimRatio;
+	}
+
+	public void setPoolTrimRatio(double poolTrimRatio) {
+		if (poolTrimRatio <= 0 || poolTrimRatio > 1) {
+			throw new IllegalArgumentException("pool trim ratio must be in (0, 1]");
+		}
+		this.poolTrimRatio = poolTrimRatio;
+	}
+
 	public void setJndiResolver(IJndiResolver jndiResolver) {
 		this.jndiResolver = jndiResolver;
 	}
 
+	/*
+	 * Fills instance pools of the module being deployed, building instances in
+	 * parallel. Workers get the context class loader of the deployer thread, as
+	 * ejbCreate() methods may depend on it.
+	 */
+	private static class PoolWarmUp {
+		private ExecutorService executor;
+		private List<Future<?>> pending = new ArrayList<Future<?>>();
+
+		void prefill(EJBMetadata ejbmd) {
+			BeanInstancePool pool = ejbmd.getInstancePool();
+
+			if (pool == null || Math.max(ejbmd.getPoolInitialSize(), ejbmd.getPoolMinSize()) == 0) {
+				return;
+			}
+
+			if (executor == null) {
+				final ClassLoader deployerClassLoader = Thread.currentThread().getContextClassLoader();
+
+				executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+					private int count;
+
+					@Override
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "TinyEJB pool warm-up " + (++count));
+						t.setDaemon(true);
+						t.setContextClassLoader(deployerClassLoader);
+						return t;
+					}
+				});
+			}
+
+			pending.addAll(pool.prefill(executor));
+		}
+
+		void await() {
+			if (executor == null) {
+				return;
+			}
+
+			long start = System.currentTimeMillis();
+			int failures = 0;
+
+			try {
+				for (Future<?> f : pending) {
+					try {
+						f.get();
+					} catch (ExecutionException e) {
+						failures++;
+						LOGGER.warn("Error when warming up instance pool: " + e.getCause().getMessage());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				executor.shutdownNow();
+			}
+
+			LOGGER.info((pending.size() - failures) + " pooled instance(s) built in " + (System.currentTimeMillis() - start) + " ms.");
+		}
+	}
+
 	public static enum ContainerStatus {
 		NORMAL, SHUT_DOWN
 	}
@@ -483,6 +1019,65 @@ public class EJBContainer implements Serializable {
 		this.randomTimeToWaitOnStatefulCalls = randomTimeToWaitOnStatefulCalls;
 	}
 
+	public ISessionStateCodec getSessionStateCodec() {
+		return sessionStateCodec;
+	}
+
+	public void setSessionStateCodec(ISessionStateCodec sessionStateCodec) {
+		this.sessionStateCodec = sessionStateCodec;
+	}
+
+	public long getStatefulSessionTimeout() {
+		return statefulSessionTimeout;
+	}
+
+	public void setStatefulSessionTimeout(long statefulSessionTimeout) {
+		this.statefulSessionTimeout = statefulSessionTimeout;
+	}
+
+	public String getSessionSnapshotFile() {
+		return sessionSnapshotFile;
+	}
+
+	public void setSessionSnapshotFile(String sessionSnapshotFile) {
+		this.sessionSnapshotFile = sessionSnapshotFile;
+	}
+
+	public long getPassivationIdleTimeout() {
+		return passivationIdleTimeout;
+	}
+
+	public void setPassivationIdleTimeout(long passivationIdleTimeout) {
+		this.passivationIdleTimeout = passivationIdleTimeout;
+	}
+
+	public int getMaxActiveStatefulSessions() {
+		return maxActiveStatefulSessions;
+	}
+
+	public void setMaxActiveStatefulSessions(int maxActiveStatefulSessions) {
+		this.maxActiveStatefulSessions = maxActiveStatefulSessions;
+	}
+
+	public double getPassivationHeapThreshold() {
+		return passivationHeapThreshold;
+	}
+
+	public void setPassivationHeapThreshold(double passivationHeapThreshold) {
+		if (passivationHeapThreshold < 0 || passivationHeapThreshold >= 1) {
+			throw new IllegalArgumentException("passivation heap threshold must be in [0, 1)");
+		}
+		this.passivationHeapThreshold = passivationHeapThreshold;
+	}
+
+	public String getPassivationDirectory() {
+		return passivationDirectory;
+	}
+
+	public void setPassivationDirectory(String passivationDirectory) {
+		this.passivationDirectory = passivationDirectory;
+	}
+
 	public void deployModuleFromDescriptor(InputStream resourceAsStream) throws Exception {
 		deployModuleFromDescriptor(Collections.singletonList(resourceAsStream));
 		
@@ -1,5 +1,7 @@
 package org.tinyejb.core;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -7,13 +9,34 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.ejb.EJBLocalObject;
+import javax.ejb.EJBObject;
+
+import org.tinyejb.core.EJBMetadata.EJBMethodTransactionInfo.METHOD_INTF;
+import org.tinyejb.proxies.BeanDispatchTable;
+import org.tinyejb.proxies.BeanInstancePool;
+import org.tinyejb.proxies.IBeanInstanceProvider;
+import org.tinyejb.proxies.SessionContextImpl;
+import org.tinyejb.proxies.StatefulLockStatistics;
+import org.tinyejb.proxies.StatefulSessionRegistry;
+import org.tinyejb.proxies.StatefulSessionStatistics;
+import org.tinyejb.proxies.TransactionAffinity;
+
 public class EJBMetadata implements Serializable{
 	private static final long serialVersionUID = 1L;
 	private String name;
 	private BEAN_TYPE type;
 	private TRANSACTION_MANAGED_BY txManagedBy;
 	private TRANSACTION_TYPE defaultTxType;
-	private Map<String, EJBMethodTransactionInfo> methodsTransactionInfo;
+	private List<EJBMethodTransactionInfo> methodsTransactionInfo;
+	//transaction info of each business method, resolved at deploy time
+	private transient Map<Method, EJBMethodTransactionInfo> localTxInfo;
+	private transient Map<Method, EJBMethodTransactionInfo> remoteTxInfo;
+	//container-managed concurrency (singleton stateless beans, and read-only methods of stateful beans): lock type of methods, resolved at deploy time
+	private boolean concurrencyManaged;
+	private List<EJBMethodConcurrencyInfo> methodsConcurrencyInfo;
+	private transient Map<Method, EJBMethodConcurrencyInfo> localConcurrencyInfo;
+	private transient Map<Method, EJBMethodConcurrencyInfo> remoteConcurrencyInfo;
 	private String ejbClassName;
 	private String homeIntf;
 	private String remoteIntf;
@@ -21,6 +44,30 @@ public class EJBMetadata implements Serializable{
 	private String localIntf;
 	private List<String> jndiNames;
 	private EJBContainer ejbContainer;
+	private transient BeanDispatchTable dispatchTable;
+	//how instances of a stateless bean are managed. Null means the container default
+	private INSTANCE_MODE instanceMode;
+	//source of instances of a stateless bean, and its views, shared by local and remote homes
+	private transient IBeanInstanceProvider instanceProvider;
+	private transient SessionContextImpl.BeanViews beanViews;
+	//pins instances of a pooled stateless bean to transactions. Null setting means the container default
+	private Boolean transactionAffinityEnabled;
+	private transient TransactionAffinity transactionAffinity;
+	//contention on session locks (stateful only)
+	private transient StatefulLockStatistics statefulLockStatistics;
+	//seconds that transactions begun by the container for calls of the bean may run. Zero means the TransactionManager's default, negative means not declared
+	private int transactionTimeout;
+	//idle time (milliseconds) before a session is removed by the container, and session counts (stateful only). Negative timeout means the container default
+	private long sessionTimeout;
+	private transient StatefulSessionStatistics statefulSessionStatistics;
+	//sessions by id, for handles and snapshots (stateful only)
+	private transient StatefulSessionRegistry statefulSessionRegistry;
+	//instance pool settings (stateless only). Max size 0 means an unbounded pool
+	private int poolMinSize;
+	private int poolInitialSize;
+	private int poolMaxSize;
+	private long poolBorrowTimeout;
+	private POOL_EXHAUSTED_POLICY poolExhaustedPolicy;
 
 	public EJBMetadata(String name, BEAN_TYPE type, TRANSACTION_MANAGED_BY txManagedBy, EJBContainer ejbContainer) {
 		this.name = name;
@@ -28,58 +75,211 @@ public class EJBMetadata implements Serializable{
 		this.txManagedBy = txManagedBy;
 		this.jndiNames = new ArrayList<String>();
 		this.defaultTxType = TRANSACTION_TYPE.Required;
-		methodsTransactionInfo = new HashMap<String, EJBMethodTransactionInfo>();
+		this.poolBorrowTimeout = 30000;
+		this.poolExhaustedPolicy = POOL_EXHAUSTED_POLICY.Wait;
+		this.sessionTimeout = -1;
+		this.transactionTimeout = -1;
+		methodsTransactionInfo = new ArrayList<EJBMethodTransactionInfo>();
+		methodsConcurrencyInfo = new ArrayList<EJBMethodConcurrencyInfo>();
 		this.ejbContainer = ejbContainer;
+
+		initTransientState();
+	}
+
+	/*
+	 * resolved method info and statistics, that aren't serialized
+	 */
+	private void initTransientState() {
+		localTxInfo = new HashMap<Method, EJBMethodTransactionInfo>();
+		remoteTxInfo = new HashMap<Method, EJBMethodTransactionInfo>();
+		localConcurrencyInfo = new HashMap<Method, EJBMethodConcurrencyInfo>();
+		remoteConcurrencyInfo = new HashMap<Method, EJBMethodConcurrencyInfo>();
+
+		if (type == BEAN_TYPE.Stateful) {
+			this.statefulLockStatistics = new StatefulLockStatistics();
+			this.statefulSessionStatistics = new StatefulSessionStatistics();
+			this.statefulSessionRegistry = new StatefulSessionRegistry();
+		}
+	}
+
+	/*
+	 * Method info is resolved again against the bean's interfaces, as Method objects aren't serializable.
+	 * Statistics and the session registry start empty, as the sessions they counted stay behind.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+
+		initTransientState();
+
+		Class<?> localIntfClass = classOrNull(localIntf);
+		Class<?> remoteIntfClass = classOrNull(remoteIntf);
+
+		resolveTransactionTypes(localIntfClass, remoteIntfClass, null, null);
+
+		if (concurrencyManaged) {
+			resolveConcurrencyInfo(localIntfClass, remoteIntfClass);
+		}
+	}
+
+	private static Class<?> classOrNull(String name) throws ClassNotFoundException {
+		return name != null ? Class.forName(name, false, Thread.currentThread().getContextClassLoader()) : null;
 	}
 
 	public void addMethodTransactionInfo(List<EJBMethodTransactionInfo> mList) {
 		for (EJBMethodTransactionInfo m : mList) {
-			if (m.getName().equals("*")) { //default para marcação de TX padrão
-				this.defaultTxType = m.txType;
+			if (m.getName().equals("*") && m.getMethodIntf().equals(METHOD_INTF.Unknown)) { //default para marcação de TX padrão
+				this.defaultTxType = m.getTxType();
+
+				//a timeout declared on the bean's element prevails
+				if (transactionTimeout < 0) {
+					this.transactionTimeout = m.getTransactionTimeout();
+				}
 			} else {
-				methodsTransactionInfo.put(m.getSignature(), m);
+				methodsTransactionInfo.add(m);
 			}
 		}
 	}
-	
-	public EJBMethodTransactionInfo getTransactionInfoForMethod(Method m) throws Exception {
-		String baseMethodID = buildMethodID(m);
-		
-		if(isLocalObjectInterface(m)){
-			baseMethodID = "Local@" + baseMethodID;
-		}else{
-			baseMethodID = "Remote@" + baseMethodID;	
-		}
-		
-		return methodsTransactionInfo.get(baseMethodID);
-	}
-	
-	private String buildMethodID(Method m) {
-		StringBuilder b = new StringBuilder();
-		b.append(m.getName()).append("(");
-		
-		int i = 0;
-		for(Class<?> pType : m.getParameterTypes()){
-			if(i > 0){
-				b.append(",");
-			}
-			b.append(pType.getCanonicalName());
-			i++;
+
+	public void addMethodConcurrencyInfo(List<EJBMethodConcurrencyInfo> mList) {
+		methodsConcurrencyInfo.addAll(mList);
+
+		if (!mList.isEmpty()) {
+			concurrencyManaged = true;
+		}
+	}
+
+	/**
+	 * Resolves the effective transaction type for every business method of local and remote interfaces,
+	 * following ejb-jar rules: method name and parameters overrides method name only, that overrides '*'.
+	 * For the same style, an entry that declares method-intf overrides the ones that don't.
+	 * 
+	 * Interfaces not used by the bean must be null.
+	 * 
+	 * @return entries that don't match any method of bean's interfaces
+	 */
+	public List<EJBMethodTransactionInfo> resolveTransactionTypes(Class<?> localIntfClass, Class<?> remoteIntfClass, Class<?> localHomeIntfClass, Class<?> homeIntfClass) {
+		List<EJBMethodTransactionInfo> unresolved = new ArrayList<EJBMethodTransactionInfo>(methodsTransactionInfo);
+
+		localTxInfo.clear();
+		remoteTxInfo.clear();
+
+		resolve(localIntfClass, METHOD_INTF.Local, methodsTransactionInfo, localTxInfo, unresolved);
+		resolve(remoteIntfClass, METHOD_INTF.Remote, methodsTransactionInfo, remoteTxInfo, unresolved);
+
+		//home methods aren't transactional on TinyEJB, but entries for them are valid
+		resolve(localHomeIntfClass, METHOD_INTF.LocalHome, methodsTransactionInfo, null, unresolved);
+		resolve(homeIntfClass, METHOD_INTF.Home, methodsTransactionInfo, null, unresolved);
+
+		return unresolved;
+	}
+
+	/**
+	 * Resolves the lock type of every business method of local and remote interfaces, with the same rules used for transaction types.
+	 * 
+	 * @return entries that don't match any method of bean's interfaces
+	 */
+	public List<EJBMethodConcurrencyInfo> resolveConcurrencyInfo(Class<?> localIntfClass, Class<?> remoteIntfClass) {
+		List<EJBMethodConcurrencyInfo> unresolved = new ArrayList<EJBMethodConcurrencyInfo>(methodsConcurrencyInfo);
+
+		localConcurrencyInfo.clear();
+		remoteConcurrencyInfo.clear();
+
+		resolve(localIntfClass, METHOD_INTF.Local, methodsConcurrencyInfo, localConcurrencyInfo, unresolved);
+		resolve(remoteIntfClass, METHOD_INTF.Remote, methodsConcurrencyInfo, remoteConcurrencyInfo, unresolved);
+
+		return unresolved;
+	}
+
+	/*
+	 * puts on resolved map the most specific entry for each business method of the interface (if any), removing from unresolved list the entries that match some method
+	 */
+	private static <T extends EJBMethodInfo> void resolve(Class<?> intfClass, METHOD_INTF methodIntf, List<T> entries, Map<Method, T> resolved, List<T> unresolved) {
+		if (intfClass == null) {
+			return;
 		}
-		
-		if(i == 0){
-			b.append("void");
+
+		for (Method m : intfClass.getMethods()) {
+			Class<?> declaringClass = m.getDeclaringClass();
+
+			if (declaringClass.equals(EJBObject.class) || declaringClass.equals(EJBLocalObject.class)) {
+				continue; //not business methods
+			}
+
+			T best = null;
+
+			for (T entry : entries) {
+				if (entry.matches(m, methodIntf)) {
+					unresolved.remove(entry);
+
+					if (best == null || entry.getSpecificity() >= best.getSpecificity()) {
+						best = entry;
+					}
+				}
+			}
+
+			if (resolved != null && best != null) {
+				resolved.put(m, best);
+			}
 		}
-		
-		b.append(")");
-		
-		return b.toString();
 	}
-	
+
+	/**
+	 * Effective transaction type for a method of the local or remote interface.
+	 * Methods with no transaction info (i.e. java.lang.Object methods) get the bean's default transaction type.
+	 */
+	public TRANSACTION_TYPE getTransactionType(Method m, METHOD_INTF methodIntf) {
+		EJBMethodTransactionInfo mti = (methodIntf.equals(METHOD_INTF.Local) ? localTxInfo : remoteTxInfo).get(m);
+
+		return mti != null ? mti.getTxType() : defaultTxType;
+	}
+
+	/**
+	 * Timeout (seconds) for transactions begun by the container for calls to a method of the local or remote interface: the one
+	 * declared on its container-transaction entry, or else the bean's. Zero means the TransactionManager's default.
+	 */
+	public int getTransactionTimeout(Method m, METHOD_INTF methodIntf) {
+		EJBMethodTransactionInfo mti = (methodIntf.equals(METHOD_INTF.Local) ? localTxInfo : remoteTxInfo).get(m);
+
+		return mti != null && mti.getTransactionTimeout() >= 0 ? mti.getTransactionTimeout() : getTransactionTimeout();
+	}
+
+	/**
+	 * Concurrency info declared for a method of the local or remote interface, or null if there is none.
+	 */
+	public EJBMethodConcurrencyInfo getConcurrencyInfo(Method m, METHOD_INTF methodIntf) {
+		return (methodIntf.equals(METHOD_INTF.Local) ? localConcurrencyInfo : remoteConcurrencyInfo).get(m);
+	}
+
+	/**
+	 * Transaction info resolved for a method of the local interface (or else of the remote one), or null if it has none
+	 *
+	 * @deprecated the interface a method is called through can't be told from the method alone: use
+	 * {@link #getTransactionType(Method, METHOD_INTF)} and {@link #getTransactionTimeout(Method, METHOD_INTF)}
+	 */
+	@Deprecated
+	public EJBMethodTransactionInfo getTransactionInfoForMethod(Method m) throws Exception {
+		return (isLocalObjectInterface(m) ? localTxInfo : remoteTxInfo).get(m);
+	}
+
+	/**
+	 * @deprecated methods are resolved for the local and remote interfaces at deploy, so callers already know the interface
+	 */
+	@Deprecated
 	public boolean isLocalObjectInterface(Method m) throws Exception {
 		return m.getDeclaringClass().getName().equals(getLocalIntf());
 	}
-	
+
+	/**
+	 * true when the container serializes calls on the bean instance by lock type (Read or Write) of each method. 
+	 */
+	public boolean isConcurrencyManaged() {
+		return concurrencyManaged;
+	}
+
+	public void setConcurrencyManaged(boolean concurrencyManaged) {
+		this.concurrencyManaged = concurrencyManaged;
+	}
+
 	public boolean isStateless(){
 		return type.equals(BEAN_TYPE.Stateless);
 	}
@@ -97,25 +297,74 @@ public class EJBMetadata implements Serializable{
 		b.append("local.intf: ").append(localIntf).append("\n");
 		b.append("methods:").append("\n");
 
-		for (EJBMethodTransactionInfo m : methodsTransactionInfo.values()) {
+		for (EJBMethodTransactionInfo m : methodsTransactionInfo) {
 			b.append(m).append("\n");
 		}
 
 		return b.toString();
 	}
 
-	public static class EJBMethodTransactionInfo implements Serializable{
+	/**
+	 * A method entry on assembly-descriptor (i.e. on container-transaction), and the rules to find the methods it applies to.
+	 */
+	public static class EJBMethodInfo implements Serializable {
 		private static final long serialVersionUID = 1L;
 		private String name;
 		private String signature;
-		private TRANSACTION_TYPE txType;
 		private METHOD_INTF methodIntf;
+		//types of method-params, or null when the entry applies to all methods with this name
+		private String[] params;
 
-		public EJBMethodTransactionInfo(String name, String signature, TRANSACTION_TYPE txType, METHOD_INTF methodIntf) {
+		public EJBMethodInfo(String name, String signature, METHOD_INTF methodIntf, String[] params) {
 			this.name = name;
 			this.signature = signature;
-			this.txType = txType;
 			this.methodIntf = methodIntf;
+			this.params = params;
+		}
+
+		/**
+		 * checks whether this entry applies to a method of the given interface type
+		 */
+		public boolean matches(Method m, METHOD_INTF intf) {
+			if (!methodIntf.equals(METHOD_INTF.Unknown) && !methodIntf.equals(intf)) {
+				return false;
+			}
+
+			if (name.equals("*")) {
+				return true;
+			}
+
+			if (!name.equals(m.getName())) {
+				return false;
+			}
+
+			if (params == null) {
+				return true;
+			}
+
+			Class<?>[] pTypes = m.getParameterTypes();
+
+			if (pTypes.length != params.length) {
+				return false;
+			}
+
+			for (int i = 0; i < pTypes.length; i++) {
+				if (!params[i].equals(pTypes[i].getCanonicalName()) && !params[i].equals(pTypes[i].getName())) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * Precedence of this entry over others that match the same method. 
+		 * Higher is more specific: '*' < method name < method name and params, and, for each one, entries with method-intf are more specific.
+		 */
+		public int getSpecificity() {
+			int style = name.equals("*") ? 0 : (params == null ? 1 : 2);
+
+			return style * 2 + (methodIntf.equals(METHOD_INTF.Unknown) ? 0 : 1);
 		}
 
 		public String getName() {
@@ -126,13 +375,42 @@ public class EJBMetadata implements Serializable{
 			return signature;
 		}
 
+		public METHOD_INTF getMethodIntf() {
+			return methodIntf;
+		}
+	}
+
+	public static class EJBMethodTransactionInfo extends EJBMethodInfo {
+		private static final long serialVersionUID = 1L;
+		private TRANSACTION_TYPE txType;
+		//seconds that transactions begun for the method may run. Negative means the bean's transaction timeout
+		private int transactionTimeout;
+
+		public EJBMethodTransactionInfo(String name, String signature, TRANSACTION_TYPE txType, METHOD_INTF methodIntf) {
+			this(name, signature, txType, methodIntf, null);
+		}
+
+		public EJBMethodTransactionInfo(String name, String signature, TRANSACTION_TYPE txType, METHOD_INTF methodIntf, String[] params) {
+			this(name, signature, txType, methodIntf, params, -1);
+		}
+
+		public EJBMethodTransactionInfo(String name, String signature, TRANSACTION_TYPE txType, METHOD_INTF methodIntf, String[] params, int transactionTimeout) {
+			super(name, signature, methodIntf, params);
+			this.txType = txType;
+			this.transactionTimeout = transactionTimeout;
+		}
+
 		public TRANSACTION_TYPE getTxType() {
 			return txType;
 		}
 
+		public int getTransactionTimeout() {
+			return transactionTimeout;
+		}
+
 		public String toString() {
 			StringBuilder b = new StringBuilder();
-			b.append("method: ").append(signature).append(", txType: ").append(txType).append(", intf: ").append(methodIntf);
+			b.append("method: ").append(getSignature()).append(", txType: ").append(txType).append(", transactionTimeout: ").append(transactionTimeout).append(", intf: ").append(getMethodIntf());
 			return b.toString();
 		}
 
@@ -141,6 +419,43 @@ public class EJBMetadata implements Serializable{
 		}
 	}
 
+	/**
+	 * Lock type of a method, for beans with container-managed concurrency (TinyEJB's <container-concurrency> element)
+	 */
+	public static class EJBMethodConcurrencyInfo extends EJBMethodInfo {
+		private static final long serialVersionUID = 1L;
+		private LOCK_TYPE lockType;
+		//how long (in milliseconds) a call waits for the lock. Negative means the container's concurrentCallWaitTimeout
+		private long accessTimeout;
+
+		public EJBMethodConcurrencyInfo(String name, String signature, METHOD_INTF methodIntf, String[] params, LOCK_TYPE lockType, long accessTimeout) {
+			super(name, signature, methodIntf, params);
+			this.lockType = lockType;
+			this.accessTimeout = accessTimeout;
+		}
+
+		public LOCK_TYPE getLockType() {
+			return lockType;
+		}
+
+		public long getAccessTimeout() {
+			return accessTimeout;
+		}
+
+		public String toString() {
+			StringBuilder b = new StringBuilder();
+			b.append("method: ").append(getSignature()).append(", lockType: ").append(lockType).append(", accessTimeout: ").append(accessTimeout).append(", intf: ").append(getMethodIntf());
+			return b.toString();
+		}
+	}
+
+	/**
+	 * Read methods can run concurrently, while a Write method runs alone on the bean instance
+	 */
+	public static enum LOCK_TYPE {
+		Read, Write;
+	}
+
 	public static enum BEAN_TYPE {
 		Stateless, Stateful;
 	}
@@ -153,6 +468,21 @@ public class EJBMetadata implements Serializable{
 		Container, Bean;
 	}
 
+	/**
+	 * How stateless bean instances serve calls: from an instance pool, all by a single instance or one instance per calling thread
+	 */
+	public static enum INSTANCE_MODE {
+		Pooled, Singleton, ThreadConfined;
+	}
+
+	/**
+	 * What a borrower does when a bounded pool stays exhausted for the whole borrow timeout:
+	 * Fail throws an exception, Wait keeps waiting for an instance, and Grow builds a temporary instance that is discarded on return.
+	 */
+	public static enum POOL_EXHAUSTED_POLICY {
+		Fail, Wait, Grow;
+	}
+
 	public String getEjbClassName() {
 		return ejbClassName;
 	}
@@ -220,4 +550,175 @@ public class EJBMetadata implements Serializable{
 	public EJBContainer getEjbContainer() {
 		return ejbContainer;
 	}
+
+	public BeanDispatchTable getDispatchTable() {
+		return dispatchTable;
+	}
+
+	public void setDispatchTable(BeanDispatchTable dispatchTable) {
+		this.dispatchTable = dispatchTable;
+	}
+
+	/**
+	 * Instance management mode of a stateless bean. When not declared, it's Singleton if the container uses singletons for stateless beans, or Pooled otherwise.
+	 */
+	public INSTANCE_MODE getInstanceMode() {
+		if (instanceMode != null) {
+			return instanceMode;
+		}
+
+		return ejbContainer != null && ejbContainer.isUseSingletonForStateless() ? INSTANCE_MODE.Singleton : INSTANCE_MODE.Pooled;
+	}
+
+	public void setInstanceMode(INSTANCE_MODE instanceMode) {
+		this.instanceMode = instanceMode;
+	}
+
+	public IBeanInstanceProvider getInstanceProvider() {
+		return instanceProvider;
+	}
+
+	public void setInstanceProvider(IBeanInstanceProvider instanceProvider) {
+		this.instanceProvider = instanceProvider;
+	}
+
+	/**
+	 * instance pool of the bean, if it's pooled
+	 */
+	public BeanInstancePool getInstancePool() {
+		return instanceProvider instanceof BeanInstancePool ? (BeanInstancePool) instanceProvider : null;
+	}
+
+	/**
+	 * wait time, queue depth and holder methods of contended calls on sessions of a stateful bean. Null for stateless beans.
+	 */
+	public StatefulLockStatistics getStatefulLockStatistics() {
+		return statefulLockStatistics;
+	}
+
+	/**
+	 * live, removed and expired sessions of a stateful bean. Null for stateless beans.
+	 */
+	public StatefulSessionStatistics getStatefulSessionStatistics() {
+		return statefulSessionStatistics;
+	}
+
+	/**
+	 * sessions of a stateful bean that can be found by id (handles), including the ones from a snapshot not restored yet.
+	 * Null for stateless beans.
+	 */
+	public StatefulSessionRegistry getStatefulSessionRegistry() {
+		return statefulSessionRegistry;
+	}
+
+	/**
+	 * Idle time (milliseconds) before a stateful session is removed by the container. When not declared, it's the container's
+	 * statefulSessionTimeout. Zero means sessions never expire.
+	 */
+	public long getSessionTimeout() {
+		if (sessionTimeout >= 0) {
+			return sessionTimeout;
+		}
+
+		return ejbContainer != null ? ejbContainer.getStatefulSessionTimeout() : 0;
+	}
+
+	public void setSessionTimeout(long sessionTimeout) {
+		this.sessionTimeout = sessionTimeout;
+	}
+
+	/**
+	 * Timeout (seconds) for transactions begun by the container for calls of the bean, unless the method declares its own.
+	 * Zero means the TransactionManager's default.
+	 */
+	public int getTransactionTimeout() {
+		return Math.max(transactionTimeout, 0);
+	}
+
+	public void setTransactionTimeout(int transactionTimeout) {
+		this.transactionTimeout = transactionTimeout;
+	}
+
+	/**
+	 * Whether calls of a stateless bean keep the instance they borrowed from the pool for the rest of their transaction. Only
+	 * pooled beans with container-managed transactions have it. When not declared, it's the container's statelessTransactionAffinity.
+	 */
+	public boolean isTransactionAffinityEnabled() {
+		if (!isStateless() || getInstanceMode() != INSTANCE_MODE.Pooled || txManagedBy != TRANSACTION_MANAGED_BY.Container) {
+			return false;
+		}
+
+		if (transactionAffinityEnabled != null) {
+			return transactionAffinityEnabled;
+		}
+
+		return ejbContainer != null && ejbContainer.isStatelessTransactionAffinity();
+	}
+
+	public void setTransactionAffinityEnabled(Boolean transactionAffinityEnabled) {
+		this.transactionAffinityEnabled = transactionAffinityEnabled;
+	}
+
+	/**
+	 * instances pinned to transactions, if transaction affinity is enabled for the bean
+	 */
+	public TransactionAffinity getTransactionAffinity() {
+		return transactionAffinity;
+	}
+
+	public void setTransactionAffinity(TransactionAffinity transactionAffinity) {
+		this.transactionAffinity = transactionAffinity;
+	}
+
+	public SessionContextImpl.BeanViews getBeanViews() {
+		return beanViews;
+	}
+
+	public void setBeanViews(SessionContextImpl.BeanViews beanViews) {
+		this.beanViews = beanViews;
+	}
+
+	public int getPoolMinSize() {
+		return poolMinSize;
+	}
+
+	public void setPoolMinSize(int poolMinSize) {
+		this.poolMinSize = poolMinSize;
+	}
+
+	public int getPoolInitialSize() {
+		return poolInitialSize;
+	}
+
+	public void setPoolInitialSize(int poolInitialSize) {
+		this.poolInitialSize = poolInitialSize;
+	}
+
+	public int getPoolMaxSize() {
+		return poolMaxSize;
+	}
+
+	public void setPoolMaxSize(int poolMaxSize) {
+		this.poolMaxSize = poolMaxSize;
+	}
+
+	public boolean isPoolBounded() {
+		return poolMaxSize > 0;
+	}
+
+	public long getPoolBorrowTimeout() {
+		return poolBorrowTimeout;
+	}
+
+	public void setPoolBorrowTimeout(long poolBorrowTimeout) {
+		this.poolBorrowTimeout = poolBorrowTimeout;
+	}
+
+	public POOL_EXHAUSTED_POLICY getPoolExhaustedPolicy() {
+		return poolExhaustedPolicy;
+	}
+
+	public void setPoolExhaustedPolicy(POOL_EXHAUSTED_POLICY poolExhaustedPolicy) {
+		this.poolExhaustedPolicy = poolExhaustedPolicy;
+	}
 }
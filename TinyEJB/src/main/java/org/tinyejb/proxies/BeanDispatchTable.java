@@ -0,0 +1,205 @@
+package org.tinyejb.proxies;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatch table for a Session Bean class.
+ *
+ * It's built once, at deploy time, and maps each public method of the bean class to a pre-resolved invoker, so business calls
+ * don't need to look up methods on the bean class anymore. The same table is shared by the local and remote interfaces of the bean.
+ *
+ * When the container uses generated proxies, invokers are classes generated with ASM (see {@link InvokerClassGenerator}), that call
+ * bean methods with no reflection. Otherwise, or when a method can't be generated for, invokers are backed by reflection, with the
+ * access checks of target methods suppressed up front, leaving only the dispatch itself on the call path.
+ *
+ * Homes also use it to create bean instances: the void constructor and the ejbCreate() methods are resolved here, once.
+ *
+ */
+public class BeanDispatchTable {
+	private final static Logger LOGGER = LoggerFactory.getLogger(BeanDispatchTable.class);
+
+	//bean class served by this table
+	private final Class<?> beanClass;
+
+	//void constructor of the bean class. Null if it has none, so create() fails as it always did
+	private final Constructor<?> constructor;
+
+	//invokers for all public methods of the bean class, by signature
+	private final Map<MethodSignature, MethodInvoker> invokers = new HashMap<MethodSignature, MethodInvoker>();
+
+	public BeanDispatchTable(Class<?> beanClass, boolean generatedInvokers) {
+		this.beanClass = beanClass;
+		this.constructor = findConstructor(beanClass);
+
+		InvokerClassGenerator generator = generatedInvokers ? newGenerator(beanClass) : null;
+		int generatedCount = 0;
+
+		for (Method m : beanClass.getMethods()) {
+			if (Modifier.isStatic(m.getModifiers()) || m.getDeclaringClass().equals(Object.class)) {
+				continue;
+			}
+
+			MethodInvoker invoker = null;
+
+			if (generator != null && InvokerClassGenerator.canInvoke(beanClass, m)) {
+				try {
+					invoker = generator.generate(beanClass, m);
+					generatedCount++;
+				} catch (Exception e) {
+					LOGGER.warn("Invoker generation failed for " + m + ", using reflection: " + e.getMessage());
+				}
+			}
+
+			invokers.put(new MethodSignature(m.getName(), m.getParameterTypes()), invoker != null ? invoker : new ReflectiveInvoker(m));
+		}
+
+		LOGGER.debug("dispatch table for '" + beanClass.getName() + "' built with " + invokers.size() + " methods (" + generatedCount + " generated invokers).");
+	}
+
+	private static InvokerClassGenerator newGenerator(Class<?> beanClass) {
+		try {
+			return new InvokerClassGenerator(beanClass);
+		} catch (NoClassDefFoundError e) {
+			LOGGER.warn("ASM not found on classpath, using reflection to call '" + beanClass.getName() + "' methods");
+			return null;
+		}
+	}
+
+	/**
+	 * Finds the invoker for the bean class method that matches the given interface method (by name and parameter types).
+	 * Methods not known by the table (i.e. methods inherited from java.lang.Object) are resolved on demand.
+	 *
+	 * @throws NoSuchMethodException if bean class has no such method
+	 */
+	public MethodInvoker lookup(Method interfaceMethod) throws NoSuchMethodException {
+		MethodInvoker invoker = invokers.get(new MethodSignature(interfaceMethod.getName(), interfaceMethod.getParameterTypes()));
+
+		if (invoker == null) {
+			invoker = new ReflectiveInvoker(beanClass.getMethod(interfaceMethod.getName(), interfaceMethod.getParameterTypes()));
+		}
+
+		return invoker;
+	}
+
+	/**
+	 * Finds the invoker for the ejbCreate() method that matches the parameter types of a create() method on the home interface
+	 *
+	 * @throws NoSuchMethodException if bean class has no such method
+	 */
+	public MethodInvoker lookupEjbCreate(Class<?>[] parameterTypes) throws NoSuchMethodException {
+		MethodInvoker invoker = invokers.get(new MethodSignature("ejbCreate", parameterTypes));
+
+		if (invoker == null) {
+			throw new NoSuchMethodException(beanClass.getName() + ".ejbCreate" + Arrays.toString(parameterTypes));
+		}
+
+		return invoker;
+	}
+
+	/**
+	 * New bean instance, by the void constructor
+	 *
+	 * @throws java.lang.reflect.InvocationTargetException wrapping anything the constructor throws
+	 */
+	public Object newInstance() throws Exception {
+		if (constructor == null) {
+			//reports the problem the same way as always
+			return beanClass.newInstance();
+		}
+
+		return constructor.newInstance();
+	}
+
+	public Class<?> getBeanClass() {
+		return beanClass;
+	}
+
+	private static Constructor<?> findConstructor(Class<?> beanClass) {
+		try {
+			Constructor<?> constructor = beanClass.getConstructor();
+
+			try {
+				constructor.setAccessible(true);
+			} catch (SecurityException e) {
+				LOGGER.debug("access checks can't be suppressed for " + constructor + ": " + e.getMessage());
+			}
+
+			return constructor;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Pre-resolved call target on a bean instance
+	 */
+	public static interface MethodInvoker {
+		/**
+		 * @throws java.lang.reflect.InvocationTargetException wrapping anything the target method throws
+		 */
+		Object invoke(Object instance, Object[] args) throws Exception;
+
+		Method getTargetMethod();
+	}
+
+	private static class ReflectiveInvoker implements MethodInvoker {
+		private final Method targetMethod;
+
+		ReflectiveInvoker(Method targetMethod) {
+			this.targetMethod = targetMethod;
+
+			try {
+				//skips the language access checks on every call
+				targetMethod.setAccessible(true);
+			} catch (SecurityException e) {
+				LOGGER.debug("access checks can't be suppressed for " + targetMethod + ": " + e.getMessage());
+			}
+		}
+
+		@Override
+		public Object invoke(Object instance, Object[] args) throws Exception {
+			return targetMethod.invoke(instance, args);
+		}
+
+		@Override
+		public Method getTargetMethod() {
+			return targetMethod;
+		}
+	}
+
+	private static class MethodSignature {
+		private final String name;
+		private final Class<?>[] parameterTypes;
+		private final int hash;
+
+		MethodSignature(String name, Class<?>[] parameterTypes) {
+			this.name = name;
+			this.parameterTypes = parameterTypes;
+			this.hash = name.hashCode() * 31 + Arrays.hashCode(parameterTypes);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof MethodSignature)) {
+				return false;
+			}
+
+			MethodSignature other = (MethodSignature) obj;
+
+			return name.equals(other.name) && Arrays.equals(parameterTypes, other.parameterTypes);
+		}
+	}
+}
@@ -2,35 +2,85 @@ package org.tinyejb.proxies;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.ejb.SessionBean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.tinyejb.core.EJBContainer;
 import org.tinyejb.core.EJBMetadata;
+import org.tinyejb.core.EJBMetadata.POOL_EXHAUSTED_POLICY;
 
 /**
  * Stateless SessionBean instance pool
  * 
+ * Instances are kept on striped sub-pools, one stripe for each available processor, so concurrent callers seldom compete for the same lock.
+ * A caller borrows from the stripe of its thread, and only when it's empty it steals from the other ones.
+ * Each stripe works as a LIFO stack, so the youngest (and warmest) instance is always used first.
+ * 
+ * Instances are built out of any lock, so a slow ejbCreate() doesn't block other callers. 
+ * Borrowing and returning don't allocate objects, except when a stripe needs to grow its arrays.
+ * 
+ * When the bean declares a max size, the pool is bounded: borrowers wait up to the borrow timeout for an instance, and then
+ * apply the bean's {@link POOL_EXHAUSTED_POLICY}. Idle instances are never trimmed below the min size.
+ * 
+ * Pool size follows the demand: on each resizer run, the peak of concurrent borrows seen since the previous run feeds an exponentially
+ * weighted moving average (EWMA). The pool keeps that many instances plus a headroom, and the excess is trimmed gradually, oldest first.
+ * Smoothing, headroom and trim rate are container settings.
+ * 
  * @author Cláudio Gualberto
  * 19/09/2014
  *
  */
-public class BeanInstancePool {
+public class BeanInstancePool implements IBeanInstanceProvider {
 	private final static Logger LOGGER = LoggerFactory.getLogger(BeanInstancePool.class);
 	//EJB that owns this pool
 	private EJBMetadata ejbMetadata;
 
-	//pooled instances managed by this pool
-	private List<PoolEntry> instancePool = new ArrayList<PoolEntry>();
+	//pooled instances managed by this pool, striped by caller thread
+	private final Stripe[] stripes;
+	private final int stripeMask;
 
 	//instance factory
 	private BeanInstanceFactory factory;
 
+	//permits for borrowed instances on bounded pools (null for unbounded ones)
+	private final Semaphore permits;
+
+	//borrowed instances built beyond max size by Grow policy. They hold no permit, and are discarded when returned
+	private final Set<SessionBean> overflowInstances = Collections.newSetFromMap(new IdentityHashMap<SessionBean, Boolean>());
+	//size of overflowInstances, so returns don't lock it while there are none
+	private final AtomicInteger overflowCount = new AtomicInteger();
+
+	//statistics
+	private final AtomicInteger borrowedCount = new AtomicInteger();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong waitCount = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	//adaptive sizing: peak of concurrent borrows on current window, its moving average and the resulting target size
+	private final AtomicInteger windowPeak = new AtomicInteger();
+	private volatile int lastWindowPeak;
+	private volatile double demandEstimate;
+	private volatile int targetSize;
+
 	//global resizer task. It notifies the pools frequently to resize themselves
 	private static PoolResizerTask resizer;
 
@@ -47,49 +97,247 @@ public class BeanInstancePool {
 		this.ejbMetadata = ejbMetadata;
 		this.factory = factory;
 
+		//power of two, so the stripe of a thread is found with a mask
+		int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+		this.stripes = new Stripe[stripeCount];
+		this.stripeMask = stripeCount - 1;
+
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe();
+		}
+
+		//fair, so waiting borrowers are served in arrival order
+		this.permits = ejbMetadata.isPoolBounded() ? new Semaphore(ejbMetadata.getPoolMaxSize(), true) : null;
+
 		//registry this pool on resizer
 		resizer.registryPool(this);
 
 	}
 
+	@Override
 	public void shutdown() {
 		resizer.unregistry(this);
 	}
 
+	@Override
+	public SessionBean acquire() {
+		return getFromPool();
+	}
+
+	@Override
+	public void release(SessionBean sb) {
+		returnToPool(sb);
+	}
+
 	public SessionBean getFromPool() {
-		SessionBean result = null;
+		if (permits != null && !acquirePermit()) {
+			SessionBean result = build();
+
+			synchronized (overflowInstances) {
+				overflowInstances.add(result);
+				overflowCount.incrementAndGet();
+			}
+
+			updateWindowPeak(borrowedCount.incrementAndGet());
+
+			return result;
+		}
+
+		try {
+			SessionBean result = takeIdleOrBuild();
+			updateWindowPeak(borrowedCount.incrementAndGet());
+
+			return result;
+		} catch (RuntimeException e) {
+			if (permits != null) {
+				permits.release();
+			}
+			throw e;
+		}
+	}
+
+	/*
+	 * Waits for a permit, applying the exhausted policy on timeout.
+	 * Returns false when the caller must use a temporary instance (Grow policy).
+	 */
+	private boolean acquirePermit() {
+		if (permits.tryAcquire()) {
+			return true;
+		}
 
-		synchronized (instancePool) {
-			if (!instancePool.isEmpty()) {
-				//gets always the youngest instance
-				result = instancePool.remove(instancePool.size() - 1).instance;
-			} else {
-				//empty pool, so ask the factory
-				result = factory.build();
+		long start = System.nanoTime();
+
+		try {
+			while (true) {
+				if (permits.tryAcquire(ejbMetadata.getPoolBorrowTimeout(), TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+
+				timeoutCount.incrementAndGet();
+
+				switch (ejbMetadata.getPoolExhaustedPolicy()) {
+					case Fail:
+						throw new IllegalStateException("Instance pool of bean '" + ejbMetadata.getName() + "' exhausted: no instance available after " + ejbMetadata.getPoolBorrowTimeout() + " ms (max-size: " + ejbMetadata.getPoolMaxSize() + ").");
+					case Grow:
+						LOGGER.debug("Instance pool of bean '" + ejbMetadata.getName() + "' exhausted. Building a temporary instance.");
+						return false;
+					default:
+						LOGGER.warn("Instance pool of bean '" + ejbMetadata.getName() + "' exhausted for " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms. Still waiting...");
+				}
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for an instance of bean '" + ejbMetadata.getName() + "'", e);
+		} finally {
+			recordWait(System.nanoTime() - start);
+		}
+	}
+
+	/*
+	 * true if the instance was built by Grow policy, and so it's no longer tracked as such
+	 */
+	private boolean removeOverflow(SessionBean sb) {
+		if (overflowCount.get() == 0) {
+			return false;
+		}
+
+		synchronized (overflowInstances) {
+			if (!overflowInstances.remove(sb)) {
+				return false;
+			}
+
+			overflowCount.decrementAndGet();
+			return true;
+		}
+	}
+
+	private void updateWindowPeak(int borrowed) {
+		int peak = windowPeak.get();
+		while (borrowed > peak && !windowPeak.compareAndSet(peak, borrowed)) {
+			peak = windowPeak.get();
+		}
+	}
+
+	private void recordWait(long nanos) {
+		waitCount.incrementAndGet();
+		totalWaitNanos.addAndGet(nanos);
+
+		long max = maxWaitNanos.get();
+		while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+			max = maxWaitNanos.get();
+		}
+	}
+
+	private SessionBean takeIdleOrBuild() {
+		int home = homeStripe();
+
+		SessionBean result = stripes[home].pop();
+
+		if (result == null) {
+			//steals from other stripes, skipping the busy ones
+			for (int i = 1; i < stripes.length && result == null; i++) {
+				result = stripes[(home + i) & stripeMask].tryPop();
+			}
+		}
+
+		if (result == null) {
+			//empty pool, so ask the factory (out of any lock)
+			result = build();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Fills the pool with instances up to its initial size (or min size, if greater), building them on the given executor.
+	 * 
+	 * @return one Future for each instance being built
+	 */
+	public List<Future<?>> prefill(ExecutorService executor) {
+		int count = Math.max(ejbMetadata.getPoolInitialSize(), ejbMetadata.getPoolMinSize()) - getIdleCount();
+		List<Future<?>> result = new ArrayList<Future<?>>();
+
+		for (int i = 0; i < count; i++) {
+			final Stripe stripe = stripes[i & stripeMask];
+
+			result.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					stripe.push(build(), System.currentTimeMillis());
+				}
+			}));
 		}
 
 		return result;
 	}
 
+	private SessionBean build() {
+		SessionBean result = factory.build();
+		createdCount.incrementAndGet();
+
+		return result;
+	}
+
 	public void runResizing() {
-		synchronized (instancePool) {
-			long now = System.currentTimeMillis();
+		EJBContainer container = ejbMetadata.getEjbContainer();
 
-			int removedCount = 0;
+		//closes the current window. The next one starts with the instances still borrowed
+		int borrowed = borrowedCount.get();
+		int peak = windowPeak.getAndSet(borrowed);
 
-			for (Iterator<PoolEntry> ite = instancePool.iterator(); ite.hasNext();) {
-				PoolEntry e = ite.next();
+		double smoothing = container.getPoolSizingSmoothing();
+		demandEstimate = smoothing * peak + (1 - smoothing) * demandEstimate;
+		lastWindowPeak = peak;
 
-				if (now - e.idleSince > ejbMetadata.getEjbContainer().getPooledBeanMaxAge()) {
-					removedCount++;
-					ite.remove();
-				}
+		int target = (int) Math.ceil(demandEstimate * (1 + container.getPoolSizingHeadroom()));
+		target = Math.max(target, ejbMetadata.getPoolMinSize());
+		if (ejbMetadata.isPoolBounded()) {
+			target = Math.min(target, ejbMetadata.getPoolMaxSize());
+		}
+		targetSize = target;
+
+		int size = getIdleCount() + borrowed;
+		int removedCount = 0;
+
+		if (size > target) {
+			//excess is trimmed gradually, so a burst that comes back soon still finds most of its instances
+			int toRemove = (int) Math.ceil((size - target) * container.getPoolTrimRatio());
+			long maxIdleSince = System.currentTimeMillis() - container.getPooledBeanMaxAge();
+
+			while (removedCount < toRemove && removeOldest(maxIdleSince)) {
+				removedCount++;
 			}
-			if (removedCount > 0) {
-				LOGGER.debug(removedCount + " SessionBean instances removed from '" + ejbMetadata.getName() + "'s pool.");
+		}
+
+		if (LOGGER.isDebugEnabled() && (removedCount > 0 || peak > 0)) {
+			LOGGER.debug("'" + ejbMetadata.getName() + "'s pool: window peak=" + peak + ", demand estimate=" + String.format("%.2f", demandEstimate) + ", target=" + target + ", size=" + size + ", trimmed=" + removedCount);
+		}
+
+		//and missing ones are built, so pool never stays below min size
+		int missing = ejbMetadata.getPoolMinSize() - size;
+
+		for (int i = 0; i < missing; i++) {
+			stripes[i & stripeMask].push(build(), System.currentTimeMillis());
+		}
+	}
+
+	/*
+	 * removes the oldest idle instance of the pool, if it's idle since the given moment (or before)
+	 */
+	private boolean removeOldest(long maxIdleSince) {
+		Stripe oldest = null;
+		long oldestIdleSince = Long.MAX_VALUE;
+
+		for (Stripe stripe : stripes) {
+			long idleSince = stripe.bottomIdleSince();
+
+			if (idleSince < oldestIdleSince) {
+				oldest = stripe;
+				oldestIdleSince = idleSince;
 			}
 		}
+
+		return oldest != null && oldest.removeIdleSince(maxIdleSince, 1) > 0;
 	}
 
 	/**
@@ -97,32 +345,243 @@ public class BeanInstancePool {
 	 * @param sb
 	 */
 	public void returnToPool(SessionBean sb) {
-		synchronized (instancePool) {
-			PoolEntry e = new PoolEntry();
-			e.idleSince = System.currentTimeMillis();
-			e.instance = sb;
-			instancePool.add(e);
+		borrowedCount.decrementAndGet();
+
+		//temporary instances built by Grow policy are discarded
+		if (removeOverflow(sb)) {
+			return;
+		}
+
+		stripes[homeStripe()].push(sb, System.currentTimeMillis());
+
+		if (permits != null) {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Removes a borrowed instance that can't go back to the pool, freeing its place for a new one
+	 */
+	@Override
+	public void discard(SessionBean sb) {
+		borrowedCount.decrementAndGet();
+
+		//a temporary instance holds no permit
+		if (!removeOverflow(sb) && permits != null) {
+			permits.release();
+		}
+
+		try {
+			sb.ejbRemove();
+		} catch (Exception e) {
+			LOGGER.warn("ejbRemove() failed on discarded instance of '" + ejbMetadata.getName() + "': " + e.getMessage());
 		}
 	}
 
-	private static class PoolEntry {
-		long idleSince;
-		SessionBean instance;
+	/**
+	 * number of instances waiting on pool
+	 */
+	public int getIdleCount() {
+		int result = 0;
+
+		for (Stripe stripe : stripes) {
+			result += stripe.size;
+		}
+
+		return result;
+	}
+
+	/**
+	 * number of instances in use by callers
+	 */
+	public int getBorrowedCount() {
+		return borrowedCount.get();
+	}
+
+	/**
+	 * number of borrowed temporary instances, built beyond max size by Grow policy
+	 */
+	public int getOverflowCount() {
+		return overflowCount.get();
+	}
+
+	/**
+	 * number of instances built by this pool since it was created
+	 */
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	/**
+	 * peak of concurrent borrows on the last resizing window
+	 */
+	public int getLastWindowPeak() {
+		return lastWindowPeak;
+	}
+
+	/**
+	 * moving average of concurrent borrows peaks, the demand this pool is sized for
+	 */
+	public double getDemandEstimate() {
+		return demandEstimate;
+	}
+
+	/**
+	 * number of instances (idle and borrowed) the pool keeps, as decided on the last resizing
+	 */
+	public int getTargetSize() {
+		return targetSize;
+	}
+
+	/**
+	 * number of borrows that had to wait for an instance (bounded pools only)
+	 */
+	public long getWaitCount() {
+		return waitCount.get();
+	}
+
+	/**
+	 * total time (in milliseconds) borrowers spent waiting for instances
+	 */
+	public long getTotalWaitTime() {
+		return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+	}
+
+	/**
+	 * longest time (in milliseconds) a borrower waited for an instance
+	 */
+	public long getMaxWaitTime() {
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+	}
+
+	/**
+	 * number of times a borrow timeout elapsed with no instance available
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	private int homeStripe() {
+		return (int) Thread.currentThread().getId() & stripeMask;
+	}
+
+	/**
+	 * LIFO stack of idle instances. 
+	 * Instances and the moment they became idle are kept on parallel arrays, ordered from the oldest (bottom) to the youngest (top).
+	 */
+	private static class Stripe {
+		private final ReentrantLock lock = new ReentrantLock();
+		private SessionBean[] instances = new SessionBean[8];
+		private long[] idleSince = new long[8];
+		private volatile int size;
+
+		SessionBean pop() {
+			lock.lock();
+			try {
+				return popLocked();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		SessionBean tryPop() {
+			if (size == 0 || !lock.tryLock()) {
+				return null;
+			}
+			try {
+				return popLocked();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private SessionBean popLocked() {
+			if (size == 0) {
+				return null;
+			}
+
+			SessionBean result = instances[--size];
+			instances[size] = null;
+
+			return result;
+		}
+
+		void push(SessionBean sb, long now) {
+			lock.lock();
+			try {
+				if (size == instances.length) {
+					instances = Arrays.copyOf(instances, size * 2);
+					idleSince = Arrays.copyOf(idleSince, size * 2);
+				}
+
+				instances[size] = sb;
+				idleSince[size] = now;
+				size++;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/*
+		 * moment the oldest instance of this stripe became idle, or Long.MAX_VALUE if it's empty
+		 */
+		long bottomIdleSince() {
+			lock.lock();
+			try {
+				return size > 0 ? idleSince[0] : Long.MAX_VALUE;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/*
+		 * removes up to limit instances idle since the given moment (or before). As they are the oldest ones, they are at the bottom of the stack.
+		 */
+		int removeIdleSince(long maxIdleSince, int limit) {
+			lock.lock();
+			try {
+				int expired = 0;
+
+				while (expired < size && expired < limit && idleSince[expired] <= maxIdleSince) {
+					expired++;
+				}
+
+				if (expired > 0) {
+					System.arraycopy(instances, expired, instances, 0, size - expired);
+					System.arraycopy(idleSince, expired, idleSince, 0, size - expired);
+					Arrays.fill(instances, size - expired, size, null);
+					size -= expired;
+				}
+
+				return expired;
+			} finally {
+				lock.unlock();
+			}
+		}
 	}
 
 	private static class PoolResizerTask implements Runnable {
-		//registry for pools. 
-		private Map<String, WeakReference<BeanInstancePool>> registeredPools = new HashMap<String, WeakReference<BeanInstancePool>>();
+		//registry for pools, by container and bean. The same bean class can be deployed many times, under different names or containers
+		private Map<PoolKey, WeakReference<BeanInstancePool>> registeredPools = new HashMap<PoolKey, WeakReference<BeanInstancePool>>();
 
 		public void registryPool(BeanInstancePool pool) {
 			synchronized (registeredPools) {
-				registeredPools.put(pool.ejbMetadata.getEjbClassName(), new WeakReference<BeanInstancePool>(pool));
+				WeakReference<BeanInstancePool> previous = registeredPools.put(new PoolKey(pool.ejbMetadata), new WeakReference<BeanInstancePool>(pool));
+
+				if (previous != null && previous.get() != null && previous.get() != pool) {
+					LOGGER.warn("Bean '" + pool.ejbMetadata.getName() + "' already had an instance pool registered on this container. It was replaced.");
+				}
 			}
 		}
 
 		public void unregistry(BeanInstancePool pool) {
 			synchronized (registeredPools) {
-				registeredPools.remove(pool.ejbMetadata.getEjbClassName());
+				PoolKey key = new PoolKey(pool.ejbMetadata);
+				WeakReference<BeanInstancePool> registered = registeredPools.get(key);
+
+				if (registered != null && (registered.get() == pool || registered.get() == null)) {
+					registeredPools.remove(key);
+				}
 			}
 		}
 
@@ -132,23 +591,29 @@ public class BeanInstancePool {
 
 			try {
 				while (!Thread.currentThread().isInterrupted()) {
+					List<BeanInstancePool> pools = new ArrayList<BeanInstancePool>();
+
 					synchronized (registeredPools) {
 						for (Iterator<WeakReference<BeanInstancePool>> ite = registeredPools.values().iterator(); ite.hasNext();) {
-							try {
-								WeakReference<BeanInstancePool> entry = ite.next();
-								BeanInstancePool pool = entry.get();
-
-								if (pool != null) {
-									//notifies the pool
-									pool.runResizing();
-								} else {
-									ite.remove();
-								}
-							} catch (Exception ignored) {
+							BeanInstancePool pool = ite.next().get();
+
+							if (pool != null) {
+								pools.add(pool);
+							} else {
+								ite.remove();
 							}
 						}
 					}
 
+					//out of the lock: a slow ejbCreate() while filling a pool up to its minimum size doesn't hold back registration of other pools
+					for (BeanInstancePool pool : pools) {
+						try {
+							//notifies the pool
+							pool.runResizing();
+						} catch (Exception ignored) {
+						}
+					}
+
 					Thread.sleep(5000); //snooze...
 				}
 			} catch (Exception ignored) {
@@ -159,6 +624,39 @@ public class BeanInstancePool {
 		}
 	}
 
+	/**
+	 * Registry key for a pool: identity of its container and the bean name.
+	 * Container is weakly referenced, so the registry don't keep undeployed containers alive.
+	 */
+	private static class PoolKey {
+		private final WeakReference<EJBContainer> container;
+		private final String beanName;
+		private final int hash;
+
+		PoolKey(EJBMetadata ejbMetadata) {
+			this.container = new WeakReference<EJBContainer>(ejbMetadata.getEjbContainer());
+			this.beanName = ejbMetadata.getName();
+			this.hash = System.identityHashCode(ejbMetadata.getEjbContainer()) * 31 + beanName.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof PoolKey)) {
+				return false;
+			}
+
+			PoolKey other = (PoolKey) obj;
+			EJBContainer c = container.get();
+
+			return c != null && c == other.container.get() && beanName.equals(other.beanName);
+		}
+	}
+
 	/**
 	 * Interface for the Bean instance factory
 	 * The pool delegates instance creation for it
@@ -1,11 +1,14 @@
 package org.tinyejb.proxies;
 
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
-import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.ejb.CreateException;
 import javax.ejb.EJBHome;
@@ -13,12 +16,16 @@ import javax.ejb.EJBLocalHome;
 import javax.ejb.EJBMetaData;
 import javax.ejb.Handle;
 import javax.ejb.HomeHandle;
+import javax.ejb.NoSuchObjectLocalException;
 import javax.ejb.SessionBean;
+import javax.naming.NamingException;
 
 import org.tinyejb.core.EJBContainer;
 import org.tinyejb.core.EJBMetadata;
 import org.tinyejb.core.EJBMetadata.BEAN_TYPE;
 import org.tinyejb.core.EJBMetadata.EJBMethodTransactionInfo.METHOD_INTF;
+import org.tinyejb.core.ResourceHolder;
+import org.tinyejb.proxies.BeanDispatchTable.MethodInvoker;
 import org.tinyejb.proxies.BeanInstancePool.BeanInstanceFactory;
 
 /**
@@ -30,8 +37,8 @@ import org.tinyejb.proxies.BeanInstancePool.BeanInstanceFactory;
  */
 public class EJBHomeBuilder {
 
-	public static IEJBHome build(EJBMetadata ejbMetadata, EJBContainer ejbContainer, METHOD_INTF methodIntf) throws Exception {
-		EJBHomeProxy proxyHnd = new EJBHomeProxy(ejbMetadata, ejbContainer, methodIntf);
+	public static IEJBHome build(EJBMetadata ejbMetadata, EJBContainer ejbContainer, METHOD_INTF methodIntf, String jndiName) throws Exception {
+		EJBHomeProxy proxyHnd = new EJBHomeProxy(ejbMetadata, ejbContainer, methodIntf, jndiName);
 
 		Class<?> homeIntf;
 
@@ -43,7 +50,23 @@ public class EJBHomeBuilder {
 			throw new IllegalStateException("Unsupported home interface: " + methodIntf);
 		}
 
-		return (IEJBHome) Proxy.newProxyInstance(Thread.currentThread().getContextClassLoader(), new Class[] { IEJBHome.class, homeIntf}, proxyHnd);
+		ProxyFactory proxyFactory = ProxyFactory.build(new Class[] { IEJBHome.class, homeIntf }, ejbContainer.isUseGeneratedProxies());
+		proxyHnd.setMethods(proxyFactory.getMethods());
+
+		IEJBHome home = (IEJBHome) proxyFactory.newProxy(proxyHnd);
+		proxyHnd.homeProxy = home;
+		proxyHnd.invocationPlans.setHomeProxy(home);
+
+		if (ejbMetadata.isStateless()) {
+			//stateless beans get their instance provider at deploy time, so pools can be warmed up before the first call
+			proxyHnd.initStatelessBeanProxy(home);
+		}
+
+		return home;
+	}
+
+	private static enum HOME_METHOD_KIND {
+		IEJBHome, EJBLocalHome, EJBHome, Create, Object, Unsupported;
 	}
 
 	/**
@@ -54,13 +77,14 @@ public class EJBHomeBuilder {
 	 * 19/09/2014
 	 *
 	 */
-	private static class EJBHomeProxy implements InvocationHandler, IEJBHome, Serializable {
+	private static class EJBHomeProxy implements IProxyDispatcher, IEJBHome, Serializable {
 		private static final long serialVersionUID = 1L;
 
 		private EJBMetadata ejbMetadata;
 
 		//proxy that is used for all client calls of this bean. Only for stateless beans.
-		private ISessionEJB statelessBeanProxy;
+		//It's published only when ready, so create() reads it without locking
+		private volatile ISessionEJB statelessBeanProxy;
 
 		//type of EJB interface that calls this proxy (remote or local)
 		private METHOD_INTF homeIntf;
@@ -68,100 +92,169 @@ public class EJBHomeBuilder {
 		//ejbContainer that owns this bean
 		private EJBContainer ejbContainer;
 
-		//instance pool used for this bean (only for Stateless)
-		private BeanInstancePool instancePool;
+		//JNDI name this home is bound to, and the home proxy itself
+		private String jndiName;
+		private transient Object homeProxy;
+
+		//invocation plans for the business interface of this home, shared by all bean proxies it creates
+		private transient SessionBeanProxyBuilder.InvocationPlanCache invocationPlans;
+
+		//methods of the home proxy, in dispatch index order, and how each one is handled
+		private transient Method[] methods;
+		private transient HOME_METHOD_KIND[] methodKinds;
+		//dispatch index of each method, for JDK proxies
+		private transient Map<Method, Integer> methodIndexes;
+		//ejbCreate() invoker for each create() method, by dispatch index. Null if the bean class has no matching ejbCreate()
+		private transient MethodInvoker[] createInvokers;
 
-		private EJBHomeProxy(EJBMetadata ejbMetadata, EJBContainer ejbContainer, METHOD_INTF methodIntf) {
+		private EJBHomeProxy(EJBMetadata ejbMetadata, EJBContainer ejbContainer, METHOD_INTF methodIntf, String jndiName) throws Exception {
 			this.ejbMetadata = ejbMetadata;
 			this.homeIntf = methodIntf;
 			this.ejbContainer = ejbContainer;
+			this.jndiName = jndiName;
+			this.invocationPlans = SessionBeanProxyBuilder.compile(ejbMetadata, methodIntf.equals(METHOD_INTF.Home) ? METHOD_INTF.Remote : METHOD_INTF.Local);
 		}
 
-		@Override
-		public Object invoke(Object homeProxy, Method method, Object[] args) throws Throwable {
+		private void setMethods(Method[] methods) {
+			this.methods = methods;
+			this.methodKinds = new HOME_METHOD_KIND[methods.length];
+			this.methodIndexes = new HashMap<Method, Integer>();
+			this.createInvokers = new MethodInvoker[methods.length];
+
+			for (int i = 0; i < methods.length; i++) {
+				methodKinds[i] = kindOf(methods[i]);
+				methodIndexes.put(methods[i], i);
+
+				if (methodKinds[i] == HOME_METHOD_KIND.Create && !ejbMetadata.isStateless()) {
+					try {
+						createInvokers[i] = lookupEjbCreate(methods[i]);
+					} catch (IllegalStateException e) {
+						//create() reports it, as it always did
+					}
+				}
+			}
+		}
+
+		/**
+		 * Dispatch state isn't serialized, so a deserialized home is replaced by the live one, bound to the same JNDI name
+		 */
+		private Object readResolve() throws ObjectStreamException {
+			try {
+				if (ResourceHolder.getJndiContext() != null) {
+					IProxyDispatcher live = ProxyFactory.dispatcherOf(ResourceHolder.getJndiContext().lookup(jndiName));
+
+					if (live instanceof EJBHomeProxy) {
+						return live;
+					}
+				}
+			} catch (NamingException e) {
+				//not bound
+			}
+
+			throw new InvalidObjectException("Home of bean '" + ejbMetadata.getName() + "' is not deployed under JNDI name '" + jndiName + "'.");
+		}
 
+		private HOME_METHOD_KIND kindOf(Method method) {
 			Class<?> methodDeclaringClass = method.getDeclaringClass();
 
 			if (IEJBHome.class.equals(methodDeclaringClass)) {
-				return method.invoke(this, args);
-			} else {
-				if (ejbContainer.getContainerStatus().equals(EJBContainer.ContainerStatus.SHUT_DOWN)) {
-					throw new IllegalStateException("EJBContainer for bean '" + ejbMetadata.getName() + "' has shut down.");
-				}
-				
-				if (EJBLocalHome.class.equals(methodDeclaringClass)) {
-					//EJBLocalHome has only one method, and it is intended for EntityBeans, no supported for TinyEJB, so...
-					throwMethodNotSupportedError(method);
+				return HOME_METHOD_KIND.IEJBHome;
+			} else if (EJBLocalHome.class.equals(methodDeclaringClass)) {
+				return HOME_METHOD_KIND.EJBLocalHome;
+			} else if (EJBHome.class.equals(methodDeclaringClass)) {
+				return HOME_METHOD_KIND.EJBHome;
+			} else if (method.getName().equals("create")) {
+				return HOME_METHOD_KIND.Create;
+			} else if (Object.class.equals(methodDeclaringClass)) {
+				return HOME_METHOD_KIND.Object;
+			}
+
+			return HOME_METHOD_KIND.Unsupported;
+		}
 
-				} else if (EJBHome.class.equals(methodDeclaringClass)) {
+		@Override
+		public Object invoke(Object homeProxy, Method method, Object[] args) throws Throwable {
+			Integer methodIndex = methodIndexes.get(method);
 
-					return handleEJBHomeMethods(homeProxy, method, args);
+			if (methodIndex != null) {
+				return dispatch(homeProxy, methodIndex, args);
+			}
 
-				} else if (method.getName().equals("create")) {
+			return handle(homeProxy, method, kindOf(method), null, args);
+		}
 
-					return newBeanProxy(homeProxy, method, args);
+		@Override
+		public Object dispatch(Object homeProxy, int methodIndex, Object[] args) throws Throwable {
+			return handle(homeProxy, methods[methodIndex], methodKinds[methodIndex], createInvokers[methodIndex], args);
+		}
 
-				}else if (Object.class.equals(methodDeclaringClass)) {
-					return method.invoke(homeProxy, args);
-				} else {
-					throwMethodNotSupportedError(method);
+		private Object handle(Object homeProxy, Method method, HOME_METHOD_KIND kind, MethodInvoker ejbCreate, Object[] args) throws Throwable {
+			if (kind == HOME_METHOD_KIND.IEJBHome) {
+				try {
+					return method.invoke(this, args);
+				} catch (InvocationTargetException e) {
+					throw e.getTargetException();
+				}
+			} else {
+				if (ejbContainer.getContainerStatus().equals(EJBContainer.ContainerStatus.SHUT_DOWN)) {
+					throw new IllegalStateException("EJBContainer for bean '" + ejbMetadata.getName() + "' has shut down.");
 				}
 
+				switch (kind) {
+					case EJBLocalHome:
+						//EJBLocalHome has only one method, and it is intended for EntityBeans, no supported for TinyEJB, so...
+						throwMethodNotSupportedError(method);
+						break;
+					case EJBHome:
+						return handleEJBHomeMethods(homeProxy, method, args);
+					case Create:
+						return newBeanProxy(homeProxy, method, ejbCreate, args);
+					case Object:
+						return handleObjectMethods(homeProxy, method, args);
+					default:
+						throwMethodNotSupportedError(method);
+				}
 			}
 			return null;
 		}
 
-		private Object newBeanProxy(final Object homeProxy, Method createMethod, Object[] args) throws Exception {
+		private Object handleObjectMethods(Object homeProxy, Method method, Object[] args) {
+			/*
+			 java.lang.Object methods can't be invoked on the proxy itself, as they would come back here.
+			 Homes have no state of their own, so identity is enough.
+			 */
+			if (method.getName().equals("equals")) {
+				return homeProxy == args[0];
+			} else if (method.getName().equals("hashCode")) {
+				return System.identityHashCode(homeProxy);
+			}
+
+			return ejbMetadata.getName() + " " + homeIntf + " home";
+		}
+
+		private Object newBeanProxy(final Object homeProxy, Method createMethod, MethodInvoker ejbCreate, Object[] args) throws Exception {
 			try {
 				ISessionEJB beanProxy = null;
 
 				if (ejbMetadata.isStateless()) {
-					synchronized (this) {
-						//first call for create on the stateless home
-						if (statelessBeanProxy == null) {
-							statelessBeanProxy = buildBeanProxy(homeProxy);
-
-							if (ejbContainer.isUseSingletonForStateless()) {
-								//Singleton stateless beans always use the same bean instance to service all clients
-								SessionBean beanInstance = buildSessionBeanInstance(homeProxy, statelessBeanProxy, createMethod, args);
-
-								statelessBeanProxy.setDelegationInstance(beanInstance);
-							} else {
-								/*
-								 Stateless beans use instance pool to get instances for method execution.
-								 This way, we keep the beans Thread-safe, as EJB spec determines
-								 */
-
-								BeanInstanceFactory beanFactory = new BeanInstanceFactory() {
-									@Override
-									public SessionBean build() {
-										try {
-											return buildSessionBeanInstance(homeProxy, statelessBeanProxy);
-										} catch (Exception e) {
-											throw new IllegalStateException(e);
-										}
-									}
-								};
-
-								instancePool = new BeanInstancePool(ejbMetadata, beanFactory);
-
-								statelessBeanProxy.setBeanInstancePool(instancePool);
-							}
-						}
-
-						beanProxy = statelessBeanProxy;
-					}
+					//stateless homes are ready since deploy
+					beanProxy = getStatelessBeanProxy(homeProxy);
 				} else {
 					/*
 					 Stateful beans use one bean instance for each bean proxy.
 					 It's not pooled neither shared, so it keeps the conversational state as EJB spec determines.
-					 TinyEJB never passivates a stateful bean, so instances keep alive until ejbRemove() is called.
+					 Instances keep alive until ejbRemove() is called, but the container can passivate idle ones (see StatefulPassivator),
+					 moving their state out of the heap.
 					 
 					 Forgotten instances can cause memory leaks, so we should have an clean task to avoid them.
 					 */
-					beanProxy = buildBeanProxy(homeProxy);
+					beanProxy = buildBeanProxy();
+
+					if (ejbCreate == null) {
+						ejbCreate = lookupEjbCreate(createMethod);
+					}
 
-					SessionBean beanInstance = buildSessionBeanInstance(homeProxy, beanProxy, createMethod, args);
+					SessionBean beanInstance = buildSessionBeanInstance(new SessionContextImpl(homeProxy, beanProxy, ejbMetadata), ejbCreate, args);
 
 					beanProxy.setDelegationInstance(beanInstance);
 				}
@@ -183,46 +276,111 @@ public class EJBHomeBuilder {
 			}
 		}
 
-		private ISessionEJB buildBeanProxy(Object homeProxy) throws Exception {
-			return SessionBeanProxyBuilder.build(ejbMetadata, homeProxy, homeIntf.equals(METHOD_INTF.Home) ? METHOD_INTF.Remote : METHOD_INTF.Local);
-		}
+		private ISessionEJB getStatelessBeanProxy(Object homeProxy) throws Exception {
+			ISessionEJB beanProxy = statelessBeanProxy;
 
-		private SessionBean buildSessionBeanInstance(Object homeProxy, ISessionEJB beanProxy) throws Exception {
-			return buildSessionBeanInstance(homeProxy, beanProxy, null, null);
+			if (beanProxy == null) {
+				initStatelessBeanProxy(homeProxy);
+				beanProxy = statelessBeanProxy;
+			}
+
+			return beanProxy;
 		}
 
-		private SessionBean buildSessionBeanInstance(Object homeProxy, ISessionEJB beanProxy, Method createMethodOnHomeIntf, Object[] args) throws Exception {
+		private synchronized void initStatelessBeanProxy(final Object homeProxy) throws Exception {
+			if (statelessBeanProxy != null) {
+				return;
+			}
+
+			ISessionEJB beanProxy = buildBeanProxy();
+
 			/*
-			  SessionBean creation sequence, as defined by EJB 2.x spec: 
-			 		a) new Bean instance, calling bean class's void constructor 
-			 		b) call SessionBean.setSessionContext() on the new instance
-			 		c) call ejbCreate() method on the new instance, matching arguments from create() home interface
+			 Stateless beans get instances for method execution from a provider, as configured for the bean:
+			 	- Pooled: instance pool, so each call has an instance of its own, keeping the beans Thread-safe, as EJB spec determines
+			 	- Singleton: the same instance services all clients (thread-unsafe)
+			 	- ThreadConfined: one instance for each calling thread 
+			 There is only one provider for each bean, shared by its local and remote homes.
 			 */
+			IBeanInstanceProvider provider;
 
-			//SessionBean sb = (SessionBean) Class.forName(ejbMetadata.getEjbClassName(), true, Thread.currentThread().getContextClassLoader()).newInstance();
-			SessionBean sb = (SessionBean) Class.forName(ejbMetadata.getEjbClassName(), true, EJBContainer.class.getClassLoader()).newInstance();
-
-			sb.setSessionContext(new SessionContextImpl(homeProxy, beanProxy, ejbContainer, ejbMetadata));
+			synchronized (ejbMetadata) {
+				provider = ejbMetadata.getInstanceProvider();
 
-			try {
-				Method ejbCreateMethod;
+				if (provider == null) {
+					ejbMetadata.setBeanViews(new SessionContextImpl.BeanViews());
 
-				if (ejbMetadata.isStateless()) {
 					//For stateless, we always use void arguments ejbCreate()
-					ejbCreateMethod = sb.getClass().getMethod("ejbCreate", (Class[]) null);
-				} else {
-					//for Stateful, arguments must match
-					ejbCreateMethod = sb.getClass().getMethod("ejbCreate", createMethodOnHomeIntf.getParameterTypes());
+					final MethodInvoker ejbCreate = lookupEjbCreate(null);
+
+					BeanInstanceFactory beanFactory = new BeanInstanceFactory() {
+						@Override
+						public SessionBean build() {
+							try {
+								return buildSessionBeanInstance(new SessionContextImpl(ejbMetadata.getBeanViews(), ejbMetadata), ejbCreate, null);
+							} catch (Exception e) {
+								throw new IllegalStateException(e);
+							}
+						}
+					};
+
+					switch (ejbMetadata.getInstanceMode()) {
+						case Singleton:
+							provider = new SingletonInstanceProvider(beanFactory);
+							break;
+						case ThreadConfined:
+							provider = new ThreadConfinedInstanceProvider(beanFactory);
+							break;
+						default:
+							provider = new BeanInstancePool(ejbMetadata, beanFactory);
+					}
+
+					ejbMetadata.setInstanceProvider(provider);
+
+					if (ejbMetadata.isTransactionAffinityEnabled()) {
+						ejbMetadata.setTransactionAffinity(new TransactionAffinity(provider));
+					}
 				}
+			}
 
-				ejbCreateMethod.invoke(sb, args);
+			ejbMetadata.getBeanViews().register(homeProxy, beanProxy);
+			beanProxy.setInstanceProvider(provider);
 
-				return sb;
+			statelessBeanProxy = beanProxy;
+		}
+
+		private ISessionEJB buildBeanProxy() throws Exception {
+			return SessionBeanProxyBuilder.build(invocationPlans);
+		}
+
+		/**
+		 * Invoker for the ejbCreate() method that matches a create() method of the home interface (or the void one, if it's null)
+		 */
+		private MethodInvoker lookupEjbCreate(Method createMethodOnHomeIntf) {
+			try {
+				return ejbMetadata.getDispatchTable().lookupEjbCreate(createMethodOnHomeIntf != null ? createMethodOnHomeIntf.getParameterTypes() : new Class<?>[0]);
 			} catch (NoSuchMethodException e) {
 				throw new IllegalStateException("No ejbCreate() method found on '" + ejbMetadata.getName() + "' that matches home interface.", e);
 			}
 		}
 
+		private SessionBean buildSessionBeanInstance(SessionContextImpl sessionContext, MethodInvoker ejbCreate, Object[] args) throws Exception {
+			/*
+			  SessionBean creation sequence, as defined by EJB 2.x spec: 
+			 		a) new Bean instance, calling bean class's void constructor 
+			 		b) call SessionBean.setSessionContext() on the new instance
+			 		c) call ejbCreate() method on the new instance, matching arguments from create() home interface
+			 */
+
+			//constructor and ejbCreate() were resolved on deploy, with the dispatch table
+			SessionBean sb = (SessionBean) ejbMetadata.getDispatchTable().newInstance();
+
+			sb.setSessionContext(sessionContext);
+
+			ejbCreate.invoke(sb, args);
+
+			return sb;
+		}
+
 		private Object handleEJBHomeMethods(final Object homeProxy, Method method, Object[] args) {
 			String name = method.getName();
 
@@ -303,10 +461,72 @@ public class EJBHomeBuilder {
 			throw new IllegalStateException("Method not supported: " + m.getDeclaringClass().getName() + "." + m.getName() + "()");
 		}
 
+		@Override
+		public BeanInstancePool getInstancePool() {
+			return ejbMetadata.getInstancePool();
+		}
+
+		@Override
+		public StatefulLockStatistics getStatefulLockStatistics() {
+			return ejbMetadata.getStatefulLockStatistics();
+		}
+
+		@Override
+		public StatefulSessionStatistics getStatefulSessionStatistics() {
+			return ejbMetadata.getStatefulSessionStatistics();
+		}
+
+		@Override
+		public String getJndiName() {
+			return jndiName;
+		}
+
+		@Override
+		public Object findSession(String sessionId) throws Exception {
+			if (ejbContainer.getContainerStatus().equals(EJBContainer.ContainerStatus.SHUT_DOWN)) {
+				throw new IllegalStateException("EJBContainer for bean '" + ejbMetadata.getName() + "' has shut down.");
+			}
+
+			if (ejbMetadata.isStateless()) {
+				return getStatelessBeanProxy(homeProxy);
+			}
+
+			boolean localIntf = homeIntf.equals(METHOD_INTF.LocalHome);
+			StatefulSessionRegistry registry = ejbMetadata.getStatefulSessionRegistry();
+			Object session;
+
+			synchronized (registry) {
+				session = registry.findLive(sessionId);
+
+				if (session == null) {
+					//sessions from a snapshot are restored on demand. Their state is decoded on the first call
+					SessionSnapshot.Entry entry = registry.takeRestorable(sessionId, localIntf, ejbMetadata.getSessionTimeout());
+
+					if (entry != null) {
+						session = SessionBeanProxyBuilder.restore(invocationPlans, entry);
+					}
+				}
+			}
+
+			if (session == null) {
+				String message = "Stateful session '" + sessionId + "' of '" + ejbMetadata.getName() + "' doesn't exist";
+				throw localIntf ? new NoSuchObjectLocalException(message) : new NoSuchObjectException(message);
+			}
+
+			return session;
+		}
+
 		@Override
 		public void onContainerShutDown() {
-			if (instancePool != null) {
-				instancePool.shutdown();
+			IBeanInstanceProvider instanceProvider = ejbMetadata.getInstanceProvider();
+
+			if (instanceProvider != null) {
+				instanceProvider.shutdown();
+			}
+
+			if (!ejbMetadata.isStateless()) {
+				StatefulPassivator.containerShutDown(ejbContainer);
+				SessionReaper.containerShutDown(ejbContainer);
 			}
 		}
 	}
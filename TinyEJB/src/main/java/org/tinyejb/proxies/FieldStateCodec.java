@@ -0,0 +1,867 @@
+package org.tinyejb.proxies;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ejb.SessionBean;
+
+/**
+ * Default state codec: a compact binary format, written field by field with reflection.
+ * 
+ * Field layouts are resolved once for each class and cached. The format has no field names nor class descriptors, just the name of
+ * each class on its first use, so it's meant for state read back by the same classes (i.e. passivation), not for long-term storage.
+ * 
+ * Primitives and their wrappers, strings, enums, arrays, the common collections of java.util (without comparators) and plain
+ * serializable classes are written directly. Classes with custom serialization (writeObject, writeReplace, Externalizable and so on)
+ * are written with Java serialization, as nested blocks. Shared and cyclic references are preserved, except across nested blocks.
+ */
+public class FieldStateCodec implements ISessionStateCodec {
+	private static final long serialVersionUID = 1L;
+	private static final int FORMAT_VERSION = 1;
+
+	private static final byte NULL = 0;
+	private static final byte HANDLE = 1;
+	private static final byte REFERENCE = 2;
+	private static final byte STRING = 3;
+	private static final byte INTEGER = 4;
+	private static final byte LONG = 5;
+	private static final byte DOUBLE = 6;
+	private static final byte FLOAT = 7;
+	private static final byte SHORT = 8;
+	private static final byte BYTE = 9;
+	private static final byte CHARACTER = 10;
+	private static final byte BOOLEAN = 11;
+	private static final byte ENUM = 12;
+	private static final byte ARRAY = 13;
+	private static final byte COLLECTION = 14;
+	private static final byte MAP = 15;
+	private static final byte OBJECT = 16;
+	private static final byte JAVA = 17;
+
+	//serialization constructors, as Java serialization itself creates instances (sun.reflect.ReflectionFactory, when available)
+	private static final Object REFLECTION_FACTORY;
+	private static final Method NEW_CONSTRUCTOR_FOR_SERIALIZATION;
+
+	static {
+		Object factory = null;
+		Method method = null;
+
+		try {
+			Class<?> factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+			factory = factoryClass.getMethod("getReflectionFactory").invoke(null);
+			method = factoryClass.getMethod("newConstructorForSerialization", Class.class, Constructor.class);
+		} catch (Throwable e) {
+			factory = null;
+			method = null;
+		}
+
+		REFLECTION_FACTORY = factory;
+		NEW_CONSTRUCTOR_FOR_SERIALIZATION = method;
+	}
+
+	private final transient ConcurrentMap<Class<?>, ClassLayout> layouts = new ConcurrentHashMap<Class<?>, ClassLayout>();
+
+	@Override
+	public byte[] encode(SessionBean bean, List<Object> references) throws Exception {
+		Encoder encoder = new Encoder(references);
+
+		encoder.out.writeVarInt(FORMAT_VERSION);
+		encoder.writeObject(bean);
+
+		return encoder.out.toByteArray();
+	}
+
+	@Override
+	public SessionBean decode(byte[] data, Object[] references, ClassLoader loader) throws Exception {
+		Decoder decoder = new Decoder(data, references, loader);
+		int version = decoder.in.readVarInt();
+
+		if (version != FORMAT_VERSION) {
+			throw new IllegalStateException("Unknown state format: " + version);
+		}
+
+		return (SessionBean) decoder.readObject();
+	}
+
+	/**
+	 * layouts aren't serialized, so a deserialized codec starts with an empty cache
+	 */
+	private Object readResolve() {
+		return new FieldStateCodec();
+	}
+
+	private ClassLayout layoutOf(Class<?> c) {
+		ClassLayout layout = layouts.get(c);
+
+		if (layout == null) {
+			layout = new ClassLayout(c);
+			ClassLayout previous = layouts.putIfAbsent(c, layout);
+
+			if (previous != null) {
+				layout = previous;
+			}
+		}
+
+		return layout;
+	}
+
+	private static boolean isDirectCollection(Class<?> c, Object obj) {
+		if (c == ArrayList.class || c == LinkedList.class || c == HashSet.class || c == LinkedHashSet.class) {
+			return true;
+		}
+
+		return c == TreeSet.class && ((TreeSet<?>) obj).comparator() == null;
+	}
+
+	private static boolean isDirectMap(Class<?> c, Object obj) {
+		return c == HashMap.class || (c == TreeMap.class && ((TreeMap<?, ?>) obj).comparator() == null);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static Collection newCollection(Class<?> c, int size) {
+		if (c == ArrayList.class) {
+			return new ArrayList(size);
+		} else if (c == LinkedList.class) {
+			return new LinkedList();
+		} else if (c == HashSet.class) {
+			return new HashSet(Math.max(16, (int) (size / .75f) + 1));
+		} else if (c == LinkedHashSet.class) {
+			return new LinkedHashSet(Math.max(16, (int) (size / .75f) + 1));
+		}
+
+		return new TreeSet();
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static Map newMap(Class<?> c, int size) {
+		if (c == HashMap.class) {
+			return new HashMap(Math.max(16, (int) (size / .75f) + 1));
+		}
+
+		return new TreeMap();
+	}
+
+	/**
+	 * How instances of a class are written: its serializable fields, or Java serialization when the class customizes it
+	 */
+	private static class ClassLayout {
+		private final Field[] fields;
+		private final char[] kinds;
+		private final Constructor<?> constructor;
+		private final boolean custom;
+
+		ClassLayout(Class<?> c) {
+			List<Field> result = new ArrayList<Field>();
+			Constructor<?> ctor = null;
+			boolean useJava = Externalizable.class.isAssignableFrom(c) || !Serializable.class.isAssignableFrom(c) || REFLECTION_FACTORY == null;
+
+			try {
+				Class<?> current = c;
+
+				for (; !useJava && current != null && Serializable.class.isAssignableFrom(current); current = current.getSuperclass()) {
+					if (hasCustomSerialization(current)) {
+						useJava = true;
+						break;
+					}
+
+					Field[] declared = current.getDeclaredFields();
+					//declaration order isn't guaranteed by reflection
+					Arrays.sort(declared, new Comparator<Field>() {
+						@Override
+						public int compare(Field f1, Field f2) {
+							return f1.getName().compareTo(f2.getName());
+						}
+					});
+
+					for (Field f : declared) {
+						if (!Modifier.isStatic(f.getModifiers()) && !Modifier.isTransient(f.getModifiers())) {
+							f.setAccessible(true);
+							result.add(f);
+						}
+					}
+				}
+
+				if (!useJava) {
+					//as Java serialization, runs the no-arg constructor of the first non-serializable superclass
+					Constructor<?> superCtor = (current != null ? current : Object.class).getDeclaredConstructor();
+
+					if (Modifier.isPrivate(superCtor.getModifiers())) {
+						useJava = true;
+					} else {
+						ctor = (Constructor<?>) NEW_CONSTRUCTOR_FOR_SERIALIZATION.invoke(REFLECTION_FACTORY, c, superCtor);
+						ctor.setAccessible(true);
+					}
+				}
+			} catch (Exception e) {
+				//i.e. inaccessible JDK internals
+				useJava = true;
+			}
+
+			this.custom = useJava;
+			this.constructor = ctor;
+			this.fields = useJava ? new Field[0] : result.toArray(new Field[result.size()]);
+			this.kinds = new char[fields.length];
+
+			for (int i = 0; i < fields.length; i++) {
+				Class<?> type = fields[i].getType();
+				kinds[i] = type.isPrimitive() ? kindOf(type) : 'L';
+			}
+		}
+
+		private static boolean hasCustomSerialization(Class<?> c) {
+			for (String name : new String[] { "writeReplace", "readResolve", "readObjectNoData" }) {
+				if (hasDeclaredMethod(c, name)) {
+					return true;
+				}
+			}
+
+			if (hasDeclaredMethod(c, "writeObject", ObjectOutputStream.class) || hasDeclaredMethod(c, "readObject", ObjectInputStream.class)) {
+				return true;
+			}
+
+			try {
+				c.getDeclaredField("serialPersistentFields");
+				return true;
+			} catch (NoSuchFieldException e) {
+				return false;
+			}
+		}
+
+		private static boolean hasDeclaredMethod(Class<?> c, String name, Class<?>... params) {
+			try {
+				c.getDeclaredMethod(name, params);
+				return true;
+			} catch (NoSuchMethodException e) {
+				return false;
+			}
+		}
+
+		Object newInstance() throws Exception {
+			return constructor.newInstance();
+		}
+	}
+
+	private static char kindOf(Class<?> primitive) {
+		if (primitive == boolean.class) {
+			return 'Z';
+		} else if (primitive == byte.class) {
+			return 'B';
+		} else if (primitive == char.class) {
+			return 'C';
+		} else if (primitive == short.class) {
+			return 'S';
+		} else if (primitive == int.class) {
+			return 'I';
+		} else if (primitive == long.class) {
+			return 'J';
+		} else if (primitive == float.class) {
+			return 'F';
+		}
+
+		return 'D';
+	}
+
+	private class Encoder {
+		private final Output out = new Output();
+		private final List<Object> references;
+		private final IdentityHashMap<Object, Integer> handles = new IdentityHashMap<Object, Integer>();
+		private final Map<Class<?>, Integer> classIds = new HashMap<Class<?>, Integer>();
+
+		Encoder(List<Object> references) {
+			this.references = references;
+		}
+
+		void writeObject(Object obj) throws Exception {
+			if (obj == null) {
+				out.writeByte(NULL);
+				return;
+			}
+
+			Integer handle = handles.get(obj);
+
+			if (handle != null) {
+				out.writeByte(HANDLE);
+				out.writeVarInt(handle);
+				return;
+			}
+
+			Class<?> c = obj.getClass();
+
+			//immutable values have no handles
+			if (c == String.class) {
+				out.writeByte(STRING);
+				out.writeString((String) obj);
+				return;
+			} else if (c == Integer.class) {
+				out.writeByte(INTEGER);
+				out.writeVarInt(zigZag((Integer) obj));
+				return;
+			} else if (c == Long.class) {
+				out.writeByte(LONG);
+				out.writeVarLong(zigZag((Long) obj));
+				return;
+			} else if (c == Double.class) {
+				out.writeByte(DOUBLE);
+				out.writeLong(Double.doubleToLongBits((Double) obj));
+				return;
+			} else if (c == Float.class) {
+				out.writeByte(FLOAT);
+				out.writeInt(Float.floatToIntBits((Float) obj));
+				return;
+			} else if (c == Short.class) {
+				out.writeByte(SHORT);
+				out.writeVarInt(zigZag((Short) obj));
+				return;
+			} else if (c == Byte.class) {
+				out.writeByte(BYTE);
+				out.writeByte((Byte) obj);
+				return;
+			} else if (c == Character.class) {
+				out.writeByte(CHARACTER);
+				out.writeVarInt((Character) obj);
+				return;
+			} else if (c == Boolean.class) {
+				out.writeByte(BOOLEAN);
+				out.writeByte((Boolean) obj ? 1 : 0);
+				return;
+			}
+
+			handles.put(obj, handles.size());
+
+			if (SessionStateSerializer.isKeptByReference(obj)) {
+				out.writeByte(REFERENCE);
+				references.add(obj);
+				out.writeVarInt(references.size() - 1);
+			} else if (obj instanceof Enum) {
+				out.writeByte(ENUM);
+				writeClass(((Enum<?>) obj).getDeclaringClass());
+				out.writeString(((Enum<?>) obj).name());
+			} else if (c.isArray()) {
+				out.writeByte(ARRAY);
+				writeClass(c);
+				writeArray(obj, c.getComponentType());
+			} else if (isDirectCollection(c, obj)) {
+				Collection<?> collection = (Collection<?>) obj;
+
+				out.writeByte(COLLECTION);
+				writeClass(c);
+				out.writeVarInt(collection.size());
+
+				for (Object element : collection) {
+					writeObject(element);
+				}
+			} else if (isDirectMap(c, obj)) {
+				Map<?, ?> map = (Map<?, ?>) obj;
+
+				out.writeByte(MAP);
+				writeClass(c);
+				out.writeVarInt(map.size());
+
+				for (Map.Entry<?, ?> e : map.entrySet()) {
+					writeObject(e.getKey());
+					writeObject(e.getValue());
+				}
+			} else {
+				ClassLayout layout = layoutOf(c);
+
+				if (layout.custom) {
+					ByteArrayOutputStream nested = new ByteArrayOutputStream(256);
+					JavaSerializationCodec.writeObject(nested, obj, references);
+
+					out.writeByte(JAVA);
+					out.writeVarInt(nested.size());
+					out.writeBytes(nested.toByteArray());
+				} else {
+					out.writeByte(OBJECT);
+					writeClass(c);
+					writeFields(obj, layout);
+				}
+			}
+		}
+
+		private void writeFields(Object obj, ClassLayout layout) throws Exception {
+			Field[] fields = layout.fields;
+			char[] kinds = layout.kinds;
+
+			for (int i = 0; i < fields.length; i++) {
+				Field f = fields[i];
+
+				switch (kinds[i]) {
+					case 'Z':
+						out.writeByte(f.getBoolean(obj) ? 1 : 0);
+						break;
+					case 'B':
+						out.writeByte(f.getByte(obj));
+						break;
+					case 'C':
+						out.writeVarInt(f.getChar(obj));
+						break;
+					case 'S':
+						out.writeVarInt(zigZag(f.getShort(obj)));
+						break;
+					case 'I':
+						out.writeVarInt(zigZag(f.getInt(obj)));
+						break;
+					case 'J':
+						out.writeVarLong(zigZag(f.getLong(obj)));
+						break;
+					case 'F':
+						out.writeInt(Float.floatToIntBits(f.getFloat(obj)));
+						break;
+					case 'D':
+						out.writeLong(Double.doubleToLongBits(f.getDouble(obj)));
+						break;
+					default:
+						writeObject(f.get(obj));
+				}
+			}
+		}
+
+		private void writeArray(Object array, Class<?> componentType) throws Exception {
+			int length = Array.getLength(array);
+			out.writeVarInt(length);
+
+			if (componentType == byte.class) {
+				out.writeBytes((byte[]) array);
+			} else if (componentType == int.class) {
+				for (int v : (int[]) array) {
+					out.writeVarInt(zigZag(v));
+				}
+			} else if (componentType == long.class) {
+				for (long v : (long[]) array) {
+					out.writeVarLong(zigZag(v));
+				}
+			} else if (componentType == double.class) {
+				for (double v : (double[]) array) {
+					out.writeLong(Double.doubleToLongBits(v));
+				}
+			} else if (componentType == char.class) {
+				for (char v : (char[]) array) {
+					out.writeVarInt(v);
+				}
+			} else if (componentType == boolean.class) {
+				for (boolean v : (boolean[]) array) {
+					out.writeByte(v ? 1 : 0);
+				}
+			} else if (componentType == float.class) {
+				for (float v : (float[]) array) {
+					out.writeInt(Float.floatToIntBits(v));
+				}
+			} else if (componentType == short.class) {
+				for (short v : (short[]) array) {
+					out.writeVarInt(zigZag(v));
+				}
+			} else {
+				for (Object v : (Object[]) array) {
+					writeObject(v);
+				}
+			}
+		}
+
+		private void writeClass(Class<?> c) {
+			Integer id = classIds.get(c);
+
+			if (id != null) {
+				out.writeVarInt(id + 1);
+			} else {
+				classIds.put(c, classIds.size());
+				out.writeVarInt(0);
+				out.writeString(c.getName());
+			}
+		}
+	}
+
+	private class Decoder {
+		private final Input in;
+		private final Object[] references;
+		private final ClassLoader loader;
+		private final List<Object> handles = new ArrayList<Object>();
+		private final List<Class<?>> classes = new ArrayList<Class<?>>();
+
+		Decoder(byte[] data, Object[] references, ClassLoader loader) {
+			this.in = new Input(data);
+			this.references = references;
+			this.loader = loader;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Object readObject() throws Exception {
+			byte tag = in.readByte();
+
+			switch (tag) {
+				case NULL:
+					return null;
+				case HANDLE:
+					return handles.get(in.readVarInt());
+				case STRING:
+					return in.readString();
+				case INTEGER:
+					return unZigZag(in.readVarInt());
+				case LONG:
+					return unZigZag(in.readVarLong());
+				case DOUBLE:
+					return Double.longBitsToDouble(in.readLong());
+				case FLOAT:
+					return Float.intBitsToFloat(in.readInt());
+				case SHORT:
+					return (short) unZigZag(in.readVarInt());
+				case BYTE:
+					return in.readByte();
+				case CHARACTER:
+					return (char) in.readVarInt();
+				case BOOLEAN:
+					return in.readByte() != 0;
+				case REFERENCE: {
+					Object obj = references[in.readVarInt()];
+					handles.add(obj);
+					return obj;
+				}
+				case ENUM: {
+					Class enumClass = readClass();
+					Object obj = Enum.valueOf(enumClass, in.readString());
+					handles.add(obj);
+					return obj;
+				}
+				case ARRAY:
+					return readArray(readClass().getComponentType());
+				case COLLECTION: {
+					Class<?> c = readClass();
+					int size = in.readVarInt();
+					Collection collection = newCollection(c, size);
+					handles.add(collection);
+
+					for (int i = 0; i < size; i++) {
+						collection.add(readObject());
+					}
+					return collection;
+				}
+				case MAP: {
+					Class<?> c = readClass();
+					int size = in.readVarInt();
+					Map map = newMap(c, size);
+					handles.add(map);
+
+					for (int i = 0; i < size; i++) {
+						Object key = readObject();
+						map.put(key, readObject());
+					}
+					return map;
+				}
+				case OBJECT: {
+					ClassLayout layout = layoutOf(readClass());
+					Object obj = layout.newInstance();
+					handles.add(obj);
+					readFields(obj, layout);
+					return obj;
+				}
+				case JAVA: {
+					int slot = handles.size();
+					handles.add(null);
+
+					int length = in.readVarInt();
+					Object obj = JavaSerializationCodec.readObject(new ByteArrayInputStream(in.data, in.position, length), references, loader);
+					in.position += length;
+
+					handles.set(slot, obj);
+					return obj;
+				}
+				default:
+					throw new IllegalStateException("Corrupted state: unknown tag " + tag);
+			}
+		}
+
+		private void readFields(Object obj, ClassLayout layout) throws Exception {
+			Field[] fields = layout.fields;
+			char[] kinds = layout.kinds;
+
+			for (int i = 0; i < fields.length; i++) {
+				Field f = fields[i];
+
+				switch (kinds[i]) {
+					case 'Z':
+						f.setBoolean(obj, in.readByte() != 0);
+						break;
+					case 'B':
+						f.setByte(obj, in.readByte());
+						break;
+					case 'C':
+						f.setChar(obj, (char) in.readVarInt());
+						break;
+					case 'S':
+						f.setShort(obj, (short) unZigZag(in.readVarInt()));
+						break;
+					case 'I':
+						f.setInt(obj, unZigZag(in.readVarInt()));
+						break;
+					case 'J':
+						f.setLong(obj, unZigZag(in.readVarLong()));
+						break;
+					case 'F':
+						f.setFloat(obj, Float.intBitsToFloat(in.readInt()));
+						break;
+					case 'D':
+						f.setDouble(obj, Double.longBitsToDouble(in.readLong()));
+						break;
+					default:
+						f.set(obj, readObject());
+				}
+			}
+		}
+
+		private Object readArray(Class<?> componentType) throws Exception {
+			int length = in.readVarInt();
+			Object array = Array.newInstance(componentType, length);
+			handles.add(array);
+
+			if (componentType == byte.class) {
+				in.readBytes((byte[]) array);
+			} else if (componentType == int.class) {
+				int[] values = (int[]) array;
+				for (int i = 0; i < length; i++) {
+					values[i] = unZigZag(in.readVarInt());
+				}
+			} else if (componentType == long.class) {
+				long[] values = (long[]) array;
+				for (int i = 0; i < length; i++) {
+					values[i] = unZigZag(in.readVarLong());
+				}
+			} else if (componentType == double.class) {
+				double[] values = (double[]) array;
+				for (int i = 0; i < length; i++) {
+					values[i] = Double.longBitsToDouble(in.readLong());
+				}
+			} else if (componentType == char.class) {
+				char[] values = (char[]) array;
+				for (int i = 0; i < length; i++) {
+					values[i] = (char) in.readVarInt();
+				}
+			} else if (componentType == boolean.class) {
+				boolean[] values = (boolean[]) array;
+				for (int i = 0; i < length; i++) {
+					values[i] = in.readByte() != 0;
+				}
+			} else if (componentType == float.class) {
+				float[] values = (float[]) array;
+				for (int i = 0; i < length; i++) {
+					values[i] = Float.intBitsToFloat(in.readInt());
+				}
+			} else if (componentType == short.class) {
+				short[] values = (short[]) array;
+				for (int i = 0; i < length; i++) {
+					values[i] = (short) unZigZag(in.readVarInt());
+				}
+			} else {
+				Object[] values = (Object[]) array;
+				for (int i = 0; i < length; i++) {
+					values[i] = readObject();
+				}
+			}
+
+			return array;
+		}
+
+		private Class<?> readClass() throws ClassNotFoundException {
+			int id = in.readVarInt();
+
+			if (id > 0) {
+				return classes.get(id - 1);
+			}
+
+			String name = in.readString();
+			Class<?> c;
+
+			try {
+				c = Class.forName(name, false, loader);
+			} catch (ClassNotFoundException e) {
+				c = Class.forName(name, false, FieldStateCodec.class.getClassLoader());
+			}
+
+			classes.add(c);
+
+			return c;
+		}
+	}
+
+	private static int zigZag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	private static long zigZag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static int unZigZag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static long unZigZag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static class Output {
+		private byte[] buffer = new byte[256];
+		private int position;
+
+		private void ensure(int length) {
+			if (position + length > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+			}
+		}
+
+		void writeByte(int v) {
+			ensure(1);
+			buffer[position++] = (byte) v;
+		}
+
+		void writeBytes(byte[] v) {
+			ensure(v.length);
+			System.arraycopy(v, 0, buffer, position, v.length);
+			position += v.length;
+		}
+
+		void writeVarInt(int v) {
+			ensure(5);
+			while ((v & ~0x7F) != 0) {
+				buffer[position++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buffer[position++] = (byte) v;
+		}
+
+		void writeVarLong(long v) {
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				buffer[position++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buffer[position++] = (byte) v;
+		}
+
+		void writeInt(int v) {
+			ensure(4);
+			buffer[position++] = (byte) (v >>> 24);
+			buffer[position++] = (byte) (v >>> 16);
+			buffer[position++] = (byte) (v >>> 8);
+			buffer[position++] = (byte) v;
+		}
+
+		void writeLong(long v) {
+			writeInt((int) (v >>> 32));
+			writeInt((int) v);
+		}
+
+		void writeString(String s) {
+			int length = s.length();
+			writeVarInt(length);
+			ensure(length);
+
+			for (int i = 0; i < length; i++) {
+				char c = s.charAt(i);
+
+				if (c < 0x80) {
+					buffer[position++] = (byte) c;
+				} else {
+					writeVarInt(c);
+				}
+			}
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buffer, position);
+		}
+	}
+
+	private static class Input {
+		private final byte[] data;
+		private int position;
+
+		Input(byte[] data) {
+			this.data = data;
+		}
+
+		byte readByte() {
+			return data[position++];
+		}
+
+		void readBytes(byte[] target) {
+			System.arraycopy(data, position, target, 0, target.length);
+			position += target.length;
+		}
+
+		int readVarInt() {
+			int result = 0;
+
+			for (int shift = 0;; shift += 7) {
+				byte b = data[position++];
+				result |= (b & 0x7F) << shift;
+
+				if (b >= 0) {
+					return result;
+				}
+			}
+		}
+
+		long readVarLong() {
+			long result = 0;
+
+			for (int shift = 0;; shift += 7) {
+				byte b = data[position++];
+				result |= (long) (b & 0x7F) << shift;
+
+				if (b >= 0) {
+					return result;
+				}
+			}
+		}
+
+		int readInt() {
+			return ((data[position++] & 0xFF) << 24) | ((data[position++] & 0xFF) << 16) | ((data[position++] & 0xFF) << 8) | (data[position++] & 0xFF);
+		}
+
+		long readLong() {
+			return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+		}
+
+		String readString() {
+			int length = readVarInt();
+			char[] chars = new char[length];
+
+			for (int i = 0; i < length; i++) {
+				byte b = data[position];
+
+				if (b >= 0) {
+					chars[i] = (char) b;
+					position++;
+				} else {
+					chars[i] = (char) readVarInt();
+				}
+			}
+
+			return new String(chars);
+		}
+	}
+}
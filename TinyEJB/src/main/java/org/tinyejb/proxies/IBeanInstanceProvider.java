@@ -0,0 +1,25 @@
+package org.tinyejb.proxies;
+
+import javax.ejb.SessionBean;
+
+/**
+ * Source of bean instances for stateless beans calls.
+ * Each call acquires an instance before running the business method, and releases it afterwards.
+ * 
+ * @see BeanInstancePool
+ * @see SingletonInstanceProvider
+ * @see ThreadConfinedInstanceProvider
+ */
+public interface IBeanInstanceProvider {
+	SessionBean acquire();
+
+	void release(SessionBean sb);
+
+	/**
+	 * Takes back an acquired instance that can't serve other calls (i.e. a stateless instance that left a transaction open).
+	 * It's removed, instead of released.
+	 */
+	void discard(SessionBean sb);
+
+	void shutdown();
+}
@@ -4,4 +4,31 @@ import java.io.Serializable;
 
 public interface IEJBHome extends Serializable{
 	void onContainerShutDown();
+
+	/**
+	 * instance pool of the bean, with its statistics. Null for stateful beans and stateless ones that aren't pooled.
+	 */
+	BeanInstancePool getInstancePool();
+
+	/**
+	 * wait time, queue depth and holder methods of contended calls on sessions of the bean. Null for stateless beans.
+	 */
+	StatefulLockStatistics getStatefulLockStatistics();
+
+	/**
+	 * live, removed and expired sessions of the bean. Null for stateless beans.
+	 */
+	StatefulSessionStatistics getStatefulSessionStatistics();
+
+	/**
+	 * JNDI name the home is bound to
+	 */
+	String getJndiName();
+
+	/**
+	 * Session by its id, restoring it from the container's snapshot if needed. Stateless homes ignore the id.
+	 *
+	 * @throws java.rmi.NoSuchObjectException or {@link javax.ejb.NoSuchObjectLocalException} if there is no such session
+	 */
+	Object findSession(String sessionId) throws Exception;
 }
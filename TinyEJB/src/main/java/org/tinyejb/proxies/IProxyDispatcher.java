@@ -0,0 +1,14 @@
+package org.tinyejb.proxies;
+
+import java.lang.reflect.InvocationHandler;
+
+/**
+ * Call target for TinyEJB proxies.
+ *
+ * JDK proxies call it through {@link InvocationHandler#invoke(Object, java.lang.reflect.Method, Object[])}, while generated proxies
+ * call {@link #dispatch(Object, int, Object[])} directly, passing the index of the method on {@link ProxyFactory#getMethods()}.
+ *
+ */
+public interface IProxyDispatcher extends InvocationHandler {
+	Object dispatch(Object proxy, int methodIndex, Object[] args) throws Throwable;
+}
@@ -4,5 +4,10 @@ import javax.ejb.SessionBean;
 
 public interface ISessionEJB {
 	void setDelegationInstance(SessionBean bean);
-	void setBeanInstancePool(BeanInstancePool pool);
+	void setInstanceProvider(IBeanInstanceProvider instanceProvider);
+
+	/**
+	 * Serializable handle of the session, for local and remote interfaces
+	 */
+	SessionHandle getSessionHandle();
 }
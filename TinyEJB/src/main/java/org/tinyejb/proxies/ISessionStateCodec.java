@@ -0,0 +1,24 @@
+package org.tinyejb.proxies;
+
+import java.io.Serializable;
+import java.util.List;
+
+import javax.ejb.SessionBean;
+
+/**
+ * Externalizes the conversational state of stateful session beans, whenever the container moves it out of the heap
+ * (i.e. passivation).
+ * 
+ * Objects that must not be externalized (see {@link SessionStateSerializer#isKeptByReference(Object)}) are added to the references list,
+ * and codecs write just their index; decoding gets the same objects back, by index.
+ * 
+ * Codecs are shared by all sessions of a container, so they must be thread-safe. They're serializable, as the container is.
+ */
+public interface ISessionStateCodec extends Serializable {
+	/**
+	 * @throws Exception if the state can't be encoded by this codec. Container then falls back to Java serialization
+	 */
+	byte[] encode(SessionBean bean, List<Object> references) throws Exception;
+
+	SessionBean decode(byte[] data, Object[] references, ClassLoader loader) throws Exception;
+}
@@ -0,0 +1,197 @@
+package org.tinyejb.proxies;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.NotSupportedException;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+/**
+ * What the container knows about the bean calls running on a thread: the transaction bound to the thread, as started, propagated,
+ * suspended or resumed by the calls of container-managed transaction beans, and demarcated by bean-managed transaction beans with
+ * the container's UserTransaction.
+ *
+ * The outermost call asks the TransactionManager once, and nested calls trust the context, so a chain of local calls in the same
+ * transaction doesn't go back to the TransactionManager for each of them. Nothing is kept between outermost calls, as client code
+ * can change the transaction of the thread.
+ *
+ * It also keeps the deadline of the transaction, when the container began it with a timeout, so nested calls joining the transaction
+ * after its deadline fail at once, instead of doing work that is going to be rolled back.
+ */
+final class InvocationContext {
+	static final long NO_DEADLINE = Long.MIN_VALUE;
+
+	private static final ThreadLocal<InvocationContext> CURRENT = new ThreadLocal<InvocationContext>() {
+		@Override
+		protected InvocationContext initialValue() {
+			return new InvocationContext();
+		}
+	};
+
+	//nested calls running on the thread
+	private int depth;
+
+	//transaction bound to the thread, and the manager it came from. Valid only when known
+	private TransactionManager txManager;
+	private Transaction transaction;
+	private boolean known;
+
+	//System.nanoTime() when the transaction times out, if the container began it with a timeout
+	private long deadline = NO_DEADLINE;
+
+	private InvocationContext() {
+	}
+
+	static InvocationContext current() {
+		return CURRENT.get();
+	}
+
+	void enter() {
+		depth++;
+	}
+
+	/**
+	 * Ends a call, giving back the transaction the caller had, and its deadline
+	 *
+	 * @param callerDeadline deadline when the call began (see {@link #getDeadline()})
+	 * @param restored false if the thread may not be bound to callerTx anymore (i.e. commit or resume failed), so the next
+	 * call asks the TransactionManager again
+	 */
+	void exit(Transaction callerTx, long callerDeadline, boolean restored) {
+		if (--depth == 0 || !restored) {
+			forget();
+		} else {
+			transaction = callerTx;
+			deadline = callerDeadline;
+		}
+	}
+
+	/**
+	 * Transaction bound to the thread, asking the TransactionManager only if it's not known yet
+	 */
+	Transaction getTransaction(TransactionManager tm) throws SystemException {
+		if (known && txManager == tm) {
+			return transaction;
+		}
+
+		Transaction tx = tm.getTransaction();
+
+		if (depth > 0) {
+			txManager = tm;
+			transaction = tx;
+			known = true;
+		}
+
+		return tx;
+	}
+
+	/**
+	 * Transaction bound to the thread, for a stage that runs before the call enters the context (the stateful session lock).
+	 * An outermost call keeps it for the stage that enters next, so the TransactionManager is asked once; if the call ends before
+	 * entering, {@link #forgetIfOutside()} drops it
+	 */
+	Transaction peekTransaction(TransactionManager tm) throws SystemException {
+		if (known && txManager == tm) {
+			return transaction;
+		}
+
+		Transaction tx = tm.getTransaction();
+
+		txManager = tm;
+		transaction = tx;
+		known = true;
+
+		return tx;
+	}
+
+	/**
+	 * Drops what a peek kept, when no call is running on the thread
+	 */
+	void forgetIfOutside() {
+		if (depth == 0) {
+			forget();
+		}
+	}
+
+	/**
+	 * true if the thread is known to be bound to the given transaction
+	 */
+	boolean isTransaction(TransactionManager tm, Transaction tx) {
+		return known && txManager == tm && transaction == tx;
+	}
+
+	/**
+	 * Records a change the container made to the transaction of the thread (begin, suspend or resume). The deadline of the
+	 * previous transaction doesn't apply to the new one
+	 */
+	void setTransaction(TransactionManager tm, Transaction tx) {
+		if (depth > 0) {
+			txManager = tm;
+			transaction = tx;
+			known = true;
+			deadline = NO_DEADLINE;
+		}
+	}
+
+	/**
+	 * Begins a transaction on the thread, with a timeout (seconds, zero means the TransactionManager's default), and records it
+	 * with its deadline
+	 */
+	Transaction begin(TransactionManager tm, int timeout) throws NotSupportedException, SystemException {
+		if (timeout > 0) {
+			tm.setTransactionTimeout(timeout);
+
+			try {
+				tm.begin();
+			} finally {
+				//back to the default, for transactions begun later on the thread
+				tm.setTransactionTimeout(0);
+			}
+		} else {
+			tm.begin();
+		}
+
+		Transaction tx = tm.getTransaction();
+		setTransaction(tm, tx);
+
+		if (timeout > 0) {
+			startDeadline(timeout);
+		}
+
+		return tx;
+	}
+
+	/**
+	 * Records when the transaction just begun times out
+	 *
+	 * @param timeout seconds
+	 */
+	void startDeadline(int timeout) {
+		if (depth > 0) {
+			deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+		}
+	}
+
+	/**
+	 * deadline (System.nanoTime()) of the transaction of the thread, or NO_DEADLINE if it's not known
+	 */
+	long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Time (nanoseconds) left until the transaction of the thread times out, or Long.MAX_VALUE if it has no known deadline.
+	 * Zero or less means it has timed out
+	 */
+	long getRemainingTime() {
+		return deadline != NO_DEADLINE ? deadline - System.nanoTime() : Long.MAX_VALUE;
+	}
+
+	private void forget() {
+		txManager = null;
+		transaction = null;
+		known = false;
+		deadline = NO_DEADLINE;
+	}
+}
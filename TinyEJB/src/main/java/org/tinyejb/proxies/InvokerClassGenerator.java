@@ -0,0 +1,133 @@
+package org.tinyejb.proxies;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.tinyejb.proxies.BeanDispatchTable.MethodInvoker;
+
+/**
+ * Generates {@link MethodInvoker} classes with ASM, one for each bean method.
+ *
+ * The generated invoke() casts the instance to the bean class, unboxes the arguments, calls the method straight (invokevirtual)
+ * and boxes the result, so the call path has no reflection. Anything the bean method throws is wrapped on
+ * {@link java.lang.reflect.InvocationTargetException}, as reflection does, so callers can't tell the engines apart.
+ *
+ * Only public methods of public classes can be called by the generated code. For other ones, there's no invoker.
+ */
+class InvokerClassGenerator {
+	private static final String INVOKER_INTERNAL_NAME = Type.getInternalName(MethodInvoker.class);
+	private static final String TARGET_METHOD_FIELD = "targetMethod";
+	private static final String METHOD_DESC = Type.getDescriptor(Method.class);
+	private static final String INVOKE_DESC = "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;";
+
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	//loads all invokers of a bean class
+	private final ProxyClassGenerator.GeneratedClassLoader loader;
+
+	InvokerClassGenerator(Class<?> beanClass) {
+		this.loader = new ProxyClassGenerator.GeneratedClassLoader(beanClass.getClassLoader());
+	}
+
+	static boolean canInvoke(Class<?> beanClass, Method m) {
+		return Modifier.isPublic(beanClass.getModifiers()) && Modifier.isPublic(m.getModifiers()) && Modifier.isPublic(m.getDeclaringClass().getModifiers());
+	}
+
+	MethodInvoker generate(Class<?> beanClass, Method m) throws Exception {
+		String className = "org.tinyejb.generated." + beanClass.getSimpleName() + "$TinyEJBInvoker$" + m.getName() + "$" + counter.incrementAndGet();
+		Class<?> invokerClass = loader.define(className, buildClass(className, beanClass, m));
+
+		return (MethodInvoker) invokerClass.getConstructor(Method.class).newInstance(m);
+	}
+
+	private static byte[] buildClass(String className, Class<?> beanClass, Method m) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		String internalName = className.replace('.', '/');
+
+		cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, internalName, null, "java/lang/Object", new String[] { INVOKER_INTERNAL_NAME });
+		cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, TARGET_METHOD_FIELD, METHOD_DESC, null, null).visitEnd();
+
+		MethodVisitor ctor = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "(" + METHOD_DESC + ")V", null, null);
+		ctor.visitCode();
+		ctor.visitVarInsn(Opcodes.ALOAD, 0);
+		ctor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		ctor.visitVarInsn(Opcodes.ALOAD, 0);
+		ctor.visitVarInsn(Opcodes.ALOAD, 1);
+		ctor.visitFieldInsn(Opcodes.PUTFIELD, internalName, TARGET_METHOD_FIELD, METHOD_DESC);
+		ctor.visitInsn(Opcodes.RETURN);
+		ctor.visitMaxs(0, 0);
+		ctor.visitEnd();
+
+		MethodVisitor getter = cw.visitMethod(Opcodes.ACC_PUBLIC, "getTargetMethod", "()" + METHOD_DESC, null, null);
+		getter.visitCode();
+		getter.visitVarInsn(Opcodes.ALOAD, 0);
+		getter.visitFieldInsn(Opcodes.GETFIELD, internalName, TARGET_METHOD_FIELD, METHOD_DESC);
+		getter.visitInsn(Opcodes.ARETURN);
+		getter.visitMaxs(0, 0);
+		getter.visitEnd();
+
+		buildInvoke(cw, beanClass, m);
+
+		cw.visitEnd();
+
+		return cw.toByteArray();
+	}
+
+	private static void buildInvoke(ClassWriter cw, Class<?> beanClass, Method m) {
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "invoke", INVOKE_DESC, null, new String[] { "java/lang/Exception" });
+		mv.visitCode();
+
+		Label tryStart = new Label();
+		Label tryEnd = new Label();
+		Label wrap = new Label();
+
+		//only the call itself, so bad arguments fail as they are, not as thrown by the bean
+		mv.visitTryCatchBlock(tryStart, tryEnd, wrap, "java/lang/Throwable");
+
+		// ((BeanClass) instance).method((T0) args[0], ...)
+		String beanInternalName = Type.getInternalName(beanClass);
+		mv.visitVarInsn(Opcodes.ALOAD, 1);
+		mv.visitTypeInsn(Opcodes.CHECKCAST, beanInternalName);
+
+		Class<?>[] paramTypes = m.getParameterTypes();
+
+		for (int i = 0; i < paramTypes.length; i++) {
+			mv.visitVarInsn(Opcodes.ALOAD, 2);
+			ProxyClassGenerator.pushInt(mv, i);
+			mv.visitInsn(Opcodes.AALOAD);
+			ProxyClassGenerator.unbox(mv, Type.getType(paramTypes[i]));
+		}
+
+		mv.visitLabel(tryStart);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, beanInternalName, m.getName(), Type.getMethodDescriptor(m), false);
+		mv.visitLabel(tryEnd);
+
+		Type returnType = Type.getType(m.getReturnType());
+
+		if (returnType.getSort() == Type.VOID) {
+			mv.visitInsn(Opcodes.ACONST_NULL);
+		} else {
+			ProxyClassGenerator.box(mv, returnType);
+		}
+
+		mv.visitInsn(Opcodes.ARETURN);
+
+		// throw new InvocationTargetException(t)
+		mv.visitLabel(wrap);
+		mv.visitVarInsn(Opcodes.ASTORE, 3);
+		mv.visitTypeInsn(Opcodes.NEW, "java/lang/reflect/InvocationTargetException");
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitVarInsn(Opcodes.ALOAD, 3);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/reflect/InvocationTargetException", "<init>", "(Ljava/lang/Throwable;)V", false);
+		mv.visitInsn(Opcodes.ATHROW);
+
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+}
@@ -0,0 +1,108 @@
+package org.tinyejb.proxies;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.List;
+
+import javax.ejb.SessionBean;
+
+/**
+ * State codec based on plain Java serialization. It handles any serializable state, and it's the fallback when the configured codec fails.
+ */
+public class JavaSerializationCodec implements ISessionStateCodec {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public byte[] encode(SessionBean bean, List<Object> references) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		writeObject(bytes, bean, references);
+
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public SessionBean decode(byte[] data, Object[] references, ClassLoader loader) throws Exception {
+		return (SessionBean) readObject(new ByteArrayInputStream(data), references, loader);
+	}
+
+	static void writeObject(OutputStream target, Object obj, List<Object> references) throws IOException {
+		StateOutputStream out = new StateOutputStream(target, references);
+
+		out.writeObject(obj);
+		out.flush();
+	}
+
+	static Object readObject(InputStream source, Object[] references, ClassLoader loader) throws IOException, ClassNotFoundException {
+		return new StateInputStream(source, references, loader).readObject();
+	}
+
+	/**
+	 * Placeholder for an object kept by reference
+	 */
+	private static final class Reference implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final int index;
+
+		private Reference(int index) {
+			this.index = index;
+		}
+	}
+
+	private static class StateOutputStream extends ObjectOutputStream {
+		private final List<Object> references;
+
+		StateOutputStream(OutputStream out, List<Object> references) throws IOException {
+			super(out);
+			this.references = references;
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(Object obj) throws IOException {
+			if (obj != null && SessionStateSerializer.isKeptByReference(obj)) {
+				references.add(obj);
+				return new Reference(references.size() - 1);
+			}
+
+			return obj;
+		}
+	}
+
+	private static class StateInputStream extends ObjectInputStream {
+		private final Object[] references;
+		private final ClassLoader loader;
+
+		StateInputStream(InputStream in, Object[] references, ClassLoader loader) throws IOException {
+			super(in);
+			this.references = references;
+			this.loader = loader;
+			enableResolveObject(true);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			try {
+				return Class.forName(desc.getName(), false, loader);
+			} catch (ClassNotFoundException e) {
+				return super.resolveClass(desc);
+			}
+		}
+
+		@Override
+		protected Object resolveObject(Object obj) throws IOException {
+			if (obj instanceof Reference) {
+				return references[((Reference) obj).index];
+			}
+
+			return obj;
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package org.tinyejb.proxies;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only store for the state of passivated stateful sessions, on memory-mapped files.
+ * 
+ * Records are appended to the current segment (a file mapped on memory) and never updated in place. When a session is activated or
+ * removed, its record is just released, so older segments become sparse. {@link #compact()} copies the live records of a sparse segment
+ * to the current one and deletes its file. Records are handles, updated by the copy, so their owners don't notice it.
+ * 
+ * Files are temporary: they are deleted when the store is closed, and never read back on startup.
+ */
+final class PassivationStore {
+	private final static Logger LOGGER = LoggerFactory.getLogger(PassivationStore.class);
+
+	private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final int HEADER_SIZE = 4;
+
+	//segments with less live data than this ratio are compacted
+	private static final double COMPACTION_THRESHOLD = 0.5;
+
+	private final File directory;
+	private final int segmentSize;
+	private final String filePrefix;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private Segment current;
+	private int segmentSequence;
+	private long compactionCount;
+	private boolean closed;
+
+	PassivationStore(File directory) {
+		this(directory, SEGMENT_SIZE);
+	}
+
+	PassivationStore(File directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.filePrefix = "tinyejb-passivation-" + Integer.toHexString(System.identityHashCode(this)) + "-";
+	}
+
+	synchronized Record write(byte[] data) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("Passivation store is closed");
+		}
+
+		Record record = new Record();
+		segmentFor(data.length).append(record, data);
+
+		return record;
+	}
+
+	synchronized byte[] read(Record record) {
+		if (record.segment == null) {
+			throw new IllegalStateException("Passivated state was released");
+		}
+
+		return record.segment.read(record);
+	}
+
+	synchronized void release(Record record) {
+		Segment segment = record.segment;
+
+		if (segment != null) {
+			segment.release(record);
+			record.segment = null;
+
+			if (segment.records.isEmpty() && segment != current) {
+				drop(segment);
+			}
+		}
+	}
+
+	/**
+	 * Compacts the sparsest segment, if any is below the threshold. It's called by the passivation task, so only one segment
+	 * is copied on each run, keeping store locked for a short time.
+	 */
+	synchronized void compact() throws IOException {
+		Segment sparsest = null;
+
+		for (Segment s : segments) {
+			if (s != current && s.liveBytes < s.writePosition * COMPACTION_THRESHOLD && (sparsest == null || s.liveBytes < sparsest.liveBytes)) {
+				sparsest = s;
+			}
+		}
+
+		if (sparsest == null) {
+			return;
+		}
+
+		int moved = 0;
+
+		for (Record record : new ArrayList<Record>(sparsest.records)) {
+			byte[] data = sparsest.read(record);
+
+			sparsest.release(record);
+			segmentFor(data.length).append(record, data);
+			moved++;
+		}
+
+		drop(sparsest);
+		compactionCount++;
+
+		LOGGER.debug("passivation store compacted: " + moved + " record(s) moved from " + sparsest.file.getName());
+	}
+
+	synchronized void close() {
+		closed = true;
+
+		for (Segment s : new ArrayList<Segment>(segments)) {
+			drop(s);
+		}
+
+		current = null;
+	}
+
+	synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * bytes of records still in use
+	 */
+	synchronized long getLiveBytes() {
+		long result = 0;
+
+		for (Segment s : segments) {
+			result += s.liveBytes;
+		}
+
+		return result;
+	}
+
+	/**
+	 * bytes written on segments, including released records not compacted yet
+	 */
+	synchronized long getUsedBytes() {
+		long result = 0;
+
+		for (Segment s : segments) {
+			result += s.writePosition;
+		}
+
+		return result;
+	}
+
+	synchronized long getCompactionCount() {
+		return compactionCount;
+	}
+
+	private Segment segmentFor(int length) throws IOException {
+		if (current == null || !current.fits(length)) {
+			//records larger than a segment get a segment of their own
+			File file = new File(directory, filePrefix + (segmentSequence++) + ".dat");
+
+			current = new Segment(file, Math.max(segmentSize, HEADER_SIZE + length));
+			segments.add(current);
+		}
+
+		return current;
+	}
+
+	private void drop(Segment segment) {
+		segments.remove(segment);
+		segment.close();
+	}
+
+	/**
+	 * Location of a record. Owned by the store, which moves it on compaction.
+	 */
+	static final class Record {
+		private Segment segment;
+		private int offset;
+		private int length;
+	}
+
+	private static class Segment {
+		private final File file;
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer buffer;
+		private final int capacity;
+		private final Set<Record> records = new HashSet<Record>();
+		private int writePosition;
+		private long liveBytes;
+
+		Segment(File file, int capacity) throws IOException {
+			this.file = file;
+			this.capacity = capacity;
+			this.raf = new RandomAccessFile(file, "rw");
+
+			try {
+				raf.setLength(capacity);
+				this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		boolean fits(int length) {
+			return writePosition + HEADER_SIZE + length <= capacity;
+		}
+
+		void append(Record record, byte[] data) {
+			buffer.putInt(writePosition, data.length);
+
+			ByteBuffer target = buffer.duplicate();
+			target.position(writePosition + HEADER_SIZE);
+			target.put(data);
+
+			record.segment = this;
+			record.offset = writePosition;
+			record.length = data.length;
+			records.add(record);
+
+			writePosition += HEADER_SIZE + data.length;
+			liveBytes += HEADER_SIZE + data.length;
+		}
+
+		byte[] read(Record record) {
+			byte[] data = new byte[record.length];
+
+			ByteBuffer source = buffer.duplicate();
+			source.position(record.offset + HEADER_SIZE);
+			source.get(data);
+
+			return data;
+		}
+
+		void release(Record record) {
+			if (records.remove(record)) {
+				liveBytes -= HEADER_SIZE + record.length;
+			}
+		}
+
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				LOGGER.debug("error closing " + file + ": " + e.getMessage());
+			}
+
+			//the mapping itself is released by GC, so some platforms refuse to delete the file right now
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+}
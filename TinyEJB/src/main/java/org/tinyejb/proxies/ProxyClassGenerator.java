@@ -0,0 +1,385 @@
+package org.tinyejb.proxies;
+
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Generates proxy classes with ASM.
+ *
+ * For each interface method, the generated class has a method with the same signature, whose body boxes the arguments,
+ * calls {@link IProxyDispatcher#dispatch(Object, int, Object[])} with the method index as a constant, and unboxes the result.
+ * Undeclared checked exceptions are wrapped on {@link UndeclaredThrowableException}, like JDK proxies do.
+ * A method declared by more than one interface with covariant return types gets one method for each return type, all of them
+ * dispatched with the same index. Incompatible return types fail the generation, so the JDK engine is used.
+ *
+ * Proxies are Serializable, as JDK proxies: they are written as a JDK proxy with the same dispatcher.
+ *
+ * Classes are generated with version 49 (Java 5) class files, so ASM doesn't need to compute stack map frames.
+ *
+ */
+class ProxyClassGenerator {
+	private static final String TINYEJB_PROXIES_PACKAGE = ProxyClassGenerator.class.getPackage().getName() + ".";
+	private static final String DISPATCHER_FIELD = "dispatcher";
+	private static final String DISPATCHER_DESC = Type.getDescriptor(IProxyDispatcher.class);
+	private static final String DISPATCHER_INTERNAL_NAME = Type.getInternalName(IProxyDispatcher.class);
+	private static final String DISPATCH_DESC = "(Ljava/lang/Object;I[Ljava/lang/Object;)Ljava/lang/Object;";
+	private static final String PROXY_FACTORY_INTERNAL_NAME = Type.getInternalName(ProxyFactory.class);
+	private static final String WRITE_REPLACEMENT_DESC = "(Ljava/lang/Object;" + DISPATCHER_DESC + ")Ljava/lang/Object;";
+
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	static ProxyFactory generate(Class<?>[] interfaces) throws Exception {
+		return new GeneratedProxyFactory(interfaces);
+	}
+
+	/**
+	 * Dispatcher of a generated proxy, or null if it's some other object
+	 */
+	static IProxyDispatcher dispatcherOf(Object proxy) {
+		if (!(proxy.getClass().getClassLoader() instanceof GeneratedClassLoader)) {
+			return null;
+		}
+
+		try {
+			Field dispatcher = proxy.getClass().getDeclaredField(DISPATCHER_FIELD);
+			dispatcher.setAccessible(true);
+
+			return (IProxyDispatcher) dispatcher.get(proxy);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static byte[] buildClass(String className, Class<?>[] interfaces, Method[] methods) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+
+		List<String> intfNames = new ArrayList<String>();
+		for (Class<?> intf : interfaces) {
+			intfNames.add(Type.getInternalName(intf));
+		}
+
+		if (!Arrays.asList(interfaces).contains(Serializable.class)) {
+			intfNames.add(Type.getInternalName(Serializable.class));
+		}
+
+		String internalName = className.replace('.', '/');
+
+		cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, internalName, null, "java/lang/Object", intfNames.toArray(new String[intfNames.size()]));
+		cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, DISPATCHER_FIELD, DISPATCHER_DESC, null, null).visitEnd();
+
+		MethodVisitor ctor = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "(" + DISPATCHER_DESC + ")V", null, null);
+		ctor.visitCode();
+		ctor.visitVarInsn(Opcodes.ALOAD, 0);
+		ctor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		ctor.visitVarInsn(Opcodes.ALOAD, 0);
+		ctor.visitVarInsn(Opcodes.ALOAD, 1);
+		ctor.visitFieldInsn(Opcodes.PUTFIELD, internalName, DISPATCHER_FIELD, DISPATCHER_DESC);
+		ctor.visitInsn(Opcodes.RETURN);
+		ctor.visitMaxs(0, 0);
+		ctor.visitEnd();
+
+		// Object writeReplace() { return ProxyFactory.writeReplacement(this, dispatcher); }
+		MethodVisitor writeReplace = cw.visitMethod(Opcodes.ACC_PRIVATE, "writeReplace", "()Ljava/lang/Object;", null, new String[] { "java/io/ObjectStreamException" });
+		writeReplace.visitCode();
+		writeReplace.visitVarInsn(Opcodes.ALOAD, 0);
+		writeReplace.visitVarInsn(Opcodes.ALOAD, 0);
+		writeReplace.visitFieldInsn(Opcodes.GETFIELD, internalName, DISPATCHER_FIELD, DISPATCHER_DESC);
+		writeReplace.visitMethodInsn(Opcodes.INVOKESTATIC, PROXY_FACTORY_INTERNAL_NAME, "writeReplacement", WRITE_REPLACEMENT_DESC, false);
+		writeReplace.visitInsn(Opcodes.ARETURN);
+		writeReplace.visitMaxs(0, 0);
+		writeReplace.visitEnd();
+
+		for (int i = 0; i < methods.length; i++) {
+			List<Method> declarations = declarationsOf(methods[i], interfaces);
+			Class<?>[] exceptions = commonExceptions(declarations);
+
+			for (Method m : withDistinctReturnTypes(declarations)) {
+				buildMethod(cw, internalName, m, exceptions, i);
+			}
+		}
+
+		cw.visitEnd();
+
+		return cw.toByteArray();
+	}
+
+	/*
+	 * the method, and the ones with the same name and parameters declared by the interfaces
+	 */
+	private static List<Method> declarationsOf(Method method, Class<?>[] interfaces) {
+		List<Method> result = new ArrayList<Method>();
+		result.add(method);
+
+		for (Class<?> intf : interfaces) {
+			for (Method m : intf.getMethods()) {
+				if (!m.equals(method) && m.getName().equals(method.getName()) && Arrays.equals(m.getParameterTypes(), method.getParameterTypes())) {
+					result.add(m);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/*
+	 * One declaration for each return type. Every return type must be assignable from the most specific one, the type the
+	 * bean method returns, as no single method could implement the others.
+	 */
+	private static List<Method> withDistinctReturnTypes(List<Method> declarations) {
+		Map<Class<?>, Method> byReturnType = new LinkedHashMap<Class<?>, Method>();
+		Class<?> mostSpecific = declarations.get(0).getReturnType();
+
+		for (Method m : declarations) {
+			Class<?> returnType = m.getReturnType();
+
+			if (mostSpecific.isAssignableFrom(returnType)) {
+				mostSpecific = returnType;
+			}
+
+			if (!byReturnType.containsKey(returnType)) {
+				byReturnType.put(returnType, m);
+			}
+		}
+
+		for (Class<?> returnType : byReturnType.keySet()) {
+			if (!returnType.isAssignableFrom(mostSpecific)) {
+				throw new IllegalStateException("method '" + declarations.get(0).getName() + "' is declared with incompatible return types: " + byReturnType.keySet());
+			}
+		}
+
+		return new ArrayList<Method>(byReturnType.values());
+	}
+
+	/*
+	 * checked exceptions that all declarations allow, as JDK proxies do
+	 */
+	private static Class<?>[] commonExceptions(List<Method> declarations) {
+		List<Class<?>> result = new ArrayList<Class<?>>();
+
+		for (Method candidateMethod : declarations) {
+			for (Class<?> candidate : candidateMethod.getExceptionTypes()) {
+				if (!result.contains(candidate) && allow(declarations, candidate)) {
+					result.add(candidate);
+				}
+			}
+		}
+
+		return result.toArray(new Class<?>[result.size()]);
+	}
+
+	private static boolean allow(List<Method> declarations, Class<?> exception) {
+		for (Method m : declarations) {
+			boolean allowed = false;
+
+			for (Class<?> declared : m.getExceptionTypes()) {
+				if (declared.isAssignableFrom(exception)) {
+					allowed = true;
+					break;
+				}
+			}
+
+			if (!allowed) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static void buildMethod(ClassWriter cw, String internalName, Method m, Class<?>[] exceptionTypes, int index) {
+		String[] exceptions = new String[exceptionTypes.length];
+		for (int i = 0; i < exceptionTypes.length; i++) {
+			exceptions[i] = Type.getInternalName(exceptionTypes[i]);
+		}
+
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, m.getName(), Type.getMethodDescriptor(m), null, exceptions);
+		mv.visitCode();
+
+		Label tryStart = new Label();
+		Label tryEnd = new Label();
+		Label rethrow = new Label();
+		Label wrap = new Label();
+
+		mv.visitTryCatchBlock(tryStart, tryEnd, rethrow, "java/lang/RuntimeException");
+		mv.visitTryCatchBlock(tryStart, tryEnd, rethrow, "java/lang/Error");
+		for (String exception : exceptions) {
+			mv.visitTryCatchBlock(tryStart, tryEnd, rethrow, exception);
+		}
+		mv.visitTryCatchBlock(tryStart, tryEnd, wrap, "java/lang/Throwable");
+
+		mv.visitLabel(tryStart);
+
+		// dispatcher.dispatch(this, index, args)
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitFieldInsn(Opcodes.GETFIELD, internalName, DISPATCHER_FIELD, DISPATCHER_DESC);
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		pushInt(mv, index);
+
+		Class<?>[] paramTypes = m.getParameterTypes();
+		int slot = 1;
+
+		if (paramTypes.length == 0) {
+			//as JDK proxies, no-arg methods are dispatched with null arguments
+			mv.visitInsn(Opcodes.ACONST_NULL);
+		} else {
+			pushInt(mv, paramTypes.length);
+			mv.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/Object");
+
+			for (int i = 0; i < paramTypes.length; i++) {
+				Type t = Type.getType(paramTypes[i]);
+				mv.visitInsn(Opcodes.DUP);
+				pushInt(mv, i);
+				mv.visitVarInsn(t.getOpcode(Opcodes.ILOAD), slot);
+				box(mv, t);
+				mv.visitInsn(Opcodes.AASTORE);
+				slot += t.getSize();
+			}
+		}
+
+		mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, DISPATCHER_INTERNAL_NAME, "dispatch", DISPATCH_DESC, true);
+
+		Type returnType = Type.getType(m.getReturnType());
+		unbox(mv, returnType);
+		mv.visitLabel(tryEnd);
+		mv.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+
+		mv.visitLabel(rethrow);
+		mv.visitInsn(Opcodes.ATHROW);
+
+		mv.visitLabel(wrap);
+		mv.visitVarInsn(Opcodes.ASTORE, slot);
+		mv.visitTypeInsn(Opcodes.NEW, "java/lang/reflect/UndeclaredThrowableException");
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitVarInsn(Opcodes.ALOAD, slot);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/reflect/UndeclaredThrowableException", "<init>", "(Ljava/lang/Throwable;)V", false);
+		mv.visitInsn(Opcodes.ATHROW);
+
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	static void pushInt(MethodVisitor mv, int value) {
+		if (value >= -1 && value <= 5) {
+			mv.visitInsn(Opcodes.ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(Opcodes.BIPUSH, value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			mv.visitIntInsn(Opcodes.SIPUSH, value);
+		} else {
+			mv.visitLdcInsn(Integer.valueOf(value));
+		}
+	}
+
+	static void box(MethodVisitor mv, Type t) {
+		String wrapper = wrapperOf(t);
+
+		if (wrapper != null) {
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, wrapper, "valueOf", "(" + t.getDescriptor() + ")L" + wrapper + ";", false);
+		}
+	}
+
+	static void unbox(MethodVisitor mv, Type t) {
+		if (t.getSort() == Type.VOID) {
+			mv.visitInsn(Opcodes.POP);
+			return;
+		}
+
+		String wrapper = wrapperOf(t);
+
+		if (wrapper != null) {
+			mv.visitTypeInsn(Opcodes.CHECKCAST, wrapper);
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, wrapper, t.getClassName() + "Value", "()" + t.getDescriptor(), false);
+		} else if (!t.getInternalName().equals("java/lang/Object")) {
+			mv.visitTypeInsn(Opcodes.CHECKCAST, t.getInternalName());
+		}
+	}
+
+	private static String wrapperOf(Type t) {
+		switch (t.getSort()) {
+			case Type.BOOLEAN:
+				return "java/lang/Boolean";
+			case Type.BYTE:
+				return "java/lang/Byte";
+			case Type.CHAR:
+				return "java/lang/Character";
+			case Type.SHORT:
+				return "java/lang/Short";
+			case Type.INT:
+				return "java/lang/Integer";
+			case Type.LONG:
+				return "java/lang/Long";
+			case Type.FLOAT:
+				return "java/lang/Float";
+			case Type.DOUBLE:
+				return "java/lang/Double";
+			default:
+				return null;
+		}
+	}
+
+	private static class GeneratedProxyFactory extends ProxyFactory {
+		private final Constructor<?> constructor;
+
+		private GeneratedProxyFactory(Class<?>[] interfaces) throws Exception {
+			super(interfaces);
+
+			//names and loads the class after the application interface (home or business), not the TinyEJB ones
+			Class<?> appIntf = interfaces[0];
+			for (Class<?> intf : interfaces) {
+				if (!intf.getName().startsWith(TINYEJB_PROXIES_PACKAGE)) {
+					appIntf = intf;
+					break;
+				}
+			}
+
+			String className = "org.tinyejb.generated." + appIntf.getSimpleName() + "$TinyEJBProxy$" + counter.incrementAndGet();
+
+			GeneratedClassLoader loader = new GeneratedClassLoader(appIntf.getClassLoader());
+			Class<?> proxyClass = loader.define(className, buildClass(className, interfaces, methods));
+
+			this.constructor = proxyClass.getConstructor(IProxyDispatcher.class);
+		}
+
+		@Override
+		public Object newProxy(IProxyDispatcher dispatcher) throws Exception {
+			return constructor.newInstance(dispatcher);
+		}
+	}
+
+	/**
+	 * Loader for generated classes. Application classes (interfaces and bean classes) come from their own loader,
+	 * while TinyEJB proxy classes always come from TinyEJB's own loader.
+	 */
+	static class GeneratedClassLoader extends ClassLoader {
+		GeneratedClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (name.startsWith(TINYEJB_PROXIES_PACKAGE)) {
+				return ProxyClassGenerator.class.getClassLoader().loadClass(name);
+			}
+			return super.loadClass(name, resolve);
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
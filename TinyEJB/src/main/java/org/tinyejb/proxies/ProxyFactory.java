@@ -0,0 +1,155 @@
+package org.tinyejb.proxies;
+
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Factory of proxy instances for a fixed set of interfaces (home or business interfaces of a bean).
+ *
+ * There are two engines: JDK dynamic proxies (default) and generated classes, that have one concrete method per interface method,
+ * calling {@link IProxyDispatcher#dispatch(Object, int, Object[])} with the method index, so the dispatcher doesn't need
+ * to find out which method was called. Generated classes need ASM on classpath; when it's missing, or some interface is not public,
+ * the JDK engine is used.
+ *
+ */
+public abstract class ProxyFactory {
+	private final static Logger LOGGER = LoggerFactory.getLogger(ProxyFactory.class);
+
+	//interfaces implemented by proxies
+	protected final Class<?>[] interfaces;
+
+	//all methods that can reach the dispatcher, in dispatch index order
+	protected final Method[] methods;
+
+	protected ProxyFactory(Class<?>[] interfaces) {
+		this.interfaces = interfaces;
+		this.methods = collectMethods(interfaces);
+	}
+
+	public static ProxyFactory build(Class<?>[] interfaces, boolean generated) {
+		if (generated) {
+			try {
+				for (Class<?> intf : interfaces) {
+					if (!Modifier.isPublic(intf.getModifiers())) {
+						throw new IllegalStateException("interface '" + intf.getName() + "' is not public");
+					}
+				}
+				return ProxyClassGenerator.generate(interfaces);
+			} catch (NoClassDefFoundError e) {
+				LOGGER.warn("ASM not found on classpath, using JDK proxies for " + Arrays.toString(interfaces));
+			} catch (Exception e) {
+				LOGGER.warn("Proxy generation failed for " + Arrays.toString(interfaces) + ", using JDK proxies: " + e.getMessage());
+			}
+		}
+
+		return new JdkProxyFactory(interfaces);
+	}
+
+	public abstract Object newProxy(IProxyDispatcher dispatcher) throws Exception;
+
+	public Method[] getMethods() {
+		return methods;
+	}
+
+	public Class<?>[] getInterfaces() {
+		return interfaces;
+	}
+
+	/**
+	 * Replacement written by serialization for a generated proxy: a JDK proxy for the same interfaces and dispatcher.
+	 * It's called by generated classes only.
+	 */
+	public static Object writeReplacement(Object proxy, IProxyDispatcher dispatcher) {
+		List<Class<?>> interfaces = new ArrayList<Class<?>>(Arrays.asList(proxy.getClass().getInterfaces()));
+		//JDK proxies are Serializable anyway
+		interfaces.remove(Serializable.class);
+
+		return Proxy.newProxyInstance(proxy.getClass().getClassLoader(), interfaces.toArray(new Class<?>[interfaces.size()]), dispatcher);
+	}
+
+	/**
+	 * Dispatcher of a proxy built by any engine, or null if it's not a proxy
+	 */
+	static IProxyDispatcher dispatcherOf(Object proxy) {
+		if (proxy == null) {
+			return null;
+		}
+
+		if (Proxy.isProxyClass(proxy.getClass())) {
+			InvocationHandler handler = Proxy.getInvocationHandler(proxy);
+
+			return handler instanceof IProxyDispatcher ? (IProxyDispatcher) handler : null;
+		}
+
+		return ProxyClassGenerator.dispatcherOf(proxy);
+	}
+
+	/*
+	 * java.lang.Object's equals, hashCode and toString come first, as JDK proxies also redirect them to the handler.
+	 * Methods with the same signature on more than one interface are dispatched just once, as the first one declared (JDK proxies
+	 * also pass that one to the handler), even if the others have covariant return types.
+	 */
+	private static Method[] collectMethods(Class<?>[] interfaces) {
+		List<Method> result = new ArrayList<Method>();
+
+		try {
+			result.add(Object.class.getMethod("hashCode"));
+			result.add(Object.class.getMethod("equals", Object.class));
+			result.add(Object.class.getMethod("toString"));
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+
+		for (Class<?> intf : interfaces) {
+			for (Method m : intf.getMethods()) {
+				boolean duplicated = false;
+
+				for (Method other : result) {
+					if (other.getName().equals(m.getName()) && Arrays.equals(other.getParameterTypes(), m.getParameterTypes())) {
+						duplicated = true;
+						break;
+					}
+				}
+
+				if (!duplicated) {
+					result.add(m);
+				}
+			}
+		}
+
+		return result.toArray(new Method[result.size()]);
+	}
+
+	/**
+	 * The proxy class is resolved once, with the context class loader of the deploy, so each new proxy is just a constructor call
+	 */
+	private static class JdkProxyFactory extends ProxyFactory {
+		private final Constructor<?> constructor;
+
+		@SuppressWarnings("deprecation")
+		private JdkProxyFactory(Class<?>[] interfaces) {
+			super(interfaces);
+
+			try {
+				this.constructor = Proxy.getProxyClass(Thread.currentThread().getContextClassLoader(), interfaces).getConstructor(InvocationHandler.class);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public Object newProxy(IProxyDispatcher dispatcher) throws Exception {
+			return constructor.newInstance(dispatcher);
+		}
+	}
+}
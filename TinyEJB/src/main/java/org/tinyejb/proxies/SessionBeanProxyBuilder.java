@@ -1,42 +1,83 @@
 package org.tinyejb.proxies;
 
-import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.ejb.EJBException;
 import javax.ejb.EJBLocalObject;
 import javax.ejb.EJBObject;
-import javax.ejb.Handle;
+import javax.ejb.NoSuchObjectLocalException;
 import javax.ejb.SessionBean;
 import javax.ejb.SessionSynchronization;
 import javax.ejb.TransactionRequiredLocalException;
+import javax.ejb.TransactionRolledbackLocalException;
 import javax.transaction.Status;
 import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 import javax.transaction.TransactionRequiredException;
+import javax.transaction.TransactionRolledbackException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tinyejb.core.EJBContainer;
 import org.tinyejb.core.EJBMetadata;
 import org.tinyejb.core.EJBMetadata.BEAN_TYPE;
-import org.tinyejb.core.EJBMetadata.EJBMethodTransactionInfo;
+import org.tinyejb.core.EJBMetadata.EJBMethodConcurrencyInfo;
 import org.tinyejb.core.EJBMetadata.EJBMethodTransactionInfo.METHOD_INTF;
+import org.tinyejb.core.EJBMetadata.LOCK_TYPE;
+import org.tinyejb.core.EJBMetadata.TRANSACTION_MANAGED_BY;
 import org.tinyejb.core.EJBMetadata.TRANSACTION_TYPE;
+import org.tinyejb.proxies.BeanDispatchTable.MethodInvoker;
 
 public class SessionBeanProxyBuilder {
 	private final static Logger LOGGER = LoggerFactory.getLogger(SessionBeanProxyBuilder.class);
-	public static ISessionEJB build(EJBMetadata ejbMetadata, Object homeProxy, METHOD_INTF methodIntf) throws Exception {
-		SessionEJBProxy proxyIH = new SessionEJBProxy(ejbMetadata, homeProxy);
 
-		return (ISessionEJB) Proxy.newProxyInstance(Thread.currentThread().getContextClassLoader(), buildInterfacesToImplement(ejbMetadata, methodIntf), proxyIH);
+	public static ISessionEJB build(InvocationPlanCache invocationPlans) throws Exception {
+		SessionEJBProxy proxyIH = new SessionEJBProxy(invocationPlans);
+		ISessionEJB beanProxy = (ISessionEJB) invocationPlans.proxyFactory.newProxy(proxyIH);
+
+		proxyIH.beanProxy = beanProxy;
+
+		return beanProxy;
+	}
+
+	/**
+	 * Proxy for a stateful session from a snapshot. The session keeps its id, so its handles still work, and its state is
+	 * decoded on the first call.
+	 */
+	static ISessionEJB restore(InvocationPlanCache invocationPlans, SessionSnapshot.Entry entry) throws Exception {
+		SessionEJBProxy proxyIH = new SessionEJBProxy(invocationPlans);
+		ISessionEJB beanProxy = (ISessionEJB) invocationPlans.proxyFactory.newProxy(proxyIH);
+
+		proxyIH.beanProxy = beanProxy;
+		proxyIH.sessionId = entry.getSessionId();
+		proxyIH.restoredState = entry;
+		proxyIH.lastAccess = System.currentTimeMillis();
+		proxyIH.startSession();
+
+		return beanProxy;
+	}
+
+	/**
+	 * Compiles the invocation plans for all methods of the bean's business interface (local or remote).
+	 * The result is intended to be built once per bean and interface, and shared by all proxies created for them.
+	 */
+	public static InvocationPlanCache compile(EJBMetadata ejbMetadata, METHOD_INTF methodIntf) throws Exception {
+		return new InvocationPlanCache(ejbMetadata, methodIntf);
 	}
 
 	private static Class<?>[] buildInterfacesToImplement(EJBMetadata ejbmd, METHOD_INTF methodIntf) throws Exception {
@@ -55,81 +96,281 @@ public class SessionBeanProxyBuilder {
 		return interfaces.toArray(new Class[] {});
 	}
 
-	private static class SessionEJBProxy implements InvocationHandler, ISessionEJB {
-		private EJBMetadata ejbMetadata;
-		private SessionBean beanDelegate;
-		private BeanInstancePool beanInstancePool;
+	/**
+	 * Invocation plans for one business interface (local or remote) of a bean.
+	 * 
+	 * Plans for all methods implemented by the proxies are compiled eagerly, when the cache is built, and indexed in the same order
+	 * used by the proxy factory, so generated proxies reach their plans by index. JDK proxies find them by Method, and any method
+	 * not known in advance is compiled on its first call.
+	 * 
+	 * It's also where bean proxies find the state they share (metadata, home and, for stateless beans, the instance provider),
+	 * so each stateful session carries only its own state.
+	 */
+	public static class InvocationPlanCache {
+		private final EJBMetadata ejbMetadata;
+		private final METHOD_INTF methodIntf;
+		private final BeanDispatchTable dispatchTable;
+		private final ProxyFactory proxyFactory;
+		private final MethodInvocationPlan[] indexedPlans;
+		private final ConcurrentMap<Method, MethodInvocationPlan> plans = new ConcurrentHashMap<Method, MethodInvocationPlan>();
+		//home proxy of the interface, set once it's built
 		private Object homeProxy;
-		private Method[] statefulMethodLock = new Method[1];
+		//stateless only
+		private IBeanInstanceProvider instanceProvider;
 
-		private SessionEJBProxy(EJBMetadata ejbMetadata, Object homeProxy) {
+		private InvocationPlanCache(EJBMetadata ejbMetadata, METHOD_INTF methodIntf) throws Exception {
 			this.ejbMetadata = ejbMetadata;
+			this.methodIntf = methodIntf;
+
+			//built by the deploy
+			this.dispatchTable = ejbMetadata.getDispatchTable();
+
+			if (dispatchTable == null) {
+				throw new IllegalStateException("Bean '" + ejbMetadata.getName() + "' has no dispatch table: it's not being deployed by an EJBContainer.");
+			}
+
+			boolean generated = ejbMetadata.getEjbContainer() != null && ejbMetadata.getEjbContainer().isUseGeneratedProxies();
+			this.proxyFactory = ProxyFactory.build(buildInterfacesToImplement(ejbMetadata, methodIntf), generated);
+
+			Method[] methods = proxyFactory.getMethods();
+			this.indexedPlans = new MethodInvocationPlan[methods.length];
+
+			for (int i = 0; i < methods.length; i++) {
+				indexedPlans[i] = new MethodInvocationPlan(this, methods[i]);
+				plans.put(methods[i], indexedPlans[i]);
+			}
+		}
+
+		private MethodInvocationPlan get(Method m) throws Exception {
+			MethodInvocationPlan plan = plans.get(m);
+
+			if (plan == null) {
+				plan = new MethodInvocationPlan(this, m);
+				MethodInvocationPlan previous = plans.putIfAbsent(m, plan);
+
+				if (previous != null) {
+					plan = previous;
+				}
+			}
+
+			return plan;
+		}
+
+		/**
+		 * home that creates the bean proxies of these plans
+		 */
+		public void setHomeProxy(Object homeProxy) {
 			this.homeProxy = homeProxy;
 		}
+	}
 
-		@Override
-		public Object invoke(Object beanProxy, Method method, Object[] args) throws Throwable {
-			if (ejbMetadata.getEjbContainer().getContainerStatus().equals(EJBContainer.ContainerStatus.SHUT_DOWN)) {
-				throw new IllegalStateException("EJBContainer for bean '" + ejbMetadata.getName() + "' has shut down.");
+	private static enum METHOD_KIND {
+		SessionEJB, EJBObject, EJBLocalObject, Business;
+	}
+
+	/**
+	 * Immutable invocation plan for a single method of a bean proxy.
+	 * It holds everything that can be resolved before the call: the invoker for the target method on bean class,
+	 * the transaction attribute and the chain of interceptors that executes the call.
+	 */
+	private static final class MethodInvocationPlan {
+		private final Method method;
+		private final METHOD_KIND kind;
+		private final boolean localIntf;
+		private final MethodInvoker invoker;
+		private final TRANSACTION_TYPE txType;
+		//seconds for transactions begun by the call. Zero means the TransactionManager's default
+		private final int txTimeout;
+		//stateless instance is acquired by a stage of the chain (transaction affinity or bean-managed transaction), instead of before it
+		private final boolean instanceFromChain;
+		private final LOCK_TYPE lockType;
+		//Read method that takes the write lock when it begins a transaction, as the bean gets SessionSynchronization callbacks
+		private final boolean writeLockToBeginTransaction;
+		//negative means the container's concurrentCallWaitTimeout
+		private final long accessTimeout;
+		private final MethodChain chain;
+
+		private MethodInvocationPlan(InvocationPlanCache cache, Method method) throws Exception {
+			EJBMetadata ejbMetadata = cache.ejbMetadata;
+			Class<?> declaringClass = method.getDeclaringClass();
+
+			this.method = method;
+			this.localIntf = cache.methodIntf.equals(METHOD_INTF.Local);
+
+			if (declaringClass.equals(ISessionEJB.class)) {
+				kind = METHOD_KIND.SessionEJB;
+			} else if (declaringClass.equals(EJBLocalObject.class)) {
+				kind = METHOD_KIND.EJBLocalObject;
+			} else if (declaringClass.equals(EJBObject.class)) {
+				kind = METHOD_KIND.EJBObject;
+			} else {
+				kind = METHOD_KIND.Business;
 			}
 
-			if (method.getDeclaringClass().equals(ISessionEJB.class)) {
-				return method.invoke(this, args);
-			} else if (method.getDeclaringClass().equals(EJBLocalObject.class)) {
-				return handleEJBLocalObjectMethods(beanProxy, method, args);
-			} else if (method.getDeclaringClass().equals(EJBObject.class)) {
-				return handleEJBObjectMethods(beanProxy, method, args);
+			if (kind == METHOD_KIND.Business) {
+				try {
+					invoker = cache.dispatchTable.lookup(method);
+				} catch (NoSuchMethodException e) {
+					IllegalStateException error = new IllegalStateException("EJB spec violation (cap: 7.11.5): Session Bean class '" + cache.dispatchTable.getBeanClass().getName() + "' must implement the business method " + method.toString());
+					error.initCause(e);
+					throw error;
+				}
+
+				txType = ejbMetadata.getTransactionType(method, cache.methodIntf);
+				txTimeout = ejbMetadata.getTransactionTimeout(method, cache.methodIntf);
+
+				//methods without a declared lock type are Write, as the bean could change its state on them
+				EJBMethodConcurrencyInfo mci = ejbMetadata.getConcurrencyInfo(method, cache.methodIntf);
+				LOCK_TYPE declaredLockType = mci != null ? mci.getLockType() : LOCK_TYPE.Write;
+
+				if (declaredLockType == LOCK_TYPE.Read && !ejbMetadata.isStateless() && (ejbMetadata.getTxManagedBy() == TRANSACTION_MANAGED_BY.Bean || txType == TRANSACTION_TYPE.RequiresNew)) {
+					//each call would resume or begin a transaction on the shared instance
+					LOGGER.info(ejbMetadata.getName() + ": Read lock-type of method '" + method.getName() + "' ignored, as its calls " + (txType == TRANSACTION_TYPE.RequiresNew ? "begin" : "resume") + " transactions on the session");
+					declaredLockType = LOCK_TYPE.Write;
+				}
+
+				lockType = declaredLockType;
+				writeLockToBeginTransaction = lockType == LOCK_TYPE.Read && txType == TRANSACTION_TYPE.Required && !ejbMetadata.isStateless()
+						&& SessionSynchronization.class.isAssignableFrom(cache.dispatchTable.getBeanClass());
+				accessTimeout = mci != null ? mci.getAccessTimeout() : -1;
+
+				MethodChain callChain = new MethodCaller(this);
+
+				//bean-managed transaction calls never run on the caller's transaction, so they have no use for affinity
+				boolean transactionAffinity = ejbMetadata.isTransactionAffinityEnabled() && ejbMetadata.getTxManagedBy() != TRANSACTION_MANAGED_BY.Bean;
+
+				if (transactionAffinity) {
+					//inside the transaction wrapper, so it sees the transaction the call runs on
+					callChain = new TransactionAffinityWrapper(ejbMetadata, callChain);
+				}
+
+				if (ejbMetadata.getTxManagedBy() == TRANSACTION_MANAGED_BY.Bean) {
+					callChain = new BeanManagedTransactionWrapper(ejbMetadata, this, callChain);
+				} else {
+					callChain = new TransactionWrapper(ejbMetadata, this, callChain);
+				}
+
+				instanceFromChain = ejbMetadata.isStateless() && (transactionAffinity || ejbMetadata.getTxManagedBy() == TRANSACTION_MANAGED_BY.Bean);
+
+				if (!ejbMetadata.isStateless()) {
+					callChain = new StatefulSerializerWrapper(ejbMetadata, this, callChain);
+				} else if (ejbMetadata.isConcurrencyManaged()) {
+					callChain = new SingletonConcurrencyWrapper(ejbMetadata, this, callChain);
+				}
+
+				chain = callChain;
+			} else {
+				invoker = null;
+				txType = null;
+				txTimeout = 0;
+				instanceFromChain = false;
+				lockType = null;
+				writeLockToBeginTransaction = false;
+				accessTimeout = -1;
+				chain = null;
+			}
+		}
+	}
+
+	private static class SessionEJBProxy implements IProxyDispatcher, ISessionEJB, StatefulPassivator.Passivatable, SessionReaper.Expirable, StatefulSessionRegistry.Snapshottable {
+		private static final AtomicReferenceFieldUpdater<SessionEJBProxy, StatefulSessionLock> LOCK_UPDATER = AtomicReferenceFieldUpdater.newUpdater(SessionEJBProxy.class, StatefulSessionLock.class, "statefulLock");
+
+		//metadata, home and instance provider, shared by all proxies of the interface
+		private final InvocationPlanCache invocationPlans;
+		//stateful bean instance. Null while passivated, or restored from a snapshot and not called yet
+		private volatile SessionBean beanDelegate;
+		//stateful only: state from a snapshot, decoded on the first call
+		private volatile SessionSnapshot.Entry restoredState;
+		//stateful only: id on the registry of the bean, once the session has one (see StatefulSessionRegistry)
+		private String sessionId;
+		//stateful only: time of the last call, and the passivator, when container passivates sessions
+		private volatile long lastAccess;
+		private StatefulPassivator.Registration passivation;
+		//stateful only: set by remove() or session timeout. Later calls fail
+		private volatile boolean removed;
+		private Object beanProxy;
+		//serializes calls on a stateful session, in arrival order. Read-only methods share it. Created on first use
+		private volatile StatefulSessionLock statefulLock;
+		//stateful bean-managed transaction only: transaction the bean left open on its last call, resumed on the next one
+		private Transaction beanTransaction;
+
+		private SessionEJBProxy(InvocationPlanCache invocationPlans) {
+			this.invocationPlans = invocationPlans;
+		}
+
+		private StatefulSessionLock lock() {
+			StatefulSessionLock lock = statefulLock;
+
+			if (lock == null) {
+				LOCK_UPDATER.compareAndSet(this, null, new StatefulSessionLock(invocationPlans.ejbMetadata.getName()));
+				lock = statefulLock;
 			}
 
-			return handleBusinessInterfaceMethods(beanProxy, method, args);
+			return lock;
 		}
 
-		private Object handleBusinessInterfaceMethods(Object beanProxy, Method method, Object[] args) throws Throwable {
-			MethodChain callChain = new MethodCaller(ejbMetadata);
+		@Override
+		public Object invoke(Object beanProxy, Method method, Object[] args) throws Throwable {
+			return handle(beanProxy, invocationPlans.get(method), args);
+		}
 
-			TransactionWrapper txWrapper = new TransactionWrapper(ejbMetadata);
-			txWrapper.setNext(callChain);
+		@Override
+		public Object dispatch(Object beanProxy, int methodIndex, Object[] args) throws Throwable {
+			return handle(beanProxy, invocationPlans.indexedPlans[methodIndex], args);
+		}
 
-			callChain = txWrapper;
+		private Object handle(Object beanProxy, MethodInvocationPlan plan, Object[] args) throws Throwable {
+			if (plan.kind == METHOD_KIND.SessionEJB) {
+				//container calls, that also run while it's shutting down (i.e. session snapshot)
+				try {
+					return plan.method.invoke(this, args);
+				} catch (InvocationTargetException e) {
+					throw e.getTargetException();
+				}
+			}
+
+			if (invocationPlans.ejbMetadata.getEjbContainer().getContainerStatus().equals(EJBContainer.ContainerStatus.SHUT_DOWN)) {
+				throw new IllegalStateException("EJBContainer for bean '" + invocationPlans.ejbMetadata.getName() + "' has shut down.");
+			}
 
-			if (!isStateless()) {
-				MethodChain serializerChain = new StatefulSerializerWrapper(this, ejbMetadata);
-				serializerChain.setNext(callChain);
-				callChain = serializerChain;
+			switch (plan.kind) {
+				case EJBLocalObject:
+					return handleEJBLocalObjectMethods(beanProxy, plan, args);
+				case EJBObject:
+					return handleEJBObjectMethods(beanProxy, plan, args);
+				default:
+					return handleBusinessInterfaceMethods(plan, args);
 			}
+		}
 
-			if (ejbMetadata.isStateless() && beanDelegate == null) { //Singleton stateless beans do not have a fixed delegate instance, we must get one from pool
+		private Object handleBusinessInterfaceMethods(MethodInvocationPlan plan, Object[] args) throws Throwable {
+			if (invocationPlans.instanceProvider != null && !plan.instanceFromChain) { //stateless beans do not have a fixed delegate instance, we must get one from provider
 				SessionBean beanInstance = null;
-				;
+
 				try {
-					beanInstance = beanInstancePool.getFromPool();
-					return callChain.call(beanInstance, method, args);
+					beanInstance = invocationPlans.instanceProvider.acquire();
+					return plan.chain.call(this, beanInstance, args);
 				} finally {
 					if (beanInstance != null) {
-						beanInstancePool.returnToPool(beanInstance);
+						invocationPlans.instanceProvider.release(beanInstance);
 					}
 				}
 			}
 
-			return callChain.call(beanDelegate, method, args);
+			return plan.chain.call(this, beanDelegate, args);
 		}
 
-		private Object handleEJBObjectMethods(final Object beanProxy, Method method, Object[] args) throws Exception {
+		private Object handleEJBObjectMethods(final Object beanProxy, MethodInvocationPlan plan, Object[] args) throws Exception {
+			Method method = plan.method;
+
 			if (method.getName().equals("getEJBHome")) {
-				return homeProxy;
+				return invocationPlans.homeProxy;
 			} else if (method.getName().equals("getHandle")) {
-				return new Handle() {
-					private static final long serialVersionUID = 1L;
-
-					@Override
-					public EJBObject getEJBObject() throws RemoteException {
-						return (EJBObject) beanProxy;
-					}
-				};
+				return getSessionHandle();
 			} else if (method.getName().equals("isIdentical")) {
-				return handleIsIdenticalMethod(beanProxy, method, args);
+				return handleIsIdenticalMethod(beanProxy, plan, args);
 			} else if (method.getName().equals("remove")) {
-				callRemoveOnBean();
+				callRemoveOnBean(plan);
 			} else {
 				throw new UnsupportedOperationException(method.toString());
 			}
@@ -138,16 +379,18 @@ public class SessionBeanProxyBuilder {
 		}
 
 		private boolean isStateless() {
-			return ejbMetadata.getType().equals(BEAN_TYPE.Stateless);
+			return invocationPlans.ejbMetadata.getType().equals(BEAN_TYPE.Stateless);
 		}
 
-		private Object handleEJBLocalObjectMethods(Object beanProxy, Method method, Object[] args) throws Exception {
+		private Object handleEJBLocalObjectMethods(Object beanProxy, MethodInvocationPlan plan, Object[] args) throws Exception {
+			Method method = plan.method;
+
 			if (method.getName().equals("getEJBLocalHome")) {
-				return homeProxy;
+				return invocationPlans.homeProxy;
 			} else if (method.getName().equals("remove")) {
-				callRemoveOnBean();
+				callRemoveOnBean(plan);
 			} else if (method.getName().equals("isIdentical")) {
-				return handleIsIdenticalMethod(beanProxy, method, args);
+				return handleIsIdenticalMethod(beanProxy, plan, args);
 			} else {
 				throw new UnsupportedOperationException(method.toString());
 			}
@@ -155,14 +398,14 @@ public class SessionBeanProxyBuilder {
 			return null;
 		}
 
-		private Object handleIsIdenticalMethod(Object beanProxy, Method m, Object[] args) {
+		private Object handleIsIdenticalMethod(Object beanProxy, MethodInvocationPlan plan, Object[] args) {
 			try {
-				if (ejbMetadata.isStateless()) {
+				if (invocationPlans.ejbMetadata.isStateless()) {
 					/*
 					 EJB spec 6.9.2
 					 todos os EJBs stateless criados pela mesma home sempre serão idênticos, independente de instância do SessionBean
 					 */
-					return homeProxy == (ejbMetadata.isLocalObjectInterface(m) ? ((EJBLocalObject) args[0]).getEJBLocalHome() : ((EJBObject) args[0]).getEJBHome());
+					return invocationPlans.homeProxy == (plan.localIntf ? ((EJBLocalObject) args[0]).getEJBLocalHome() : ((EJBObject) args[0]).getEJBHome());
 				}
 
 					/*
@@ -177,49 +420,323 @@ public class SessionBeanProxyBuilder {
 			}
 		}
 
-		private void callRemoveOnBean() throws Exception {
+		private void callRemoveOnBean(MethodInvocationPlan plan) throws Exception {
 			if (isStateless()) {
 				LOGGER.debug("ignoring remove() call on stateless bean");
 			} else {//Stateful
 				try {
-					//Segundo a especificação EJB 2.x a chamada a ejbRemove() é feita em um contexto não transacional.
-					beanDelegate.getClass().getMethod("ejbRemove").invoke(beanDelegate);
+					synchronized (this) {
+						if (removed) {
+							throw noSuchObject(plan);
+						}
+
+						SessionBean bean = getActiveInstance();
+
+						rollbackBeanTransaction("removed");
+
+						//Segundo a especificação EJB 2.x a chamada a ejbRemove() é feita em um contexto não transacional.
+						bean.getClass().getMethod("ejbRemove").invoke(bean);
+
+						removed = true;
+						invocationPlans.ejbMetadata.getStatefulSessionStatistics().sessionRemoved();
+						endSession();
+					}
 				} catch (NoSuchMethodException e) {
-					throw new IllegalStateException("No ejbRemove() method found on '" + ejbMetadata.getName() + ".");
+					throw new IllegalStateException("No ejbRemove() method found on '" + invocationPlans.ejbMetadata.getName() + ".");
 				}
 			}
 		}
 
+		/**
+		 * Stateful bean instance, activated if it was passivated or restored from a snapshot
+		 */
+		private SessionBean getActiveInstance() throws Exception {
+			SessionBean bean = beanDelegate;
+
+			if (bean == null && (passivation != null || restoredState != null)) {
+				//concurrent Read methods may get here together
+				synchronized (this) {
+					bean = beanDelegate;
+
+					if (bean == null) {
+						bean = restoredState != null ? activateRestored() : passivation.getPassivator().activate(passivation, new SessionContextImpl(invocationPlans.homeProxy, beanProxy, invocationPlans.ejbMetadata), beanProxy);
+						beanDelegate = bean;
+					}
+				}
+			}
+
+			return bean;
+		}
+
+		private SessionBean activateRestored() throws Exception {
+			SessionBean bean;
+
+			try {
+				bean = restoredState.restore(new SessionContextImpl(invocationPlans.homeProxy, beanProxy, invocationPlans.ejbMetadata), invocationPlans.ejbMetadata);
+				bean.ejbActivate();
+			} catch (Exception e) {
+				//the session can't be used without its state
+				removed = true;
+				restoredState = null;
+				invocationPlans.ejbMetadata.getStatefulSessionStatistics().sessionRemoved();
+				endSession();
+
+				throw new IllegalStateException("Stateful session of '" + invocationPlans.ejbMetadata.getName() + "' can't be restored from snapshot", e);
+			}
+
+			restoredState = null;
+
+			return bean;
+		}
+
+		@Override
+		public long getLastAccess() {
+			return lastAccess;
+		}
+
+		@Override
+		public boolean passivate(long lastAccess) {
+			Lock lock = lock().writeLock();
+
+			//a busy session isn't idle
+			if (!lock.tryLock()) {
+				return false;
+			}
+
+			try {
+				synchronized (this) {
+					SessionBean bean = beanDelegate;
+
+					//instances in a transaction aren't passivated
+					if (bean == null || beanTransaction != null || this.lastAccess != lastAccess || !passivation.getPassivator().passivate(passivation, bean, beanProxy)) {
+						return false;
+					}
+
+					beanDelegate = null;
+					return true;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * EJB spec (7.6) determines that calls on removed sessions must fail with NoSuchObjectException (remote) or
+		 * NoSuchObjectLocalException (local)
+		 */
+		private Exception noSuchObject(MethodInvocationPlan plan) {
+			String message = "Stateful session of '" + invocationPlans.ejbMetadata.getName() + "' was removed";
+
+			return plan.localIntf ? new NoSuchObjectLocalException(message) : new NoSuchObjectException(message);
+		}
+
+		@Override
+		public long getExpiryDeadline() {
+			return removed ? 0 : lastAccess + invocationPlans.ejbMetadata.getSessionTimeout();
+		}
+
+		@Override
+		public EJBContainer getEjbContainer() {
+			return invocationPlans.ejbMetadata.getEjbContainer();
+		}
+
+		@Override
+		public boolean expire() {
+			Lock lock = lock().writeLock();
+
+			if (!lock.tryLock()) {
+				return false;
+			}
+
+			try {
+				synchronized (this) {
+					//sessions of a container that shut down are left as they are
+					if (removed || getEjbContainer().getContainerStatus() == EJBContainer.ContainerStatus.SHUT_DOWN) {
+						return true;
+					}
+
+					if (getExpiryDeadline() > System.currentTimeMillis()) {
+						return false;
+					}
+
+					removed = true;
+					invocationPlans.ejbMetadata.getStatefulSessionStatistics().sessionExpired();
+
+					SessionBean bean = beanDelegate;
+					beanDelegate = null;
+					restoredState = null;
+					endSession();
+					rollbackBeanTransaction("expired");
+
+					//EJB spec (7.6.3): passivated instances are just discarded, without ejbRemove()
+					if (bean != null) {
+						try {
+							bean.ejbRemove();
+						} catch (Exception e) {
+							LOGGER.warn("ejbRemove() failed on expired session of '" + invocationPlans.ejbMetadata.getName() + "': " + e.getMessage());
+						}
+					}
+
+					return true;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Rolls back the transaction a bean-managed transaction session left open, as the session is gone
+		 */
+		private void rollbackBeanTransaction(String reason) {
+			Transaction tx = beanTransaction;
+
+			if (tx == null) {
+				return;
+			}
+
+			beanTransaction = null;
+			LOGGER.warn("Stateful session of '" + invocationPlans.ejbMetadata.getName() + "' " + reason + " with an open transaction. Transaction rolled back.");
+
+			try {
+				tx.rollback();
+			} catch (Exception e) {
+				LOGGER.warn("Rollback of transaction left by session of '" + invocationPlans.ejbMetadata.getName() + "' failed: " + e.getMessage());
+			}
+		}
+
 		@Override
 		public void setDelegationInstance(SessionBean bean) {
 			this.beanDelegate = bean;
+			this.lastAccess = System.currentTimeMillis();
+
+			if (!invocationPlans.ejbMetadata.isStateless()) {
+				if (invocationPlans.ejbMetadata.getEjbContainer().getSessionSnapshotFile() != null) {
+					//sessions of a container that takes snapshots are registered since creation
+					sessionId = UUID.randomUUID().toString();
+				}
+
+				startSession();
+			}
+		}
+
+		private void startSession() {
+			invocationPlans.ejbMetadata.getStatefulSessionStatistics().sessionCreated();
+
+			if (sessionId != null) {
+				invocationPlans.ejbMetadata.getStatefulSessionRegistry().register(sessionId, this);
+			}
+
+			if (StatefulPassivator.isEnabled(invocationPlans.ejbMetadata.getEjbContainer())) {
+				passivation = StatefulPassivator.get(invocationPlans.ejbMetadata.getEjbContainer()).register(this);
+			}
+
+			if (invocationPlans.ejbMetadata.getSessionTimeout() > 0) {
+				SessionReaper.schedule(this);
+			}
+		}
+
+		/**
+		 * removed or expired session leaves the registry and the passivator
+		 */
+		private void endSession() {
+			if (sessionId != null) {
+				invocationPlans.ejbMetadata.getStatefulSessionRegistry().unregister(sessionId);
+			}
+
+			if (passivation != null) {
+				passivation.getPassivator().unregister(passivation);
+			}
 		}
 
 		@Override
-		public void setBeanInstancePool(BeanInstancePool pool) {
-			this.beanInstancePool = pool;
+		public synchronized SessionHandle getSessionHandle() {
+			String homeJndiName = ((IEJBHome) invocationPlans.homeProxy).getJndiName();
+
+			if (invocationPlans.ejbMetadata.isStateless()) {
+				return new SessionHandle(homeJndiName, null);
+			}
+
+			if (sessionId == null && !removed) {
+				sessionId = UUID.randomUUID().toString();
+				invocationPlans.ejbMetadata.getStatefulSessionRegistry().register(sessionId, this);
+			}
+
+			return new SessionHandle(homeJndiName, sessionId);
+		}
+
+		@Override
+		public Object getProxy() {
+			return beanProxy;
+		}
+
+		@Override
+		public boolean writeSnapshot(SessionSnapshot.Writer writer) throws Exception {
+			Lock lock = lock().writeLock();
+
+			//the container is shutting down, so running calls are the last ones
+			if (!lock.tryLock(invocationPlans.ejbMetadata.getEjbContainer().getConcurrentCallWaitTimeout(), TimeUnit.MILLISECONDS)) {
+				return false;
+			}
+
+			try {
+				synchronized (this) {
+					if (removed) {
+						return false;
+					}
+
+					if (beanTransaction != null) {
+						//the transaction can't outlive the container
+						LOGGER.warn("Stateful session of '" + invocationPlans.ejbMetadata.getName() + "' left out of the snapshot, as it's in a transaction");
+						return false;
+					}
+
+					long idleTime = System.currentTimeMillis() - lastAccess;
+
+					if (restoredState != null) {
+						//never called since restored, so its state goes as it came
+						writer.copy(restoredState, restoredState.getIdleTime());
+						return true;
+					}
+
+					SessionBean bean = getActiveInstance();
+
+					bean.ejbPassivate();
+					writer.write(invocationPlans.ejbMetadata, sessionId, invocationPlans.methodIntf.equals(METHOD_INTF.Local), idleTime, bean);
+
+					return true;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void setInstanceProvider(IBeanInstanceProvider instanceProvider) {
+			invocationPlans.instanceProvider = instanceProvider;
 		}
 	}
 
+	/**
+	 * A stage of the method call chain. Stages are immutable and shared by all proxies of the same bean interface,
+	 * so any per-proxy state must be reached through the proxy handler passed on each call.
+	 */
 	private static interface MethodChain {
-		void setNext(MethodChain next);
-
-		Object call(SessionBean instance, Method m, Object[] args) throws Throwable;
+		Object call(SessionEJBProxy beanProxyHnd, SessionBean instance, Object[] args) throws Throwable;
 	}
 
 	private static class MethodCaller implements MethodChain {
-		private EJBMetadata ejbmd;
+		private final MethodInvocationPlan plan;
 
-		public MethodCaller(EJBMetadata ejbmd) {
-			this.ejbmd = ejbmd;
+		public MethodCaller(MethodInvocationPlan plan) {
+			this.plan = plan;
 		}
 
 		@Override
-		public Object call(SessionBean instance, Method m, Object[] args) throws Throwable {
+		public Object call(SessionEJBProxy beanProxyHnd, SessionBean instance, Object[] args) throws Throwable {
 			try {
-				return instance.getClass().getMethod(m.getName(), m.getParameterTypes()).invoke(instance, args);
+				return plan.invoker.invoke(instance, args);
 			} catch (InvocationTargetException e) {
-				if (!(e instanceof Exception) && !ejbmd.isLocalObjectInterface(m)) {
+				if (!(e instanceof Exception) && !plan.localIntf) {
 					EJBException re = new EJBException();
 					re.initCause(e.getTargetException());
 					throw re;
@@ -227,29 +744,22 @@ public class SessionBeanProxyBuilder {
 				throw e.getTargetException();
 			}
 		}
-
-		@Override
-		public void setNext(MethodChain next) {
-		}
-
 	}
 
 	private static class TransactionWrapper implements MethodChain {
-		private MethodChain next;
-		private EJBMetadata ejbMetadata;
+		private final MethodChain next;
+		private final EJBMetadata ejbMetadata;
+		private final MethodInvocationPlan plan;
 
-		public TransactionWrapper(EJBMetadata ejbMetadata) {
+		public TransactionWrapper(EJBMetadata ejbMetadata, MethodInvocationPlan plan, MethodChain next) {
 			this.ejbMetadata = ejbMetadata;
-		}
-
-		@Override
-		public void setNext(MethodChain next) {
+			this.plan = plan;
 			this.next = next;
 		}
 
 		@Override
-		public Object call(SessionBean beanInstance, Method m, Object[] args) throws Throwable {
-			boolean wasNewTx = false;
+		public Object call(SessionEJBProxy beanProxyHnd, SessionBean beanInstance, Object[] args) throws Throwable {
+			Method m = plan.method;
 
 			TransactionManager txManager = ejbMetadata.getEjbContainer().getTransactionManager();
 
@@ -257,102 +767,165 @@ public class SessionBeanProxyBuilder {
 				throw new IllegalStateException("No JTA TransactionManager configured");
 			}
 
+			//the transaction of the caller is known by the invocation context on nested calls, so only the outermost call asks the TM
+			InvocationContext ctx = InvocationContext.current();
+			ctx.enter();
+
+			long callerDeadline = ctx.getDeadline();
+			Transaction callerTx = null;
 			Transaction suspendedTx = null;
+			//transaction started by this call
 			Transaction tx = null;
+			boolean restored = false;
 
 			try {
-				EJBMethodTransactionInfo mti = ejbMetadata.getTransactionInfoForMethod(m);
-
-				TRANSACTION_TYPE txType = mti != null ? mti.getTxType() : ejbMetadata.getDefaultTxType();
-
-				switch (txType) {
-					case Required:
-						Transaction currentTx = txManager.getTransaction();
-						if (currentTx == null) {
-							txManager.begin();
-							wasNewTx = true;
-						} else if (currentTx.getStatus() != Status.STATUS_ACTIVE) {
-							throw new IllegalStateException("There is a Transaction associated to this Thread, but it is not active: " + m.toString());
-						}
+				callerTx = ctx.getTransaction(txManager);
+
+				try {
+					switch (plan.txType) {
+						case Required:
+							if (callerTx == null) {
+								tx = ctx.begin(txManager, plan.txTimeout);
+							} else {
+								assertWithinDeadline(ctx, callerTx);
 
-						break;
-					case RequiresNew:
-						suspendedTx = txManager.suspend();
-						txManager.begin();
-						wasNewTx = true;
+								if (callerTx.getStatus() != Status.STATUS_ACTIVE) {
+									throw new IllegalStateException("There is a Transaction associated to this Thread, but it is not active: " + m.toString());
+								}
+							}
 
-						break;
-					case Mandatory:
-						tx = txManager.getTransaction();
+							break;
+						case RequiresNew:
+							suspendedTx = suspend(txManager, ctx, callerTx);
+							tx = ctx.begin(txManager, plan.txTimeout);
+
+							break;
+						case Mandatory:
+							if (callerTx == null) {
+								if (plan.localIntf) {
+									throw new TransactionRequiredLocalException("Transaction is required for this method: " + m.toString());
+								} else {
+									throw new TransactionRequiredException("Transaction is required for this method: " + m.toString());
+								}
+							}
 
-						if (tx == null) {
-							if (ejbMetadata.isLocalObjectInterface(m)) {
-								throw new TransactionRequiredLocalException("Transaction is required for this method: " + m.toString());
-							} else {
-								throw new TransactionRequiredException("Transaction is required for this method: " + m.toString());
+							assertWithinDeadline(ctx, callerTx);
+							break;
+						case NotSupported:
+							suspendedTx = suspend(txManager, ctx, callerTx);
+							break;
+						case Supports:
+							if (callerTx != null) {
+								assertWithinDeadline(ctx, callerTx);
 							}
-						}
-						break;
-					case NotSupported:
-						suspendedTx = txManager.suspend();
-						break;
-					case Supports:
-						break; //nada a fazer neste caso
-
-					case Never:
-						tx = txManager.getTransaction();
-
-						if (tx != null) {
-							if (ejbMetadata.isLocalObjectInterface(m)) {
-								throw new EJBException("Transaction is not allowed for this method: " + m.toString());
-							} else {
-								throw new RemoteException("Transaction is not allowed for this method: " + m.toString());
+							break;
+
+						case Never:
+							if (callerTx != null) {
+								if (plan.localIntf) {
+									throw new EJBException("Transaction is not allowed for this method: " + m.toString());
+								} else {
+									throw new RemoteException("Transaction is not allowed for this method: " + m.toString());
+								}
 							}
-						}
-						break;
-					default:
-						break;
-				}
+							break;
+						default:
+							break;
+					}
 
-				if (wasNewTx) {
-					if (beanInstance instanceof SessionSynchronization) {
-						if (ejbMetadata.isStateless()) {
-							throw new IllegalStateException("Stateless Session Bean spec violation (cap.7.11.2). Can not implements javax.ejb.SessionSynchronization");
+					if (tx != null) {
+						if (beanInstance instanceof SessionSynchronization) {
+							if (ejbMetadata.isStateless()) {
+								throw new IllegalStateException("Stateless Session Bean spec violation (cap.7.11.2). Can not implements javax.ejb.SessionSynchronization");
+							}
+							((SessionSynchronization) beanInstance).afterBegin();
+							tx.registerSynchronization(new SessionSynchronizationImpl(beanInstance));
 						}
-						((SessionSynchronization) beanInstance).afterBegin();
-						txManager.getTransaction().registerSynchronization(new SessionSynchronizationImpl(beanInstance));
 					}
-				}
 
-				return next.call(beanInstance, m, args);
-			} catch (RuntimeException re) {
-				if (wasNewTx) {
-					assertRollbackOnly(txManager);
+					return next.call(beanProxyHnd, beanInstance, args);
+				} catch (RuntimeException re) {
+					if (tx != null) {
+						assertRollbackOnly(tx);
+					}
+					throw re;
+				} finally {
+					if (tx != null) {
+						endTransaction(txManager, ctx, tx);
+					}
+
+					if (suspendedTx != null) {
+						txManager.resume(suspendedTx);
+					}
+
+					restored = true;
 				}
-				throw re;
 			} finally {
-				if (wasNewTx) {
-					endTransaction(txManager);
-				}
+				ctx.exit(callerTx, callerDeadline, restored);
+			}
+		}
 
-				if (suspendedTx != null) {
-					txManager.resume(suspendedTx);
-				}
+		/**
+		 * Fails a call that joins a transaction past its deadline, marking it for rollback: the work of the call would be rolled
+		 * back anyway, so it's not done at all
+		 */
+		private void assertWithinDeadline(InvocationContext ctx, Transaction callerTx) throws Exception {
+			if (ctx.getRemainingTime() > 0) {
+				return;
+			}
+
+			if (callerTx.getStatus() == Status.STATUS_ACTIVE) {
+				callerTx.setRollbackOnly();
+			}
+
+			String message = "Transaction timed out before the call to method: " + plan.method.toString();
+
+			if (plan.localIntf) {
+				throw new TransactionRolledbackLocalException(message);
+			} else {
+				throw new TransactionRolledbackException(message);
 			}
 		}
 
-		private void assertRollbackOnly(TransactionManager txManager) throws Exception {
-			Transaction tx = txManager.getTransaction();
-			if (tx != null && tx.getStatus() != Status.STATUS_MARKED_ROLLBACK) {
+		/**
+		 * suspends the transaction of the caller, if there is one
+		 */
+		private Transaction suspend(TransactionManager txManager, InvocationContext ctx, Transaction callerTx) throws Exception {
+			if (callerTx == null) {
+				return null;
+			}
+
+			Transaction suspendedTx = txManager.suspend();
+			ctx.setTransaction(txManager, null);
+
+			return suspendedTx;
+		}
+
+		private void assertRollbackOnly(Transaction tx) throws Exception {
+			if (tx.getStatus() != Status.STATUS_MARKED_ROLLBACK) {
 				LOGGER.debug("System exception, so transaction will rollback!");
 				tx.setRollbackOnly();
 			}
 		}
 
-		private void endTransaction(TransactionManager txManager) throws Exception {
-			Transaction tx = txManager.getTransaction();
+		/**
+		 * Ends the transaction begun by this call. While the context knows it's bound to the thread, as it is unless a nested commit
+		 * or resume failed, the TransactionManager ends it and unbinds it from the thread at once, so there is nothing to suspend
+		 */
+		private void endTransaction(TransactionManager txManager, InvocationContext ctx, Transaction tx) throws Exception {
+			boolean rollback = tx.getStatus() == Status.STATUS_MARKED_ROLLBACK;
+
+			if (ctx.isTransaction(txManager, tx)) {
+				if (rollback) {
+					txManager.rollback();
+				} else {
+					txManager.commit();
+				}
+
+				return;
+			}
 
-			if (tx.getStatus() == Status.STATUS_MARKED_ROLLBACK) {
+			if (rollback) {
 				tx.rollback();
 			} else {
 				tx.commit();
@@ -363,50 +936,326 @@ public class SessionBeanProxyBuilder {
 	}
 
 	/**
-	 * Method call serializer for Stateful beans
+	 * Transaction stage of bean-managed transaction beans, that demarcate their own transactions with the UserTransaction of
+	 * their SessionContext. The transaction of the caller is never propagated: it's suspended while the bean runs.
+	 *
+	 * EJB spec (17.6.1): stateless beans must complete their transactions before the method returns, so a transaction left open
+	 * is rolled back, the call fails and the instance is discarded. Stateful beans may keep one across calls: it's suspended when the method returns, and
+	 * resumed on the next call to the session.
+	 */
+	private static class BeanManagedTransactionWrapper implements MethodChain {
+		private final MethodChain next;
+		private final EJBMetadata ejbMetadata;
+		private final MethodInvocationPlan plan;
+
+		public BeanManagedTransactionWrapper(EJBMetadata ejbMetadata, MethodInvocationPlan plan, MethodChain next) {
+			this.ejbMetadata = ejbMetadata;
+			this.plan = plan;
+			this.next = next;
+		}
+
+		@Override
+		public Object call(SessionEJBProxy beanProxyHnd, SessionBean beanInstance, Object[] args) throws Throwable {
+			TransactionManager txManager = ejbMetadata.getEjbContainer().getTransactionManager();
+
+			if (txManager == null) {
+				throw new IllegalStateException("No JTA TransactionManager configured");
+			}
+
+			IBeanInstanceProvider instanceProvider = null;
+
+			if (ejbMetadata.isStateless()) {
+				//acquired here, so an instance that leaves a transaction open is discarded instead of released
+				instanceProvider = beanProxyHnd.invocationPlans.instanceProvider;
+				beanInstance = instanceProvider.acquire();
+			}
+
+			InvocationContext ctx = InvocationContext.current();
+			ctx.enter();
+
+			long callerDeadline = ctx.getDeadline();
+			Transaction callerTx = null;
+			Transaction suspendedTx = null;
+			boolean restored = false;
+			boolean leftOpen = false;
+
+			try {
+				callerTx = ctx.getTransaction(txManager);
+
+				if (callerTx != null) {
+					suspendedTx = txManager.suspend();
+					ctx.setTransaction(txManager, null);
+				}
+
+				try {
+					Transaction beanTx = beanProxyHnd.beanTransaction;
+
+					if (beanTx != null) {
+						beanProxyHnd.beanTransaction = null;
+						txManager.resume(beanTx);
+						ctx.setTransaction(txManager, beanTx);
+					}
+
+					Object result;
+
+					try {
+						result = next.call(beanProxyHnd, beanInstance, args);
+					} catch (Throwable e) {
+						//the method's exception reaches the caller, instead of the one for the open transaction
+						leftOpen = endCall(beanProxyHnd, txManager);
+						throw e;
+					}
+
+					leftOpen = endCall(beanProxyHnd, txManager);
+
+					if (leftOpen) {
+						String message = "Stateless bean '" + ejbMetadata.getName() + "' must complete the transaction it began before method '" + plan.method.getName() + "' returns. Transaction rolled back.";
+
+						if (plan.localIntf) {
+							throw new EJBException(message);
+						} else {
+							throw new RemoteException(message);
+						}
+					}
+
+					return result;
+				} finally {
+					if (suspendedTx != null) {
+						txManager.resume(suspendedTx);
+					}
+
+					restored = true;
+				}
+			} finally {
+				ctx.exit(callerTx, callerDeadline, restored);
+
+				if (instanceProvider != null) {
+					if (leftOpen) {
+						instanceProvider.discard(beanInstance);
+					} else {
+						instanceProvider.release(beanInstance);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Takes the transaction the bean left on the thread, if any: a stateful session keeps it for its next call, while a stateless
+		 * instance has it rolled back
+		 *
+		 * @return true if a stateless instance left a transaction open
+		 */
+		private boolean endCall(SessionEJBProxy beanProxyHnd, TransactionManager txManager) throws Exception {
+			//asks the TM, as the bean may have demarcated its transaction without the container's UserTransaction
+			Transaction tx = txManager.getTransaction();
+
+			if (tx == null) {
+				return false;
+			}
+
+			if (isCompleted(tx.getStatus())) {
+				//some TMs keep completed transactions bound to the thread
+				txManager.suspend();
+				return false;
+			}
+
+			if (!ejbMetadata.isStateless()) {
+				beanProxyHnd.beanTransaction = txManager.suspend();
+				return false;
+			}
+
+			LOGGER.error("Stateless bean '" + ejbMetadata.getName() + "' must complete the transaction it began before method '" + plan.method.getName() + "' returns. Transaction rolled back, and the instance discarded.");
+
+			try {
+				txManager.rollback();
+			} finally {
+				txManager.suspend();
+			}
+
+			return true;
+		}
+
+		private boolean isCompleted(int status) {
+			return status == Status.STATUS_COMMITTED || status == Status.STATUS_ROLLEDBACK || status == Status.STATUS_NO_TRANSACTION;
+		}
+	}
+
+	/**
+	 * Instance source for stateless beans with transaction affinity: calls on a transaction use the instance pinned to it, and
+	 * calls without a transaction borrow one from the instance provider, as usual.
+	 */
+	private static class TransactionAffinityWrapper implements MethodChain {
+		private final MethodChain next;
+		private final EJBMetadata ejbMetadata;
+
+		public TransactionAffinityWrapper(EJBMetadata ejbMetadata, MethodChain next) {
+			this.ejbMetadata = ejbMetadata;
+			this.next = next;
+		}
+
+		@Override
+		public Object call(SessionEJBProxy beanProxyHnd, SessionBean instance, Object[] args) throws Throwable {
+			//known by the invocation context, as the transaction wrapper just ran
+			Transaction tx = InvocationContext.current().getTransaction(ejbMetadata.getEjbContainer().getTransactionManager());
+
+			if (tx != null) {
+				TransactionAffinity.PinnedInstance pinned = ejbMetadata.getTransactionAffinity().claim(tx);
+
+				if (pinned != null) {
+					try {
+						return next.call(beanProxyHnd, pinned.getBean(), args);
+					} finally {
+						pinned.unclaim();
+					}
+				}
+			}
+
+			IBeanInstanceProvider instanceProvider = beanProxyHnd.invocationPlans.instanceProvider;
+			SessionBean beanInstance = instanceProvider.acquire();
+
+			try {
+				return next.call(beanProxyHnd, beanInstance, args);
+			} finally {
+				instanceProvider.release(beanInstance);
+			}
+		}
+	}
+
+	/**
+	 * Method call serializer for Stateful beans.
+	 * Methods declared with Read lock-type (container-concurrency) run concurrently with each other, but never with other methods.
+	 * 
+	 * On beans that implement SessionSynchronization, a Read method that begins a transaction (Required, called with no transaction)
+	 * takes the write lock instead, as concurrent transactions on the same instance would interleave its callbacks. The caller's
+	 * transaction is kept by the invocation context for the transaction stage, so it's not asked twice. RequiresNew methods, and all
+	 * methods of bean-managed transaction beans, are Write anyway (see MethodInvocationPlan).
 	 * 
 	 * @author Cláudio Gualberto
 	 * 20/09/2014
 	 *
 	 */
 	private static class StatefulSerializerWrapper implements MethodChain {
-		private MethodChain next;
-		private EJBMetadata ejbmd;
-		private SessionEJBProxy beanProxyHnd;
+		//milliseconds to wait before checking again a cycle not confirmed by the locks
+		private static final long CYCLE_CONFIRMATION_DELAY = 50;
 
-		public StatefulSerializerWrapper(SessionEJBProxy beanProxyHnd, EJBMetadata ejbmd) {
-			this.beanProxyHnd = beanProxyHnd;
+		private final MethodChain next;
+		private final EJBMetadata ejbmd;
+		private final MethodInvocationPlan plan;
+
+		public StatefulSerializerWrapper(EJBMetadata ejbmd, MethodInvocationPlan plan, MethodChain next) {
 			this.ejbmd = ejbmd;
+			this.plan = plan;
+			this.next = next;
 		}
 
 		@Override
-		public void setNext(MethodChain next) {
-			this.next = next;
+		public Object call(SessionEJBProxy beanProxyHnd, SessionBean instance, Object[] args) throws Throwable {
+			Method m = plan.method;
+			StatefulSessionLock rwLock = beanProxyHnd.lock();
+
+			if (rwLock.isWriteLockedByCurrentThread() || rwLock.getReadHoldCount() > 0) {
+				//the session would wait for itself
+				throw new IllegalStateException("Loopback call to method '" + m.getName() + "' on Statefull bean '" + ejbmd.getName() + "', from a call running on the same thread.");
+			}
+
+			if (!plan.writeLockToBeginTransaction) {
+				return callWithLock(beanProxyHnd, rwLock, plan.lockType == LOCK_TYPE.Read ? rwLock.readLock() : rwLock.writeLock(), args);
+			}
+
+			try {
+				return callWithLock(beanProxyHnd, rwLock, beginsTransaction() ? rwLock.writeLock() : rwLock.readLock(), args);
+			} finally {
+				//the transaction stage wasn't reached if the session wasn't taken
+				InvocationContext.current().forgetIfOutside();
+			}
 		}
 
-		@Override
-		public Object call(SessionBean instance, Method m, Object[] args) throws Throwable {
-			//this avoids the known 'No cuncorrent call on Stateful beans' from JBoss
-			synchronized (beanProxyHnd.statefulMethodLock) {
-				long start = System.currentTimeMillis();
+		private Object callWithLock(SessionEJBProxy beanProxyHnd, StatefulSessionLock rwLock, Lock lock, Object[] args) throws Throwable {
+			Method m = plan.method;
 
-				while (beanProxyHnd.statefulMethodLock[0] != null) {
-					if (System.currentTimeMillis() - start > ejbmd.getEjbContainer().getConcurrentCallWaitTimeout()) {
-						throw new IllegalStateException("Timeout waiting for method call on Statefull bean. Method using the instance: '" + beanProxyHnd.statefulMethodLock[0].getName() + "'");
-					}
-					LOGGER.debug(m.getName() + " waiting for " + beanProxyHnd.statefulMethodLock[0].getName());
-					beanProxyHnd.statefulMethodLock.wait(1000);
+			//this avoids the known 'No cuncorrent call on Stateful beans' from JBoss
+			try {
+				//a timed tryLock honors the fairness, so an idle session is taken at once, while a busy one queues the call
+				if (lock.tryLock(0, TimeUnit.NANOSECONDS)) {
+					rwLock.addHolder(Thread.currentThread(), m);
+				} else {
+					waitForSession(rwLock, lock, m);
 				}
-				beanProxyHnd.statefulMethodLock[0] = m;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for method call on Statefull bean '" + ejbmd.getName() + "'", e);
 			}
+
+			ejbmd.getStatefulLockStatistics().acquired();
+
 			try {
-				return next.call(instance, m, args);
+				if (beanProxyHnd.removed) {
+					throw beanProxyHnd.noSuchObject(plan);
+				}
+
+				beanProxyHnd.lastAccess = System.currentTimeMillis();
+
+				//a passivated session is activated now, as no passivation runs while the session is locked
+				return next.call(beanProxyHnd, beanProxyHnd.getActiveInstance(), args);
 			} finally {
+				//idle time counts from the end of the call, so a long call doesn't leave the session about to expire
+				beanProxyHnd.lastAccess = System.currentTimeMillis();
 				waitRandomly();
-				synchronized (beanProxyHnd.statefulMethodLock) {
-					beanProxyHnd.statefulMethodLock[0] = null;
-					beanProxyHnd.statefulMethodLock.notifyAll();
+				rwLock.removeHolder(Thread.currentThread());
+				lock.unlock();
+			}
+		}
+
+		private boolean beginsTransaction() throws SystemException {
+			TransactionManager txManager = ejbmd.getEjbContainer().getTransactionManager();
+
+			return txManager == null || InvocationContext.current().peekTransaction(txManager) == null;
+		}
+
+		private void waitForSession(StatefulSessionLock session, Lock lock, Method m) throws InterruptedException {
+			StatefulLockStatistics stats = ejbmd.getStatefulLockStatistics();
+			Method holder = session.getHolderMethod();
+			String holderName = holder != null ? holder.getName() : null;
+
+			LOGGER.debug(m.getName() + " waiting for " + holderName);
+			stats.waitStarted(holderName, session.getQueueLength() + 1);
+
+			long timeout = plan.accessTimeout >= 0 ? plan.accessTimeout : ejbmd.getEjbContainer().getConcurrentCallWaitTimeout();
+			long start = System.nanoTime();
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+			boolean acquired = false;
+
+			StatefulWaitGraph.Wait wait = StatefulWaitGraph.startWaiting(session, m);
+
+			try {
+				StatefulWaitGraph.CYCLE cycle = StatefulWaitGraph.checkCycle(wait);
+
+				if (cycle == StatefulWaitGraph.CYCLE.Unconfirmed) {
+					//some thread on the cycle is just starting or ending its wait, so it's checked again once it settles
+					acquired = lock.tryLock(Math.min(CYCLE_CONFIRMATION_DELAY, timeout), TimeUnit.MILLISECONDS);
+
+					if (!acquired) {
+						cycle = StatefulWaitGraph.checkCycle(wait);
+					}
 				}
+
+				if (cycle == StatefulWaitGraph.CYCLE.Confirmed) {
+					stats.deadlockDetected();
+					throw new IllegalStateException("Deadlock between Statefull sessions: " + wait.getCycleDescription());
+				}
+
+				if (!acquired) {
+					acquired = lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				}
+			} finally {
+				StatefulWaitGraph.stopWaiting(wait, acquired);
+				stats.waitEnded(System.nanoTime() - start);
+			}
+
+			if (!acquired) {
+				stats.timedOut();
+				holder = session.getHolderMethod();
+				throw new IllegalStateException("Timeout waiting for method call on Statefull bean. Method using the instance: '" + (holder != null ? holder.getName() : holderName) + "'");
 			}
 		}
 
@@ -424,6 +1273,55 @@ public class SessionBeanProxyBuilder {
 		}
 	}
 
+	/**
+	 * Container-managed concurrency for singleton stateless beans: Read methods share the bean instance, 
+	 * while Write methods run alone on it.
+	 */
+	private static class SingletonConcurrencyWrapper implements MethodChain {
+		private final MethodChain next;
+		private final EJBMetadata ejbmd;
+		private final MethodInvocationPlan plan;
+
+		public SingletonConcurrencyWrapper(EJBMetadata ejbmd, MethodInvocationPlan plan, MethodChain next) {
+			this.ejbmd = ejbmd;
+			this.plan = plan;
+			this.next = next;
+		}
+
+		@Override
+		public Object call(SessionEJBProxy beanProxyHnd, SessionBean instance, Object[] args) throws Throwable {
+			ReentrantReadWriteLock rwLock = ((SingletonInstanceProvider) beanProxyHnd.invocationPlans.instanceProvider).getLock();
+			Lock lock;
+
+			if (plan.lockType == LOCK_TYPE.Read) {
+				lock = rwLock.readLock();
+			} else {
+				if (rwLock.getReadHoldCount() > 0) {
+					//read locks can't be upgraded, so this call would wait for itself
+					throw new IllegalStateException("Loopback call to Write method '" + plan.method.getName() + "' on singleton bean '" + ejbmd.getName() + "', from a Read method on the same thread.");
+				}
+				lock = rwLock.writeLock();
+			}
+
+			long timeout = plan.accessTimeout >= 0 ? plan.accessTimeout : ejbmd.getEjbContainer().getConcurrentCallWaitTimeout();
+
+			try {
+				if (!lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+					throw new IllegalStateException("Timeout (" + timeout + " ms) waiting for " + plan.lockType + " lock on singleton bean '" + ejbmd.getName() + "', method '" + plan.method.getName() + "'");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for " + plan.lockType + " lock on singleton bean '" + ejbmd.getName() + "'", e);
+			}
+
+			try {
+				return next.call(beanProxyHnd, instance, args);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
 	private static class SessionSynchronizationImpl implements Synchronization {
 		private SessionBean bean;
 
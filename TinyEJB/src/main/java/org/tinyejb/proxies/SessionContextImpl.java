@@ -15,22 +15,38 @@ import javax.transaction.Transaction;
 import javax.transaction.UserTransaction;
 import javax.xml.rpc.handler.MessageContext;
 
-import org.tinyejb.core.EJBContainer;
 import org.tinyejb.core.EJBMetadata;
 import org.tinyejb.core.EJBMetadata.TRANSACTION_MANAGED_BY;
 
 @SuppressWarnings("deprecation")
 public class SessionContextImpl implements SessionContext {
-	private Object homeProxy;
-	private Object beanProxy;
-	private EJBContainer ejbContainer;
-	private EJBMetadata ejbMetadata;
-
-	public SessionContextImpl(Object homeProxy, Object beanProxy, EJBContainer ejbContainer, EJBMetadata ejbMetadata) {
+	private final EJBMetadata ejbMetadata;
+	//shared views (stateless), or the home and bean proxies of a single session (stateful)
+	private final BeanViews views;
+	private final Object homeProxy;
+	private final Object beanProxy;
+	//built on first use, so the timeout the bean sets is kept for its next transactions
+	private volatile UserTransactionImpl userTransaction;
+
+	/**
+	 * Context of a stateful session, reached through the home that created it and its bean proxy.
+	 * There is one for each session, so it holds the proxies straight, with no BeanViews of its own.
+	 */
+	public SessionContextImpl(Object homeProxy, Object beanProxy, EJBMetadata ejbMetadata) {
+		this.ejbMetadata = ejbMetadata;
+		this.views = null;
 		this.homeProxy = homeProxy;
 		this.beanProxy = beanProxy;
-		this.ejbContainer = ejbContainer;
+	}
+
+	/**
+	 * Context bound to views that may be shared by many instances (i.e. pooled stateless instances, that serve local and remote clients)
+	 */
+	public SessionContextImpl(BeanViews views, EJBMetadata ejbMetadata) {
 		this.ejbMetadata = ejbMetadata;
+		this.views = views;
+		this.homeProxy = null;
+		this.beanProxy = null;
 	}
 
 	@Override
@@ -45,12 +61,12 @@ public class SessionContextImpl implements SessionContext {
 
 	@Override
 	public EJBHome getEJBHome() {
-		return (EJBHome) homeProxy;
+		return (EJBHome) BeanViews.get(views != null ? views.home : sessionView(homeProxy, false), "remote home");
 	}
 
 	@Override
 	public EJBLocalHome getEJBLocalHome() {
-		return (EJBLocalHome) homeProxy;
+		return (EJBLocalHome) BeanViews.get(views != null ? views.localHome : sessionView(homeProxy, true), "local home");
 	}
 
 	@Override
@@ -68,7 +84,7 @@ public class SessionContextImpl implements SessionContext {
 	public boolean getRollbackOnly() throws IllegalStateException {
 		assertContainerManagedTx("SessionContext.getRollbackOnly() not allowed for bean-managed transaction");
 		try {
-			Transaction tx = ejbContainer.getTransactionManager().getTransaction();
+			Transaction tx = InvocationContext.current().getTransaction(ejbMetadata.getEjbContainer().getTransactionManager());
 
 			if (tx != null) {
 				return tx.getStatus() == Status.STATUS_MARKED_ROLLBACK;
@@ -87,7 +103,18 @@ public class SessionContextImpl implements SessionContext {
 
 	@Override
 	public UserTransaction getUserTransaction() throws IllegalStateException {
-		throw new UnsupportedOperationException("getUserTransaction");
+		//EJB spec: only bean-managed transaction beans demarcate their own transactions
+		if (!ejbMetadata.getTxManagedBy().equals(TRANSACTION_MANAGED_BY.Bean)) {
+			throw new IllegalStateException("SessionContext.getUserTransaction() not allowed for container-managed transaction");
+		}
+
+		UserTransactionImpl result = userTransaction;
+
+		if (result == null) {
+			userTransaction = result = new UserTransactionImpl(ejbMetadata);
+		}
+
+		return result;
 	}
 
 	@Override
@@ -104,7 +131,7 @@ public class SessionContextImpl implements SessionContext {
 	public void setRollbackOnly() throws IllegalStateException {
 		assertContainerManagedTx("SessionContext.setRollbackOnly() not allowed for bean-managed transaction");
 		try {
-			Transaction tx = ejbContainer.getTransactionManager().getTransaction();
+			Transaction tx = InvocationContext.current().getTransaction(ejbMetadata.getEjbContainer().getTransactionManager());
 
 			if (tx != null) {
 				tx.setRollbackOnly();
@@ -118,12 +145,12 @@ public class SessionContextImpl implements SessionContext {
 
 	@Override
 	public EJBLocalObject getEJBLocalObject() throws IllegalStateException {
-		return (EJBLocalObject) beanProxy;
+		return (EJBLocalObject) BeanViews.get(views != null ? views.localObject : sessionView(beanProxy, true), "local interface");
 	}
 
 	@Override
 	public EJBObject getEJBObject() throws IllegalStateException {
-		return (EJBObject) beanProxy;
+		return (EJBObject) BeanViews.get(views != null ? views.remoteObject : sessionView(beanProxy, false), "remote interface");
 	}
 
 	@Override
@@ -131,4 +158,48 @@ public class SessionContextImpl implements SessionContext {
 		throw new UnsupportedOperationException("getMessageContext");
 	}
 
+	/**
+	 * true if this is the context of the stateful session with the given proxy
+	 */
+	boolean isContextOf(Object beanProxy) {
+		return views == null && this.beanProxy == beanProxy;
+	}
+
+	/**
+	 * a session is reached either by local or by remote interfaces, as its home
+	 */
+	private Object sessionView(Object proxy, boolean local) {
+		return (homeProxy instanceof EJBLocalHome) == local ? proxy : null;
+	}
+
+	/**
+	 * Home and bean proxies a bean instance can be reached through, for local and remote clients.
+	 */
+	public static class BeanViews {
+		private volatile Object localHome;
+		private volatile Object localObject;
+		private volatile Object home;
+		private volatile Object remoteObject;
+
+		/**
+		 * registers the bean proxy created by a (local or remote) home proxy
+		 */
+		public void register(Object homeProxy, Object beanProxy) {
+			if (homeProxy instanceof EJBLocalHome) {
+				this.localHome = homeProxy;
+				this.localObject = beanProxy;
+			} else {
+				this.home = homeProxy;
+				this.remoteObject = beanProxy;
+			}
+		}
+
+		private static Object get(Object view, String viewName) {
+			if (view == null) {
+				throw new IllegalStateException("Bean has no " + viewName + ".");
+			}
+			return view;
+		}
+	}
+
 }
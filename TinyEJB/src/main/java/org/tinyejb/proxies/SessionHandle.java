@@ -0,0 +1,90 @@
+package org.tinyejb.proxies;
+
+import java.rmi.RemoteException;
+
+import javax.ejb.EJBObject;
+import javax.ejb.Handle;
+
+import org.tinyejb.core.ResourceHolder;
+
+/**
+ * Serializable handle for a session bean: JNDI name of the home that created it and, for stateful beans, the session id.
+ *
+ * The session is looked up through the home every time, so a handle survives the container that created it: after a restart,
+ * it re-attaches to the session restored from a snapshot (see {@link SessionSnapshot}).
+ */
+public final class SessionHandle implements Handle {
+	private static final long serialVersionUID = 1L;
+
+	private final String homeJndiName;
+	//null for stateless beans
+	private final String sessionId;
+
+	SessionHandle(String homeJndiName, String sessionId) {
+		if (homeJndiName == null) {
+			throw new IllegalStateException("Session home isn't bound to JNDI, so its sessions have no handle");
+		}
+
+		this.homeJndiName = homeJndiName;
+		this.sessionId = sessionId;
+	}
+
+	@Override
+	public EJBObject getEJBObject() throws RemoteException {
+		Object session;
+
+		try {
+			session = getSession();
+		} catch (RemoteException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RemoteException("Session of '" + homeJndiName + "' can't be reached", e);
+		}
+
+		if (!(session instanceof EJBObject)) {
+			throw new IllegalStateException("Session of '" + homeJndiName + "' has a local interface, so it's reached by getSession()");
+		}
+
+		return (EJBObject) session;
+	}
+
+	/**
+	 * The session, by its local or remote interface (the same as the home's)
+	 *
+	 * @throws java.rmi.NoSuchObjectException or {@link javax.ejb.NoSuchObjectLocalException} if the session was removed
+	 */
+	public Object getSession() throws Exception {
+		IEJBHome home = (IEJBHome) ResourceHolder.getJndiContext().lookup(homeJndiName);
+
+		return home.findSession(sessionId);
+	}
+
+	public String getHomeJndiName() {
+		return homeJndiName;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	@Override
+	public int hashCode() {
+		return homeJndiName.hashCode() * 31 + (sessionId != null ? sessionId.hashCode() : 0);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SessionHandle)) {
+			return false;
+		}
+
+		SessionHandle other = (SessionHandle) obj;
+
+		return homeJndiName.equals(other.homeJndiName) && (sessionId == null ? other.sessionId == null : sessionId.equals(other.sessionId));
+	}
+
+	@Override
+	public String toString() {
+		return homeJndiName + (sessionId != null ? "#" + sessionId : "");
+	}
+}
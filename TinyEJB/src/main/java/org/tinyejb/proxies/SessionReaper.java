@@ -0,0 +1,222 @@
+package org.tinyejb.proxies;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinyejb.core.EJBContainer;
+
+/**
+ * Removes stateful sessions idle for longer than their session timeout.
+ * 
+ * Sessions are kept on a hashed timing wheel: a ring of buckets, one for each tick (1 second), where a session is put by the tick of
+ * its deadline. Each tick only looks at the sessions of its bucket, so the cost follows the number of due sessions, not the total.
+ * Calls don't touch the wheel: they just update the session's last access, and a session found on a bucket before its actual deadline
+ * is put back on the bucket of that deadline. So an active session is seen about once per timeout period.
+ * 
+ * Expired sessions are removed by the reaper thread, never by a request thread.
+ */
+final class SessionReaper {
+	private final static Logger LOGGER = LoggerFactory.getLogger(SessionReaper.class);
+
+	private static final long TICK = 1000;
+	private static final int WHEEL_SIZE = 512;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+	private static SessionReaper reaper;
+
+	private final Entry[] buckets = new Entry[WHEEL_SIZE];
+	private final long startTime = System.currentTimeMillis();
+	//last tick processed
+	private long currentTick;
+
+	private SessionReaper() {
+	}
+
+	private static synchronized SessionReaper get() {
+		if (reaper == null) {
+			reaper = new SessionReaper();
+
+			Thread t = new Thread(new ReaperTask(reaper), "TinyEJB session reaper");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		return reaper;
+	}
+
+	/**
+	 * Puts the session on the wheel, at its current deadline
+	 */
+	static void schedule(Expirable session) {
+		long deadline = session.getExpiryDeadline();
+
+		if (deadline > 0) {
+			get().add(new Entry(session), deadline);
+		}
+	}
+
+	/**
+	 * Drops the sessions of a container that shut down, so the wheel doesn't keep them reachable until their deadline
+	 */
+	static void containerShutDown(EJBContainer container) {
+		SessionReaper wheel;
+
+		synchronized (SessionReaper.class) {
+			wheel = reaper;
+		}
+
+		if (wheel != null) {
+			wheel.removeAll(container);
+		}
+	}
+
+	private synchronized void removeAll(EJBContainer container) {
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			Entry remaining = null;
+
+			for (Entry e = buckets[i]; e != null;) {
+				Entry next = e.next;
+
+				if (e.session.getEjbContainer() != container) {
+					e.next = remaining;
+					remaining = e;
+				}
+
+				e = next;
+			}
+
+			buckets[i] = remaining;
+		}
+	}
+
+	private synchronized void add(Entry entry, long deadline) {
+		//rounded up, so sessions never expire before their deadline
+		long tick = Math.max(currentTick + 1, (deadline - startTime + TICK - 1) / TICK);
+		int bucket = (int) (tick & WHEEL_MASK);
+
+		entry.tick = tick;
+		entry.next = buckets[bucket];
+		buckets[bucket] = entry;
+	}
+
+	/**
+	 * Takes the due entries of the next tick out of the wheel. Entries of later rounds stay on the bucket.
+	 */
+	private synchronized Entry advance() {
+		currentTick++;
+
+		int bucket = (int) (currentTick & WHEEL_MASK);
+		Entry due = null;
+		Entry remaining = null;
+
+		for (Entry e = buckets[bucket]; e != null;) {
+			Entry next = e.next;
+
+			if (e.tick <= currentTick) {
+				e.next = due;
+				due = e;
+			} else {
+				e.next = remaining;
+				remaining = e;
+			}
+
+			e = next;
+		}
+
+		buckets[bucket] = remaining;
+
+		return due;
+	}
+
+	private synchronized long nextTickTime() {
+		return startTime + (currentTick + 1) * TICK;
+	}
+
+	private void process(Entry due) {
+		int expired = 0;
+
+		for (Entry e = due; e != null;) {
+			Entry next = e.next;
+			Expirable session = e.session;
+			long deadline = session.getExpiryDeadline();
+
+			if (deadline > 0) {
+				long now = System.currentTimeMillis();
+
+				if (deadline > now) {
+					//called since it was scheduled
+					add(e, deadline);
+				} else if (session.expire()) {
+					expired++;
+				} else {
+					//busy, so it's not idle after all
+					add(e, now + TICK);
+				}
+			}
+
+			e = next;
+		}
+
+		if (expired > 0) {
+			LOGGER.debug(expired + " stateful session(s) expired");
+		}
+	}
+
+	/**
+	 * A stateful session, as seen by the reaper
+	 */
+	static interface Expirable {
+		/**
+		 * @return time (milliseconds) when the session expires if not called meanwhile, or zero if it was removed
+		 */
+		long getExpiryDeadline();
+
+		/**
+		 * Removes the session, unless it's busy. Sessions already removed, or of a container that shut down, are just dropped
+		 */
+		boolean expire();
+
+		EJBContainer getEjbContainer();
+	}
+
+	private static class Entry {
+		private final Expirable session;
+		private long tick;
+		private Entry next;
+
+		Entry(Expirable session) {
+			this.session = session;
+		}
+	}
+
+	private static class ReaperTask implements Runnable {
+		private final SessionReaper wheel;
+
+		ReaperTask(SessionReaper wheel) {
+			this.wheel = wheel;
+		}
+
+		@Override
+		public void run() {
+			LOGGER.debug("Starting session reaper");
+
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					long wait = wheel.nextTickTime() - System.currentTimeMillis();
+
+					if (wait > 0) {
+						Thread.sleep(wait);
+					}
+
+					try {
+						wheel.process(wheel.advance());
+					} catch (Exception e) {
+						LOGGER.warn("Error on session reaper: " + e.getMessage());
+					}
+				}
+			} catch (InterruptedException ignored) {
+			} finally {
+				LOGGER.debug("Session reaper finalized");
+			}
+		}
+	}
+}
@@ -0,0 +1,469 @@
+package org.tinyejb.proxies;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+import javax.naming.Context;
+import javax.transaction.UserTransaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.core.EJBMetadata;
+import org.tinyejb.core.EJBMetadata.TRANSACTION_MANAGED_BY;
+import org.tinyejb.core.ResourceHolder;
+
+/**
+ * Snapshot of the live stateful sessions of a container, so they survive a restart.
+ *
+ * On undeploy, each session is passivated and its state is written to the snapshot file, encoded by the container's
+ * {@link ISessionStateCodec} (the codec class is written too, so the state is decoded by the same codec). Objects kept by reference
+ * on passivation can't go to a file, so they are written as descriptors, and resolved again on restore: session context, JNDI context,
+ * user transaction, the container, bean metadata (by bean name), homes (by JNDI name) and other session beans (by {@link SessionHandle}). Sessions holding any other object that is
+ * not serializable are left out.
+ *
+ * On deploy, only the index of the snapshot is read. Each session is restored when its handle is first used, and its state is decoded
+ * on the first call, so startup time doesn't depend on the snapshot size. Sessions not restored until the next undeploy are copied to
+ * the new snapshot, unless their session timeout elapsed.
+ *
+ * File layout: header (magic, version), the encoded sessions, the index and, at the end, the index offset.
+ */
+public final class SessionSnapshot {
+	private final static Logger LOGGER = LoggerFactory.getLogger(SessionSnapshot.class);
+
+	private static final int MAGIC = 0x54454A53;
+	private static final int VERSION = 1;
+
+	//a snapshot being restored is renamed, so the next undeploy can write a new one
+	private static final String RESTORING_SUFFIX = ".restoring";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File file;
+	private final long loadedAt = System.currentTimeMillis();
+	private final Map<String, List<Entry>> entriesByBean = new HashMap<String, List<Entry>>();
+	private int sessionCount;
+
+	private SessionSnapshot(File file) throws IOException {
+		this.file = file;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			if (raf.length() < 16 || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+				throw new IOException("'" + file + "' is not a session snapshot of this TinyEJB version");
+			}
+
+			raf.seek(raf.length() - 8);
+			long indexOffset = raf.readLong();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel().position(indexOffset))));
+			sessionCount = in.readInt();
+
+			for (int i = 0; i < sessionCount; i++) {
+				Entry entry = new Entry(this, in.readUTF(), in.readUTF(), in.readBoolean(), in.readLong(), in.readUTF(), in.readLong(), in.readInt(), in.readInt());
+				List<Entry> entries = entriesByBean.get(entry.beanName);
+
+				if (entries == null) {
+					entries = new ArrayList<Entry>();
+					entriesByBean.put(entry.beanName, entries);
+				}
+
+				entries.add(entry);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Opens the snapshot to be restored, reading just its index.
+	 *
+	 * @return null if there is no snapshot
+	 */
+	public static SessionSnapshot open(File snapshotFile) throws IOException {
+		if (!snapshotFile.isFile()) {
+			return null;
+		}
+
+		File restoring = new File(snapshotFile.getPath() + RESTORING_SUFFIX);
+		restoring.delete();
+
+		if (!snapshotFile.renameTo(restoring)) {
+			throw new IOException("Session snapshot '" + snapshotFile + "' can't be renamed to '" + restoring + "'");
+		}
+
+		return new SessionSnapshot(restoring);
+	}
+
+	/**
+	 * Hands the sessions of the bean over to it. They are restored when their handles are used.
+	 */
+	public synchronized void restoreInto(EJBMetadata ejbmd) {
+		List<Entry> entries = entriesByBean.remove(ejbmd.getName());
+
+		if (entries != null && !ejbmd.isStateless()) {
+			ejbmd.getStatefulSessionRegistry().setRestorable(entries);
+			LOGGER.info(ejbmd.getName() + ": " + entries.size() + " stateful session(s) restorable from snapshot");
+		}
+	}
+
+	public int getSessionCount() {
+		return sessionCount;
+	}
+
+	/**
+	 * Discards the snapshot. Sessions not restored yet can't be restored anymore.
+	 */
+	public void close() {
+		if (!file.delete() && file.exists()) {
+			LOGGER.warn("Session snapshot '" + file + "' can't be deleted");
+		}
+	}
+
+	/**
+	 * Writes the live sessions of the beans, and the ones from the previous snapshot not restored yet, to the snapshot file.
+	 * The container must be shutting down, as sessions are passivated and can't be called anymore.
+	 *
+	 * @return number of sessions written
+	 */
+	public static int write(File snapshotFile, EJBContainer container, Collection<EJBMetadata> beans, SessionSnapshot previous) throws IOException {
+		File temp = new File(snapshotFile.getPath() + TEMP_SUFFIX);
+		Writer writer = new Writer(temp, container);
+
+		try {
+			for (EJBMetadata ejbmd : beans) {
+				if (ejbmd.isStateless()) {
+					continue;
+				}
+
+				StatefulSessionRegistry registry = ejbmd.getStatefulSessionRegistry();
+				int skipped = 0;
+
+				for (StatefulSessionRegistry.Snapshottable session : registry.getLiveSessions()) {
+					try {
+						if (!session.writeSnapshot(writer)) {
+							skipped++;
+						}
+					} catch (IOException e) {
+						throw e;
+					} catch (Exception e) {
+						skipped++;
+						LOGGER.warn(ejbmd.getName() + ": session left out of snapshot: " + e);
+					}
+				}
+
+				if (skipped > 0) {
+					LOGGER.warn(ejbmd.getName() + ": " + skipped + " session(s) left out of snapshot (removed, busy or not serializable)");
+				}
+
+				for (Entry entry : registry.getRestorable(ejbmd.getSessionTimeout())) {
+					writer.copy(entry, entry.getIdleTime());
+				}
+			}
+
+			if (previous != null) {
+				//sessions of beans not deployed this time
+				synchronized (previous) {
+					for (List<Entry> entries : previous.entriesByBean.values()) {
+						for (Entry entry : entries) {
+							writer.copy(entry, entry.getIdleTime());
+						}
+					}
+				}
+			}
+
+			writer.finish();
+		} catch (IOException e) {
+			writer.abort();
+			temp.delete();
+			throw e;
+		}
+
+		snapshotFile.delete();
+
+		if (!temp.renameTo(snapshotFile)) {
+			throw new IOException("Session snapshot '" + temp + "' can't be renamed to '" + snapshotFile + "'");
+		}
+
+		return writer.index.size();
+	}
+
+	/**
+	 * A session on the snapshot: index data and position of its references and encoded state on the file
+	 */
+	static final class Entry {
+		private final SessionSnapshot snapshot;
+		private final String beanName;
+		private final String sessionId;
+		private final boolean localIntf;
+		//idle time when the snapshot was written
+		private final long idleTime;
+		private final String codecClassName;
+		private final long offset;
+		private final int referencesLength;
+		private final int dataLength;
+
+		private Entry(SessionSnapshot snapshot, String beanName, String sessionId, boolean localIntf, long idleTime, String codecClassName, long offset, int referencesLength, int dataLength) {
+			this.snapshot = snapshot;
+			this.beanName = beanName;
+			this.sessionId = sessionId;
+			this.localIntf = localIntf;
+			this.idleTime = idleTime;
+			this.codecClassName = codecClassName;
+			this.offset = offset;
+			this.referencesLength = referencesLength;
+			this.dataLength = dataLength;
+		}
+
+		String getSessionId() {
+			return sessionId;
+		}
+
+		boolean isLocal() {
+			return localIntf;
+		}
+
+		/**
+		 * idle time of the session, not counting the time the container was down
+		 */
+		long getIdleTime() {
+			return idleTime + System.currentTimeMillis() - snapshot.loadedAt;
+		}
+
+		boolean isExpired(long sessionTimeout) {
+			return sessionTimeout > 0 && getIdleTime() > sessionTimeout;
+		}
+
+		/**
+		 * Decodes the session state, resolving its references for the restored session. Caller calls ejbActivate().
+		 */
+		SessionBean restore(SessionContext sessionContext, EJBMetadata ejbmd) throws Exception {
+			byte[][] body = readBody();
+			Object[] references = null;
+
+			if (referencesLength > 0) {
+				ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(body[0]));
+				ReferenceDescriptor[] descriptors = (ReferenceDescriptor[]) in.readObject();
+
+				references = new Object[descriptors.length];
+
+				for (int i = 0; i < descriptors.length; i++) {
+					references[i] = descriptors[i].resolve(sessionContext, ejbmd);
+				}
+			}
+
+			ISessionStateCodec codec = SessionStateSerializer.codecFor(ejbmd.getEjbContainer(), codecClassName);
+
+			return codec.decode(body[1], references, ejbmd.getDispatchTable().getBeanClass().getClassLoader());
+		}
+
+		private byte[][] readBody() throws IOException {
+			byte[] references = new byte[referencesLength];
+			byte[] data = new byte[dataLength];
+
+			RandomAccessFile raf = new RandomAccessFile(snapshot.file, "r");
+
+			try {
+				raf.seek(offset);
+				raf.readFully(references);
+				raf.readFully(data);
+			} finally {
+				raf.close();
+			}
+
+			return new byte[][] { references, data };
+		}
+	}
+
+	/**
+	 * Writer of a new snapshot file
+	 */
+	static final class Writer {
+		private final EJBContainer container;
+		private final DataOutputStream out;
+		private final List<Entry> index = new ArrayList<Entry>();
+		private long position;
+
+		private Writer(File file, EJBContainer container) throws IOException {
+			this.container = container;
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			position = 8;
+		}
+
+		/**
+		 * Writes the state of a passivated bean
+		 */
+		void write(EJBMetadata ejbmd, String sessionId, boolean localIntf, long idleTime, SessionBean bean) throws Exception {
+			SessionStateSerializer.SerializedState state;
+			byte[] references;
+
+			try {
+				state = SessionStateSerializer.serialize(container, bean);
+				references = writeReferences(state.getReferences());
+			} catch (IOException e) {
+				//the snapshot file is fine, just this session can't go to it
+				throw new IllegalStateException("State of '" + bean.getClass().getName() + "' can't be encoded: " + e, e);
+			}
+
+			append(ejbmd.getName(), sessionId, localIntf, idleTime, state.getCodec().getClass().getName(), references, state.getData());
+		}
+
+		/**
+		 * Copies a session not restored from the previous snapshot
+		 */
+		void copy(Entry entry, long idleTime) throws IOException {
+			byte[][] body = entry.readBody();
+
+			append(entry.beanName, entry.sessionId, entry.localIntf, idleTime, entry.codecClassName, body[0], body[1]);
+		}
+
+		private void append(String beanName, String sessionId, boolean localIntf, long idleTime, String codecClassName, byte[] references, byte[] data) throws IOException {
+			index.add(new Entry(null, beanName, sessionId, localIntf, idleTime, codecClassName, position, references.length, data.length));
+
+			out.write(references);
+			out.write(data);
+			position += references.length + data.length;
+		}
+
+		private byte[] writeReferences(Object[] references) throws IOException {
+			if (references == null) {
+				return new byte[0];
+			}
+
+			ReferenceDescriptor[] descriptors = new ReferenceDescriptor[references.length];
+
+			for (int i = 0; i < references.length; i++) {
+				descriptors[i] = ReferenceDescriptor.describe(references[i]);
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(descriptors);
+			oos.close();
+
+			return bytes.toByteArray();
+		}
+
+		private void finish() throws IOException {
+			long indexOffset = position;
+
+			out.writeInt(index.size());
+
+			for (Entry entry : index) {
+				out.writeUTF(entry.beanName);
+				out.writeUTF(entry.sessionId);
+				out.writeBoolean(entry.localIntf);
+				out.writeLong(entry.idleTime);
+				out.writeUTF(entry.codecClassName);
+				out.writeLong(entry.offset);
+				out.writeInt(entry.referencesLength);
+				out.writeInt(entry.dataLength);
+			}
+
+			out.writeLong(indexOffset);
+			out.close();
+		}
+
+		private void abort() {
+			try {
+				out.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Stands for an object kept by reference on the state of a session, so it can be found again after the restart
+	 */
+	private static class ReferenceDescriptor implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private static enum KIND {
+			SessionContext, JndiContext, UserTransaction, Container, Metadata, Home, Session;
+		}
+
+		private final KIND kind;
+		//JNDI name of a home, or name of a bean
+		private final String name;
+		private final SessionHandle sessionHandle;
+
+		private ReferenceDescriptor(KIND kind, String name, SessionHandle sessionHandle) {
+			this.kind = kind;
+			this.name = name;
+			this.sessionHandle = sessionHandle;
+		}
+
+		static ReferenceDescriptor describe(Object reference) {
+			if (reference instanceof SessionContext) {
+				return new ReferenceDescriptor(KIND.SessionContext, null, null);
+			} else if (reference instanceof Context) {
+				return new ReferenceDescriptor(KIND.JndiContext, null, null);
+			} else if (reference instanceof UserTransaction) {
+				return new ReferenceDescriptor(KIND.UserTransaction, null, null);
+			} else if (reference instanceof EJBContainer) {
+				return new ReferenceDescriptor(KIND.Container, null, null);
+			} else if (reference instanceof EJBMetadata) {
+				return new ReferenceDescriptor(KIND.Metadata, ((EJBMetadata) reference).getName(), null);
+			} else if (reference instanceof IEJBHome && ((IEJBHome) reference).getJndiName() != null) {
+				return new ReferenceDescriptor(KIND.Home, ((IEJBHome) reference).getJndiName(), null);
+			} else if (reference instanceof ISessionEJB) {
+				return new ReferenceDescriptor(KIND.Session, null, ((ISessionEJB) reference).getSessionHandle());
+			}
+
+			throw new IllegalStateException("'" + reference.getClass().getName() + "' is not serializable, and can't be restored after a restart");
+		}
+
+		Object resolve(SessionContext sessionContext, EJBMetadata ejbmd) throws Exception {
+			switch (kind) {
+				case SessionContext:
+					return sessionContext;
+				case JndiContext:
+					return ResourceHolder.getJndiContext();
+				case UserTransaction:
+					//all user transactions of a container drive its transaction manager
+					return ejbmd.getTxManagedBy() == TRANSACTION_MANAGED_BY.Bean ? sessionContext.getUserTransaction() : new UserTransactionImpl(ejbmd);
+				case Container:
+					return ejbmd.getEjbContainer();
+				case Metadata:
+					EJBMetadata referenced = ejbmd.getEjbContainer().getDeployedBean(name);
+
+					if (referenced == null) {
+						LOGGER.warn(ejbmd.getName() + ": restored session referenced bean '" + name + "', that is not deployed");
+					}
+
+					return referenced;
+				case Home:
+					return ResourceHolder.getJndiContext().lookup(name);
+				default:
+					try {
+						return sessionHandle.getSession();
+					} catch (Exception e) {
+						LOGGER.warn(ejbmd.getName() + ": restored session referenced a session that is gone (" + sessionHandle + "): " + e);
+						return null;
+					}
+			}
+		}
+	}
+}
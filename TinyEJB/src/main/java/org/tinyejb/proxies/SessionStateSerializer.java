@@ -0,0 +1,113 @@
+package org.tinyejb.proxies;
+
+import java.io.Serializable;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+import javax.naming.Context;
+import javax.transaction.UserTransaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.core.EJBMetadata;
+
+/**
+ * Externalizes the conversational state of stateful session beans, with the container's {@link ISessionStateCodec}.
+ * When it fails, Java serialization is used instead, and the state remembers which codec wrote it.
+ * 
+ * As EJB spec (7.4.1) allows, some objects on the state are not externalized: session context, homes and component interfaces
+ * (TinyEJB proxies), JNDI contexts and UserTransaction. Those, and any other object that is not serializable, are kept by reference
+ * (on heap) together with the encoded data, and put back on the state when it is restored.
+ */
+final class SessionStateSerializer {
+	private final static Logger LOGGER = LoggerFactory.getLogger(SessionStateSerializer.class);
+
+	private static final String GENERATED_PROXIES_PACKAGE = "org.tinyejb.generated.";
+
+	static final ISessionStateCodec JAVA_SERIALIZATION = new JavaSerializationCodec();
+
+	private SessionStateSerializer() {
+	}
+
+	static SerializedState serialize(EJBContainer container, SessionBean bean) throws Exception {
+		ISessionStateCodec codec = container.getSessionStateCodec();
+
+		if (codec != null && codec != JAVA_SERIALIZATION) {
+			try {
+				return encode(codec, bean);
+			} catch (Exception e) {
+				LOGGER.debug("state of '" + bean.getClass().getName() + "' encoded with Java serialization, as " + codec.getClass().getSimpleName() + " failed: " + e);
+			}
+		}
+
+		return encode(JAVA_SERIALIZATION, bean);
+	}
+
+	static SessionBean deserialize(SerializedState state, byte[] data, ClassLoader loader) throws Exception {
+		return state.codec.decode(data, state.references, loader);
+	}
+
+	/**
+	 * Codec that wrote a stored state, by its class name. The container's codec is reused when it's the same class.
+	 */
+	static ISessionStateCodec codecFor(EJBContainer container, String codecClassName) throws Exception {
+		ISessionStateCodec codec = container.getSessionStateCodec();
+
+		if (codec != null && codec.getClass().getName().equals(codecClassName)) {
+			return codec;
+		} else if (JAVA_SERIALIZATION.getClass().getName().equals(codecClassName)) {
+			return JAVA_SERIALIZATION;
+		}
+
+		return (ISessionStateCodec) Class.forName(codecClassName, true, SessionStateSerializer.class.getClassLoader()).newInstance();
+	}
+
+	static boolean isKeptByReference(Object obj) {
+		return !(obj instanceof Serializable) || Proxy.isProxyClass(obj.getClass()) || obj.getClass().getName().startsWith(GENERATED_PROXIES_PACKAGE) || obj instanceof SessionContext || obj instanceof Context || obj instanceof UserTransaction || obj instanceof EJBContainer || obj instanceof EJBMetadata;
+	}
+
+	private static SerializedState encode(ISessionStateCodec codec, SessionBean bean) throws Exception {
+		List<Object> references = new ArrayList<Object>();
+		byte[] data = codec.encode(bean, references);
+
+		return new SerializedState(codec, data, references.isEmpty() ? null : references.toArray());
+	}
+
+	/**
+	 * Encoded state. Data goes to a store, while the rest is kept on heap until the state is restored.
+	 */
+	static final class SerializedState {
+		private final ISessionStateCodec codec;
+		private final Object[] references;
+		private byte[] data;
+
+		private SerializedState(ISessionStateCodec codec, byte[] data, Object[] references) {
+			this.codec = codec;
+			this.data = data;
+			this.references = references;
+		}
+
+		byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * drops the data, once it was stored
+		 */
+		void dataStored() {
+			data = null;
+		}
+
+		ISessionStateCodec getCodec() {
+			return codec;
+		}
+
+		Object[] getReferences() {
+			return references;
+		}
+	}
+}
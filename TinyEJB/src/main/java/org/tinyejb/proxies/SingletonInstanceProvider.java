@@ -0,0 +1,97 @@
+package org.tinyejb.proxies;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.ejb.SessionBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinyejb.proxies.BeanInstancePool.BeanInstanceFactory;
+
+/**
+ * One bean instance serves all calls, from all threads, so the bean class must be thread-safe.
+ * The instance is built on the first call, and removed on shutdown.
+ * 
+ * Beans with container-managed concurrency have their calls guarded by the read/write lock of this provider.
+ */
+public class SingletonInstanceProvider implements IBeanInstanceProvider {
+	private final static Logger LOGGER = LoggerFactory.getLogger(SingletonInstanceProvider.class);
+
+	private final BeanInstanceFactory factory;
+	private volatile SessionBean instance;
+	//guarded by this
+	private boolean closed;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public SingletonInstanceProvider(BeanInstanceFactory factory) {
+		this.factory = factory;
+	}
+
+	@Override
+	public SessionBean acquire() {
+		SessionBean result = instance;
+
+		if (result == null) {
+			synchronized (this) {
+				result = instance;
+
+				if (result == null) {
+					if (closed) {
+						throw new IllegalStateException("Instance provider was shut down: no more instances are handed out.");
+					}
+
+					instance = result = factory.build();
+				}
+			}
+		}
+
+		return result;
+	}
+
+	public ReentrantReadWriteLock getLock() {
+		return lock;
+	}
+
+	@Override
+	public void release(SessionBean sb) {
+	}
+
+	/**
+	 * the instance is replaced on the next call. Calls still running on it aren't waited for
+	 */
+	@Override
+	public void discard(SessionBean sb) {
+		synchronized (this) {
+			if (instance != sb) {
+				return;
+			}
+
+			instance = null;
+		}
+
+		remove(sb);
+	}
+
+	@Override
+	public void shutdown() {
+		SessionBean result;
+
+		synchronized (this) {
+			result = instance;
+			instance = null;
+			closed = true;
+		}
+
+		if (result != null) {
+			remove(result);
+		}
+	}
+
+	private void remove(SessionBean sb) {
+		try {
+			sb.ejbRemove();
+		} catch (Exception e) {
+			LOGGER.warn("ejbRemove() failed on singleton instance of '" + sb.getClass().getName() + "': " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package org.tinyejb.proxies;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contention statistics of the session locks of a stateful bean (all sessions of the bean together).
+ * 
+ * Besides wait times and queue depth, it counts, for each method, how many calls had to wait while that method held the session,
+ * which points out the methods that keep sessions busy.
+ */
+public class StatefulLockStatistics {
+	private final AtomicLong acquisitions = new AtomicLong();
+	private final AtomicLong contendedCount = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong deadlockCount = new AtomicLong();
+	private final AtomicInteger currentWaiters = new AtomicInteger();
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+	private final ConcurrentMap<String, AtomicLong> contentionByHolderMethod = new ConcurrentHashMap<String, AtomicLong>();
+
+	void acquired() {
+		acquisitions.incrementAndGet();
+	}
+
+	/**
+	 * @param holderMethod name of the method running on the session, if known
+	 * @param queueDepth calls waiting for the session, including the new one
+	 */
+	void waitStarted(String holderMethod, int queueDepth) {
+		contendedCount.incrementAndGet();
+		currentWaiters.incrementAndGet();
+
+		int max = maxQueueDepth.get();
+		while (queueDepth > max && !maxQueueDepth.compareAndSet(max, queueDepth)) {
+			max = maxQueueDepth.get();
+		}
+
+		if (holderMethod != null) {
+			AtomicLong count = contentionByHolderMethod.get(holderMethod);
+
+			if (count == null) {
+				AtomicLong previous = contentionByHolderMethod.putIfAbsent(holderMethod, count = new AtomicLong());
+
+				if (previous != null) {
+					count = previous;
+				}
+			}
+
+			count.incrementAndGet();
+		}
+	}
+
+	void waitEnded(long waitNanos) {
+		currentWaiters.decrementAndGet();
+		totalWaitNanos.addAndGet(waitNanos);
+
+		long max = maxWaitNanos.get();
+		while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+			max = maxWaitNanos.get();
+		}
+	}
+
+	void timedOut() {
+		timeoutCount.incrementAndGet();
+	}
+
+	void deadlockDetected() {
+		deadlockCount.incrementAndGet();
+	}
+
+	/**
+	 * calls that got a session lock
+	 */
+	public long getAcquisitions() {
+		return acquisitions.get();
+	}
+
+	/**
+	 * calls that found the session busy and had to wait
+	 */
+	public long getContendedCount() {
+		return contendedCount.get();
+	}
+
+	/**
+	 * total time (in milliseconds) calls waited for sessions
+	 */
+	public long getTotalWaitTime() {
+		return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+	}
+
+	/**
+	 * longest time (in milliseconds) a call waited for a session
+	 */
+	public long getMaxWaitTime() {
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+	}
+
+	/**
+	 * calls that gave up waiting after concurrentCallWaitTimeout
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/**
+	 * calls that would close a cycle of sessions waiting for each other, and so failed without waiting
+	 */
+	public long getDeadlockCount() {
+		return deadlockCount.get();
+	}
+
+	/**
+	 * calls waiting for some session right now
+	 */
+	public int getCurrentWaiters() {
+		return currentWaiters.get();
+	}
+
+	/**
+	 * deepest queue seen on a single session
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	/**
+	 * for each method, how many calls waited while it was running on the session
+	 */
+	public Map<String, Long> getContentionByHolderMethod() {
+		Map<String, Long> result = new HashMap<String, Long>();
+
+		for (Map.Entry<String, AtomicLong> e : contentionByHolderMethod.entrySet()) {
+			result.put(e.getKey(), e.getValue().get());
+		}
+
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "acquisitions=" + getAcquisitions() + ", contended=" + getContendedCount() + ", totalWait=" + getTotalWaitTime() + "ms, maxWait=" + getMaxWaitTime() + "ms, timeouts=" + getTimeoutCount() + ", deadlocks=" + getDeadlockCount() + ", waiters=" + getCurrentWaiters() + ", maxQueueDepth=" + getMaxQueueDepth() + ", byHolder=" + getContentionByHolderMethod();
+	}
+}
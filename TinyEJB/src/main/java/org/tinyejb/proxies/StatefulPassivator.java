@@ -0,0 +1,468 @@
+package org.tinyejb.proxies;
+
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinyejb.core.EJBContainer;
+
+/**
+ * Passivation of the stateful sessions of a container.
+ * 
+ * A background task checks the sessions every second. Sessions idle for longer than the container's passivation idle timeout are
+ * passivated, and so are the least recently used ones, while there are more active sessions than allowed or heap usage is above the
+ * threshold. Passivation calls ejbPassivate() and moves the bean's state to a {@link PassivationStore}; the next call on the session
+ * activates it again, through its proxy.
+ * 
+ * Sessions are weakly referenced, so a forgotten session is still collected, and its passivated state released. For that, the
+ * passivated state doesn't keep the session's own context and proxy: they are replaced by markers, and bound again on activation.
+ * Other objects kept by reference must not reach the session, or it's only released when removed.
+ */
+public final class StatefulPassivator {
+	private final static Logger LOGGER = LoggerFactory.getLogger(StatefulPassivator.class);
+
+	private static final long RUN_INTERVAL = 1000;
+
+	//fraction of the active sessions passivated on each run, while heap usage is above the threshold
+	private static final double HEAP_PRESSURE_BATCH = 0.1;
+
+	private static final Map<EJBContainer, StatefulPassivator> passivators = new WeakHashMap<EJBContainer, StatefulPassivator>();
+
+	private static Thread passivationTask;
+
+	private final WeakReference<EJBContainer> container;
+	private final ConcurrentMap<Registration, Boolean> sessions = new ConcurrentHashMap<Registration, Boolean>();
+	private final ReferenceQueue<Passivatable> collected = new ReferenceQueue<Passivatable>();
+	//bean classes whose state failed to serialize; their sessions stay active
+	private final ConcurrentMap<Class<?>, Boolean> unpassivableClasses = new ConcurrentHashMap<Class<?>, Boolean>();
+	private PassivationStore store;
+
+	private final AtomicInteger passivatedCount = new AtomicInteger();
+	private final AtomicLong passivations = new AtomicLong();
+	private final AtomicLong activations = new AtomicLong();
+
+	private StatefulPassivator(EJBContainer container) {
+		this.container = new WeakReference<EJBContainer>(container);
+	}
+
+	/**
+	 * true when the container has any passivation criterion set
+	 */
+	public static boolean isEnabled(EJBContainer container) {
+		return container.getPassivationIdleTimeout() > 0 || container.getMaxActiveStatefulSessions() > 0 || container.getPassivationHeapThreshold() > 0;
+	}
+
+	public static StatefulPassivator get(EJBContainer container) {
+		synchronized (passivators) {
+			StatefulPassivator passivator = passivators.get(container);
+
+			if (passivator == null) {
+				passivator = new StatefulPassivator(container);
+				passivators.put(container, passivator);
+
+				if (passivationTask == null) {
+					passivationTask = new Thread(new PassivationTask(), "TinyEJB stateful passivation task");
+					passivationTask.setDaemon(true);
+					passivationTask.start();
+				}
+			}
+
+			return passivator;
+		}
+	}
+
+	/**
+	 * Discards the passivated state of all sessions of the container
+	 */
+	static void containerShutDown(EJBContainer container) {
+		StatefulPassivator passivator;
+
+		synchronized (passivators) {
+			passivator = passivators.remove(container);
+		}
+
+		if (passivator != null) {
+			passivator.sessions.clear();
+
+			synchronized (passivator) {
+				if (passivator.store != null) {
+					passivator.store.close();
+				}
+			}
+		}
+	}
+
+	Registration register(Passivatable session) {
+		purgeCollected();
+
+		Registration registration = new Registration(session, this, collected);
+		sessions.put(registration, Boolean.TRUE);
+
+		return registration;
+	}
+
+	void unregister(Registration registration) {
+		if (sessions.remove(registration) != null) {
+			releaseState(registration);
+		}
+	}
+
+	/**
+	 * Calls ejbPassivate() and moves the bean state to the store. Caller (the session) ensures that no call is running on the bean.
+	 * 
+	 * @param beanProxy proxy of the session, unbound from the passivated state
+	 * @return false if the bean couldn't be passivated, so it's still active
+	 */
+	boolean passivate(Registration registration, SessionBean bean, Object beanProxy) {
+		if (!sessions.containsKey(registration) || unpassivableClasses.containsKey(bean.getClass())) {
+			return false;
+		}
+
+		try {
+			bean.ejbPassivate();
+		} catch (Exception e) {
+			LOGGER.warn("ejbPassivate() failed on '" + bean.getClass().getName() + "', session is kept active: " + e.getMessage());
+			return false;
+		}
+
+		try {
+			EJBContainer c = container.get();
+
+			if (c == null) {
+				return false;
+			}
+
+			SessionStateSerializer.SerializedState serialized = SessionStateSerializer.serialize(c, bean);
+			PassivationStore.Record record = store().write(serialized.getData());
+
+			serialized.dataStored();
+			registration.state = new PassivatedState(bean.getClass(), record, serialized.getCodec(), unbind(serialized.getReferences(), beanProxy));
+		} catch (Exception e) {
+			unpassivableClasses.put(bean.getClass(), Boolean.TRUE);
+			LOGGER.warn("State of '" + bean.getClass().getName() + "' can't be passivated, so its sessions will be kept active: " + e);
+
+			try {
+				bean.ejbActivate();
+			} catch (Exception e2) {
+				LOGGER.warn("ejbActivate() failed on '" + bean.getClass().getName() + "': " + e2.getMessage());
+			}
+
+			return false;
+		}
+
+		passivations.incrementAndGet();
+		passivatedCount.incrementAndGet();
+
+		return true;
+	}
+
+	/**
+	 * Restores the bean state from the store and calls ejbActivate()
+	 * 
+	 * @param sessionContext context of the session, bound to the state wherever it had the previous one
+	 */
+	SessionBean activate(Registration registration, SessionContext sessionContext, Object beanProxy) throws Exception {
+		PassivatedState state = registration.state;
+		byte[] data;
+
+		synchronized (this) {
+			if (store == null) {
+				throw new IllegalStateException("Passivation store is closed");
+			}
+			data = store.read(state.record);
+		}
+
+		SessionBean bean = state.codec.decode(data, bind(state.references, sessionContext, beanProxy), state.beanClass.getClassLoader());
+		bean.ejbActivate();
+
+		releaseState(registration);
+		activations.incrementAndGet();
+
+		return bean;
+	}
+
+	public int getActiveCount() {
+		return sessions.size() - passivatedCount.get();
+	}
+
+	public int getPassivatedCount() {
+		return passivatedCount.get();
+	}
+
+	public long getPassivations() {
+		return passivations.get();
+	}
+
+	public long getActivations() {
+		return activations.get();
+	}
+
+	/**
+	 * bytes of passivated state on the store
+	 */
+	public synchronized long getStoredBytes() {
+		return store != null ? store.getLiveBytes() : 0;
+	}
+
+	private synchronized PassivationStore store() {
+		if (store == null) {
+			EJBContainer c = container.get();
+
+			if (c == null) {
+				throw new IllegalStateException("EJBContainer was collected");
+			}
+
+			String directory = c.getPassivationDirectory() != null ? c.getPassivationDirectory() : System.getProperty("java.io.tmpdir");
+
+			store = new PassivationStore(new File(directory));
+		}
+
+		return store;
+	}
+
+	/*
+	 * replaces the session's own context and proxy by markers
+	 */
+	private static Object[] unbind(Object[] references, Object beanProxy) {
+		if (references == null) {
+			return null;
+		}
+
+		for (int i = 0; i < references.length; i++) {
+			if (references[i] == beanProxy) {
+				references[i] = SelfReference.BeanProxy;
+			} else if (references[i] instanceof SessionContextImpl && ((SessionContextImpl) references[i]).isContextOf(beanProxy)) {
+				references[i] = SelfReference.SessionContext;
+			}
+		}
+
+		return references;
+	}
+
+	private static Object[] bind(Object[] references, SessionContext sessionContext, Object beanProxy) {
+		if (references == null) {
+			return null;
+		}
+
+		Object[] result = references.clone();
+
+		for (int i = 0; i < result.length; i++) {
+			if (result[i] == SelfReference.BeanProxy) {
+				result[i] = beanProxy;
+			} else if (result[i] == SelfReference.SessionContext) {
+				result[i] = sessionContext;
+			}
+		}
+
+		return result;
+	}
+
+	private void releaseState(Registration registration) {
+		PassivatedState state = registration.state;
+
+		if (state != null) {
+			registration.state = null;
+			passivatedCount.decrementAndGet();
+
+			synchronized (this) {
+				if (store != null) {
+					store.release(state.record);
+				}
+			}
+		}
+	}
+
+	private void purgeCollected() {
+		for (Reference<? extends Passivatable> ref = collected.poll(); ref != null; ref = collected.poll()) {
+			unregister((Registration) ref);
+		}
+	}
+
+	/**
+	 * One passivation run, as the passivation task does every second
+	 */
+	void run() throws Exception {
+		purgeCollected();
+
+		EJBContainer c = container.get();
+
+		if (c == null) {
+			return;
+		}
+
+		long idleTimeout = c.getPassivationIdleTimeout();
+		int maxActive = c.getMaxActiveStatefulSessions();
+		double heapThreshold = c.getPassivationHeapThreshold();
+
+		List<Candidate> candidates = new ArrayList<Candidate>();
+
+		for (Registration registration : sessions.keySet()) {
+			Passivatable session = registration.get();
+
+			if (session != null && registration.state == null) {
+				candidates.add(new Candidate(session, session.getLastAccess()));
+			}
+		}
+
+		int toEvict = 0;
+
+		if (maxActive > 0 && candidates.size() > maxActive) {
+			toEvict = candidates.size() - maxActive;
+		}
+
+		if (heapThreshold > 0 && heapUsage() > heapThreshold) {
+			toEvict = Math.max(toEvict, (int) Math.ceil(candidates.size() * HEAP_PRESSURE_BATCH));
+		}
+
+		if (toEvict == 0 && idleTimeout <= 0) {
+			return;
+		}
+
+		//least recently used first
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate c1, Candidate c2) {
+				return c1.lastAccess < c2.lastAccess ? -1 : (c1.lastAccess == c2.lastAccess ? 0 : 1);
+			}
+		});
+
+		long now = System.currentTimeMillis();
+		int passivated = 0;
+
+		for (int i = 0; i < candidates.size(); i++) {
+			Candidate candidate = candidates.get(i);
+
+			if (i >= toEvict && (idleTimeout <= 0 || now - candidate.lastAccess < idleTimeout)) {
+				break;
+			}
+
+			if (candidate.session.passivate(candidate.lastAccess)) {
+				passivated++;
+			}
+		}
+
+		if (passivated > 0) {
+			LOGGER.debug(passivated + " stateful session(s) passivated. Active: " + getActiveCount() + ", passivated: " + getPassivatedCount());
+		}
+
+		synchronized (this) {
+			if (store != null) {
+				store.compact();
+			}
+		}
+	}
+
+	private static double heapUsage() {
+		Runtime rt = Runtime.getRuntime();
+
+		return (double) (rt.totalMemory() - rt.freeMemory()) / rt.maxMemory();
+	}
+
+	/**
+	 * A stateful session, as seen by the passivator
+	 */
+	static interface Passivatable {
+		long getLastAccess();
+
+		/**
+		 * Passivates the session, unless it's busy or was called after the given access time
+		 */
+		boolean passivate(long lastAccess);
+	}
+
+	static final class Registration extends WeakReference<Passivatable> {
+		private final StatefulPassivator passivator;
+		private volatile PassivatedState state;
+
+		private Registration(Passivatable session, StatefulPassivator passivator, ReferenceQueue<Passivatable> queue) {
+			super(session, queue);
+			this.passivator = passivator;
+		}
+
+		StatefulPassivator getPassivator() {
+			return passivator;
+		}
+
+		boolean isPassivated() {
+			return state != null;
+		}
+	}
+
+	private static class PassivatedState {
+		private final Class<?> beanClass;
+		private final PassivationStore.Record record;
+		private final ISessionStateCodec codec;
+		//objects kept by reference, with markers for the session's own context and proxy
+		private final Object[] references;
+
+		PassivatedState(Class<?> beanClass, PassivationStore.Record record, ISessionStateCodec codec, Object[] references) {
+			this.beanClass = beanClass;
+			this.record = record;
+			this.codec = codec;
+			this.references = references;
+		}
+	}
+
+	/**
+	 * Stands for the session's own context and proxy on passivated state
+	 */
+	private static enum SelfReference {
+		SessionContext, BeanProxy;
+	}
+
+	private static class Candidate {
+		private final Passivatable session;
+		private final long lastAccess;
+
+		Candidate(Passivatable session, long lastAccess) {
+			this.session = session;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private static class PassivationTask implements Runnable {
+		@Override
+		public void run() {
+			LOGGER.debug("Starting stateful passivation task");
+
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					List<StatefulPassivator> current;
+
+					synchronized (passivators) {
+						current = new ArrayList<StatefulPassivator>(passivators.values());
+					}
+
+					for (StatefulPassivator passivator : current) {
+						try {
+							passivator.run();
+						} catch (Exception e) {
+							LOGGER.warn("Error on stateful passivation: " + e.getMessage());
+						}
+					}
+
+					Thread.sleep(RUN_INTERVAL);
+				}
+			} catch (InterruptedException ignored) {
+			} finally {
+				LOGGER.debug("Stateful passivation task finalized");
+			}
+		}
+	}
+}
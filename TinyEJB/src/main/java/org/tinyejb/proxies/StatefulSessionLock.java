@@ -0,0 +1,88 @@
+package org.tinyejb.proxies;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Lock of a stateful session, with the threads holding it and the methods they run.
+ * 
+ * Calls are served in arrival order. Read-only methods share the lock, while all other methods hold it alone.
+ * Holders are tracked for diagnostics and for deadlock detection (see {@link StatefulWaitGraph}).
+ * 
+ * There may be millions of sessions, so the lock is the read-write lock itself, and its name is only built when needed.
+ */
+final class StatefulSessionLock extends ReentrantReadWriteLock {
+	private static final long serialVersionUID = 1L;
+
+	private final String beanName;
+
+	//immutable list, replaced on every change, so it can be read without locking
+	private transient volatile Holder holders;
+
+	StatefulSessionLock(String beanName) {
+		super(true);
+		this.beanName = beanName;
+	}
+
+	String getSessionName() {
+		return beanName + "@" + Integer.toHexString(System.identityHashCode(this));
+	}
+
+	synchronized void addHolder(Thread thread, Method method) {
+		holders = new Holder(thread, method, holders);
+	}
+
+	synchronized void removeHolder(Thread thread) {
+		holders = without(holders, thread);
+	}
+
+	/**
+	 * method of the most recent holder, or null if the session is free
+	 */
+	Method getHolderMethod() {
+		Holder h = holders;
+		return h != null ? h.method : null;
+	}
+
+	Holder getHolders() {
+		return holders;
+	}
+
+	/**
+	 * true when the thread is blocked on this lock
+	 */
+	boolean isQueued(Thread thread) {
+		return hasQueuedThread(thread);
+	}
+
+	private static Holder without(Holder h, Thread thread) {
+		if (h == null) {
+			return null;
+		}
+
+		if (h.thread == thread) {
+			return h.next;
+		}
+
+		Holder rest = without(h.next, thread);
+
+		return rest == h.next ? h : new Holder(h.thread, h.method, rest);
+	}
+
+	@Override
+	public String toString() {
+		return getSessionName();
+	}
+
+	static final class Holder {
+		final Thread thread;
+		final Method method;
+		final Holder next;
+
+		private Holder(Thread thread, Method method, Holder next) {
+			this.thread = thread;
+			this.method = method;
+			this.next = next;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package org.tinyejb.proxies;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Sessions of a stateful bean by id: live sessions that have an id (all of them when the container takes snapshots, otherwise only
+ * the ones that gave out handles), and sessions from a snapshot that weren't restored yet.
+ *
+ * Live sessions are weakly referenced, so the registry doesn't keep forgotten sessions.
+ */
+public class StatefulSessionRegistry {
+	private final ConcurrentMap<String, SessionRef> live = new ConcurrentHashMap<String, SessionRef>();
+	private final ReferenceQueue<Snapshottable> collected = new ReferenceQueue<Snapshottable>();
+	private final ConcurrentMap<String, SessionSnapshot.Entry> restorable = new ConcurrentHashMap<String, SessionSnapshot.Entry>();
+
+	void register(String sessionId, Snapshottable session) {
+		purgeCollected();
+
+		live.put(sessionId, new SessionRef(sessionId, session, collected));
+	}
+
+	void unregister(String sessionId) {
+		live.remove(sessionId);
+	}
+
+	/**
+	 * proxy of a live session, or null
+	 */
+	Object findLive(String sessionId) {
+		SessionRef ref = live.get(sessionId);
+		Snapshottable session = ref != null ? ref.get() : null;
+
+		return session != null ? session.getProxy() : null;
+	}
+
+	List<Snapshottable> getLiveSessions() {
+		List<Snapshottable> result = new ArrayList<Snapshottable>();
+
+		for (SessionRef ref : live.values()) {
+			Snapshottable session = ref.get();
+
+			if (session != null) {
+				result.add(session);
+			}
+		}
+
+		return result;
+	}
+
+	void setRestorable(List<SessionSnapshot.Entry> entries) {
+		for (SessionSnapshot.Entry entry : entries) {
+			restorable.put(entry.getSessionId(), entry);
+		}
+	}
+
+	/**
+	 * Takes the snapshot entry of a session not restored yet, if it was created by the same kind of interface and didn't expire
+	 */
+	SessionSnapshot.Entry takeRestorable(String sessionId, boolean localIntf, long sessionTimeout) {
+		SessionSnapshot.Entry entry = restorable.remove(sessionId);
+
+		if (entry == null || entry.isLocal() != localIntf || entry.isExpired(sessionTimeout)) {
+			return null;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * entries of sessions never restored, dropping the expired ones
+	 */
+	List<SessionSnapshot.Entry> getRestorable(long sessionTimeout) {
+		List<SessionSnapshot.Entry> result = new ArrayList<SessionSnapshot.Entry>();
+
+		for (Iterator<SessionSnapshot.Entry> ite = restorable.values().iterator(); ite.hasNext();) {
+			SessionSnapshot.Entry entry = ite.next();
+
+			if (entry.isExpired(sessionTimeout)) {
+				ite.remove();
+			} else {
+				result.add(entry);
+			}
+		}
+
+		return result;
+	}
+
+	public int getLiveCount() {
+		return live.size();
+	}
+
+	/**
+	 * sessions from a snapshot, waiting for their handles to be used
+	 */
+	public int getRestorableCount() {
+		return restorable.size();
+	}
+
+	private void purgeCollected() {
+		for (Reference<? extends Snapshottable> ref = collected.poll(); ref != null; ref = collected.poll()) {
+			SessionRef sessionRef = (SessionRef) ref;
+
+			live.remove(sessionRef.sessionId, sessionRef);
+		}
+	}
+
+	/**
+	 * A stateful session, as seen by the registry
+	 */
+	static interface Snapshottable {
+		/**
+		 * the bean proxy (local or remote interface) of the session
+		 */
+		Object getProxy();
+
+		/**
+		 * Passivates the session and writes its state to the snapshot. The session must not be used anymore.
+		 *
+		 * @return false if the session was removed, or is still busy
+		 */
+		boolean writeSnapshot(SessionSnapshot.Writer writer) throws Exception;
+	}
+
+	private static class SessionRef extends WeakReference<Snapshottable> {
+		private final String sessionId;
+
+		SessionRef(String sessionId, Snapshottable session, ReferenceQueue<Snapshottable> queue) {
+			super(session, queue);
+			this.sessionId = sessionId;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package org.tinyejb.proxies;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Life cycle counts of the sessions of a stateful bean
+ */
+public class StatefulSessionStatistics {
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong removed = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+
+	void sessionCreated() {
+		created.incrementAndGet();
+	}
+
+	void sessionRemoved() {
+		removed.incrementAndGet();
+	}
+
+	void sessionExpired() {
+		expired.incrementAndGet();
+	}
+
+	/**
+	 * sessions created and neither removed nor expired yet (passivated ones included)
+	 */
+	public long getLiveCount() {
+		return created.get() - removed.get() - expired.get();
+	}
+
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	/**
+	 * sessions removed by clients
+	 */
+	public long getRemovedCount() {
+		return removed.get();
+	}
+
+	/**
+	 * sessions removed by the container, after the session timeout
+	 */
+	public long getExpiredCount() {
+		return expired.get();
+	}
+
+	@Override
+	public String toString() {
+		return "live=" + getLiveCount() + ", created=" + getCreatedCount() + ", removed=" + getRemovedCount() + ", expired=" + getExpiredCount();
+	}
+}
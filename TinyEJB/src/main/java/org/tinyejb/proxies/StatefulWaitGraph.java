@@ -0,0 +1,129 @@
+package org.tinyejb.proxies;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Wait-for graph of stateful session locks, shared by all containers of the JVM.
+ * 
+ * Threads blocked on a session are edges to the threads holding it. When a call starts waiting, the graph is walked from the holders of
+ * the session; reaching the waiting thread again means a deadlock (i.e. session A calls B while B, on another thread, calls A), which
+ * no timeout would solve. Only contended calls touch the graph.
+ * 
+ * Waits are registered just before the thread blocks and removed just after it gets the lock, so for a short moment an edge may not match
+ * what the lock itself knows. Cycles with such edges are reported as unconfirmed, and should be checked again a bit later.
+ */
+final class StatefulWaitGraph {
+	private static final Map<Thread, Wait> waiting = new HashMap<Thread, Wait>();
+
+	private StatefulWaitGraph() {
+	}
+
+	static Wait startWaiting(StatefulSessionLock session, Method method) {
+		Wait wait = new Wait(Thread.currentThread(), session, method);
+
+		synchronized (waiting) {
+			waiting.put(wait.thread, wait);
+		}
+
+		return wait;
+	}
+
+	/**
+	 * Removes the wait from the graph. When the lock was acquired, the thread becomes a holder of the session, in the same step.
+	 */
+	static void stopWaiting(Wait wait, boolean acquired) {
+		synchronized (waiting) {
+			waiting.remove(wait.thread);
+
+			if (acquired) {
+				wait.session.addHolder(wait.thread, wait.method);
+			}
+		}
+	}
+
+	/**
+	 * Looks for a cycle that goes back to the waiting thread. When found, its description is available on {@link Wait#getCycleDescription()}.
+	 */
+	static CYCLE checkCycle(Wait wait) {
+		synchronized (waiting) {
+			List<String> path = new ArrayList<String>();
+			boolean[] confirmed = { true };
+
+			path.add("thread '" + wait.thread.getName() + "' calls '" + wait.method.getName() + "' on " + wait.session);
+
+			if (!walk(wait.thread, wait.session, path, new HashSet<StatefulSessionLock>(), confirmed)) {
+				return CYCLE.None;
+			}
+
+			StringBuilder description = new StringBuilder();
+
+			for (String step : path) {
+				if (description.length() > 0) {
+					description.append(", ");
+				}
+				description.append(step);
+			}
+
+			wait.cycleDescription = description.toString();
+
+			return confirmed[0] ? CYCLE.Confirmed : CYCLE.Unconfirmed;
+		}
+	}
+
+	private static boolean walk(Thread origin, StatefulSessionLock session, List<String> path, Set<StatefulSessionLock> visited, boolean[] confirmed) {
+		if (!visited.add(session)) {
+			return false;
+		}
+
+		for (StatefulSessionLock.Holder h = session.getHolders(); h != null; h = h.next) {
+			if (h.thread == origin) {
+				path.add("held by thread '" + origin.getName() + "' running '" + h.method.getName() + "'");
+				return true;
+			}
+
+			Wait w = waiting.get(h.thread);
+
+			if (w != null) {
+				path.add("held by thread '" + h.thread.getName() + "' running '" + h.method.getName() + "', which calls '" + w.method.getName() + "' on " + w.session);
+
+				if (walk(origin, w.session, path, visited, confirmed)) {
+					if (!w.session.isQueued(h.thread)) {
+						confirmed[0] = false;
+					}
+					return true;
+				}
+
+				path.remove(path.size() - 1);
+			}
+		}
+
+		return false;
+	}
+
+	static enum CYCLE {
+		None, Unconfirmed, Confirmed
+	}
+
+	static final class Wait {
+		private final Thread thread;
+		private final StatefulSessionLock session;
+		private final Method method;
+		private String cycleDescription;
+
+		private Wait(Thread thread, StatefulSessionLock session, Method method) {
+			this.thread = thread;
+			this.session = session;
+			this.method = method;
+		}
+
+		String getCycleDescription() {
+			return cycleDescription;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package org.tinyejb.proxies;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ejb.SessionBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tinyejb.proxies.BeanInstancePool.BeanInstanceFactory;
+
+/**
+ * Each thread gets its own bean instance, kept for the whole life of the thread, so calls need no synchronization at all.
+ * 
+ * A reentrant call (the bean calling itself through its home, on the same thread) gets a temporary instance, 
+ * as the thread's instance is busy. Temporary instances are removed as soon as the call ends.
+ * 
+ * Fits well on containers with fixed worker threads. As instances live as long as threads (and instances of finished threads
+ * are only removed on shutdown), it's not recommended when threads are created on demand.
+ */
+public class ThreadConfinedInstanceProvider implements IBeanInstanceProvider {
+	private final static Logger LOGGER = LoggerFactory.getLogger(ThreadConfinedInstanceProvider.class);
+
+	private final BeanInstanceFactory factory;
+	private final ThreadLocal<ConfinedInstance> instances = new ThreadLocal<ConfinedInstance>();
+
+	//instances of all threads, so shutdown reaches the ones it can't see through the ThreadLocal
+	private final Set<ConfinedInstance> registered = Collections.newSetFromMap(new ConcurrentHashMap<ConfinedInstance, Boolean>());
+	private volatile boolean closed;
+
+	//number of threads that have an instance of their own
+	private final AtomicInteger instanceCount = new AtomicInteger();
+
+	public ThreadConfinedInstanceProvider(BeanInstanceFactory factory) {
+		this.factory = factory;
+	}
+
+	@Override
+	public SessionBean acquire() {
+		if (closed) {
+			throw closedException();
+		}
+
+		ConfinedInstance confined = instances.get();
+
+		if (confined == null) {
+			confined = new ConfinedInstance(factory.build());
+			confined.state.set(ConfinedInstance.IN_USE);
+			registered.add(confined);
+			instanceCount.incrementAndGet();
+
+			if (closed && registered.remove(confined)) {
+				//shut down while it was being built, so it's never cached
+				remove(confined.instance);
+				instanceCount.decrementAndGet();
+				throw closedException();
+			}
+
+			instances.set(confined);
+
+			return confined.instance;
+		}
+
+		if (confined.state.compareAndSet(ConfinedInstance.IDLE, ConfinedInstance.IN_USE)) {
+			return confined.instance;
+		}
+
+		if (confined.state.get() == ConfinedInstance.IN_USE) {
+			//reentrant call
+			return factory.build();
+		}
+
+		//removed by shutdown
+		instances.remove();
+		throw closedException();
+	}
+
+	@Override
+	public void release(SessionBean sb) {
+		ConfinedInstance confined = instances.get();
+
+		if (confined == null || confined.instance != sb) {
+			//temporary instance of a reentrant call
+			remove(sb);
+			return;
+		}
+
+		if (!confined.state.compareAndSet(ConfinedInstance.IN_USE, ConfinedInstance.IDLE)) {
+			//shutdown came while the instance was in use, and left its removal to us
+			instances.remove();
+			remove(sb);
+			instanceCount.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void discard(SessionBean sb) {
+		ConfinedInstance confined = instances.get();
+
+		if (confined != null && confined.instance == sb) {
+			//the thread gets a new instance on its next call
+			instances.remove();
+			//when shutdown already took it, it left the removal to us anyway, as the instance was in use
+			registered.remove(confined);
+			instanceCount.decrementAndGet();
+		}
+
+		remove(sb);
+	}
+
+	@Override
+	public void shutdown() {
+		closed = true;
+
+		for (ConfinedInstance confined : registered) {
+			if (!registered.remove(confined)) {
+				continue;
+			}
+
+			//its thread may release it between both attempts, so they're retried until one of them succeeds
+			for (;;) {
+				if (confined.state.compareAndSet(ConfinedInstance.IDLE, ConfinedInstance.REMOVED)) {
+					remove(confined.instance);
+					instanceCount.decrementAndGet();
+					break;
+				}
+
+				if (confined.state.compareAndSet(ConfinedInstance.IN_USE, ConfinedInstance.REMOVED)) {
+					//in use: its thread removes it on release
+					break;
+				}
+			}
+		}
+
+		instances.remove();
+	}
+
+	public int getInstanceCount() {
+		return instanceCount.get();
+	}
+
+	private void remove(SessionBean sb) {
+		try {
+			sb.ejbRemove();
+		} catch (Exception e) {
+			LOGGER.warn("ejbRemove() failed on thread-confined instance of '" + sb.getClass().getName() + "': " + e.getMessage());
+		}
+	}
+
+	private IllegalStateException closedException() {
+		return new IllegalStateException("Instance provider was shut down: no more instances are handed out.");
+	}
+
+	private static class ConfinedInstance {
+		static final int IDLE = 0;
+		static final int IN_USE = 1;
+		static final int REMOVED = 2;
+
+		final SessionBean instance;
+		//changed by its thread, and by shutdown
+		final AtomicInteger state = new AtomicInteger(IDLE);
+
+		ConfinedInstance(SessionBean instance) {
+			this.instance = instance;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package org.tinyejb.proxies;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ejb.SessionBean;
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+/**
+ * Instances of a pooled stateless bean pinned to transactions.
+ *
+ * The first call of a transaction borrows an instance from the pool, and it stays with the transaction, serving its next calls
+ * without going back to the pool, until the transaction completes and gives it back. An instance still serves one call at a time,
+ * so a call that finds the instance of its transaction busy (a loopback call, or another thread on the same transaction) borrows
+ * one of its own, as it would without affinity.
+ */
+public class TransactionAffinity {
+	private final IBeanInstanceProvider instanceProvider;
+	private final ConcurrentMap<Transaction, PinnedInstance> pinned = new ConcurrentHashMap<Transaction, PinnedInstance>();
+
+	TransactionAffinity(IBeanInstanceProvider instanceProvider) {
+		this.instanceProvider = instanceProvider;
+	}
+
+	/**
+	 * Claims the instance pinned to a transaction, pinning one from the pool on the first call.
+	 * Callers must {@link PinnedInstance#unclaim()} it when the call ends.
+	 *
+	 * @return null if the pinned instance is busy, or the transaction takes no more synchronizations (i.e. marked for rollback)
+	 */
+	PinnedInstance claim(Transaction tx) throws SystemException {
+		PinnedInstance instance = pinned.get(tx);
+
+		if (instance != null) {
+			return instance.claim() ? instance : null;
+		}
+
+		instance = new PinnedInstance(tx, instanceProvider.acquire());
+
+		//published before registering, so a transaction completing right away can't leave it behind
+		pinned.put(tx, instance);
+
+		try {
+			tx.registerSynchronization(instance);
+		} catch (RollbackException e) {
+			unpin(instance);
+			return null;
+		} catch (IllegalStateException e) {
+			unpin(instance);
+			return null;
+		} catch (SystemException e) {
+			unpin(instance);
+			throw e;
+		}
+
+		return instance;
+	}
+
+	private void unpin(PinnedInstance instance) {
+		pinned.remove(instance.tx, instance);
+		instanceProvider.release(instance.bean);
+	}
+
+	/**
+	 * transactions that have an instance pinned right now
+	 */
+	public int getPinnedCount() {
+		return pinned.size();
+	}
+
+	/**
+	 * An instance pinned to a transaction. It's given back to the pool when the transaction completes, or when the call running
+	 * on it ends, if that's later.
+	 */
+	final class PinnedInstance implements Synchronization {
+		private final Transaction tx;
+		private final SessionBean bean;
+		//pinned instances start claimed by the call that borrowed them
+		private boolean busy = true;
+		private boolean completed;
+
+		private PinnedInstance(Transaction tx, SessionBean bean) {
+			this.tx = tx;
+			this.bean = bean;
+		}
+
+		SessionBean getBean() {
+			return bean;
+		}
+
+		private synchronized boolean claim() {
+			if (busy || completed) {
+				return false;
+			}
+
+			busy = true;
+			return true;
+		}
+
+		void unclaim() {
+			boolean release;
+
+			synchronized (this) {
+				busy = false;
+				release = completed;
+			}
+
+			if (release) {
+				instanceProvider.release(bean);
+			}
+		}
+
+		@Override
+		public void beforeCompletion() {
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			pinned.remove(tx, this);
+
+			boolean release;
+
+			synchronized (this) {
+				completed = true;
+				release = !busy;
+			}
+
+			if (release) {
+				instanceProvider.release(bean);
+			}
+		}
+	}
+}
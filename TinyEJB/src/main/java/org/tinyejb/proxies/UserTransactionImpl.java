@@ -0,0 +1,86 @@
+package org.tinyejb.proxies;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import javax.transaction.UserTransaction;
+
+import org.tinyejb.core.EJBMetadata;
+
+/**
+ * UserTransaction of bean-managed transaction beans (see {@link SessionContextImpl#getUserTransaction()}).
+ *
+ * Transactions are demarcated on the container's TransactionManager, and each change is recorded on the invocation context, so the
+ * beans the bean calls see the transaction it began. Beans that demarcate with some other UserTransaction (i.e. from JNDI) bypass
+ * the invocation context, and their nested calls may not see their transactions.
+ */
+final class UserTransactionImpl implements UserTransaction {
+	private final EJBMetadata ejbMetadata;
+	//seconds, set by the bean for the transactions it begins. Zero means the TransactionManager's default
+	private volatile int timeout;
+
+	UserTransactionImpl(EJBMetadata ejbMetadata) {
+		this.ejbMetadata = ejbMetadata;
+	}
+
+	private TransactionManager txManager() {
+		TransactionManager txManager = ejbMetadata.getEjbContainer().getTransactionManager();
+
+		if (txManager == null) {
+			throw new IllegalStateException("No JTA TransactionManager configured");
+		}
+
+		return txManager;
+	}
+
+	@Override
+	public void begin() throws NotSupportedException, SystemException {
+		//nested calls fail fast past the deadline, as in container-managed transactions with a timeout
+		InvocationContext.current().begin(txManager(), timeout);
+	}
+
+	@Override
+	public void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SecurityException, IllegalStateException, SystemException {
+		TransactionManager txManager = txManager();
+
+		try {
+			txManager.commit();
+		} finally {
+			//the transaction is over, even if commit failed
+			InvocationContext.current().setTransaction(txManager, null);
+		}
+	}
+
+	@Override
+	public void rollback() throws IllegalStateException, SecurityException, SystemException {
+		TransactionManager txManager = txManager();
+
+		try {
+			txManager.rollback();
+		} finally {
+			InvocationContext.current().setTransaction(txManager, null);
+		}
+	}
+
+	@Override
+	public void setRollbackOnly() throws IllegalStateException, SystemException {
+		txManager().setRollbackOnly();
+	}
+
+	@Override
+	public int getStatus() throws SystemException {
+		return txManager().getStatus();
+	}
+
+	@Override
+	public void setTransactionTimeout(int seconds) throws SystemException {
+		if (seconds < 0) {
+			throw new SystemException("Transaction timeout can't be negative: " + seconds);
+		}
+
+		this.timeout = seconds;
+	}
+}
@@ -0,0 +1,512 @@
+package org.tinyejb.transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transaction of a {@link LocalTransactionManager}.
+ *
+ * Each resource manager enlisted gets a branch of the transaction. Commit runs the synchronizations and then:
+ * 	- no resource: nothing else to do
+ * 	- one resource: one-phase commit, straight to the resource manager, so a transaction that touches only one database
+ * 	  costs about the same as a local (non-XA) one
+ * 	- more resources: two-phase commit. There is no transaction log, so a failure between the phases can't be recovered
+ * 	  by TinyEJB, and it's reported as a heuristic outcome
+ *
+ * A transaction past its timeout is marked rollback-only, so it can't commit anymore, but the work running on it isn't interrupted.
+ */
+public final class LocalTransaction implements Transaction {
+	private final static Logger LOGGER = LoggerFactory.getLogger(LocalTransaction.class);
+
+	private final LocalTransactionManager txManager;
+	private final long id;
+	private final byte[] globalTransactionId;
+	private final int timeout;
+	//System.currentTimeMillis() after which the transaction can't commit. Zero means no timeout
+	private final long deadline;
+
+	private int status = Status.STATUS_ACTIVE;
+	//allocated on first use, as most transactions have few of them
+	private List<Synchronization> synchronizations;
+	private List<Branch> branches;
+	private int branchCount;
+	//why the transaction was marked rollback-only, if known
+	private Throwable rollbackCause;
+
+	LocalTransaction(LocalTransactionManager txManager, long id, byte[] globalTransactionId, int timeout) {
+		this.txManager = txManager;
+		this.id = id;
+		this.globalTransactionId = globalTransactionId;
+		this.timeout = timeout;
+		this.deadline = timeout > 0 ? System.currentTimeMillis() + timeout * 1000L : 0;
+	}
+
+	LocalTransactionManager getTxManager() {
+		return txManager;
+	}
+
+	/**
+	 * true once the transaction was committed or rolled back
+	 */
+	synchronized boolean isDone() {
+		return status == Status.STATUS_COMMITTED || status == Status.STATUS_ROLLEDBACK || status == Status.STATUS_UNKNOWN;
+	}
+
+	/**
+	 * timeout of the transaction, in seconds. Zero means none
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	@Override
+	public synchronized int getStatus() throws SystemException {
+		checkTimeout();
+
+		return status;
+	}
+
+	@Override
+	public synchronized void setRollbackOnly() throws IllegalStateException, SystemException {
+		if (status != Status.STATUS_ACTIVE && status != Status.STATUS_MARKED_ROLLBACK) {
+			throw new IllegalStateException("Transaction " + this + " can't be marked for rollback, as it's " + statusName(status));
+		}
+
+		status = Status.STATUS_MARKED_ROLLBACK;
+	}
+
+	@Override
+	public synchronized void registerSynchronization(Synchronization sync) throws RollbackException, IllegalStateException, SystemException {
+		assertActive();
+
+		if (synchronizations == null) {
+			synchronizations = new ArrayList<Synchronization>(2);
+		}
+
+		synchronizations.add(sync);
+	}
+
+	@Override
+	public synchronized boolean enlistResource(XAResource resource) throws RollbackException, IllegalStateException, SystemException {
+		assertActive();
+
+		try {
+			Branch branch = findBranch(resource);
+
+			if (branch != null) {
+				if (branch.state == Branch.SUSPENDED) {
+					resource.start(branch.xid, XAResource.TMRESUME);
+				} else if (branch.state == Branch.ENDED) {
+					resource.start(branch.xid, XAResource.TMJOIN);
+				}
+
+				branch.state = Branch.ACTIVE;
+				return true;
+			}
+
+			if (branches == null) {
+				branches = new ArrayList<Branch>(1);
+			}
+
+			//another connection to a resource manager already enlisted joins its branch
+			for (Branch other : branches) {
+				if (!other.joined && other.resource.isSameRM(resource)) {
+					resource.start(other.xid, XAResource.TMJOIN);
+					branches.add(new Branch(resource, other.xid, true));
+					return true;
+				}
+			}
+
+			LocalXid xid = new LocalXid(globalTransactionId, ++branchCount);
+
+			if (deadline != 0) {
+				resource.setTransactionTimeout((int) Math.max(1, (deadline - System.currentTimeMillis()) / 1000));
+			}
+
+			resource.start(xid, XAResource.TMNOFLAGS);
+			branches.add(new Branch(resource, xid, false));
+
+			return true;
+		} catch (XAException e) {
+			throw systemException("Resource can't be enlisted on transaction " + this, e);
+		}
+	}
+
+	@Override
+	public synchronized boolean delistResource(XAResource resource, int flag) throws IllegalStateException, SystemException {
+		Branch branch = findBranch(resource);
+
+		if (branch == null || (branch.state != Branch.ACTIVE && branch.state != Branch.SUSPENDED)) {
+			throw new IllegalStateException("Resource isn't enlisted on transaction " + this);
+		}
+
+		if (status != Status.STATUS_ACTIVE && status != Status.STATUS_MARKED_ROLLBACK) {
+			throw new IllegalStateException("Transaction " + this + " is " + statusName(status));
+		}
+
+		try {
+			resource.end(branch.xid, flag);
+		} catch (XAException e) {
+			markRollback(e);
+			throw systemException("Resource can't be delisted from transaction " + this, e);
+		}
+
+		branch.state = flag == XAResource.TMSUSPEND ? Branch.SUSPENDED : Branch.ENDED;
+
+		if (flag == XAResource.TMFAIL) {
+			status = Status.STATUS_MARKED_ROLLBACK;
+		}
+
+		return true;
+	}
+
+	@Override
+	public synchronized void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SecurityException, IllegalStateException, SystemException {
+		checkTimeout();
+
+		if (status != Status.STATUS_ACTIVE && status != Status.STATUS_MARKED_ROLLBACK) {
+			throw new IllegalStateException("Transaction " + this + " can't be committed, as it's " + statusName(status));
+		}
+
+		if (status == Status.STATUS_ACTIVE) {
+			beforeCompletion();
+		}
+
+		if (status == Status.STATUS_ACTIVE) {
+			try {
+				endBranches(XAResource.TMSUCCESS);
+			} catch (XAException e) {
+				markRollback(e);
+			}
+		}
+
+		if (status == Status.STATUS_MARKED_ROLLBACK) {
+			rollbackBranches();
+			complete(Status.STATUS_ROLLEDBACK);
+
+			throw rollbackException("Transaction " + this + " was rolled back, as it was marked for rollback", rollbackCause);
+		}
+
+		List<Branch> work = new ArrayList<Branch>(branches != null ? branches.size() : 0);
+
+		if (branches != null) {
+			for (Branch branch : branches) {
+				if (!branch.joined) {
+					work.add(branch);
+				}
+			}
+		}
+
+		if (work.isEmpty()) {
+			complete(Status.STATUS_COMMITTED);
+		} else if (work.size() == 1) {
+			commitOnePhase(work.get(0));
+		} else {
+			commitTwoPhase(work);
+		}
+
+		LOGGER.debug("Transaction " + this + " committed");
+	}
+
+	@Override
+	public synchronized void rollback() throws IllegalStateException, SystemException {
+		if (status != Status.STATUS_ACTIVE && status != Status.STATUS_MARKED_ROLLBACK) {
+			throw new IllegalStateException("Transaction " + this + " can't be rolled back, as it's " + statusName(status));
+		}
+
+		try {
+			endBranches(XAResource.TMFAIL);
+		} catch (XAException e) {
+			LOGGER.warn("Resource can't end its branch of transaction " + this + " (XA error " + e.errorCode + ")");
+		}
+
+		rollbackBranches();
+		complete(Status.STATUS_ROLLEDBACK);
+
+		LOGGER.debug("Transaction " + this + " rolled back");
+	}
+
+	private void commitOnePhase(Branch branch) throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SystemException {
+		status = Status.STATUS_COMMITTING;
+
+		try {
+			branch.resource.commit(branch.xid, true);
+			complete(Status.STATUS_COMMITTED);
+		} catch (XAException e) {
+			if (isRollback(e)) {
+				complete(Status.STATUS_ROLLEDBACK);
+				throw rollbackException("Resource rolled back transaction " + this, e);
+			}
+
+			switch (e.errorCode) {
+				case XAException.XA_HEURCOM:
+					forget(branch);
+					complete(Status.STATUS_COMMITTED);
+					break;
+				case XAException.XA_HEURRB:
+					forget(branch);
+					complete(Status.STATUS_ROLLEDBACK);
+					throw (HeuristicRollbackException) new HeuristicRollbackException("Resource rolled back transaction " + this + " by an heuristic decision").initCause(e);
+				case XAException.XA_HEURMIX:
+				case XAException.XA_HEURHAZ:
+					forget(branch);
+					complete(Status.STATUS_UNKNOWN);
+					throw (HeuristicMixedException) new HeuristicMixedException("Resource partially committed transaction " + this).initCause(e);
+				default:
+					complete(Status.STATUS_UNKNOWN);
+					throw systemException("Outcome of transaction " + this + " is unknown", e);
+			}
+		}
+	}
+
+	private void commitTwoPhase(List<Branch> work) throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SystemException {
+		status = Status.STATUS_PREPARING;
+
+		List<Branch> prepared = new ArrayList<Branch>(work.size());
+
+		for (Branch branch : work) {
+			try {
+				if (branch.resource.prepare(branch.xid) == XAResource.XA_OK) {
+					prepared.add(branch);
+				}
+			} catch (XAException e) {
+				//the resource that failed could have prepared, so it's rolled back too
+				rollbackCause = e;
+				rollbackBranches();
+				complete(Status.STATUS_ROLLEDBACK);
+
+				throw rollbackException("Resource failed to prepare transaction " + this, e);
+			}
+		}
+
+		status = Status.STATUS_COMMITTING;
+
+		int committed = 0;
+		XAException failure = null;
+
+		for (Branch branch : prepared) {
+			try {
+				branch.resource.commit(branch.xid, false);
+				committed++;
+			} catch (XAException e) {
+				if (e.errorCode == XAException.XA_HEURCOM) {
+					committed++;
+				} else {
+					failure = e;
+				}
+
+				forget(branch);
+			}
+		}
+
+		if (failure == null) {
+			complete(Status.STATUS_COMMITTED);
+		} else if (committed == 0 && isRollback(failure)) {
+			complete(Status.STATUS_ROLLEDBACK);
+			throw (HeuristicRollbackException) new HeuristicRollbackException("All resources rolled back transaction " + this + " after preparing it").initCause(failure);
+		} else {
+			complete(Status.STATUS_UNKNOWN);
+			throw (HeuristicMixedException) new HeuristicMixedException("Resources failed to commit transaction " + this + " after preparing it").initCause(failure);
+		}
+	}
+
+	private void beforeCompletion() {
+		if (synchronizations == null) {
+			return;
+		}
+
+		//synchronizations may register others while running
+		for (int i = 0; i < synchronizations.size() && status == Status.STATUS_ACTIVE; i++) {
+			try {
+				synchronizations.get(i).beforeCompletion();
+			} catch (RuntimeException e) {
+				LOGGER.debug("Synchronization failed before completion of transaction " + this, e);
+				markRollback(e);
+			}
+		}
+	}
+
+	private void endBranches(int flag) throws XAException {
+		if (branches == null) {
+			return;
+		}
+
+		for (Branch branch : branches) {
+			if (branch.state == Branch.ACTIVE || branch.state == Branch.SUSPENDED) {
+				branch.resource.end(branch.xid, flag);
+				branch.state = Branch.ENDED;
+			}
+		}
+	}
+
+	private void rollbackBranches() {
+		if (branches == null) {
+			return;
+		}
+
+		for (Branch branch : branches) {
+			try {
+				if (branch.state == Branch.ACTIVE || branch.state == Branch.SUSPENDED) {
+					branch.resource.end(branch.xid, XAResource.TMFAIL);
+					branch.state = Branch.ENDED;
+				}
+
+				if (!branch.joined) {
+					branch.resource.rollback(branch.xid);
+				}
+			} catch (XAException e) {
+				if (!isRollback(e) && e.errorCode != XAException.XAER_NOTA) {
+					LOGGER.warn("Resource failed to roll back transaction " + this + " (XA error " + e.errorCode + ")");
+				}
+			}
+		}
+	}
+
+	private void forget(Branch branch) {
+		try {
+			branch.resource.forget(branch.xid);
+		} catch (XAException e) {
+			LOGGER.debug("Resource can't forget transaction " + this + " (XA error " + e.errorCode + ")");
+		}
+	}
+
+	private void complete(int finalStatus) {
+		status = finalStatus;
+
+		if (synchronizations == null) {
+			return;
+		}
+
+		for (Synchronization sync : synchronizations) {
+			try {
+				sync.afterCompletion(finalStatus);
+			} catch (RuntimeException e) {
+				LOGGER.warn("Synchronization failed after completion of transaction " + this, e);
+			}
+		}
+	}
+
+	private void assertActive() throws RollbackException {
+		checkTimeout();
+
+		if (status == Status.STATUS_MARKED_ROLLBACK) {
+			throw rollbackException("Transaction " + this + " is marked for rollback", rollbackCause);
+		}
+
+		if (status != Status.STATUS_ACTIVE) {
+			throw new IllegalStateException("Transaction " + this + " is " + statusName(status));
+		}
+	}
+
+	private void checkTimeout() {
+		if (deadline != 0 && status == Status.STATUS_ACTIVE && System.currentTimeMillis() > deadline) {
+			LOGGER.warn("Transaction " + this + " timed out after " + timeout + " seconds, and will roll back");
+			markRollback(new IllegalStateException("Transaction timed out after " + timeout + " seconds"));
+		}
+	}
+
+	private void markRollback(Throwable cause) {
+		if (rollbackCause == null) {
+			rollbackCause = cause;
+		}
+
+		status = Status.STATUS_MARKED_ROLLBACK;
+	}
+
+	private Branch findBranch(XAResource resource) {
+		if (branches != null) {
+			for (Branch branch : branches) {
+				if (branch.resource == resource) {
+					return branch;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	private static boolean isRollback(XAException e) {
+		return e.errorCode >= XAException.XA_RBBASE && e.errorCode <= XAException.XA_RBEND;
+	}
+
+	private static RollbackException rollbackException(String message, Throwable cause) {
+		RollbackException e = new RollbackException(message);
+
+		if (cause != null) {
+			e.initCause(cause);
+		}
+
+		return e;
+	}
+
+	private static SystemException systemException(String message, XAException cause) {
+		SystemException e = new SystemException(message + " (XA error " + cause.errorCode + ")");
+		e.initCause(cause);
+
+		return e;
+	}
+
+	static String statusName(int status) {
+		switch (status) {
+			case Status.STATUS_ACTIVE:
+				return "active";
+			case Status.STATUS_MARKED_ROLLBACK:
+				return "marked for rollback";
+			case Status.STATUS_PREPARING:
+				return "preparing";
+			case Status.STATUS_PREPARED:
+				return "prepared";
+			case Status.STATUS_COMMITTING:
+				return "committing";
+			case Status.STATUS_COMMITTED:
+				return "committed";
+			case Status.STATUS_ROLLING_BACK:
+				return "rolling back";
+			case Status.STATUS_ROLLEDBACK:
+				return "rolled back";
+			case Status.STATUS_NO_TRANSACTION:
+				return "no transaction";
+			default:
+				return "unknown";
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "tx#" + id;
+	}
+
+	/**
+	 * A resource enlisted on the transaction
+	 */
+	private static class Branch {
+		static final int ACTIVE = 0;
+		static final int SUSPENDED = 1;
+		static final int ENDED = 2;
+
+		private final XAResource resource;
+		private final LocalXid xid;
+		//joined the branch of another resource of the same resource manager, that prepares and commits for both
+		private final boolean joined;
+		private int state = ACTIVE;
+
+		Branch(XAResource resource, LocalXid xid, boolean joined) {
+			this.resource = resource;
+			this.xid = xid;
+			this.joined = joined;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package org.tinyejb.transaction;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.UserTransaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process JTA TransactionManager, for deployments without an application server (i.e. standalone and batch applications).
+ *
+ * Transactions are bound to the thread that begins them, support synchronizations and XA resources, and commit in one phase when
+ * they have only one resource (see {@link LocalTransaction}). They time out after the default timeout, unless the thread sets
+ * another one with {@link #setTransactionTimeout(int)}. It's also a UserTransaction, for code that demarcates its own transactions.
+ *
+ * There is no transaction log, so transactions aren't recovered after a crash: it fits applications whose transactions touch a
+ * single resource manager, or can live with that. EJBContainer uses it when no TransactionManager is found on JNDI, if
+ * useBuiltInTransactionManager is set.
+ */
+public class LocalTransactionManager implements TransactionManager, UserTransaction {
+	private final static Logger LOGGER = LoggerFactory.getLogger(LocalTransactionManager.class);
+
+	private static final LocalTransactionManager INSTANCE = new LocalTransactionManager();
+
+	//random, so transaction ids of different JVMs don't clash on resource managers
+	private final long nodeId = UUID.randomUUID().getMostSignificantBits();
+	private final AtomicLong sequence = new AtomicLong();
+
+	//seconds. Zero means no timeout. Default is 5 minutes, as JBoss
+	private volatile int defaultTimeout = 300;
+
+	private final ThreadLocal<ThreadState> threads = new ThreadLocal<ThreadState>() {
+		@Override
+		protected ThreadState initialValue() {
+			return new ThreadState();
+		}
+	};
+
+	/**
+	 * manager shared by all containers of the JVM
+	 */
+	public static LocalTransactionManager getInstance() {
+		return INSTANCE;
+	}
+
+	@Override
+	public void begin() throws NotSupportedException, SystemException {
+		ThreadState thread = threads.get();
+
+		if (thread.transaction != null && !thread.transaction.isDone()) {
+			throw new NotSupportedException("Thread is already associated with transaction " + thread.transaction + ", and nested transactions are not supported");
+		}
+
+		long id = sequence.incrementAndGet();
+
+		thread.transaction = new LocalTransaction(this, id, globalTransactionId(id), thread.timeout > 0 ? thread.timeout : defaultTimeout);
+
+		LOGGER.debug("Transaction " + thread.transaction + " started");
+	}
+
+	@Override
+	public void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SecurityException, IllegalStateException, SystemException {
+		ThreadState thread = threads.get();
+
+		try {
+			requireTransaction(thread).commit();
+		} finally {
+			thread.transaction = null;
+		}
+	}
+
+	@Override
+	public void rollback() throws IllegalStateException, SecurityException, SystemException {
+		ThreadState thread = threads.get();
+
+		try {
+			requireTransaction(thread).rollback();
+		} finally {
+			thread.transaction = null;
+		}
+	}
+
+	@Override
+	public void setRollbackOnly() throws IllegalStateException, SystemException {
+		requireTransaction(threads.get()).setRollbackOnly();
+	}
+
+	@Override
+	public int getStatus() throws SystemException {
+		LocalTransaction tx = threads.get().transaction;
+
+		return tx != null ? tx.getStatus() : Status.STATUS_NO_TRANSACTION;
+	}
+
+	@Override
+	public Transaction getTransaction() throws SystemException {
+		return threads.get().transaction;
+	}
+
+	@Override
+	public Transaction suspend() throws SystemException {
+		ThreadState thread = threads.get();
+		LocalTransaction tx = thread.transaction;
+
+		thread.transaction = null;
+
+		return tx;
+	}
+
+	@Override
+	public void resume(Transaction tx) throws InvalidTransactionException, IllegalStateException, SystemException {
+		ThreadState thread = threads.get();
+
+		if (tx == null) {
+			return;
+		}
+
+		if (!(tx instanceof LocalTransaction) || ((LocalTransaction) tx).getTxManager() != this) {
+			throw new InvalidTransactionException("Transaction " + tx + " doesn't belong to this TransactionManager");
+		}
+
+		if (((LocalTransaction) tx).isDone()) {
+			throw new InvalidTransactionException("Transaction " + tx + " has already completed");
+		}
+
+		if (thread.transaction != null && !thread.transaction.isDone()) {
+			throw new IllegalStateException("Thread is already associated with transaction " + thread.transaction);
+		}
+
+		thread.transaction = (LocalTransaction) tx;
+	}
+
+	/**
+	 * Timeout (seconds) for transactions begun by the current thread from now on. Zero means the default timeout
+	 */
+	@Override
+	public void setTransactionTimeout(int seconds) throws SystemException {
+		if (seconds < 0) {
+			throw new SystemException("Transaction timeout can't be negative: " + seconds);
+		}
+
+		threads.get().timeout = seconds;
+	}
+
+	public int getDefaultTimeout() {
+		return defaultTimeout;
+	}
+
+	/**
+	 * Timeout (seconds) for transactions of threads that don't set their own. Zero means no timeout
+	 */
+	public void setDefaultTimeout(int defaultTimeout) {
+		if (defaultTimeout < 0) {
+			throw new IllegalStateException("Transaction timeout can't be negative: " + defaultTimeout);
+		}
+
+		this.defaultTimeout = defaultTimeout;
+	}
+
+	private LocalTransaction requireTransaction(ThreadState thread) {
+		if (thread.transaction == null) {
+			throw new IllegalStateException("No transaction associated with the current thread");
+		}
+
+		return thread.transaction;
+	}
+
+	private byte[] globalTransactionId(long id) {
+		byte[] gtrid = new byte[16];
+
+		for (int i = 0; i < 8; i++) {
+			gtrid[i] = (byte) (nodeId >>> (56 - i * 8));
+			gtrid[i + 8] = (byte) (id >>> (56 - i * 8));
+		}
+
+		return gtrid;
+	}
+
+	/**
+	 * transaction bound to a thread, and the timeout it set
+	 */
+	private static class ThreadState {
+		private LocalTransaction transaction;
+		private int timeout;
+	}
+}
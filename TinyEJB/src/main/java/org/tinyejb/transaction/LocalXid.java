@@ -0,0 +1,69 @@
+package org.tinyejb.transaction;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import javax.transaction.xa.Xid;
+
+/**
+ * Branch identifier of a {@link LocalTransaction}: the global id is the same for all resources of a transaction, and each
+ * resource manager gets a branch of its own.
+ */
+final class LocalXid implements Xid, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	//"TEJB"
+	static final int FORMAT_ID = 0x54454A42;
+
+	private final byte[] globalTransactionId;
+	private final byte[] branchQualifier;
+	private final int branch;
+
+	LocalXid(byte[] globalTransactionId, int branch) {
+		this.globalTransactionId = globalTransactionId;
+		this.branch = branch;
+		this.branchQualifier = new byte[] { (byte) (branch >>> 24), (byte) (branch >>> 16), (byte) (branch >>> 8), (byte) branch };
+	}
+
+	@Override
+	public int getFormatId() {
+		return FORMAT_ID;
+	}
+
+	@Override
+	public byte[] getGlobalTransactionId() {
+		return globalTransactionId.clone();
+	}
+
+	@Override
+	public byte[] getBranchQualifier() {
+		return branchQualifier.clone();
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(globalTransactionId) * 31 + Arrays.hashCode(branchQualifier);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Xid)) {
+			return false;
+		}
+
+		Xid other = (Xid) obj;
+
+		return other.getFormatId() == FORMAT_ID && Arrays.equals(globalTransactionId, other.getGlobalTransactionId()) && Arrays.equals(branchQualifier, other.getBranchQualifier());
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		for (byte b : globalTransactionId) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+
+		return sb.append(':').append(branch).toString();
+	}
+}
@@ -1,5 +1,50 @@
 package org.tinyejb.core;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+import org.tinyejb.proxies.FieldStateCodec;
+import org.tinyejb.proxies.JavaSerializationCodec;
+
 public class EJBContainerTest {
 
+	@Test
+	public void testSerializable() throws Exception {
+		EJBContainer copy = roundTrip(new EJBContainer());
+
+		assertTrue(copy.getSessionStateCodec() instanceof FieldStateCodec);
+		assertEquals(EJBContainer.ContainerStatus.NORMAL, copy.getContainerStatus());
+	}
+
+	@Test
+	public void testSerializableKeepsStateCodec() throws Exception {
+		EJBContainer container = new EJBContainer();
+		container.setSessionStateCodec(new JavaSerializationCodec());
+
+		assertTrue(roundTrip(container).getSessionStateCodec() instanceof JavaSerializationCodec);
+
+		//null means plain Java serialization, and it stays so
+		container.setSessionStateCodec(null);
+
+		assertNull(roundTrip(container).getSessionStateCodec());
+	}
+
+	static <T> T roundTrip(T obj) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(obj);
+		out.close();
+
+		@SuppressWarnings("unchecked")
+		T copy = (T) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+		return copy;
+	}
 }
@@ -1,6 +1,10 @@
 package org.tinyejb.core;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -8,9 +12,13 @@ import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
 import org.tinyejb.core.EJBMetadata.BEAN_TYPE;
+import org.tinyejb.core.EJBMetadata.EJBMethodConcurrencyInfo;
 import org.tinyejb.core.EJBMetadata.EJBMethodTransactionInfo;
 import org.tinyejb.core.EJBMetadata.EJBMethodTransactionInfo.METHOD_INTF;
+import org.tinyejb.core.EJBMetadata.LOCK_TYPE;
 import org.tinyejb.core.EJBMetadata.TRANSACTION_TYPE;
+import org.tinyejb.test.ejbs.stateful.CartItem;
+import org.tinyejb.test.ejbs.stateful.CartLocal;
 
 public class EJBMetadataTest {
 	private EJBMetadata	ejbMetadata;
@@ -31,4 +39,75 @@ public class EJBMetadataTest {
 		assertEquals(TRANSACTION_TYPE.Supports, ejbMetadata.getDefaultTxType());
 
 	}
+
+	@Test
+	public void testResolveTransactionTypes() throws Exception {
+		List<EJBMethodTransactionInfo> mList = new ArrayList<EJBMethodTransactionInfo>();
+		mList.add(new EJBMethodTransactionInfo("*", "Unknown@*(void)", TRANSACTION_TYPE.Supports, METHOD_INTF.Unknown));
+		mList.add(new EJBMethodTransactionInfo("*", "Local@*(void)", TRANSACTION_TYPE.Never, METHOD_INTF.Local));
+		mList.add(new EJBMethodTransactionInfo("addItem", "Local@addItem(org.tinyejb.test.ejbs.stateful.CartItem)", TRANSACTION_TYPE.Required, METHOD_INTF.Local, new String[] { "org.tinyejb.test.ejbs.stateful.CartItem" }));
+		mList.add(new EJBMethodTransactionInfo("getTotalAmount", "Unknown@getTotalAmount(void)", TRANSACTION_TYPE.Mandatory, METHOD_INTF.Unknown));
+		mList.add(new EJBMethodTransactionInfo("noSuchMethod", "Unknown@noSuchMethod(void)", TRANSACTION_TYPE.Mandatory, METHOD_INTF.Unknown));
+
+		ejbMetadata.addMethodTransactionInfo(mList);
+		List<EJBMethodTransactionInfo> unresolved = ejbMetadata.resolveTransactionTypes(CartLocal.class, null, null, null);
+
+		assertEquals(1, unresolved.size());
+		assertEquals("noSuchMethod", unresolved.get(0).getName());
+
+		//method name and params overrides '*' with method-intf
+		assertEquals(TRANSACTION_TYPE.Required, ejbMetadata.getTransactionType(CartLocal.class.getMethod("addItem", CartItem.class), METHOD_INTF.Local));
+		//method name overrides '*', even without method-intf
+		assertEquals(TRANSACTION_TYPE.Mandatory, ejbMetadata.getTransactionType(CartLocal.class.getMethod("getTotalAmount"), METHOD_INTF.Local));
+		//'*' with method-intf overrides '*' without it
+		assertEquals(TRANSACTION_TYPE.Never, ejbMetadata.getTransactionType(CartLocal.class.getMethod("removeItem", String.class), METHOD_INTF.Local));
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testDeprecatedTransactionInfo() throws Exception {
+		List<EJBMethodTransactionInfo> mList = new ArrayList<EJBMethodTransactionInfo>();
+		mList.add(new EJBMethodTransactionInfo("addItem", "Local@addItem(org.tinyejb.test.ejbs.stateful.CartItem)", TRANSACTION_TYPE.Mandatory, METHOD_INTF.Local, new String[] { "org.tinyejb.test.ejbs.stateful.CartItem" }));
+
+		ejbMetadata.setLocalIntf(CartLocal.class.getName());
+		ejbMetadata.addMethodTransactionInfo(mList);
+		ejbMetadata.resolveTransactionTypes(CartLocal.class, null, null, null);
+
+		assertTrue(ejbMetadata.isLocalObjectInterface(CartLocal.class.getMethod("addItem", CartItem.class)));
+		assertEquals(TRANSACTION_TYPE.Mandatory, ejbMetadata.getTransactionInfoForMethod(CartLocal.class.getMethod("addItem", CartItem.class)).getTxType());
+		assertNull(ejbMetadata.getTransactionInfoForMethod(CartLocal.class.getMethod("getTotalAmount")));
+	}
+
+	@Test
+	public void testSerializable() throws Exception {
+		EJBMetadata stateful = new EJBMetadata("ejb2", BEAN_TYPE.Stateful, null, null);
+		stateful.setLocalIntf(CartLocal.class.getName());
+
+		List<EJBMethodTransactionInfo> mList = new ArrayList<EJBMethodTransactionInfo>();
+		mList.add(new EJBMethodTransactionInfo("getTotalAmount", "Unknown@getTotalAmount(void)", TRANSACTION_TYPE.Mandatory, METHOD_INTF.Unknown));
+		stateful.addMethodTransactionInfo(mList);
+
+		List<EJBMethodConcurrencyInfo> cList = new ArrayList<EJBMethodConcurrencyInfo>();
+		cList.add(new EJBMethodConcurrencyInfo("getTotalAmount", "Unknown@getTotalAmount(void)", METHOD_INTF.Unknown, null, LOCK_TYPE.Read, 500));
+		stateful.addMethodConcurrencyInfo(cList);
+
+		stateful.resolveTransactionTypes(CartLocal.class, null, null, null);
+		stateful.resolveConcurrencyInfo(CartLocal.class, null);
+
+		EJBMetadata copy = EJBContainerTest.roundTrip(stateful);
+
+		//resolved again, as Method objects aren't serialized
+		assertEquals(TRANSACTION_TYPE.Mandatory, copy.getTransactionType(CartLocal.class.getMethod("getTotalAmount"), METHOD_INTF.Local));
+		assertEquals(TRANSACTION_TYPE.Required, copy.getTransactionType(CartLocal.class.getMethod("removeItem", String.class), METHOD_INTF.Local));
+		assertEquals(LOCK_TYPE.Read, copy.getConcurrencyInfo(CartLocal.class.getMethod("getTotalAmount"), METHOD_INTF.Local).getLockType());
+		assertEquals(500, copy.getConcurrencyInfo(CartLocal.class.getMethod("getTotalAmount"), METHOD_INTF.Local).getAccessTimeout());
+
+		assertNotNull(copy.getStatefulLockStatistics());
+		assertNotNull(copy.getStatefulSessionStatistics());
+		assertNotNull(copy.getStatefulSessionRegistry());
+		assertNotSame(stateful.getStatefulSessionRegistry(), copy.getStatefulSessionRegistry());
+
+		//stateless metadata has nothing to resolve
+		assertEquals(TRANSACTION_TYPE.Required, EJBContainerTest.roundTrip(ejbMetadata).getTransactionType(CartLocal.class.getMethod("getTotalAmount"), METHOD_INTF.Local));
+	}
 }
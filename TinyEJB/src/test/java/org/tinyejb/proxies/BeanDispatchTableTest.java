@@ -0,0 +1,175 @@
+package org.tinyejb.proxies;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import javax.ejb.EJBException;
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.tinyejb.proxies.BeanDispatchTable.MethodInvoker;
+
+@RunWith(Parameterized.class)
+public class BeanDispatchTableTest {
+	private final boolean generatedInvokers;
+	private final BeanDispatchTable table;
+
+	@Parameters(name = "generated invokers: {0}")
+	public static Collection<Object[]> engines() {
+		return Arrays.asList(new Object[][] { { false }, { true } });
+	}
+
+	public BeanDispatchTableTest(boolean generatedInvokers) {
+		this.generatedInvokers = generatedInvokers;
+		this.table = new BeanDispatchTable(DispatchBean.class, generatedInvokers);
+	}
+
+	@Test
+	public void testInvoke() throws Exception {
+		DispatchBean bean = (DispatchBean) table.newInstance();
+
+		assertEquals(5L, invoke(bean, "add", new Class<?>[] { int.class, long.class }, 2, 3L));
+		assertEquals("a-b", invoke(bean, "join", new Class<?>[] { List.class, char.class }, Arrays.asList("a", "b"), '-'));
+		assertArrayEquals(new double[] { 2, 4 }, (double[]) invoke(bean, "twice", new Class<?>[] { double[].class }, new double[] { 1, 2 }), 0);
+		assertNull(invoke(bean, "touch", new Class<?>[0]));
+		assertEquals(1, bean.touched);
+		assertEquals(Boolean.TRUE, invoke(bean, "isTouched", null));
+	}
+
+	@Test
+	public void testInvokerEngine() throws Exception {
+		MethodInvoker invoker = table.lookup(DispatchIntf.class.getMethod("touch"));
+
+		assertEquals(DispatchBean.class.getMethod("touch"), invoker.getTargetMethod());
+		assertEquals(generatedInvokers, isGenerated(invoker));
+
+		//only public classes can be reached by generated code
+		BeanDispatchTable hidden = new BeanDispatchTable(HiddenBean.class, generatedInvokers);
+		assertFalse(isGenerated(hidden.lookup(HiddenBean.class.getMethod("ejbRemove"))));
+	}
+
+	@Test
+	public void testExceptionsWrapped() throws Exception {
+		DispatchBean bean = new DispatchBean();
+
+		for (Exception thrown : new Exception[] { new IOException("checked"), new EJBException("system"), new IllegalStateException("runtime") }) {
+			try {
+				invoke(bean, "fail", new Class<?>[] { Exception.class }, thrown);
+				fail("bean method failed");
+			} catch (InvocationTargetException e) {
+				assertSame(thrown, e.getCause());
+			}
+		}
+	}
+
+	@Test
+	public void testEjbCreate() throws Exception {
+		DispatchBean bean = (DispatchBean) table.newInstance();
+
+		table.lookupEjbCreate(new Class<?>[] { String.class }).invoke(bean, new Object[] { "created" });
+		assertEquals("created", bean.name);
+
+		try {
+			table.lookupEjbCreate(new Class<?>[] { int.class });
+			fail("no such ejbCreate");
+		} catch (NoSuchMethodException e) {
+		}
+	}
+
+	private Object invoke(DispatchBean bean, String name, Class<?>[] parameterTypes, Object... args) throws Exception {
+		return table.lookup(DispatchBean.class.getMethod(name, parameterTypes == null ? new Class<?>[0] : parameterTypes)).invoke(bean, args.length == 0 ? null : args);
+	}
+
+	private static boolean isGenerated(MethodInvoker invoker) {
+		return invoker.getClass().getName().startsWith("org.tinyejb.generated.");
+	}
+
+	public static interface DispatchIntf {
+		void touch();
+	}
+
+	public static class DispatchBean implements SessionBean, DispatchIntf {
+		private static final long serialVersionUID = 1L;
+
+		private String name;
+		private int touched;
+
+		public void ejbCreate(String name) {
+			this.name = name;
+		}
+
+		public long add(int a, long b) {
+			return a + b;
+		}
+
+		public String join(List<String> parts, char separator) {
+			StringBuilder result = new StringBuilder();
+
+			for (String part : parts) {
+				if (result.length() > 0) {
+					result.append(separator);
+				}
+				result.append(part);
+			}
+
+			return result.toString();
+		}
+
+		public double[] twice(double[] values) {
+			double[] result = new double[values.length];
+
+			for (int i = 0; i < values.length; i++) {
+				result[i] = values[i] * 2;
+			}
+
+			return result;
+		}
+
+		@Override
+		public void touch() {
+			touched++;
+		}
+
+		public boolean isTouched() {
+			return touched > 0;
+		}
+
+		public void fail(Exception e) throws Exception {
+			throw e;
+		}
+
+		@Override
+		public void ejbActivate() throws EJBException {
+		}
+
+		@Override
+		public void ejbPassivate() throws EJBException {
+		}
+
+		@Override
+		public void ejbRemove() throws EJBException {
+		}
+
+		@Override
+		public void setSessionContext(SessionContext ctx) throws EJBException {
+		}
+	}
+
+	static class HiddenBean extends DispatchBean {
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -0,0 +1,437 @@
+package org.tinyejb.proxies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.ejb.SessionBean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.core.EJBMetadata;
+import org.tinyejb.core.EJBMetadata.BEAN_TYPE;
+import org.tinyejb.core.EJBMetadata.POOL_EXHAUSTED_POLICY;
+import org.tinyejb.core.EJBMetadata.TRANSACTION_MANAGED_BY;
+
+public class BeanInstancePoolTest {
+	private static final long BORROW_TIMEOUT = 100;
+
+	private EJBContainer container;
+	private EJBMetadata ejbMetadata;
+	private CountingBean.Factory factory;
+	private BeanInstancePool pool;
+
+	@Before
+	public void setUp() {
+		container = new EJBContainer();
+		ejbMetadata = new EJBMetadata("Counting", BEAN_TYPE.Stateless, TRANSACTION_MANAGED_BY.Container, container);
+		ejbMetadata.setPoolBorrowTimeout(BORROW_TIMEOUT);
+		factory = new CountingBean.Factory();
+	}
+
+	@After
+	public void tearDown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testStealsFromOtherStripes() throws Exception {
+		pool = new BeanInstancePool(ejbMetadata, factory);
+
+		final AtomicReference<SessionBean> returned = new AtomicReference<SessionBean>();
+
+		//returned to the stripe of another thread
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				SessionBean sb = pool.acquire();
+				returned.set(sb);
+				pool.release(sb);
+			}
+		};
+		t.start();
+		t.join();
+
+		assertSame(returned.get(), pool.acquire());
+		assertEquals(1, factory.getBuiltCount());
+		assertEquals(0, pool.getIdleCount());
+	}
+
+	@Test
+	public void testConcurrentBorrows() throws Exception {
+		pool = new BeanInstancePool(ejbMetadata, factory);
+
+		final int threadCount = 8;
+		final Set<SessionBean> inUse = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<SessionBean, Boolean>()));
+		final AtomicInteger sharedBorrows = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[threadCount];
+
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					for (int j = 0; j < 2000; j++) {
+						SessionBean sb = pool.acquire();
+
+						//an instance is never borrowed by two callers at once
+						if (!inUse.add(sb)) {
+							sharedBorrows.incrementAndGet();
+						}
+
+						inUse.remove(sb);
+						pool.release(sb);
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		start.countDown();
+
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertEquals(0, sharedBorrows.get());
+		assertEquals(0, pool.getBorrowedCount());
+		//every instance built went back to some stripe
+		assertEquals(factory.getBuiltCount(), pool.getIdleCount());
+	}
+
+	@Test
+	public void testPrefill() throws Exception {
+		ejbMetadata.setPoolMinSize(2);
+		ejbMetadata.setPoolInitialSize(5);
+		pool = new BeanInstancePool(ejbMetadata, factory);
+
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+
+		try {
+			List<Future<?>> pending = pool.prefill(executor);
+			assertEquals(5, pending.size());
+
+			for (Future<?> f : pending) {
+				f.get();
+			}
+
+			assertEquals(5, pool.getIdleCount());
+			assertEquals(5, pool.getCreatedCount());
+			assertEquals(0, pool.getBorrowedCount());
+
+			//already full
+			assertTrue(pool.prefill(executor).isEmpty());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testPrefillUpToMinSize() throws Exception {
+		ejbMetadata.setPoolMinSize(3);
+		ejbMetadata.setPoolInitialSize(1);
+		pool = new BeanInstancePool(ejbMetadata, factory);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			for (Future<?> f : pool.prefill(executor)) {
+				f.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(3, pool.getIdleCount());
+	}
+
+	@Test
+	public void testMinSize() throws Exception {
+		ejbMetadata.setPoolMinSize(3);
+		//every idle instance may be trimmed at once
+		container.setPooledBeanMaxAge(0);
+		container.setPoolTrimRatio(1);
+		pool = resizedByTest(new BeanInstancePool(ejbMetadata, factory));
+
+		pool.runResizing();
+		assertEquals(3, pool.getIdleCount());
+
+		SessionBean[] borrowed = new SessionBean[5];
+		for (int i = 0; i < borrowed.length; i++) {
+			borrowed[i] = pool.acquire();
+		}
+		for (SessionBean sb : borrowed) {
+			pool.release(sb);
+		}
+
+		assertEquals(5, pool.getIdleCount());
+
+		//no more demand, so the pool shrinks, but not below min size
+		for (int i = 0; i < 10; i++) {
+			pool.runResizing();
+		}
+
+		assertEquals(3, pool.getIdleCount());
+		assertEquals(5, factory.getBuiltCount());
+	}
+
+	@Test
+	public void testDemandEstimate() throws Exception {
+		container.setPoolSizingSmoothing(0.5);
+		container.setPoolSizingHeadroom(0.25);
+		pool = resizedByTest(new BeanInstancePool(ejbMetadata, factory));
+
+		SessionBean[] borrowed = borrow(4);
+		giveBack(borrowed);
+
+		pool.runResizing();
+
+		assertEquals(4, pool.getLastWindowPeak());
+		assertEquals(2, pool.getDemandEstimate(), 0.001);
+		//ceil(2 * 1.25)
+		assertEquals(3, pool.getTargetSize());
+
+		//no borrows on the next window
+		pool.runResizing();
+
+		assertEquals(0, pool.getLastWindowPeak());
+		assertEquals(1, pool.getDemandEstimate(), 0.001);
+		assertEquals(2, pool.getTargetSize());
+	}
+
+	@Test
+	public void testWindowStartsWithBorrowed() throws Exception {
+		container.setPoolSizingSmoothing(1);
+		pool = resizedByTest(new BeanInstancePool(ejbMetadata, factory));
+
+		SessionBean[] borrowed = borrow(3);
+
+		pool.runResizing();
+		//still borrowed, so still demand
+		pool.runResizing();
+
+		assertEquals(3, pool.getLastWindowPeak());
+		assertEquals(3, pool.getDemandEstimate(), 0.001);
+
+		giveBack(borrowed);
+		pool.runResizing();
+
+		assertEquals(3, pool.getLastWindowPeak());
+		pool.runResizing();
+		assertEquals(0, pool.getLastWindowPeak());
+	}
+
+	@Test
+	public void testGradualTrim() throws Exception {
+		container.setPoolSizingSmoothing(1);
+		container.setPoolSizingHeadroom(0);
+		container.setPoolTrimRatio(0.5);
+		container.setPooledBeanMaxAge(0);
+		pool = resizedByTest(new BeanInstancePool(ejbMetadata, factory));
+
+		giveBack(borrow(8));
+		//the peak of this window
+		pool.runResizing();
+		assertEquals(8, pool.getIdleCount());
+
+		//target is 0 from now on, and half the excess goes on each run
+		pool.runResizing();
+		assertEquals(4, pool.getIdleCount());
+		pool.runResizing();
+		assertEquals(2, pool.getIdleCount());
+		pool.runResizing();
+		assertEquals(1, pool.getIdleCount());
+		pool.runResizing();
+		assertEquals(0, pool.getIdleCount());
+	}
+
+	@Test
+	public void testYoungInstancesNotTrimmed() throws Exception {
+		container.setPoolSizingSmoothing(1);
+		container.setPoolTrimRatio(1);
+		container.setPooledBeanMaxAge(60000);
+		pool = resizedByTest(new BeanInstancePool(ejbMetadata, factory));
+
+		giveBack(borrow(4));
+		pool.runResizing();
+		pool.runResizing();
+
+		assertEquals(0, pool.getTargetSize());
+		assertEquals(4, pool.getIdleCount());
+	}
+
+	@Test
+	public void testTargetUpToMaxSize() throws Exception {
+		container.setPoolSizingSmoothing(1);
+		container.setPoolSizingHeadroom(1);
+		pool = resizedByTest(boundedPool(3, POOL_EXHAUSTED_POLICY.Fail));
+
+		giveBack(borrow(3));
+		pool.runResizing();
+
+		assertEquals(3, pool.getDemandEstimate(), 0.001);
+		assertEquals(3, pool.getTargetSize());
+	}
+
+	@Test
+	public void testFailPolicy() throws Exception {
+		pool = boundedPool(2, POOL_EXHAUSTED_POLICY.Fail);
+
+		SessionBean first = pool.acquire();
+		pool.acquire();
+
+		long start = System.currentTimeMillis();
+
+		try {
+			pool.acquire();
+			fail("pool exhausted");
+		} catch (IllegalStateException e) {
+		}
+
+		assertTrue(System.currentTimeMillis() - start >= BORROW_TIMEOUT);
+		assertEquals(1, pool.getTimeoutCount());
+		assertEquals(2, pool.getBorrowedCount());
+
+		pool.release(first);
+
+		assertSame(first, pool.acquire());
+		assertEquals(2, factory.getBuiltCount());
+	}
+
+	@Test(timeout = 10000)
+	public void testWaitPolicy() throws Exception {
+		pool = boundedPool(1, POOL_EXHAUSTED_POLICY.Wait);
+
+		SessionBean first = pool.acquire();
+		final AtomicReference<SessionBean> waited = new AtomicReference<SessionBean>();
+		final CountDownLatch acquired = new CountDownLatch(1);
+
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				waited.set(pool.acquire());
+				acquired.countDown();
+			}
+		};
+		t.start();
+
+		//keeps waiting past the borrow timeout
+		while (pool.getTimeoutCount() < 2) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(1, acquired.getCount());
+
+		pool.release(first);
+		t.join();
+
+		assertSame(first, waited.get());
+		assertEquals(1, factory.getBuiltCount());
+		assertTrue(pool.getMaxWaitTime() >= 2 * BORROW_TIMEOUT);
+	}
+
+	@Test
+	public void testGrowPolicy() throws Exception {
+		pool = boundedPool(1, POOL_EXHAUSTED_POLICY.Grow);
+
+		SessionBean pooled = pool.acquire();
+		SessionBean temporary = pool.acquire();
+
+		assertNotSame(pooled, temporary);
+		assertEquals(1, pool.getOverflowCount());
+		assertEquals(2, pool.getBorrowedCount());
+
+		//returned in any order, only the temporary instance is dropped
+		pool.release(pooled);
+		pool.release(temporary);
+
+		assertEquals(1, pool.getIdleCount());
+		assertEquals(0, pool.getOverflowCount());
+		assertEquals(0, pool.getBorrowedCount());
+
+		//and its permit is back, so the next borrow doesn't wait
+		assertSame(pooled, pool.acquire());
+		assertEquals(1, pool.getTimeoutCount());
+	}
+
+	@Test
+	public void testDiscardWithGrowPolicy() throws Exception {
+		pool = boundedPool(1, POOL_EXHAUSTED_POLICY.Grow);
+
+		SessionBean pooled = pool.acquire();
+		SessionBean temporary = pool.acquire();
+
+		//the pooled instance gives its permit back
+		pool.discard(pooled);
+
+		assertTrue(((CountingBean) pooled).isRemoved());
+		assertEquals(1, pool.getOverflowCount());
+
+		SessionBean next = pool.acquire();
+		assertEquals(1, pool.getTimeoutCount());
+
+		pool.discard(temporary);
+		assertEquals(0, pool.getOverflowCount());
+
+		pool.release(next);
+		assertEquals(1, pool.getIdleCount());
+		assertFalse(((CountingBean) next).isRemoved());
+		assertEquals(0, pool.getBorrowedCount());
+	}
+
+	/*
+	 * takes the pool out of the resizer task, so the windows are the ones the test closes. The pool still works
+	 */
+	private static BeanInstancePool resizedByTest(BeanInstancePool pool) {
+		pool.shutdown();
+
+		return pool;
+	}
+
+	private SessionBean[] borrow(int count) {
+		SessionBean[] result = new SessionBean[count];
+
+		for (int i = 0; i < count; i++) {
+			result[i] = pool.acquire();
+		}
+
+		return result;
+	}
+
+	private void giveBack(SessionBean[] borrowed) {
+		for (SessionBean sb : borrowed) {
+			pool.release(sb);
+		}
+	}
+
+	private BeanInstancePool boundedPool(int maxSize, POOL_EXHAUSTED_POLICY policy) {
+		ejbMetadata.setPoolMaxSize(maxSize);
+		ejbMetadata.setPoolExhaustedPolicy(policy);
+
+		return new BeanInstancePool(ejbMetadata, factory);
+	}
+}
@@ -0,0 +1,69 @@
+package org.tinyejb.proxies;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ejb.EJBException;
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+
+import org.tinyejb.proxies.BeanInstancePool.BeanInstanceFactory;
+
+/**
+ * Bean instances for instance provider tests, that count their builds and removals.
+ */
+public class CountingBean implements SessionBean {
+	private static final long serialVersionUID = 1L;
+
+	private final Factory factory;
+	private volatile boolean removed;
+
+	CountingBean(Factory factory) {
+		this.factory = factory;
+	}
+
+	public boolean isRemoved() {
+		return removed;
+	}
+
+	@Override
+	public void ejbActivate() throws EJBException {
+	}
+
+	@Override
+	public void ejbPassivate() throws EJBException {
+	}
+
+	@Override
+	public void ejbRemove() throws EJBException {
+		if (removed) {
+			throw new IllegalStateException("ejbRemove() called twice");
+		}
+
+		removed = true;
+		factory.removed.incrementAndGet();
+	}
+
+	@Override
+	public void setSessionContext(SessionContext ctx) throws EJBException {
+	}
+
+	public static class Factory implements BeanInstanceFactory {
+		final AtomicInteger built = new AtomicInteger();
+		final AtomicInteger removed = new AtomicInteger();
+
+		@Override
+		public SessionBean build() {
+			built.incrementAndGet();
+
+			return new CountingBean(this);
+		}
+
+		public int getBuiltCount() {
+			return built.get();
+		}
+
+		public int getRemovedCount() {
+			return removed.get();
+		}
+	}
+}
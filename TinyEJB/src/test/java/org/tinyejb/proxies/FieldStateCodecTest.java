@@ -0,0 +1,313 @@
+package org.tinyejb.proxies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import javax.ejb.EJBException;
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.tinyejb.core.EJBContainer;
+
+public class FieldStateCodecTest {
+	private FieldStateCodec codec;
+	private List<Object> references;
+
+	@Before
+	public void setUp() {
+		codec = new FieldStateCodec();
+		references = new ArrayList<Object>();
+	}
+
+	@Test
+	public void testPlainState() throws Exception {
+		StateBean bean = new StateBean();
+		bean.count = 42;
+		bean.ratio = 0.5;
+		bean.name = "cart";
+		bean.value = new int[] { 1, 2, 3 };
+		bean.items.add("book");
+		bean.items.add(Long.valueOf(7));
+		bean.items.add(new TreeSet<String>(Arrays.asList("b", "a")));
+
+		StateBean copy = roundTrip(bean);
+
+		assertEquals(42, copy.count);
+		assertEquals(0.5, copy.ratio, 0);
+		assertEquals("cart", copy.name);
+		assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, (int[]) copy.value));
+		assertEquals(bean.items, copy.items);
+		assertTrue(references.isEmpty());
+	}
+
+	@Test
+	public void testCycles() throws Exception {
+		Node first = new Node("first");
+		Node second = new Node("second");
+		first.next = second;
+		second.next = first;
+
+		StateBean bean = new StateBean();
+		bean.value = first;
+
+		Node copy = (Node) roundTrip(bean).value;
+
+		assertEquals("first", copy.name);
+		assertEquals("second", copy.next.name);
+		assertSame(copy, copy.next.next);
+	}
+
+	@Test
+	public void testSharedReferences() throws Exception {
+		Node shared = new Node("shared");
+		Map<String, Object> byName = new HashMap<String, Object>();
+		byName.put("shared", shared);
+
+		StateBean bean = new StateBean();
+		bean.value = shared;
+		bean.items.add(shared);
+		bean.items.add(byName);
+		bean.items.add(new Object[] { shared, byName });
+
+		StateBean copy = roundTrip(bean);
+
+		assertNotSame(shared, copy.value);
+		assertSame(copy.value, copy.items.get(0));
+		assertSame(copy.value, ((Map<?, ?>) copy.items.get(1)).get("shared"));
+		assertSame(copy.value, ((Object[]) copy.items.get(2))[0]);
+		assertSame(copy.items.get(1), ((Object[]) copy.items.get(2))[1]);
+	}
+
+	@Test
+	public void testEnumsWithBodies() throws Exception {
+		StateBean bean = new StateBean();
+		bean.value = Operation.PLUS;
+		bean.items.add(Operation.MINUS);
+		bean.items.add(Operation.PLUS);
+
+		StateBean copy = roundTrip(bean);
+
+		assertSame(Operation.PLUS, copy.value);
+		assertSame(Operation.MINUS, copy.items.get(0));
+		assertSame(Operation.PLUS, copy.items.get(1));
+		assertEquals(5, ((Operation) copy.value).apply(2, 3));
+	}
+
+	@Test
+	public void testFinalFields() throws Exception {
+		StateBean bean = new StateBean();
+		bean.value = new Money(1999, "BRL");
+
+		Money copy = (Money) roundTrip(bean).value;
+
+		assertEquals(1999, copy.cents);
+		assertEquals("BRL", copy.currency);
+	}
+
+	@Test
+	public void testCustomWriteObject() throws Exception {
+		Node shared = new Node("shared");
+		Custom custom = new Custom("custom");
+		custom.node = shared;
+
+		StateBean bean = new StateBean();
+		bean.value = custom;
+		bean.items.add(shared);
+
+		StateBean copy = roundTrip(bean);
+		Custom customCopy = (Custom) copy.value;
+
+		assertEquals("custom", customCopy.name);
+		assertEquals("shared", customCopy.node.name);
+		//rebuilt by its readObject()
+		assertEquals("CUSTOM", customCopy.upperCaseName);
+		//written as a nested Java serialization block, that doesn't share references with the rest of the state
+		assertNotSame(customCopy.node, copy.items.get(0));
+	}
+
+	@Test
+	public void testKeptByReference() throws Exception {
+		Object notSerializable = new Object();
+		SessionContext sessionContext = new SessionContextImpl(null, null, null);
+		Custom custom = new Custom("custom");
+		custom.node = new Node("node");
+		custom.handle = notSerializable;
+
+		StateBean bean = new StateBean();
+		bean.value = notSerializable;
+		bean.context = sessionContext;
+		bean.items.add(custom);
+
+		StateBean copy = roundTrip(bean);
+
+		assertSame(notSerializable, copy.value);
+		assertSame(sessionContext, copy.context);
+		//also from nested Java serialization blocks
+		assertSame(notSerializable, ((Custom) copy.items.get(0)).handle);
+		assertEquals(3, references.size());
+	}
+
+	@Test
+	public void testDeserializedCodec() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(codec);
+		out.close();
+
+		codec = (FieldStateCodec) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+		StateBean bean = new StateBean();
+		bean.value = new Money(1, "USD");
+
+		assertEquals("USD", ((Money) roundTrip(bean).value).currency);
+	}
+
+	@Test
+	public void testFallbackToJavaSerialization() throws Exception {
+		EJBContainer container = new EJBContainer();
+		container.setSessionStateCodec(new FailingCodec());
+
+		StateBean bean = new StateBean();
+		bean.name = "fallback";
+		bean.value = new Node("node");
+
+		SessionStateSerializer.SerializedState state = SessionStateSerializer.serialize(container, bean);
+
+		assertSame(SessionStateSerializer.JAVA_SERIALIZATION, state.getCodec());
+
+		StateBean copy = (StateBean) SessionStateSerializer.deserialize(state, state.getData(), getClass().getClassLoader());
+
+		assertEquals("fallback", copy.name);
+		assertEquals("node", ((Node) copy.value).name);
+	}
+
+	@Test
+	public void testNoCodecUsesJavaSerialization() throws Exception {
+		EJBContainer container = new EJBContainer();
+		container.setSessionStateCodec(null);
+
+		assertSame(SessionStateSerializer.JAVA_SERIALIZATION, SessionStateSerializer.serialize(container, new StateBean()).getCodec());
+	}
+
+	private StateBean roundTrip(StateBean bean) throws Exception {
+		byte[] data = codec.encode(bean, references);
+
+		return (StateBean) codec.decode(data, references.toArray(), getClass().getClassLoader());
+	}
+
+	public static class StateBean implements SessionBean {
+		private static final long serialVersionUID = 1L;
+
+		private int count;
+		private double ratio;
+		private String name;
+		private Object value;
+		private SessionContext context;
+		private List<Object> items = new ArrayList<Object>();
+
+		public void ejbActivate() throws EJBException {
+		}
+
+		public void ejbPassivate() throws EJBException {
+		}
+
+		public void ejbRemove() throws EJBException {
+		}
+
+		public void setSessionContext(SessionContext ctx) throws EJBException {
+		}
+	}
+
+	static class Node implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private String name;
+		private Node next;
+
+		Node(String name) {
+			this.name = name;
+		}
+	}
+
+	static final class Money implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final long cents;
+		private final String currency;
+
+		Money(long cents, String currency) {
+			this.cents = cents;
+			this.currency = currency;
+		}
+	}
+
+	static class Custom implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private String name;
+		private Node node;
+		private Object handle;
+		private transient String upperCaseName;
+
+		Custom(String name) {
+			this.name = name;
+		}
+
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			out.defaultWriteObject();
+		}
+
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			upperCaseName = name.toUpperCase();
+		}
+	}
+
+	enum Operation {
+		PLUS {
+			@Override
+			int apply(int a, int b) {
+				return a + b;
+			}
+		},
+		MINUS {
+			@Override
+			int apply(int a, int b) {
+				return a - b;
+			}
+		};
+
+		abstract int apply(int a, int b);
+	}
+
+	static class FailingCodec implements ISessionStateCodec {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public byte[] encode(SessionBean bean, List<Object> references) throws Exception {
+			throw new IllegalStateException("can't encode");
+		}
+
+		@Override
+		public SessionBean decode(byte[] data, Object[] references, ClassLoader loader) throws Exception {
+			throw new IllegalStateException("can't decode");
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package org.tinyejb.proxies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.ejb.SessionBean;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.core.EJBMetadata;
+import org.tinyejb.core.EJBMetadata.BEAN_TYPE;
+import org.tinyejb.core.EJBMetadata.TRANSACTION_MANAGED_BY;
+
+public class InstanceProviderTest {
+	private CountingBean.Factory factory;
+
+	@Before
+	public void setUp() {
+		factory = new CountingBean.Factory();
+	}
+
+	@Test
+	public void testPooled() throws Exception {
+		EJBMetadata ejbMetadata = new EJBMetadata("Counting", BEAN_TYPE.Stateless, TRANSACTION_MANAGED_BY.Container, new EJBContainer());
+		BeanInstancePool pool = new BeanInstancePool(ejbMetadata, factory);
+
+		try {
+			SessionBean first = pool.acquire();
+			SessionBean second = pool.acquire();
+
+			assertNotSame(first, second);
+			assertEquals(2, pool.getBorrowedCount());
+
+			pool.release(second);
+			pool.release(first);
+
+			//youngest idle instance first
+			assertSame(first, pool.acquire());
+			assertEquals(2, factory.getBuiltCount());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testSingleton() throws Exception {
+		final SingletonInstanceProvider provider = new SingletonInstanceProvider(factory);
+		SessionBean instance = provider.acquire();
+		final AtomicReference<SessionBean> fromOtherThread = new AtomicReference<SessionBean>();
+
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				fromOtherThread.set(provider.acquire());
+			}
+		};
+		t.start();
+		t.join();
+
+		assertSame(instance, fromOtherThread.get());
+		assertSame(instance, provider.acquire());
+		assertEquals(1, factory.getBuiltCount());
+
+		provider.shutdown();
+
+		assertTrue(((CountingBean) instance).isRemoved());
+		assertClosed(provider);
+		assertEquals(1, factory.getBuiltCount());
+	}
+
+	@Test
+	public void testThreadConfined() throws Exception {
+		final ThreadConfinedInstanceProvider provider = new ThreadConfinedInstanceProvider(factory);
+		SessionBean instance = provider.acquire();
+		provider.release(instance);
+
+		assertSame(instance, provider.acquire());
+		provider.release(instance);
+
+		final AtomicReference<SessionBean> fromOtherThread = new AtomicReference<SessionBean>();
+
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				SessionBean sb = provider.acquire();
+				provider.release(sb);
+				fromOtherThread.set(sb);
+			}
+		};
+		t.start();
+		t.join();
+
+		assertNotSame(instance, fromOtherThread.get());
+		assertEquals(2, provider.getInstanceCount());
+		assertEquals(0, factory.getRemovedCount());
+	}
+
+	@Test
+	public void testThreadConfinedReentrantCall() throws Exception {
+		ThreadConfinedInstanceProvider provider = new ThreadConfinedInstanceProvider(factory);
+		SessionBean instance = provider.acquire();
+
+		//the thread's instance is busy
+		SessionBean temporary = provider.acquire();
+
+		assertNotSame(instance, temporary);
+
+		provider.release(temporary);
+
+		assertTrue(((CountingBean) temporary).isRemoved());
+		assertFalse(((CountingBean) instance).isRemoved());
+		assertEquals(1, provider.getInstanceCount());
+
+		provider.release(instance);
+
+		assertSame(instance, provider.acquire());
+	}
+
+	@Test
+	public void testThreadConfinedShutdown() throws Exception {
+		final ThreadConfinedInstanceProvider provider = new ThreadConfinedInstanceProvider(factory);
+		final AtomicReference<SessionBean> fromOtherThread = new AtomicReference<SessionBean>();
+
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				SessionBean sb = provider.acquire();
+				provider.release(sb);
+				fromOtherThread.set(sb);
+			}
+		};
+		t.start();
+		t.join();
+
+		SessionBean instance = provider.acquire();
+		provider.release(instance);
+
+		//from the undeploying thread, that doesn't see the other thread's instance
+		provider.shutdown();
+
+		assertTrue(((CountingBean) instance).isRemoved());
+		assertTrue(((CountingBean) fromOtherThread.get()).isRemoved());
+		assertEquals(0, provider.getInstanceCount());
+		assertClosed(provider);
+		assertEquals(2, factory.getBuiltCount());
+	}
+
+	@Test
+	public void testThreadConfinedShutdownDuringCall() throws Exception {
+		final ThreadConfinedInstanceProvider provider = new ThreadConfinedInstanceProvider(factory);
+		final CountDownLatch acquired = new CountDownLatch(1);
+		final CountDownLatch shutDown = new CountDownLatch(1);
+		final AtomicReference<SessionBean> fromOtherThread = new AtomicReference<SessionBean>();
+
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				SessionBean sb = provider.acquire();
+				fromOtherThread.set(sb);
+				acquired.countDown();
+
+				try {
+					shutDown.await();
+				} catch (InterruptedException ignored) {
+				}
+
+				provider.release(sb);
+			}
+		};
+		t.start();
+		acquired.await();
+
+		provider.shutdown();
+
+		//in use, so it's removed only when its call ends
+		assertFalse(((CountingBean) fromOtherThread.get()).isRemoved());
+
+		shutDown.countDown();
+		t.join();
+
+		assertTrue(((CountingBean) fromOtherThread.get()).isRemoved());
+		assertEquals(0, provider.getInstanceCount());
+	}
+
+	@Test(timeout = 30000)
+	public void testThreadConfinedShutdownRacingCalls() throws Exception {
+		//shutdown and the threads' release() race on each round: every instance must be removed anyway
+		for (int round = 0; round < 200; round++) {
+			final ThreadConfinedInstanceProvider provider = new ThreadConfinedInstanceProvider(factory);
+			final CountDownLatch started = new CountDownLatch(4);
+			Thread[] threads = new Thread[4];
+
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						started.countDown();
+
+						try {
+							for (;;) {
+								provider.release(provider.acquire());
+							}
+						} catch (IllegalStateException shutDown) {
+						}
+					}
+				};
+				threads[i].start();
+			}
+
+			started.await();
+			provider.shutdown();
+
+			for (Thread t : threads) {
+				t.join();
+			}
+
+			assertEquals(0, provider.getInstanceCount());
+			assertEquals(factory.getBuiltCount(), factory.getRemovedCount());
+		}
+	}
+
+	private void assertClosed(IBeanInstanceProvider provider) {
+		try {
+			provider.acquire();
+			fail("instance handed out after shutdown");
+		} catch (IllegalStateException expected) {
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package org.tinyejb.proxies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PassivationStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private PassivationStore store;
+
+	@Before
+	public void setUp() {
+		store = new PassivationStore(folder.getRoot(), 1024);
+	}
+
+	@After
+	public void tearDown() {
+		store.close();
+	}
+
+	@Test
+	public void testWriteAndRead() throws Exception {
+		PassivationStore.Record first = store.write(data(10, (byte) 1));
+		PassivationStore.Record second = store.write(data(20, (byte) 2));
+
+		assertTrue(Arrays.equals(data(10, (byte) 1), store.read(first)));
+		assertTrue(Arrays.equals(data(20, (byte) 2), store.read(second)));
+		assertEquals(38, store.getLiveBytes());
+
+		store.release(first);
+
+		assertEquals(24, store.getLiveBytes());
+		assertEquals(38, store.getUsedBytes());
+	}
+
+	@Test
+	public void testLargeRecordHasItsOwnSegment() throws Exception {
+		store.write(data(10, (byte) 1));
+		PassivationStore.Record large = store.write(data(4096, (byte) 2));
+
+		assertEquals(2, store.getSegmentCount());
+		assertTrue(Arrays.equals(data(4096, (byte) 2), store.read(large)));
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		List<PassivationStore.Record> records = new ArrayList<PassivationStore.Record>();
+
+		//9 records of 104 bytes fill a segment, so the 10th goes to a new one
+		for (int i = 0; i < 10; i++) {
+			records.add(store.write(data(100, (byte) i)));
+		}
+
+		assertEquals(2, store.getSegmentCount());
+
+		for (int i = 0; i < 8; i++) {
+			store.release(records.get(i));
+		}
+
+		store.compact();
+
+		//the live record of the sparse segment was moved, and its segment dropped
+		assertEquals(1, store.getSegmentCount());
+		assertEquals(1, store.getCompactionCount());
+		assertEquals(2 * 104, store.getLiveBytes());
+		assertEquals(2 * 104, store.getUsedBytes());
+		assertTrue(Arrays.equals(data(100, (byte) 8), store.read(records.get(8))));
+		assertTrue(Arrays.equals(data(100, (byte) 9), store.read(records.get(9))));
+		assertEquals(1, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void testEmptySegmentIsDropped() throws Exception {
+		List<PassivationStore.Record> records = new ArrayList<PassivationStore.Record>();
+
+		for (int i = 0; i < 10; i++) {
+			records.add(store.write(data(100, (byte) i)));
+		}
+
+		for (int i = 0; i < 9; i++) {
+			store.release(records.get(i));
+		}
+
+		assertEquals(1, store.getSegmentCount());
+		assertEquals(0, store.getCompactionCount());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReleasedRecordCantBeRead() throws Exception {
+		PassivationStore.Record record = store.write(data(10, (byte) 1));
+		store.release(record);
+
+		store.read(record);
+	}
+
+	private static byte[] data(int length, byte value) {
+		byte[] result = new byte[length];
+		Arrays.fill(result, value);
+
+		return result;
+	}
+}
@@ -0,0 +1,211 @@
+package org.tinyejb.proxies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+
+import org.junit.Test;
+
+public class ProxyClassGeneratorTest {
+
+	@Test
+	public void testPrimitivesVoidAndArrays() throws Exception {
+		ProxyFactory factory = ProxyClassGenerator.generate(new Class<?>[] { Shapes.class });
+		RecordingDispatcher dispatcher = new RecordingDispatcher(factory);
+		Shapes shapes = (Shapes) factory.newProxy(dispatcher);
+
+		dispatcher.result = Long.valueOf(7);
+		assertEquals(7, shapes.area(2, 3.5, 'x'));
+		assertEquals("area", dispatcher.method.getName());
+		assertEquals(Integer.valueOf(2), dispatcher.args[0]);
+		assertEquals(Double.valueOf(3.5), dispatcher.args[1]);
+		assertEquals(Character.valueOf('x'), dispatcher.args[2]);
+
+		dispatcher.result = null;
+		shapes.clear();
+		assertEquals("clear", dispatcher.method.getName());
+		assertEquals(null, dispatcher.args);
+
+		dispatcher.result = new int[] { 1, 2 };
+		assertEquals(2, shapes.sides(new String[] { "a" }).length);
+		assertEquals("a", ((String[]) dispatcher.args[0])[0]);
+
+		//equals, hashCode and toString reach the dispatcher too
+		dispatcher.result = "shapes";
+		assertEquals("shapes", shapes.toString());
+	}
+
+	@Test
+	public void testCovariantReturnTypes() throws Exception {
+		ProxyFactory factory = ProxyClassGenerator.generate(new Class<?>[] { Source.class, StringSource.class });
+		RecordingDispatcher dispatcher = new RecordingDispatcher(factory);
+		Object proxy = factory.newProxy(dispatcher);
+
+		dispatcher.result = "value";
+
+		assertEquals("value", ((Source) proxy).get());
+		int index = dispatcher.index;
+		assertEquals("value", ((StringSource) proxy).get());
+		//both are dispatched as the same method
+		assertEquals(index, dispatcher.index);
+		assertEquals(Source.class.getMethod("get"), factory.getMethods()[index]);
+	}
+
+	@Test
+	public void testIncompatibleReturnTypes() throws Exception {
+		try {
+			ProxyClassGenerator.generate(new Class<?>[] { Source.class, IntSource.class });
+			fail("no method can return both Object and int");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("incompatible return types"));
+		}
+
+		//the JDK engine is used instead, and it can't build this one either
+		try {
+			ProxyFactory.build(new Class<?>[] { Source.class, IntSource.class }, true);
+			fail("JDK proxies reject incompatible return types");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testExceptions() throws Exception {
+		ProxyFactory factory = ProxyClassGenerator.generate(new Class<?>[] { Reader.class, FileReader.class });
+		RecordingDispatcher dispatcher = new RecordingDispatcher(factory);
+		Object proxy = factory.newProxy(dispatcher);
+
+		dispatcher.exception = new FileNotFoundException("missing");
+
+		try {
+			((Reader) proxy).read();
+			fail();
+		} catch (FileNotFoundException e) {
+			assertSame(dispatcher.exception, e);
+		}
+
+		//allowed by Reader only, so it's undeclared for the proxy, as JDK proxies do
+		dispatcher.exception = new IOException("broken");
+
+		try {
+			((Reader) proxy).read();
+			fail();
+		} catch (UndeclaredThrowableException e) {
+			assertSame(dispatcher.exception, e.getUndeclaredThrowable());
+		}
+
+		dispatcher.exception = new IllegalStateException("unchecked");
+
+		try {
+			((FileReader) proxy).read();
+			fail();
+		} catch (IllegalStateException e) {
+			assertSame(dispatcher.exception, e);
+		}
+	}
+
+	@Test
+	public void testSerializable() throws Exception {
+		ProxyFactory factory = ProxyClassGenerator.generate(new Class<?>[] { Shapes.class });
+		Shapes shapes = (Shapes) factory.newProxy(new RecordingDispatcher(factory));
+
+		assertTrue(shapes instanceof Serializable);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(shapes);
+		out.close();
+
+		Shapes copy = (Shapes) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+		//written as a JDK proxy, with a copy of the dispatcher
+		assertTrue(Proxy.isProxyClass(copy.getClass()));
+
+		RecordingDispatcher copyDispatcher = (RecordingDispatcher) Proxy.getInvocationHandler(copy);
+		copyDispatcher.result = Long.valueOf(12);
+
+		assertEquals(12, copy.area(3, 4, 'y'));
+		assertEquals("area", copyDispatcher.method.getName());
+	}
+
+	public interface Shapes {
+		long area(int sides, double size, char name);
+
+		void clear();
+
+		int[] sides(String[] names);
+	}
+
+	public interface Source {
+		Object get();
+	}
+
+	public interface StringSource {
+		String get();
+	}
+
+	public interface IntSource {
+		int get();
+	}
+
+	public interface Reader {
+		int read() throws IOException;
+	}
+
+	public interface FileReader {
+		int read() throws FileNotFoundException;
+	}
+
+	/**
+	 * keeps the last call, and answers it with the given result or exception
+	 */
+	static class RecordingDispatcher implements IProxyDispatcher, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		//methods of the generated class, by dispatch index. Copies get calls from JDK proxies only, so they don't need them
+		private final transient Method[] methods;
+		private int index;
+		private Method method;
+		private Object[] args;
+		private Object result;
+		private Throwable exception;
+
+		RecordingDispatcher(ProxyFactory factory) {
+			this.methods = factory.getMethods();
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			this.method = method;
+			return answer(args);
+		}
+
+		@Override
+		public Object dispatch(Object proxy, int methodIndex, Object[] args) throws Throwable {
+			this.index = methodIndex;
+			this.method = methods[methodIndex];
+			return answer(args);
+		}
+
+		private Object answer(Object[] args) throws Throwable {
+			this.args = args;
+
+			if (exception != null) {
+				throw exception;
+			}
+
+			return result;
+		}
+	}
+}
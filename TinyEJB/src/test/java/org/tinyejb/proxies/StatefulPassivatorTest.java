@@ -0,0 +1,172 @@
+package org.tinyejb.proxies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ejb.NoSuchObjectLocalException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.test.TestContainers;
+import org.tinyejb.test.ejbs.stateful.CounterBean;
+import org.tinyejb.test.ejbs.stateful.CounterLocal;
+import org.tinyejb.test.ejbs.stateful.CounterLocalHome;
+
+public class StatefulPassivatorTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private EJBContainer container;
+
+	@Before
+	public void setUp() throws Exception {
+		container = new EJBContainer();
+		container.setPassivationDirectory(folder.getRoot().getPath());
+	}
+
+	@After
+	public void tearDown() {
+		container.undeploy();
+	}
+
+	@Test
+	public void testIdleSessionIsPassivated() throws Exception {
+		container.setPassivationIdleTimeout(100);
+		CounterLocal counter = deploy().create(5);
+		counter.increment();
+
+		Thread.sleep(200);
+		passivator().run();
+
+		assertEquals(1, passivator().getPassivatedCount());
+		assertTrue(passivator().getStoredBytes() > 0);
+
+		//the next call activates it
+		assertEquals(7, counter.increment());
+		assertEquals(1, counter.getActivations());
+		assertEquals(0, passivator().getPassivatedCount());
+		assertEquals(0, passivator().getStoredBytes());
+		assertEquals(1, passivator().getActivations());
+	}
+
+	@Test
+	public void testSessionContextIsBoundOnActivation() throws Exception {
+		container.setPassivationIdleTimeout(100);
+		CounterLocal counter = deploy().create(0);
+
+		Thread.sleep(200);
+		passivator().run();
+
+		assertEquals(1, passivator().getPassivatedCount());
+		assertSame(counter, counter.getSelf());
+	}
+
+	@Test
+	public void testMaxActiveSessions() throws Exception {
+		container.setMaxActiveStatefulSessions(2);
+		CounterLocalHome home = deploy();
+		List<CounterLocal> counters = new ArrayList<CounterLocal>();
+
+		for (int i = 0; i < 4; i++) {
+			counters.add(home.create(i));
+			Thread.sleep(5);
+		}
+
+		passivator().run();
+
+		assertEquals(2, passivator().getPassivatedCount());
+		assertEquals(2, passivator().getActiveCount());
+
+		//least recently used ones went first
+		assertEquals(0, counters.get(3).getActivations());
+		assertEquals(0, counters.get(2).getActivations());
+		assertEquals(1, counters.get(0).getActivations());
+		assertEquals(1, counters.get(1).getActivations());
+		assertEquals(1, counters.get(1).getCount());
+	}
+
+	@Test
+	public void testHeapPressure() throws Exception {
+		//any heap usage is above it
+		container.setPassivationHeapThreshold(0.0001);
+		CounterLocalHome home = deploy();
+		List<CounterLocal> counters = new ArrayList<CounterLocal>();
+
+		for (int i = 0; i < 10; i++) {
+			counters.add(home.create(i));
+		}
+
+		passivator().run();
+
+		assertTrue(passivator().getPassivatedCount() > 0);
+
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, counters.get(i).getCount());
+		}
+	}
+
+	@Test
+	public void testRemovePassivatedSession() throws Exception {
+		container.setPassivationIdleTimeout(100);
+		CounterLocal counter = deploy().create(0);
+
+		Thread.sleep(200);
+		passivator().run();
+
+		assertEquals(1, passivator().getPassivatedCount());
+
+		counter.remove();
+
+		assertEquals(0, passivator().getPassivatedCount());
+		assertEquals(0, passivator().getStoredBytes());
+
+		try {
+			counter.increment();
+			fail("call on a removed session");
+		} catch (NoSuchObjectLocalException expected) {
+		}
+	}
+
+	@Test
+	public void testForgottenPassivatedSessionIsReleased() throws Exception {
+		container.setPassivationIdleTimeout(100);
+		CounterLocalHome home = deploy();
+		home.create(0).increment();
+
+		Thread.sleep(200);
+		passivator().run();
+
+		assertEquals(1, passivator().getPassivatedCount());
+
+		//the passivated state doesn't keep the session reachable
+		long deadline = System.currentTimeMillis() + 10000;
+
+		while (passivator().getPassivatedCount() > 0 && System.currentTimeMillis() < deadline) {
+			System.gc();
+			Thread.sleep(50);
+			passivator().run();
+		}
+
+		assertEquals(0, passivator().getPassivatedCount());
+		assertEquals(0, passivator().getStoredBytes());
+	}
+
+	private CounterLocalHome deploy() throws Exception {
+		TestContainers.deploy(container, null, TestContainers.beans(TestContainers.localSession("Counter", CounterLocalHome.class, CounterLocal.class, CounterBean.class, "Stateful", "Container", null)));
+
+		return TestContainers.lookup(CounterLocalHome.class);
+	}
+
+	private StatefulPassivator passivator() {
+		return StatefulPassivator.get(container);
+	}
+}
@@ -0,0 +1,136 @@
+package org.tinyejb.proxies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.test.TestContainers;
+import org.tinyejb.test.ejbs.stateful.CounterBean;
+import org.tinyejb.test.ejbs.stateful.CounterLocal;
+import org.tinyejb.test.ejbs.stateful.CounterLocalHome;
+
+/**
+ * What the container keeps for each stateful session: the handler of its proxy, the session context and the session lock hold only
+ * what is specific to the session, and share the rest. StatefulSessionFootprintBenchmark measures the heap they use.
+ */
+@RunWith(Parameterized.class)
+public class StatefulSessionFootprintTest {
+	private final boolean generatedProxies;
+	private EJBContainer container;
+	private CounterLocalHome home;
+
+	public StatefulSessionFootprintTest(boolean generatedProxies) {
+		this.generatedProxies = generatedProxies;
+	}
+
+	@Parameters(name = "generated proxies: {0}")
+	public static Collection<Object[]> engines() {
+		return Arrays.asList(new Object[][] { { false }, { true } });
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		container = new EJBContainer();
+		container.setUseGeneratedProxies(generatedProxies);
+		TestContainers.deploy(container, null, TestContainers.beans(
+				TestContainers.localSession("Counter", CounterLocalHome.class, CounterLocal.class, CounterBean.class, "Stateful", "Container", null)));
+
+		home = TestContainers.lookup(CounterLocalHome.class);
+	}
+
+	@After
+	public void tearDown() {
+		container.undeploy();
+	}
+
+	@Test
+	public void testHandlerFields() throws Exception {
+		CounterLocal first = home.create(1);
+		CounterLocal second = home.create(2);
+		IProxyDispatcher handler = ProxyFactory.dispatcherOf(first);
+
+		assertEquals(fields("invocationPlans", "beanDelegate", "restoredState", "sessionId", "lastAccess", "passivation", "removed", "beanProxy", "statefulLock", "beanTransaction"),
+				instanceFields(handler.getClass()));
+
+		//metadata, home and instance provider come from the plans of the home
+		assertSame(get(handler, "invocationPlans"), get(ProxyFactory.dispatcherOf(second), "invocationPlans"));
+	}
+
+	@Test
+	public void testLockOnFirstCall() throws Exception {
+		CounterLocal first = home.create(1);
+		CounterLocal second = home.create(2);
+		IProxyDispatcher handler = ProxyFactory.dispatcherOf(first);
+
+		assertNull(get(handler, "statefulLock"));
+
+		first.increment();
+		second.increment();
+
+		StatefulSessionLock lock = (StatefulSessionLock) get(handler, "statefulLock");
+		assertNotNull(lock);
+		assertEquals(fields("beanName", "holders"), instanceFields(StatefulSessionLock.class));
+		//no name of its own: it's the bean's
+		assertSame(get(lock, "beanName"), get(get(ProxyFactory.dispatcherOf(second), "statefulLock"), "beanName"));
+	}
+
+	@Test
+	public void testContextFields() throws Exception {
+		CounterLocal counter = home.create(1);
+		SessionContextImpl context = (SessionContextImpl) get(get(ProxyFactory.dispatcherOf(counter), "beanDelegate"), "ctx");
+
+		assertEquals(fields("ejbMetadata", "views", "homeProxy", "beanProxy", "userTransaction"), instanceFields(SessionContextImpl.class));
+
+		//the session's own proxies, with no views map
+		assertNull(get(context, "views"));
+		assertSame(counter, context.getEJBLocalObject());
+		assertSame(home, context.getEJBLocalHome());
+		assertNull(get(context, "userTransaction"));
+	}
+
+	private static Set<String> fields(String... names) {
+		return new HashSet<String>(Arrays.asList(names));
+	}
+
+	private static Set<String> instanceFields(Class<?> clazz) {
+		Set<String> result = new HashSet<String>();
+
+		for (Field f : clazz.getDeclaredFields()) {
+			if (!Modifier.isStatic(f.getModifiers()) && !f.isSynthetic()) {
+				result.add(f.getName());
+			}
+		}
+
+		return result;
+	}
+
+	private static Object get(Object obj, String name) throws Exception {
+		for (Class<?> c = obj.getClass(); c != null; c = c.getSuperclass()) {
+			try {
+				Field f = c.getDeclaredField(name);
+				f.setAccessible(true);
+
+				return f.get(obj);
+			} catch (NoSuchFieldException e) {
+				//declared by a superclass
+			}
+		}
+
+		throw new NoSuchFieldException(obj.getClass().getName() + "." + name);
+	}
+}
@@ -0,0 +1,139 @@
+package org.tinyejb.proxies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import javax.transaction.Transaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.core.EJBMetadata;
+import org.tinyejb.core.EJBMetadata.BEAN_TYPE;
+import org.tinyejb.core.EJBMetadata.TRANSACTION_MANAGED_BY;
+import org.tinyejb.transaction.LocalTransactionManager;
+
+public class TransactionAffinityTest {
+	private LocalTransactionManager txManager;
+	private CountingBean.Factory factory;
+	private BeanInstancePool pool;
+	private TransactionAffinity affinity;
+
+	@Before
+	public void setUp() {
+		txManager = LocalTransactionManager.getInstance();
+		factory = new CountingBean.Factory();
+		pool = new BeanInstancePool(new EJBMetadata("Counting", BEAN_TYPE.Stateless, TRANSACTION_MANAGED_BY.Container, new EJBContainer()), factory);
+		affinity = new TransactionAffinity(pool);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (txManager.getTransaction() != null) {
+			txManager.rollback();
+		}
+
+		pool.shutdown();
+	}
+
+	@Test
+	public void testOneInstancePerTransaction() throws Exception {
+		txManager.begin();
+		Transaction first = txManager.getTransaction();
+
+		TransactionAffinity.PinnedInstance pinned = affinity.claim(first);
+		pinned.unclaim();
+
+		//next calls of the transaction get the same instance, without going back to the pool
+		TransactionAffinity.PinnedInstance again = affinity.claim(first);
+		assertSame(pinned.getBean(), again.getBean());
+		again.unclaim();
+
+		assertEquals(1, pool.getBorrowedCount());
+		assertEquals(1, affinity.getPinnedCount());
+
+		Transaction suspended = txManager.suspend();
+		txManager.begin();
+
+		TransactionAffinity.PinnedInstance other = affinity.claim(txManager.getTransaction());
+		assertNotSame(pinned.getBean(), other.getBean());
+		other.unclaim();
+
+		assertEquals(2, pool.getBorrowedCount());
+		assertEquals(2, affinity.getPinnedCount());
+
+		txManager.commit();
+		txManager.resume(suspended);
+		txManager.commit();
+
+		assertEquals(2, factory.getBuiltCount());
+	}
+
+	@Test
+	public void testReleasedOnCommit() throws Exception {
+		txManager.begin();
+		affinity.claim(txManager.getTransaction()).unclaim();
+
+		txManager.commit();
+
+		assertEquals(0, pool.getBorrowedCount());
+		assertEquals(1, pool.getIdleCount());
+		assertEquals(0, affinity.getPinnedCount());
+	}
+
+	@Test
+	public void testReleasedOnRollback() throws Exception {
+		txManager.begin();
+		affinity.claim(txManager.getTransaction()).unclaim();
+
+		txManager.rollback();
+
+		assertEquals(0, pool.getBorrowedCount());
+		assertEquals(0, affinity.getPinnedCount());
+	}
+
+	@Test
+	public void testCompletedDuringCall() throws Exception {
+		txManager.begin();
+		TransactionAffinity.PinnedInstance pinned = affinity.claim(txManager.getTransaction());
+
+		txManager.commit();
+
+		//the call still runs on it
+		assertEquals(1, pool.getBorrowedCount());
+		assertEquals(0, affinity.getPinnedCount());
+
+		pinned.unclaim();
+
+		assertEquals(0, pool.getBorrowedCount());
+	}
+
+	@Test
+	public void testBusyInstance() throws Exception {
+		txManager.begin();
+		Transaction tx = txManager.getTransaction();
+		TransactionAffinity.PinnedInstance pinned = affinity.claim(tx);
+
+		//a loopback call borrows an instance of its own from the pool
+		assertNull(affinity.claim(tx));
+		assertEquals(1, pool.getBorrowedCount());
+
+		pinned.unclaim();
+		assertSame(pinned.getBean(), affinity.claim(tx).getBean());
+	}
+
+	@Test
+	public void testRollbackOnly() throws Exception {
+		txManager.begin();
+		txManager.setRollbackOnly();
+
+		//the transaction takes no more synchronizations, so nothing is pinned, and the instance goes back to the pool
+		assertNull(affinity.claim(txManager.getTransaction()));
+		assertEquals(0, pool.getBorrowedCount());
+		assertEquals(0, affinity.getPinnedCount());
+		assertEquals(1, pool.getIdleCount());
+	}
+}
@@ -0,0 +1,147 @@
+package org.tinyejb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.ejb.EJBException;
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.proxies.BeanInstancePool;
+import org.tinyejb.proxies.IEJBHome;
+import org.tinyejb.test.ejbs.stateful.LedgerBean;
+import org.tinyejb.test.ejbs.stateful.LedgerLocal;
+import org.tinyejb.test.ejbs.stateful.LedgerLocalHome;
+import org.tinyejb.test.ejbs.stateless.TellerBean;
+import org.tinyejb.test.ejbs.stateless.TellerLocal;
+import org.tinyejb.test.ejbs.stateless.TellerLocalHome;
+import org.tinyejb.transaction.LocalTransaction;
+import org.tinyejb.transaction.LocalTransactionManager;
+
+/**
+ * Bean-managed transactions on the built-in transaction manager: UserTransaction, the caller's transaction suspended during the
+ * call, stateful sessions keeping their transaction across calls, and stateless instances that leave one open
+ */
+public class BeanManagedTransactionTest {
+	private EJBContainer container;
+	private LocalTransactionManager txManager;
+	private TellerLocalHome tellerHome;
+	private LedgerLocalHome ledgerHome;
+
+	@Before
+	public void setUp() throws Exception {
+		container = new EJBContainer();
+		txManager = LocalTransactionManager.getInstance();
+
+		String pool = "<instance-pool><max-size>1</max-size><borrow-timeout>100</borrow-timeout><exhausted-policy>Fail</exhausted-policy></instance-pool>";
+
+		TestContainers.deploy(container, null, TestContainers.beans(
+				TestContainers.localSession("Teller", TellerLocalHome.class, TellerLocal.class, TellerBean.class, "Stateless", "Bean", pool),
+				TestContainers.localSession("Ledger", LedgerLocalHome.class, LedgerLocal.class, LedgerBean.class, "Stateful", "Bean", null)));
+
+		tellerHome = TestContainers.lookup(TellerLocalHome.class);
+		ledgerHome = TestContainers.lookup(LedgerLocalHome.class);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (txManager.getTransaction() != null) {
+			txManager.rollback();
+		}
+
+		container.undeploy();
+	}
+
+	@Test
+	public void testUserTransaction() throws Exception {
+		TellerLocal teller = tellerHome.create();
+
+		int[] committed = teller.demarcate(0, true);
+
+		assertEquals(Status.STATUS_ACTIVE, committed[0]);
+		assertEquals(Status.STATUS_NO_TRANSACTION, committed[1]);
+		assertEquals(txManager.getDefaultTimeout(), committed[2]);
+
+		int[] rolledBack = teller.demarcate(7, false);
+
+		assertEquals(Status.STATUS_ACTIVE, rolledBack[0]);
+		assertEquals(Status.STATUS_NO_TRANSACTION, rolledBack[1]);
+		assertEquals(7, rolledBack[2]);
+
+		//the bean's timeout doesn't stay on the thread
+		txManager.begin();
+		assertEquals(txManager.getDefaultTimeout(), ((LocalTransaction) txManager.getTransaction()).getTimeout());
+		txManager.rollback();
+	}
+
+	@Test
+	public void testCallerTransactionSuspended() throws Exception {
+		TellerLocal teller = tellerHome.create();
+		LedgerLocal ledger = ledgerHome.create();
+
+		txManager.begin();
+		Transaction callerTx = txManager.getTransaction();
+
+		assertEquals(Status.STATUS_NO_TRANSACTION, teller.getStatus());
+		assertEquals(Status.STATUS_ACTIVE, teller.demarcate(0, true)[0]);
+		assertSame(callerTx, txManager.getTransaction());
+
+		ledger.begin();
+		assertSame(callerTx, txManager.getTransaction());
+		ledger.commit();
+
+		assertEquals(Status.STATUS_ACTIVE, callerTx.getStatus());
+		txManager.commit();
+	}
+
+	@Test
+	public void testStatefulTransactionKeptAcrossCalls() throws Exception {
+		LedgerLocal ledger = ledgerHome.create();
+		LedgerLocal other = ledgerHome.create();
+
+		ledger.begin();
+
+		//the transaction stays with the session, not with the caller's thread
+		assertNull(txManager.getTransaction());
+		assertEquals(Status.STATUS_ACTIVE, ledger.getStatus());
+		assertEquals(Status.STATUS_NO_TRANSACTION, other.getStatus());
+
+		ledger.commit();
+		assertEquals(Status.STATUS_NO_TRANSACTION, ledger.getStatus());
+
+		ledger.begin();
+		assertEquals(Status.STATUS_ACTIVE, ledger.getStatus());
+		ledger.rollback();
+		assertEquals(Status.STATUS_NO_TRANSACTION, ledger.getStatus());
+	}
+
+	@Test
+	public void testOpenTransactionDiscardsInstance() throws Exception {
+		TellerLocal teller = tellerHome.create();
+		BeanInstancePool pool = ((IEJBHome) tellerHome).getInstancePool();
+		int removedCount = TellerBean.getRemovedCount();
+
+		try {
+			teller.leaveOpen();
+			fail("stateless bean left a transaction open");
+		} catch (EJBException e) {
+			assertTrue(e.getMessage().contains("must complete the transaction"));
+		}
+
+		assertNull(txManager.getTransaction());
+		assertEquals(removedCount + 1, TellerBean.getRemovedCount());
+		assertEquals(0, pool.getBorrowedCount());
+		assertEquals(0, pool.getIdleCount());
+
+		//the pool holds one instance at most, so the discarded one gave its place back
+		assertEquals(Status.STATUS_NO_TRANSACTION, teller.getStatus());
+		assertEquals(2, pool.getCreatedCount());
+	}
+}
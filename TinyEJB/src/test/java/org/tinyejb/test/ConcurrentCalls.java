@@ -0,0 +1,54 @@
+package org.tinyejb.test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs calls of a test on threads of their own, all at once
+ */
+public final class ConcurrentCalls {
+
+	private ConcurrentCalls() {
+	}
+
+	/**
+	 * runs the calls on their own threads, starting them together, and waits for all of them. Fails when any of them throws
+	 */
+	public static void runTogether(Call... calls) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (final Call call : calls) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						call.run();
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+
+		start.countDown();
+
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertTrue("calls failed: " + errors, errors.isEmpty());
+	}
+
+	public static interface Call {
+		void run() throws Exception;
+	}
+}
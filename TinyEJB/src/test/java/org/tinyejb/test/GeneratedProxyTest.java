@@ -0,0 +1,156 @@
+package org.tinyejb.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+
+import javax.ejb.EJBException;
+import javax.transaction.Status;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.test.ejbs.stateful.CartBean;
+import org.tinyejb.test.ejbs.stateful.CartItem;
+import org.tinyejb.test.ejbs.stateful.CartLocal;
+import org.tinyejb.test.ejbs.stateful.CartLocalHome;
+import org.tinyejb.test.ejbs.stateful.CounterBean;
+import org.tinyejb.test.ejbs.stateful.CounterLocal;
+import org.tinyejb.test.ejbs.stateful.CounterLocalHome;
+import org.tinyejb.test.ejbs.stateless.InvoiceFacade;
+import org.tinyejb.test.ejbs.stateless.InvoiceFacadeBean;
+import org.tinyejb.test.ejbs.stateless.InvoiceFacadeHome;
+import org.tinyejb.test.ejbs.stateless.TellerBean;
+import org.tinyejb.test.ejbs.stateless.TellerLocal;
+import org.tinyejb.test.ejbs.stateless.TellerLocalHome;
+
+/**
+ * Sample beans called through both proxy engines: JDK dynamic proxies and generated classes must behave the same
+ */
+@RunWith(Parameterized.class)
+public class GeneratedProxyTest {
+	private final boolean generatedProxies;
+	private EJBContainer container;
+
+	@Parameters(name = "generated proxies: {0}")
+	public static Collection<Object[]> engines() {
+		return Arrays.asList(new Object[][] { { false }, { true } });
+	}
+
+	public GeneratedProxyTest(boolean generatedProxies) {
+		this.generatedProxies = generatedProxies;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		container = new EJBContainer();
+		container.setUseGeneratedProxies(generatedProxies);
+
+		String invoice = "<session><ejb-name>InvoiceFacade</ejb-name>"
+				+ "<home>" + InvoiceFacadeHome.class.getName() + "</home>"
+				+ "<remote>" + InvoiceFacade.class.getName() + "</remote>"
+				+ "<ejb-class>" + InvoiceFacadeBean.class.getName() + "</ejb-class>"
+				+ "<session-type>Stateless</session-type><transaction-type>Container</transaction-type></session>";
+
+		TestContainers.deploy(container, null, TestContainers.beans(invoice,
+				TestContainers.localSession("Cart", CartLocalHome.class, CartLocal.class, CartBean.class, "Stateful", "Container", null),
+				TestContainers.localSession("Counter", CounterLocalHome.class, CounterLocal.class, CounterBean.class, "Stateful", "Container", null),
+				TestContainers.localSession("Teller", TellerLocalHome.class, TellerLocal.class, TellerBean.class, "Stateless", "Bean", null))
+				+ TestContainers.assembly(TestContainers.containerTransaction("Cart", "*", "Supports"), TestContainers.containerTransaction("Counter", "*", "Supports")));
+	}
+
+	@After
+	public void tearDown() {
+		container.undeploy();
+	}
+
+	@Test
+	public void testStatefulBean() throws Exception {
+		CartLocalHome home = TestContainers.lookup(CartLocalHome.class);
+		CartLocal cart = home.create("john");
+
+		assertEngine(home);
+		assertEngine(cart);
+
+		//void methods, and primitive results
+		cart.addItem(new CartItem("books", 2, "book", 10.5));
+		cart.addItem(new CartItem("office", 3, "pen", 1));
+		cart.addItem(new CartItem("office", 1, "pen", 1));
+		cart.listItems();
+
+		assertEquals(25, cart.getTotalAmount(), 0);
+		assertEquals(2, cart.removeItem("pen"));
+		assertEquals(21, cart.getTotalAmount(), 0);
+
+		//primitive arguments, and proxies as results
+		CounterLocal counter = TestContainers.lookup(CounterLocalHome.class).create(41);
+
+		assertEquals(42, counter.increment());
+		assertTrue(counter.getSelf().isIdentical(counter));
+		assertEquals(42, counter.getSelf().getCount());
+
+		cart.remove();
+	}
+
+	@Test
+	public void testStatelessBean() throws Exception {
+		InvoiceFacadeHome home = TestContainers.lookup(InvoiceFacadeHome.class);
+		InvoiceFacade invoice = home.create();
+
+		assertEngine(home);
+		assertEngine(invoice);
+
+		assertEquals(110, invoice.insertInvoice(100, 10), 0.001);
+		invoice.removeInvoiceRollingBack();
+
+		//array results
+		TellerLocal teller = TestContainers.lookup(TellerLocalHome.class).create();
+
+		assertEngine(teller);
+		assertArrayEquals(new int[] { Status.STATUS_ACTIVE, Status.STATUS_NO_TRANSACTION, 9 }, teller.demarcate(9, true));
+	}
+
+	@Test
+	public void testExceptions() throws Exception {
+		InvoiceFacade invoice = TestContainers.lookup(InvoiceFacadeHome.class).create();
+
+		try {
+			invoice.removeInvoiceThrowingSystemException();
+			fail("system exception expected");
+		} catch (EJBException e) {
+			assertEquals("Just testing automatic rollback", e.getMessage());
+		}
+
+		TellerLocal teller = TestContainers.lookup(TellerLocalHome.class).create();
+
+		try {
+			teller.leaveOpen();
+			fail("stateless bean left a transaction open");
+		} catch (EJBException e) {
+			assertTrue(e.getMessage().contains("must complete the transaction"));
+		}
+
+		CartLocal cart = TestContainers.lookup(CartLocalHome.class).create("mary");
+		cart.remove();
+
+		try {
+			cart.getTotalAmount();
+			fail("session was removed");
+		} catch (EJBException e) {
+			//NoSuchObjectLocalException
+		}
+	}
+
+	private void assertEngine(Object proxy) {
+		assertEquals(!generatedProxies, Proxy.isProxyClass(proxy.getClass()));
+	}
+}
@@ -0,0 +1,270 @@
+package org.tinyejb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.ejb.CreateException;
+import javax.ejb.EJBLocalHome;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.core.ResourceHolder;
+import org.tinyejb.test.ejbs.stateful.CounterBean;
+import org.tinyejb.test.ejbs.stateful.CounterLocal;
+import org.tinyejb.test.ejbs.stateless.GreeterBean;
+import org.tinyejb.test.ejbs.stateless.GreeterLocal;
+import org.tinyejb.test.ejbs.stateless.GreeterLocalHome;
+import org.tinyejb.test.mocks.MockNamingContext;
+
+/**
+ * create() on homes: stateful sessions are built with the constructor and ejbCreate() methods resolved on deploy, and stateless
+ * homes hand out their shared proxy
+ */
+@RunWith(Parameterized.class)
+public class HomeCreateTest {
+	private static final int THREADS = 8;
+	private static final int SESSIONS_PER_THREAD = 200;
+
+	private final boolean generatedProxies;
+	private EJBContainer container;
+	private CountersLocalHome home;
+
+	public HomeCreateTest(boolean generatedProxies) {
+		this.generatedProxies = generatedProxies;
+	}
+
+	@Parameters(name = "generated proxies: {0}")
+	public static Collection<Object[]> engines() {
+		return Arrays.asList(new Object[][] { { false }, { true } });
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		container = new EJBContainer();
+		container.setUseGeneratedProxies(generatedProxies);
+		TestContainers.deploy(container, null, TestContainers.beans(
+				TestContainers.localSession("Counters", CountersLocalHome.class, CounterLocal.class, CountersBean.class, "Stateful", "Container", null),
+				TestContainers.localSession("Greeter", GreeterLocalHome.class, GreeterLocal.class, GreeterBean.class, "Stateless", "Container", null)));
+
+		home = TestContainers.lookup(CountersLocalHome.class);
+	}
+
+	@After
+	public void tearDown() {
+		container.undeploy();
+	}
+
+	@Test
+	public void testCreateOverloads() throws Exception {
+		CounterLocal byDefault = home.create();
+		CounterLocal byInt = home.create(5);
+		CounterLocal byString = home.create("7");
+
+		assertEquals(CountersBean.DEFAULT_START, byDefault.getCount());
+		assertEquals(5, byInt.getCount());
+		assertEquals(7, byString.getCount());
+
+		//each context was given its own session
+		assertSame(byDefault, byDefault.getSelf());
+		assertSame(byInt, byInt.getSelf());
+		assertSame(byString, byString.getSelf());
+		assertNotSame(byInt, byString);
+		assertSame(home, byInt.getEJBLocalHome());
+	}
+
+	@Test
+	public void testNoMatchingEjbCreate() throws Exception {
+		try {
+			home.create(5L);
+			fail("bean has no ejbCreate(long)");
+		} catch (CreateException e) {
+			assertEquals("No ejbCreate() method found on 'Counters' that matches home interface.", e.getMessage());
+		}
+
+		//other create() methods aren't affected
+		assertEquals(3, home.create(3).getCount());
+	}
+
+	@Test
+	public void testEjbCreateFailure() throws Exception {
+		try {
+			home.create("not a number");
+			fail("ejbCreate() failed");
+		} catch (CreateException e) {
+			assertTrue(e.getCause() instanceof NumberFormatException);
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testDistinctSessions() throws Exception {
+		final Map<CounterLocal, Integer> sessions = Collections.synchronizedMap(new IdentityHashMap<CounterLocal, Integer>());
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int t = 0; t < THREADS; t++) {
+			final int first = t * SESSIONS_PER_THREAD;
+
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+
+						for (int i = first; i < first + SESSIONS_PER_THREAD; i++) {
+							//alternates the int and String overloads
+							sessions.put(i % 2 == 0 ? home.create(i) : home.create(String.valueOf(i)), i);
+						}
+					} catch (Throwable e) {
+						failures.add(e);
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(Collections.emptyList(), failures);
+		assertEquals(THREADS * SESSIONS_PER_THREAD, sessions.size());
+
+		for (Map.Entry<CounterLocal, Integer> session : sessions.entrySet()) {
+			int initial = session.getValue();
+
+			assertEquals(initial, session.getKey().getCount());
+			assertEquals(initial + 1, session.getKey().increment());
+			assertSame(session.getKey(), session.getKey().getSelf());
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testStatelessSharedProxy() throws Exception {
+		final GreeterLocalHome greeterHome = TestContainers.lookup(GreeterLocalHome.class);
+		final Map<GreeterLocal, Boolean> proxies = Collections.synchronizedMap(new IdentityHashMap<GreeterLocal, Boolean>());
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int t = 0; t < THREADS; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+
+						for (int i = 0; i < SESSIONS_PER_THREAD; i++) {
+							proxies.put(greeterHome.create(), Boolean.TRUE);
+						}
+					} catch (Throwable e) {
+						failures.add(e);
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(Collections.emptyList(), failures);
+		assertEquals(1, proxies.size());
+		assertTrue(proxies.keySet().iterator().next().getInstanceId() > 0);
+	}
+
+	@Test
+	public void testSerializedHome() throws Exception {
+		CountersLocalHome copy = (CountersLocalHome) deserialize(serialize(home));
+
+		CounterLocal counter = copy.create(1);
+
+		assertEquals(1, counter.getCount());
+		assertEquals(2, counter.increment());
+		assertSame(counter, counter.getSelf());
+		assertEquals(CountersBean.DEFAULT_START, copy.create().getCount());
+	}
+
+	@Test
+	public void testSerializedHomeNotBound() throws Exception {
+		byte[] bytes = serialize(home);
+		container.undeploy();
+		//as another JVM, where the bean isn't deployed
+		ResourceHolder.setHolder(null, new MockNamingContext());
+
+		try {
+			deserialize(bytes);
+			fail("home was undeployed");
+		} catch (InvalidObjectException e) {
+		}
+	}
+
+	private static byte[] serialize(Object obj) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(obj);
+		out.close();
+
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws Exception {
+		return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+	}
+
+	/**
+	 * Counter home with more create() methods. There is no ejbCreate(long) on the bean: deploy logs the spec violation, and
+	 * create(long) fails
+	 */
+	public static interface CountersLocalHome extends EJBLocalHome {
+		CounterLocal create() throws CreateException;
+
+		CounterLocal create(int start) throws CreateException;
+
+		CounterLocal create(String start) throws CreateException;
+
+		CounterLocal create(long start) throws CreateException;
+	}
+
+	public static class CountersBean extends CounterBean {
+		private static final long serialVersionUID = 1L;
+		static final int DEFAULT_START = 100;
+
+		public void ejbCreate() {
+			ejbCreate(DEFAULT_START);
+		}
+
+		public void ejbCreate(String start) {
+			ejbCreate(Integer.parseInt(start));
+		}
+	}
+}
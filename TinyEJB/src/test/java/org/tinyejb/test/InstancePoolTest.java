@@ -0,0 +1,83 @@
+package org.tinyejb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.proxies.BeanInstancePool;
+import org.tinyejb.proxies.IEJBHome;
+import org.tinyejb.test.ejbs.stateless.Greeter;
+import org.tinyejb.test.ejbs.stateless.GreeterBean;
+import org.tinyejb.test.ejbs.stateless.GreeterHome;
+import org.tinyejb.test.ejbs.stateless.GreeterLocal;
+import org.tinyejb.test.ejbs.stateless.GreeterLocalHome;
+import org.tinyejb.test.ejbs.stateless.RelayBean;
+import org.tinyejb.test.ejbs.stateless.RelayLocal;
+import org.tinyejb.test.ejbs.stateless.RelayLocalHome;
+
+/**
+ * Instance pools of stateless beans, as set up by the deploy
+ */
+public class InstancePoolTest {
+	private EJBContainer container;
+
+	@Before
+	public void setUp() throws Exception {
+		container = new EJBContainer();
+
+		String greeter = "<session><ejb-name>Greeter</ejb-name>"
+				+ "<home>" + GreeterHome.class.getName() + "</home>"
+				+ "<remote>" + Greeter.class.getName() + "</remote>"
+				+ "<local-home>" + GreeterLocalHome.class.getName() + "</local-home>"
+				+ "<local>" + GreeterLocal.class.getName() + "</local>"
+				+ "<ejb-class>" + GreeterBean.class.getName() + "</ejb-class>"
+				+ "<session-type>Stateless</session-type><transaction-type>Container</transaction-type></session>";
+
+		TestContainers.deploy(container, null, TestContainers.beans(greeter,
+				TestContainers.localSession("Relay", RelayLocalHome.class, RelayLocal.class, RelayBean.class, "Stateless", "Container",
+						"<instance-pool><min-size>2</min-size><initial-size>4</initial-size></instance-pool>")));
+	}
+
+	@After
+	public void tearDown() {
+		container.undeploy();
+	}
+
+	@Test
+	public void testPrefilledOnDeploy() throws Exception {
+		BeanInstancePool pool = ((IEJBHome) TestContainers.lookup(RelayLocalHome.class)).getInstancePool();
+
+		//built before deploy returns
+		assertEquals(4, pool.getIdleCount());
+		assertEquals(4, pool.getCreatedCount());
+
+		TestContainers.lookup(RelayLocalHome.class).create().supports();
+
+		assertEquals(4, pool.getCreatedCount());
+	}
+
+	@Test
+	public void testSharedByBothHomes() throws Exception {
+		GreeterHome home = TestContainers.lookup(GreeterHome.class);
+		GreeterLocalHome localHome = TestContainers.lookup(GreeterLocalHome.class);
+		BeanInstancePool pool = ((IEJBHome) home).getInstancePool();
+
+		assertSame(pool, ((IEJBHome) localHome).getInstancePool());
+
+		Greeter greeter = home.create();
+		GreeterLocal localGreeter = localHome.create();
+
+		//one instance serves both kinds of clients
+		int instanceId = greeter.getInstanceId();
+		assertEquals(instanceId, localGreeter.getInstanceId());
+		assertEquals(1, pool.getCreatedCount());
+
+		assertTrue(greeter.hasBothViews());
+		assertTrue(localGreeter.hasBothViews());
+		assertEquals(instanceId, localGreeter.getInstanceId());
+	}
+}
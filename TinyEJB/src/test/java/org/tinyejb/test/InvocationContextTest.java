@@ -0,0 +1,193 @@
+package org.tinyejb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import javax.ejb.EJBException;
+import javax.ejb.TransactionRequiredLocalException;
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.test.ejbs.stateless.RelayBean;
+import org.tinyejb.test.ejbs.stateless.RelayLocal;
+import org.tinyejb.test.ejbs.stateless.RelayLocalHome;
+import org.tinyejb.test.mocks.CountingTransactionManager;
+import org.tinyejb.transaction.LocalTransactionManager;
+
+/**
+ * Transaction propagation along chains of nested local calls. Only the outermost call asks the TransactionManager for the
+ * transaction of the thread, and nested calls trust what the invocation context knows, unless a commit or resume failed.
+ */
+public class InvocationContextTest {
+	private EJBContainer container;
+	private LocalTransactionManager localTxManager;
+	private CountingTransactionManager txManager;
+	private RelayLocal relay;
+
+	@Before
+	public void setUp() throws Exception {
+		container = new EJBContainer();
+		localTxManager = LocalTransactionManager.getInstance();
+		txManager = new CountingTransactionManager(localTxManager);
+
+		TestContainers.deploy(container, txManager, TestContainers.beans(
+				TestContainers.localSession("Relay", RelayLocalHome.class, RelayLocal.class, RelayBean.class, "Stateless", "Container", null))
+				+ TestContainers.assembly(
+						TestContainers.containerTransaction("Relay", "required", "Required"),
+						TestContainers.containerTransaction("Relay", "requiresNew", "RequiresNew"),
+						TestContainers.containerTransaction("Relay", "notSupported", "NotSupported"),
+						TestContainers.containerTransaction("Relay", "mandatory", "Mandatory"),
+						TestContainers.containerTransaction("Relay", "supports", "Supports"),
+						TestContainers.containerTransaction("Relay", "never", "Never"),
+						TestContainers.containerTransaction("Relay", "failCommit", "RequiresNew"),
+						TestContainers.containerTransaction("Relay", "attempt", "Required")));
+
+		relay = TestContainers.lookup(RelayLocalHome.class).create();
+		txManager.reset();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (localTxManager.getTransaction() != null) {
+			localTxManager.rollback();
+		}
+
+		container.undeploy();
+	}
+
+	@Test
+	public void testNestedRequired() throws Exception {
+		List<Object> hops = relay.required("required", "supports", "mandatory");
+
+		Transaction tx = (Transaction) hops.get(0);
+		assertNotNull(tx);
+		assertSame(tx, hops.get(1));
+		assertSame(tx, hops.get(2));
+		assertSame(tx, hops.get(3));
+		assertEquals(Status.STATUS_COMMITTED, tx.getStatus());
+		assertNull(localTxManager.getTransaction());
+
+		//the outermost call asks once, and once more for the transaction it began
+		assertEquals(2, txManager.getGetTransactionCount());
+		assertEquals(1, txManager.getBeginCount());
+		//the TM's commit also unbinds the transaction from the thread
+		assertEquals(0, txManager.getSuspendCount());
+
+		//nothing is kept between outermost calls
+		txManager.reset();
+		relay.supports();
+
+		assertEquals(1, txManager.getGetTransactionCount());
+	}
+
+	@Test
+	public void testCallerTransaction() throws Exception {
+		localTxManager.begin();
+		Transaction callerTx = localTxManager.getTransaction();
+
+		List<Object> hops = relay.mandatory("required", "supports");
+
+		assertSame(callerTx, hops.get(0));
+		assertSame(callerTx, hops.get(1));
+		assertSame(callerTx, hops.get(2));
+		assertEquals(1, txManager.getGetTransactionCount());
+		assertEquals(0, txManager.getBeginCount());
+		assertEquals(Status.STATUS_ACTIVE, callerTx.getStatus());
+	}
+
+	@Test
+	public void testRequiresNew() throws Exception {
+		List<Object> hops = relay.required("requiresNew", "required", "supports");
+
+		Transaction outer = (Transaction) hops.get(0);
+		Transaction inner = (Transaction) hops.get(1);
+
+		assertNotNull(inner);
+		assertNotSame(outer, inner);
+		assertSame(inner, hops.get(2));
+		assertSame(inner, hops.get(3));
+		assertEquals(Status.STATUS_COMMITTED, outer.getStatus());
+		assertEquals(Status.STATUS_COMMITTED, inner.getStatus());
+
+		//begun transactions are known from the TM, and the outer one is resumed
+		assertEquals(3, txManager.getGetTransactionCount());
+		assertEquals(2, txManager.getBeginCount());
+		assertEquals(1, txManager.getResumeCount());
+		//just the outer one, before the inner one begins
+		assertEquals(1, txManager.getSuspendCount());
+	}
+
+	@Test
+	public void testNotSupported() throws Exception {
+		List<Object> hops = relay.required("notSupported", "supports", "required");
+
+		Transaction outer = (Transaction) hops.get(0);
+
+		assertNotNull(outer);
+		assertNull(hops.get(1));
+		assertNull(hops.get(2));
+		//a transaction of its own, with the outer one suspended
+		assertNotNull(hops.get(3));
+		assertNotSame(outer, hops.get(3));
+		assertEquals(3, txManager.getGetTransactionCount());
+		assertEquals(2, txManager.getBeginCount());
+
+		try {
+			relay.notSupported("mandatory");
+			fail("Mandatory called with no transaction");
+		} catch (TransactionRequiredLocalException e) {
+		}
+	}
+
+	@Test
+	public void testNever() throws Exception {
+		List<Object> hops = relay.notSupported("never");
+
+		assertNull(hops.get(1));
+
+		try {
+			relay.required("never");
+			fail("Never called with a transaction");
+		} catch (EJBException e) {
+			assertEquals(EJBException.class, e.getClass());
+		}
+	}
+
+	@Test
+	public void testFailedCommitForgetsTransaction() throws Exception {
+		List<Object> hops = relay.attempt(new String[] { "failCommit" }, new String[] { "supports" });
+
+		Transaction outer = (Transaction) hops.get(0);
+
+		assertNotNull(outer);
+		//the failure of the inner call
+		assertTrue(hops.get(1) instanceof Class);
+		//the call after the failure asks the TM again, instead of trusting the caller's transaction
+		assertNotSame(outer, hops.get(2));
+		assertEquals(4, txManager.getGetTransactionCount());
+		assertNull(localTxManager.getTransaction());
+	}
+
+	@Test
+	public void testFailedResumeForgetsTransaction() throws Exception {
+		txManager.setFailNextResume(true);
+
+		List<Object> hops = relay.attempt(new String[] { "notSupported" }, new String[] { "mandatory" });
+
+		assertNotNull(hops.get(0));
+		//the outer transaction wasn't resumed, so a Mandatory call can't run as if it had been
+		assertEquals(TransactionRequiredLocalException.class, hops.get(2));
+		assertNull(localTxManager.getTransaction());
+	}
+}
@@ -0,0 +1,152 @@
+package org.tinyejb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+
+import javax.ejb.NoSuchObjectLocalException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.proxies.IEJBHome;
+import org.tinyejb.proxies.StatefulSessionStatistics;
+import org.tinyejb.test.ejbs.stateful.CounterBean;
+import org.tinyejb.test.ejbs.stateful.CounterLocal;
+import org.tinyejb.test.ejbs.stateful.CounterLocalHome;
+
+/**
+ * Stateful sessions removed by the container after their session timeout. The reaper ticks once a second, so sessions expire
+ * up to a couple of seconds after their deadline.
+ */
+public class SessionReaperTest {
+	private static final long SESSION_TIMEOUT = 1000;
+	//enough for the reaper to see a due session
+	private static final long EXPIRY_WAIT = 5000;
+
+	private EJBContainer container;
+	private CounterLocalHome home;
+	private StatefulSessionStatistics statistics;
+
+	@Before
+	public void setUp() throws Exception {
+		container = new EJBContainer();
+
+		TestContainers.deploy(container, null, TestContainers.beans(
+				TestContainers.localSession("Counter", CounterLocalHome.class, CounterLocal.class, CounterBean.class, "Stateful", "Container", "<session-timeout>" + SESSION_TIMEOUT + "</session-timeout>"))
+				+ TestContainers.assembly(TestContainers.containerTransaction("Counter", "*", "Supports")));
+
+		home = TestContainers.lookup(CounterLocalHome.class);
+		statistics = ((IEJBHome) home).getStatefulSessionStatistics();
+	}
+
+	@After
+	public void tearDown() {
+		container.undeploy();
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		CounterLocal counter = home.create(0);
+		counter.increment();
+
+		assertTrue(waitForExpired(1));
+		assertEquals(0, statistics.getLiveCount());
+
+		try {
+			counter.increment();
+			fail("session expired");
+		} catch (NoSuchObjectLocalException e) {
+		}
+
+		try {
+			counter.remove();
+			fail("session expired");
+		} catch (NoSuchObjectLocalException e) {
+		}
+
+		assertEquals(0, statistics.getRemovedCount());
+	}
+
+	@Test
+	public void testRemoveTwice() throws Exception {
+		CounterLocal counter = home.create(0);
+		counter.remove();
+
+		try {
+			counter.remove();
+			fail("session removed");
+		} catch (NoSuchObjectLocalException e) {
+		}
+
+		assertEquals(1, statistics.getRemovedCount());
+	}
+
+	@Test
+	public void testCalledSessionRequeued() throws Exception {
+		CounterLocal counter = home.create(0);
+		long end = System.currentTimeMillis() + 3 * SESSION_TIMEOUT;
+
+		//called more often than its timeout, so it's put back on the wheel each time the reaper finds it
+		while (System.currentTimeMillis() < end) {
+			counter.increment();
+			Thread.sleep(SESSION_TIMEOUT / 3);
+		}
+
+		assertEquals(0, statistics.getExpiredCount());
+		assertTrue(counter.getCount() > 3);
+
+		assertTrue(waitForExpired(1));
+	}
+
+	@Test
+	public void testBusySessionRetried() throws Exception {
+		final CounterLocal counter = home.create(0);
+		final CountDownLatch done = new CountDownLatch(1);
+
+		//past its deadline while the call runs, so the reaper finds it busy
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				counter.hold(3 * SESSION_TIMEOUT);
+				done.countDown();
+			}
+		};
+		t.start();
+		done.await();
+
+		//idle only since the call ended
+		assertEquals(0, statistics.getExpiredCount());
+		assertEquals(0, counter.getCount());
+
+		assertTrue(waitForExpired(1));
+	}
+
+	@Test
+	public void testShutdownDropsSessions() throws Exception {
+		home.create(0).increment();
+
+		container.undeploy();
+		Thread.sleep(3 * SESSION_TIMEOUT);
+
+		assertEquals(0, statistics.getExpiredCount());
+		assertEquals(1, statistics.getLiveCount());
+	}
+
+	private boolean waitForExpired(long count) throws InterruptedException {
+		long end = System.currentTimeMillis() + EXPIRY_WAIT;
+
+		while (statistics.getExpiredCount() < count) {
+			if (System.currentTimeMillis() > end) {
+				return false;
+			}
+
+			Thread.sleep(50);
+		}
+
+		return true;
+	}
+}
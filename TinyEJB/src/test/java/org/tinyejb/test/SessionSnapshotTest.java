@@ -0,0 +1,238 @@
+package org.tinyejb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+
+import javax.ejb.NoSuchObjectLocalException;
+import javax.transaction.Status;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.proxies.ISessionEJB;
+import org.tinyejb.proxies.SessionHandle;
+import org.tinyejb.test.ejbs.stateful.CounterBean;
+import org.tinyejb.test.ejbs.stateful.CounterLocal;
+import org.tinyejb.test.ejbs.stateful.CounterLocalHome;
+import org.tinyejb.test.ejbs.stateful.LedgerBean;
+import org.tinyejb.test.ejbs.stateful.LedgerLocal;
+import org.tinyejb.test.ejbs.stateful.LedgerLocalHome;
+
+/**
+ * Stateful sessions written to a snapshot on undeploy, and restored through their handles after the next deploy
+ */
+public class SessionSnapshotTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File snapshotFile;
+	private EJBContainer container;
+
+	@Before
+	public void setUp() throws Exception {
+		snapshotFile = new File(folder.getRoot(), "sessions.snapshot");
+	}
+
+	@After
+	public void tearDown() {
+		if (container != null && container.getContainerStatus() != EJBContainer.ContainerStatus.SHUT_DOWN) {
+			container.undeploy();
+		}
+	}
+
+	@Test
+	public void testLazyRestore() throws Exception {
+		deploy();
+
+		CounterLocal counter = TestContainers.lookup(CounterLocalHome.class).create(5);
+		counter.increment();
+		SessionHandle handle = handleOf(counter);
+
+		redeploy();
+
+		//only the index was read
+		assertEquals(1, restorableCount());
+		assertEquals(0, liveCount());
+
+		CounterLocal restored = (CounterLocal) handle.getSession();
+
+		assertEquals(0, restorableCount());
+		assertEquals(6, restored.getCount());
+		//state decoded and activated on the first call
+		assertEquals(1, restored.getActivations());
+		assertEquals(7, restored.increment());
+
+		//the handle finds the same live session again
+		assertSame(restored, handle.getSession());
+	}
+
+	@Test
+	public void testCarryOverNotRestored() throws Exception {
+		deploy();
+
+		CounterLocalHome home = TestContainers.lookup(CounterLocalHome.class);
+		CounterLocal first = home.create(10);
+		CounterLocal second = home.create(20);
+		SessionHandle firstHandle = handleOf(first);
+		SessionHandle secondHandle = handleOf(second);
+
+		redeploy();
+		assertEquals(11, ((CounterLocal) firstHandle.getSession()).increment());
+
+		//second was never reached, so it goes to the next snapshot as it was
+		redeploy();
+		assertEquals(2, restorableCount());
+
+		assertEquals(11, ((CounterLocal) firstHandle.getSession()).getCount());
+		assertEquals(20, ((CounterLocal) secondHandle.getSession()).getCount());
+	}
+
+	@Test
+	public void testExpiredNotRestored() throws Exception {
+		deploy(200);
+
+		SessionHandle handle = handleOf(TestContainers.lookup(CounterLocalHome.class).create(1));
+
+		redeploy(200);
+		//time the container was down doesn't count
+		assertEquals(1, restorableCount());
+		Thread.sleep(300);
+
+		try {
+			handle.getSession();
+			fail("session timeout elapsed");
+		} catch (NoSuchObjectLocalException e) {
+		}
+	}
+
+	@Test
+	public void testReferences() throws Exception {
+		deploy();
+
+		LedgerLocal ledger = TestContainers.lookup(LedgerLocalHome.class).create();
+		ledger.keep(container.getDeployedBean("Counter"));
+		SessionHandle handle = handleOf(ledger);
+
+		redeploy();
+
+		LedgerLocal restored = (LedgerLocal) handle.getSession();
+
+		assertSame(container.getDeployedBean("Counter"), restored.getNote());
+		assertTrue(restored.isKeptTransactionCurrent());
+		assertEquals(Status.STATUS_NO_TRANSACTION, restored.getKeptStatus());
+	}
+
+	@Test
+	public void testCorruptSnapshot() throws Exception {
+		FileOutputStream out = new FileOutputStream(snapshotFile);
+		out.write("not a snapshot".getBytes("UTF-8"));
+		out.close();
+
+		//deploy goes on without the sessions
+		deploy();
+		assertEquals(0, restorableCount());
+
+		SessionHandle handle = handleOf(TestContainers.lookup(CounterLocalHome.class).create(3));
+
+		//and the next snapshot is a good one
+		redeploy();
+		assertEquals(3, ((CounterLocal) handle.getSession()).getCount());
+	}
+
+	@Test
+	public void testCorruptSessionState() throws Exception {
+		deploy();
+
+		SessionHandle handle = handleOf(TestContainers.lookup(CounterLocalHome.class).create(3));
+
+		container.undeploy();
+
+		//the state of the only session starts after the header
+		RandomAccessFile raf = new RandomAccessFile(snapshotFile, "rw");
+		raf.seek(8);
+		raf.write(new byte[] { -1, -1, -1, -1, -1, -1, -1, -1 });
+		raf.close();
+
+		deploy();
+
+		CounterLocal restored = (CounterLocal) handle.getSession();
+
+		try {
+			restored.getCount();
+			fail("state can't be decoded");
+		} catch (RuntimeException e) {
+		}
+
+		//the session is gone
+		try {
+			restored.getCount();
+			fail("session removed");
+		} catch (NoSuchObjectLocalException e) {
+		}
+
+		assertFalse(new File(snapshotFile.getPath() + ".tmp").exists());
+	}
+
+	private void deploy() throws Exception {
+		deploy(0);
+	}
+
+	private void deploy(long sessionTimeout) throws Exception {
+		container = new EJBContainer();
+		container.setSessionSnapshotFile(snapshotFile.getPath());
+		container.setStatefulSessionTimeout(sessionTimeout);
+
+		TestContainers.deploy(container, null, TestContainers.beans(
+				TestContainers.localSession("Counter", CounterLocalHome.class, CounterLocal.class, CounterBean.class, "Stateful", "Container", null),
+				TestContainers.localSession("Ledger", LedgerLocalHome.class, LedgerLocal.class, LedgerBean.class, "Stateful", "Bean", null))
+				+ TestContainers.assembly(TestContainers.containerTransaction("Counter", "*", "Supports")));
+	}
+
+	/**
+	 * undeploys, writing the snapshot, and deploys the beans again on a new container (a container that shut down can't be reused)
+	 */
+	private void redeploy() throws Exception {
+		redeploy(0);
+	}
+
+	private void redeploy(long sessionTimeout) throws Exception {
+		container.undeploy();
+		assertTrue(snapshotFile.isFile());
+
+		deploy(sessionTimeout);
+	}
+
+	private int restorableCount() {
+		return container.getDeployedBean("Counter").getStatefulSessionRegistry().getRestorableCount();
+	}
+
+	private int liveCount() {
+		return container.getDeployedBean("Counter").getStatefulSessionRegistry().getLiveCount();
+	}
+
+	/**
+	 * handle of the session, after it went through serialization as a client would keep it
+	 */
+	private static SessionHandle handleOf(Object session) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(((ISessionEJB) session).getSessionHandle());
+		out.close();
+
+		return (SessionHandle) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+	}
+}
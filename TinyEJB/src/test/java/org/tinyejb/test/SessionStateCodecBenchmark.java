@@ -0,0 +1,207 @@
+package org.tinyejb.test;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.EJBException;
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+
+import org.tinyejb.proxies.FieldStateCodec;
+import org.tinyejb.proxies.ISessionStateCodec;
+import org.tinyejb.proxies.JavaSerializationCodec;
+
+/**
+ * Compares state codecs (encoded size, encode and decode time) on shopping session graphs of a few sizes.
+ * 
+ * Run it as a plain java application.
+ */
+public class SessionStateCodecBenchmark {
+	private static final int WARM_UP_ROUNDS = 3;
+	private static final int MEASURED_ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		ISessionStateCodec[] codecs = { new JavaSerializationCodec(), new FieldStateCodec() };
+
+		for (int items : new int[] { 5, 50, 500 }) {
+			ShoppingSessionBean bean = buildSession(items);
+			int iterations = Math.max(200, 200000 / items);
+
+			System.out.println("\nSession with " + items + " items (" + iterations + " iterations)");
+
+			for (ISessionStateCodec codec : codecs) {
+				List<Object> references = new ArrayList<Object>();
+				byte[] data = codec.encode(bean, references);
+
+				//checks the round trip before measuring it
+				ShoppingSessionBean copy = (ShoppingSessionBean) codec.decode(data, references.toArray(), SessionStateCodecBenchmark.class.getClassLoader());
+				if (!copy.sameStateAs(bean)) {
+					throw new IllegalStateException(codec.getClass().getSimpleName() + " didn't restore the state");
+				}
+
+				for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+					measure(codec, bean, iterations);
+				}
+
+				long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+
+				for (int i = 0; i < MEASURED_ROUNDS; i++) {
+					long[] round = measure(codec, bean, iterations);
+					best[0] = Math.min(best[0], round[0]);
+					best[1] = Math.min(best[1], round[1]);
+				}
+
+				System.out.printf("  %-24s %8d bytes   encode %9.1f us   decode %9.1f us%n", codec.getClass().getSimpleName(), data.length, best[0] / 1000.0 / iterations, best[1] / 1000.0 / iterations);
+			}
+		}
+	}
+
+	/**
+	 * @return nanoseconds spent on encoding and decoding
+	 */
+	private static long[] measure(ISessionStateCodec codec, SessionBean bean, int iterations) throws Exception {
+		List<Object> references = new ArrayList<Object>();
+		byte[][] encoded = new byte[iterations][];
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			references.clear();
+			encoded[i] = codec.encode(bean, references);
+		}
+		long encodeTime = System.nanoTime() - start;
+
+		Object[] refs = references.toArray();
+		ClassLoader loader = SessionStateCodecBenchmark.class.getClassLoader();
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			codec.decode(encoded[i], refs, loader);
+		}
+		long decodeTime = System.nanoTime() - start;
+
+		return new long[] { encodeTime, decodeTime };
+	}
+
+	private static ShoppingSessionBean buildSession(int items) {
+		ShoppingSessionBean bean = new ShoppingSessionBean();
+		Customer customer = new Customer("Customer " + items, "customer" + items + "@example.com", new Address("Rua das Flores, 123", "São Paulo", "01000-000"));
+
+		bean.customer = customer;
+		bean.startedAt = new Date(1400000000000L);
+		bean.lastCategory = Category.BOOKS;
+
+		for (int i = 0; i < items; i++) {
+			LineItem item = new LineItem("SKU-" + (100000 + i), "Product number " + i, i % 7 + 1, 9.9 + i, Category.values()[i % Category.values().length]);
+			//shared reference, as an item points back to its buyer
+			item.buyer = customer;
+			bean.items.add(item);
+		}
+
+		bean.attributes.put("channel", "web");
+		bean.attributes.put("campaign", "spring-sale");
+		bean.attributes.put("coupon", "SAVE10");
+
+		return bean;
+	}
+
+	static enum Category {
+		BOOKS, MUSIC, MOVIES, GAMES
+	}
+
+	static class Address implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private String street;
+		private String city;
+		private String zipCode;
+
+		Address(String street, String city, String zipCode) {
+			this.street = street;
+			this.city = city;
+			this.zipCode = zipCode;
+		}
+	}
+
+	static class Customer implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private String name;
+		private String email;
+		private Address address;
+
+		Customer(String name, String email, Address address) {
+			this.name = name;
+			this.email = email;
+			this.address = address;
+		}
+	}
+
+	static class LineItem implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private String sku;
+		private String description;
+		private int qty;
+		private double unitPrice;
+		private Category category;
+		private Customer buyer;
+
+		LineItem(String sku, String description, int qty, double unitPrice, Category category) {
+			this.sku = sku;
+			this.description = description;
+			this.qty = qty;
+			this.unitPrice = unitPrice;
+			this.category = category;
+		}
+	}
+
+	public static class ShoppingSessionBean implements SessionBean {
+		private static final long serialVersionUID = 1L;
+
+		private transient SessionContext ctx;
+		private Customer customer;
+		private Date startedAt;
+		private Category lastCategory;
+		private List<LineItem> items = new ArrayList<LineItem>();
+		private Map<String, String> attributes = new HashMap<String, String>();
+
+		boolean sameStateAs(ShoppingSessionBean other) {
+			if (items.size() != other.items.size() || !attributes.equals(other.attributes) || !startedAt.equals(other.startedAt) || lastCategory != other.lastCategory) {
+				return false;
+			}
+
+			for (int i = 0; i < items.size(); i++) {
+				LineItem mine = items.get(i);
+				LineItem theirs = other.items.get(i);
+
+				if (!mine.sku.equals(theirs.sku) || mine.qty != theirs.qty || mine.unitPrice != theirs.unitPrice || mine.category != theirs.category || mine.buyer != customer) {
+					return false;
+				}
+			}
+
+			return customer.address.city.equals(other.customer.address.city);
+		}
+
+		@Override
+		public void setSessionContext(SessionContext ctx) throws EJBException, RemoteException {
+			this.ctx = ctx;
+		}
+
+		@Override
+		public void ejbRemove() throws EJBException, RemoteException {
+		}
+
+		@Override
+		public void ejbActivate() throws EJBException, RemoteException {
+		}
+
+		@Override
+		public void ejbPassivate() throws EJBException, RemoteException {
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package org.tinyejb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.tinyejb.test.ConcurrentCalls.runTogether;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.test.ConcurrentCalls.Call;
+import org.tinyejb.test.ejbs.stateless.BoardBean;
+import org.tinyejb.test.ejbs.stateless.BoardLocal;
+import org.tinyejb.test.ejbs.stateless.BoardLocalHome;
+
+/**
+ * Container-managed concurrency of singleton stateless beans: Read methods share the instance, Write methods run alone on it
+ */
+public class SingletonConcurrencyTest {
+	private static final long HOLD_TIME = 300;
+
+	private EJBContainer container;
+
+	@Before
+	public void setUp() {
+		container = new EJBContainer();
+	}
+
+	@After
+	public void tearDown() {
+		container.undeploy();
+	}
+
+	@Test
+	public void testReadersOverlap() throws Exception {
+		final BoardLocal board = deploy(TestContainers.containerConcurrency("Board", "read", "Read", -1));
+
+		runTogether(new Read(board), new Read(board));
+
+		assertEquals(2, board.getMaxRunningCalls());
+	}
+
+	@Test
+	public void testWriterExcludesReaders() throws Exception {
+		final BoardLocal board = deploy(TestContainers.containerConcurrency("Board", "read", "Read", -1));
+
+		runTogether(new Read(board), new Write(board));
+
+		assertEquals(1, board.getMaxRunningCalls());
+	}
+
+	@Test
+	public void testUndeclaredMethodsAreWrite() throws Exception {
+		final BoardLocal board = deploy(TestContainers.containerConcurrency("Board", "read", "Read", -1));
+
+		runTogether(new Write(board), new Write(board));
+
+		assertEquals(1, board.getMaxRunningCalls());
+	}
+
+	@Test
+	public void testNotManaged() throws Exception {
+		TestContainers.deploy(container, null, TestContainers.beans(
+				TestContainers.localSession("Board", BoardLocalHome.class, BoardLocal.class, BoardBean.class, "Stateless", "Container", "<instance-mode>Singleton</instance-mode>")));
+		final BoardLocal board = TestContainers.lookup(BoardLocalHome.class).create();
+
+		runTogether(new Write(board), new Write(board));
+
+		//calls aren't guarded at all
+		assertEquals(2, board.getMaxRunningCalls());
+	}
+
+	@Test
+	public void testAccessTimeout() throws Exception {
+		final BoardLocal board = deploy(TestContainers.containerConcurrency("Board", "read", "Read", -1), TestContainers.containerConcurrency("Board", "write", "Write", 100));
+		final CountDownLatch reading = new CountDownLatch(1);
+
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				reading.countDown();
+				board.read(5 * HOLD_TIME);
+			}
+		};
+		reader.start();
+		reading.await();
+		Thread.sleep(50);
+
+		long start = System.currentTimeMillis();
+
+		try {
+			board.write(0);
+			fail("Write lock not available");
+		} catch (RuntimeException e) {
+			assertTrue(messagesOf(e), messagesOf(e).contains("Timeout (100 ms)"));
+		}
+
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("waited " + elapsed + " ms", elapsed >= 100 && elapsed < 5 * HOLD_TIME);
+
+		reader.join();
+	}
+
+	@Test
+	public void testLoopbackWriteFromRead() throws Exception {
+		final BoardLocal board = deploy(TestContainers.containerConcurrency("Board", "read", "Read", -1), TestContainers.containerConcurrency("Board", "readThenWrite", "Read", -1));
+
+		long start = System.currentTimeMillis();
+
+		try {
+			board.readThenWrite();
+			fail("read lock can't be upgraded");
+		} catch (RuntimeException e) {
+			assertTrue(messagesOf(e), messagesOf(e).contains("Loopback call"));
+		}
+
+		//fails at once, instead of waiting for itself until the timeout
+		assertTrue(System.currentTimeMillis() - start < container.getConcurrentCallWaitTimeout());
+
+		//and the lock was released
+		board.write(0);
+	}
+
+	private BoardLocal deploy(String... assemblyEntries) throws Exception {
+		TestContainers.deploy(container, null, TestContainers.beans(
+				TestContainers.localSession("Board", BoardLocalHome.class, BoardLocal.class, BoardBean.class, "Stateless", "Container", "<instance-mode>Singleton</instance-mode>"))
+				+ TestContainers.assembly(assemblyEntries));
+
+		return TestContainers.lookup(BoardLocalHome.class).create();
+	}
+
+	/**
+	 * messages of the exception and its causes, as the container may wrap the one that failed the call
+	 */
+	private static String messagesOf(Throwable e) {
+		StringBuilder result = new StringBuilder();
+
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			result.append(t.getMessage()).append('\n');
+		}
+
+		return result.toString();
+	}
+
+	private static class Read implements Call {
+		private final BoardLocal board;
+
+		Read(BoardLocal board) {
+			this.board = board;
+		}
+
+		@Override
+		public void run() {
+			board.read(HOLD_TIME);
+		}
+	}
+
+	private static class Write implements Call {
+		private final BoardLocal board;
+
+		Write(BoardLocal board) {
+			this.board = board;
+		}
+
+		@Override
+		public void run() {
+			board.write(HOLD_TIME);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package org.tinyejb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.tinyejb.test.ConcurrentCalls.runTogether;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.core.EJBMetadata;
+import org.tinyejb.core.IJndiResolver;
+import org.tinyejb.core.ResourceHolder;
+import org.tinyejb.proxies.IEJBHome;
+import org.tinyejb.test.ConcurrentCalls.Call;
+import org.tinyejb.test.ejbs.stateful.CounterBean;
+import org.tinyejb.test.ejbs.stateful.CounterLocal;
+import org.tinyejb.test.ejbs.stateful.CounterLocalHome;
+
+/**
+ * Stateful sessions calling each other from two threads wait for each other forever. The container finds the cycle and fails one
+ * of the calls, instead of letting both wait for the whole concurrentCallWaitTimeout.
+ */
+public class StatefulDeadlockTest {
+	private static final long WAIT_TIMEOUT = 10000;
+
+	private EJBContainer container;
+	private CounterLocalHome pingHome;
+	private CounterLocalHome pongHome;
+
+	@Before
+	public void setUp() throws Exception {
+		container = new EJBContainer();
+		container.setConcurrentCallWaitTimeout(WAIT_TIMEOUT);
+		//two beans of the same classes, each under its own name
+		container.setJndiResolver(new IJndiResolver() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public String getRemoteJdniName(EJBMetadata ejb) {
+				return null;
+			}
+
+			@Override
+			public String getLocalJdniName(EJBMetadata ejb) {
+				return TestContainers.JNDI_PREFIX + ejb.getName();
+			}
+		});
+
+		TestContainers.deploy(container, null, TestContainers.beans(counter("Ping"), counter("Pong")) + TestContainers.assembly(TestContainers.containerTransaction("Ping", "*", "Supports"), TestContainers.containerTransaction("Pong", "*", "Supports")));
+
+		pingHome = (CounterLocalHome) ResourceHolder.getJndiContext().lookup(TestContainers.JNDI_PREFIX + "Ping");
+		pongHome = (CounterLocalHome) ResourceHolder.getJndiContext().lookup(TestContainers.JNDI_PREFIX + "Pong");
+	}
+
+	@After
+	public void tearDown() {
+		container.undeploy();
+	}
+
+	@Test
+	public void testDeadlockIsDetected() throws Exception {
+		CounterLocal ping = pingHome.create(0);
+		CounterLocal pong = pongHome.create(0);
+
+		Caller pingCaller = new Caller(ping, pong, 300);
+		Caller pongCaller = new Caller(pong, ping, 300);
+
+		runTogether(pingCaller, pongCaller);
+
+		Caller failed = pingCaller.error != null ? pingCaller : pongCaller;
+		Caller completed = failed == pingCaller ? pongCaller : pingCaller;
+
+		assertNotNull("no call failed", failed.error);
+		assertNull("both calls failed", completed.error);
+		assertEquals(1, completed.result);
+
+		//found by the wait graph, not by the timeout
+		assertTrue("deadlock found after " + failed.elapsed + " ms", failed.elapsed < WAIT_TIMEOUT / 4);
+
+		String message = deadlockMessage(failed.error);
+
+		assertNotNull("not reported as a deadlock: " + failed.error, message);
+		assertTrue(message, message.contains("Ping@"));
+		assertTrue(message, message.contains("Pong@"));
+		assertTrue(message, message.contains("'incrementOther'"));
+		assertTrue(message, message.contains("'increment'"));
+
+		assertEquals(1, deadlockCount());
+	}
+
+	@Test
+	public void testContentionIsNotDeadlock() throws Exception {
+		final CounterLocal ping = pingHome.create(0);
+		CounterLocal pong = pongHome.create(0);
+
+		//both threads call ping, and only one of them goes on to pong
+		Caller holder = new Caller(ping, pong, 300);
+		Caller waiter = new Caller(ping, null, 0);
+
+		runTogether(holder, waiter);
+
+		assertNull(holder.error);
+		assertNull(waiter.error);
+		assertEquals(0, deadlockCount());
+		assertEquals(1, pong.getCount());
+	}
+
+	private static String counter(String name) {
+		return TestContainers.localSession(name, CounterLocalHome.class, CounterLocal.class, CounterBean.class, "Stateful", "Container", null);
+	}
+
+	private long deadlockCount() {
+		return ((IEJBHome) pingHome).getStatefulLockStatistics().getDeadlockCount() + ((IEJBHome) pongHome).getStatefulLockStatistics().getDeadlockCount();
+	}
+
+	private static String deadlockMessage(Throwable error) {
+		for (Throwable t = error; t != null; t = t.getCause()) {
+			if (t.getMessage() != null && t.getMessage().contains("Deadlock")) {
+				return t.getMessage();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * calls incrementOther() on a session, or increment() when there is no other session
+	 */
+	private static class Caller implements Call {
+		private final CounterLocal session;
+		private final CounterLocal other;
+		private final long holdTime;
+		private volatile int result;
+		private volatile Throwable error;
+		private volatile long elapsed;
+
+		Caller(CounterLocal session, CounterLocal other, long holdTime) {
+			this.session = session;
+			this.other = other;
+			this.holdTime = holdTime;
+		}
+
+		@Override
+		public void run() {
+			long begin = System.currentTimeMillis();
+
+			//failures are kept for the test to check, as one of the calls is expected to fail
+			try {
+				result = other != null ? session.incrementOther(other, holdTime) : session.increment();
+			} catch (Throwable e) {
+				error = e;
+			} finally {
+				elapsed = System.currentTimeMillis() - begin;
+			}
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package org.tinyejb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.proxies.IEJBHome;
+import org.tinyejb.proxies.StatefulLockStatistics;
+import org.tinyejb.test.ejbs.stateful.CounterBean;
+import org.tinyejb.test.ejbs.stateful.CounterLocal;
+import org.tinyejb.test.ejbs.stateful.CounterLocalHome;
+
+/**
+ * Calls on a stateful session run one at a time: the others queue for the session lock, and contention is recorded
+ */
+public class StatefulLockTest {
+	private static final long HOLD_TIME = 600;
+	//time for a thread to start its call and take (or queue for) the session
+	private static final long SETTLE_TIME = 100;
+
+	private EJBContainer container;
+	private CounterLocal counter;
+	private StatefulLockStatistics statistics;
+
+	@Before
+	public void setUp() throws Exception {
+		container = new EJBContainer();
+		container.setConcurrentCallWaitTimeout(5000);
+	}
+
+	@After
+	public void tearDown() {
+		container.undeploy();
+	}
+
+	@Test
+	public void testContention() throws Exception {
+		deploy();
+
+		Thread holder = call(new Runnable() {
+			@Override
+			public void run() {
+				counter.hold(HOLD_TIME);
+			}
+		});
+		Thread.sleep(SETTLE_TIME);
+
+		long start = System.currentTimeMillis();
+		assertEquals(1, counter.increment());
+		long waited = System.currentTimeMillis() - start;
+
+		holder.join();
+
+		assertEquals(2, statistics.getAcquisitions());
+		assertEquals(1, statistics.getContendedCount());
+		assertEquals(0, statistics.getCurrentWaiters());
+		assertEquals(1, statistics.getMaxQueueDepth());
+		assertEquals(Long.valueOf(1), statistics.getContentionByHolderMethod().get("hold"));
+		assertTrue(statistics.getMaxWaitTime() >= HOLD_TIME - 2 * SETTLE_TIME);
+		assertTrue(statistics.getMaxWaitTime() <= waited);
+		assertEquals(statistics.getMaxWaitTime(), statistics.getTotalWaitTime());
+		assertEquals(0, statistics.getTimeoutCount());
+	}
+
+	@Test
+	public void testQueue() throws Exception {
+		deploy();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(call(new Runnable() {
+			@Override
+			public void run() {
+				counter.hold(HOLD_TIME);
+			}
+		}));
+
+		for (int i = 0; i < 3; i++) {
+			Thread.sleep(SETTLE_TIME);
+			threads.add(call(new Runnable() {
+				@Override
+				public void run() {
+					counter.increment();
+				}
+			}));
+		}
+
+		Thread.sleep(SETTLE_TIME);
+		assertEquals(3, statistics.getCurrentWaiters());
+
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertEquals(3, counter.getCount());
+		assertEquals(3, statistics.getContendedCount());
+		assertEquals(3, statistics.getMaxQueueDepth());
+		assertEquals(0, statistics.getCurrentWaiters());
+		//calls ran one at a time
+		assertEquals(1, counter.getMaxRunningCalls());
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		container.setConcurrentCallWaitTimeout(200);
+		deploy();
+
+		Thread holder = call(new Runnable() {
+			@Override
+			public void run() {
+				counter.hold(HOLD_TIME * 2);
+			}
+		});
+		Thread.sleep(SETTLE_TIME);
+
+		long start = System.currentTimeMillis();
+
+		try {
+			counter.increment();
+			fail("session busy past the timeout");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("Method using the instance: 'hold'"));
+		}
+
+		long waited = System.currentTimeMillis() - start;
+		assertTrue("waited " + waited + " ms", waited >= 200 && waited < HOLD_TIME * 2);
+
+		holder.join();
+
+		assertEquals(1, statistics.getTimeoutCount());
+		assertEquals(1, statistics.getContendedCount());
+		assertEquals(0, statistics.getCurrentWaiters());
+		//the call that gave up didn't run
+		assertEquals(0, counter.getCount());
+	}
+
+	@Test
+	public void testLoopback() throws Exception {
+		deploy();
+
+		long start = System.currentTimeMillis();
+
+		try {
+			//the session calls itself, so it would wait for its own lock
+			counter.incrementOther(counter.getSelf(), 0);
+			fail("loopback call");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("Loopback call"));
+		}
+
+		assertTrue(System.currentTimeMillis() - start < container.getConcurrentCallWaitTimeout());
+
+		//it's not contention, and the session is still usable
+		assertEquals(0, statistics.getContendedCount());
+		assertEquals(0, statistics.getTimeoutCount());
+		assertEquals(0, statistics.getCurrentWaiters());
+		assertEquals(1, counter.increment());
+	}
+
+	private void deploy() throws Exception {
+		TestContainers.deploy(container, null, TestContainers.beans(
+				TestContainers.localSession("Counter", CounterLocalHome.class, CounterLocal.class, CounterBean.class, "Stateful", "Container", null))
+				+ TestContainers.assembly(TestContainers.containerTransaction("Counter", "*", "Supports")));
+
+		CounterLocalHome home = TestContainers.lookup(CounterLocalHome.class);
+		counter = home.create(0);
+		statistics = ((IEJBHome) home).getStatefulLockStatistics();
+	}
+
+	private static Thread call(Runnable call) {
+		Thread t = new Thread(call);
+		t.start();
+
+		return t;
+	}
+}
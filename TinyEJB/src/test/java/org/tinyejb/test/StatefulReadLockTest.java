@@ -0,0 +1,221 @@
+package org.tinyejb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.tinyejb.test.ConcurrentCalls.runTogether;
+
+import javax.ejb.SessionSynchronization;
+import javax.transaction.TransactionManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.test.ConcurrentCalls.Call;
+import org.tinyejb.test.ejbs.stateful.CounterBean;
+import org.tinyejb.test.ejbs.stateful.CounterLocal;
+import org.tinyejb.test.ejbs.stateful.CounterLocalHome;
+import org.tinyejb.test.mocks.CountingTransactionManager;
+import org.tinyejb.transaction.LocalTransactionManager;
+
+/**
+ * Read lock-type on stateful sessions: Read methods share the session, unless the call begins or resumes a transaction on it and
+ * the bean gets SessionSynchronization callbacks
+ */
+public class StatefulReadLockTest {
+	private static final long HOLD_TIME = 300;
+
+	private EJBContainer container;
+
+	@Before
+	public void setUp() {
+		container = new EJBContainer();
+	}
+
+	@After
+	public void tearDown() {
+		container.undeploy();
+	}
+
+	@Test
+	public void testReadersOverlap() throws Exception {
+		final CounterLocal counter = deploy("Container", TestContainers.containerTransaction("Counter", "*", "Supports"), TestContainers.containerConcurrency("Counter", "hold", "Read", -1));
+
+		runTogether(new Call() {
+			@Override
+			public void run() throws Exception {
+				counter.hold(HOLD_TIME);
+			}
+		}, new Call() {
+			@Override
+			public void run() throws Exception {
+				counter.hold(HOLD_TIME);
+			}
+		});
+
+		assertEquals(2, counter.getMaxRunningCalls());
+	}
+
+	@Test
+	public void testWriterExcludesReaders() throws Exception {
+		final CounterLocal counter = deploy("Container", TestContainers.containerTransaction("Counter", "*", "Supports"), TestContainers.containerConcurrency("Counter", "hold", "Read", -1));
+
+		runTogether(new Call() {
+			@Override
+			public void run() throws Exception {
+				counter.hold(HOLD_TIME);
+			}
+		}, new Call() {
+			@Override
+			public void run() throws Exception {
+				counter.holdExclusive(HOLD_TIME);
+			}
+		});
+
+		assertEquals(1, counter.getMaxRunningCalls());
+	}
+
+	@Test
+	public void testReadBeginningTransactionsOverlap() throws Exception {
+		//Required, with no transaction on the callers
+		final CounterLocal counter = deploy("Container", TestContainers.containerConcurrency("Counter", "hold", "Read", -1));
+
+		runTogether(new Call() {
+			@Override
+			public void run() throws Exception {
+				counter.hold(HOLD_TIME);
+			}
+		}, new Call() {
+			@Override
+			public void run() throws Exception {
+				counter.hold(HOLD_TIME);
+			}
+		});
+
+		assertEquals(2, counter.getMaxRunningCalls());
+	}
+
+	@Test
+	public void testReadBeginningTransactionIsExclusive() throws Exception {
+		//Required, with no transaction on the callers, on a bean with SessionSynchronization callbacks
+		final CounterLocal counter = deploy(SynchronizedCounterBean.class, null, "Container", TestContainers.containerConcurrency("Counter", "hold", "Read", -1));
+
+		runTogether(new Call() {
+			@Override
+			public void run() throws Exception {
+				counter.hold(HOLD_TIME);
+			}
+		}, new Call() {
+			@Override
+			public void run() throws Exception {
+				counter.hold(HOLD_TIME);
+			}
+		});
+
+		assertEquals(1, counter.getMaxRunningCalls());
+	}
+
+	@Test
+	public void testReadAsksTransactionOnce() throws Exception {
+		CountingTransactionManager txManager = new CountingTransactionManager(LocalTransactionManager.getInstance());
+		CounterLocal counter = deploy(SynchronizedCounterBean.class, txManager, "Container", TestContainers.containerConcurrency("Counter", "hold", "Read", -1));
+
+		//both begin a transaction: the caller's one is asked for, and then the one begun
+		txManager.reset();
+		counter.holdExclusive(0);
+		int writeCount = txManager.getGetTransactionCount();
+
+		txManager.reset();
+		counter.hold(0);
+
+		assertEquals(2, writeCount);
+		assertEquals(writeCount, txManager.getGetTransactionCount());
+	}
+
+	@Test
+	public void testReadJoiningTransactionsOverlap() throws Exception {
+		final CounterLocal counter = deploy(SynchronizedCounterBean.class, null, "Container", TestContainers.containerConcurrency("Counter", "hold", "Read", -1));
+
+		runTogether(new InTransaction(counter), new InTransaction(counter));
+
+		assertEquals(2, counter.getMaxRunningCalls());
+	}
+
+	@Test
+	public void testRequiresNewReadIsExclusive() throws Exception {
+		final CounterLocal counter = deploy("Container", TestContainers.containerTransaction("Counter", "hold", "RequiresNew"), TestContainers.containerConcurrency("Counter", "hold", "Read", -1));
+
+		runTogether(new InTransaction(counter), new InTransaction(counter));
+
+		assertEquals(1, counter.getMaxRunningCalls());
+	}
+
+	@Test
+	public void testBeanManagedTransactionReadIsExclusive() throws Exception {
+		final CounterLocal counter = deploy("Bean", TestContainers.containerConcurrency("Counter", "hold", "Read", -1));
+
+		runTogether(new Call() {
+			@Override
+			public void run() throws Exception {
+				counter.hold(HOLD_TIME);
+			}
+		}, new Call() {
+			@Override
+			public void run() throws Exception {
+				counter.hold(HOLD_TIME);
+			}
+		});
+
+		assertEquals(1, counter.getMaxRunningCalls());
+	}
+
+	private CounterLocal deploy(String transactionType, String... assemblyEntries) throws Exception {
+		return deploy(CounterBean.class, null, transactionType, assemblyEntries);
+	}
+
+	private CounterLocal deploy(Class<?> beanClass, TransactionManager txManager, String transactionType, String... assemblyEntries) throws Exception {
+		String settings = "<concurrency-management-type>Container</concurrency-management-type>";
+
+		TestContainers.deploy(container, txManager, TestContainers.beans(TestContainers.localSession("Counter", CounterLocalHome.class, CounterLocal.class, beanClass, "Stateful", transactionType, settings)) + TestContainers.assembly(assemblyEntries));
+
+		return TestContainers.lookup(CounterLocalHome.class).create(0);
+	}
+
+	public static class SynchronizedCounterBean extends CounterBean implements SessionSynchronization {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void afterBegin() {
+		}
+
+		@Override
+		public void beforeCompletion() {
+		}
+
+		@Override
+		public void afterCompletion(boolean committed) {
+		}
+	}
+
+	/**
+	 * calls hold() on a transaction of its own
+	 */
+	private static class InTransaction implements Call {
+		private final CounterLocal counter;
+
+		InTransaction(CounterLocal counter) {
+			this.counter = counter;
+		}
+
+		@Override
+		public void run() throws Exception {
+			TransactionManager txManager = LocalTransactionManager.getInstance();
+			txManager.begin();
+
+			try {
+				counter.hold(HOLD_TIME);
+			} finally {
+				txManager.commit();
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package org.tinyejb.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ejb.SessionContext;
+
+import org.slf4j.LoggerFactory;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.test.ejbs.stateful.CartBean;
+import org.tinyejb.test.ejbs.stateful.CartLocal;
+import org.tinyejb.test.ejbs.stateful.CartLocalHome;
+
+import ch.qos.logback.classic.Level;
+
+/**
+ * Measures the heap used by the container for each stateful session (proxy, invocation handler, session context and lock), apart from
+ * the bean instance itself, with JDK and generated proxies.
+ *
+ * Run it as a plain java application. The first argument is the number of sessions (default is 200000). Results depend on the JVM
+ * and its garbage collector, so it's not a test: StatefulSessionFootprintTest checks what the per-session objects hold.
+ */
+public class StatefulSessionFootprintBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		//bean and container log every call at debug level
+		((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+
+		long beanBytes = measureBeans(sessions);
+		System.out.printf("%d sessions, bean instance alone: %d bytes%n", sessions, beanBytes);
+
+		for (boolean generatedProxies : new boolean[] { false, true }) {
+			measureSessions(sessions, generatedProxies, beanBytes);
+		}
+	}
+
+	private static long measureBeans(int count) throws Exception {
+		List<Object> beans = new ArrayList<Object>(count);
+		long before = usedHeap();
+
+		for (int i = 0; i < count; i++) {
+			CartBean bean = new CartBean();
+			bean.setSessionContext((SessionContext) null);
+			bean.ejbCreate("customer");
+			beans.add(bean);
+		}
+
+		long bytes = (usedHeap() - before) / count;
+		beans.clear();
+
+		return bytes;
+	}
+
+	private static void measureSessions(int count, boolean generatedProxies, long beanBytes) throws Exception {
+		EJBContainer ejbContainer = new EJBContainer();
+		ejbContainer.setUseGeneratedProxies(generatedProxies);
+		TestContainers.deploy(ejbContainer, null, TestContainers.beans(
+				TestContainers.localSession("Cart", CartLocalHome.class, CartLocal.class, CartBean.class, "Stateful", "Container", null)));
+
+		CartLocalHome home = TestContainers.lookup(CartLocalHome.class);
+
+		//warms up the home, so its one-time structures aren't counted
+		home.create("warm up").getTotalAmount();
+
+		List<CartLocal> carts = new ArrayList<CartLocal>(count);
+		long before = usedHeap();
+
+		for (int i = 0; i < count; i++) {
+			carts.add(home.create("customer"));
+		}
+
+		long created = (usedHeap() - before) / count;
+
+		//the first call creates the session lock
+		for (CartLocal cart : carts) {
+			cart.getTotalAmount();
+		}
+
+		long called = (usedHeap() - before) / count;
+
+		System.out.printf("%s proxies: container overhead per session %d bytes after create(), %d bytes after the first call%n", generatedProxies ? "generated" : "JDK", created - beanBytes, called - beanBytes);
+
+		carts.clear();
+		ejbContainer.undeploy();
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime rt = Runtime.getRuntime();
+
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
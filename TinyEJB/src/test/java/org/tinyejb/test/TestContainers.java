@@ -0,0 +1,109 @@
+package org.tinyejb.test;
+
+import java.io.ByteArrayInputStream;
+
+import javax.naming.NamingException;
+import javax.transaction.TransactionManager;
+
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.core.ResourceHolder;
+import org.tinyejb.test.mocks.MockNamingContext;
+
+/**
+ * Deploys beans for tests from descriptors written inline.
+ * Descriptors have no DOCTYPE, so no DTD is downloaded.
+ */
+public final class TestContainers {
+	public static final String JNDI_PREFIX = "java:/comp/env/ejb/";
+
+	private TestContainers() {
+	}
+
+	/**
+	 * Deploys the beans of an ejb-jar descriptor, given the content of its &lt;ejb-jar&gt; element. The container gets a new JNDI
+	 * context, and the given transaction manager (or the built-in one, when it's null).
+	 */
+	public static EJBContainer deploy(EJBContainer container, TransactionManager txManager, String ejbJarContent) throws Exception {
+		ResourceHolder.setHolder(txManager, new MockNamingContext());
+		container.setUseBuiltInTransactionManager(txManager == null);
+
+		String descriptor = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<ejb-jar>" + ejbJarContent + "</ejb-jar>";
+		container.deployModuleFromDescriptor(new ByteArrayInputStream(descriptor.getBytes("UTF-8")));
+
+		return container;
+	}
+
+	/**
+	 * &lt;enterprise-beans&gt; element with the given &lt;session&gt; elements
+	 */
+	public static String beans(String... sessions) {
+		StringBuilder result = new StringBuilder("<enterprise-beans>");
+
+		for (String session : sessions) {
+			result.append(session);
+		}
+
+		return result.append("</enterprise-beans>").toString();
+	}
+
+	/**
+	 * &lt;session&gt; element of a bean with local interfaces. Settings are extra children, as TinyEJB specific ones.
+	 */
+	public static String localSession(String name, Class<?> localHome, Class<?> local, Class<?> beanClass, String sessionType, String transactionType, String settings) {
+		return "<session><ejb-name>" + name + "</ejb-name>"
+				+ "<local-home>" + localHome.getName() + "</local-home>"
+				+ "<local>" + local.getName() + "</local>"
+				+ "<ejb-class>" + beanClass.getName() + "</ejb-class>"
+				+ "<session-type>" + sessionType + "</session-type>"
+				+ "<transaction-type>" + transactionType + "</transaction-type>"
+				+ (settings != null ? settings : "") + "</session>";
+	}
+
+	/**
+	 * &lt;assembly-descriptor&gt; element with the given entries
+	 */
+	public static String assembly(String... entries) {
+		StringBuilder result = new StringBuilder("<assembly-descriptor>");
+
+		for (String entry : entries) {
+			result.append(entry);
+		}
+
+		return result.append("</assembly-descriptor>").toString();
+	}
+
+	/**
+	 * &lt;container-transaction&gt; entry for a method of the bean ("*" for all of them)
+	 */
+	public static String containerTransaction(String ejbName, String methodName, String transAttribute) {
+		return "<container-transaction>" + method(ejbName, methodName) + "<trans-attribute>" + transAttribute + "</trans-attribute></container-transaction>";
+	}
+
+	/**
+	 * &lt;container-concurrency&gt; entry for a method of the bean. Negative access timeout means none declared.
+	 */
+	public static String containerConcurrency(String ejbName, String methodName, String lockType, long accessTimeout) {
+		return "<container-concurrency>" + method(ejbName, methodName) + "<lock-type>" + lockType + "</lock-type>"
+				+ (accessTimeout >= 0 ? "<access-timeout>" + accessTimeout + "</access-timeout>" : "") + "</container-concurrency>";
+	}
+
+	/**
+	 * &lt;container-transaction&gt; entry with a transaction timeout (seconds)
+	 */
+	public static String containerTransaction(String ejbName, String methodName, String transAttribute, int transactionTimeout) {
+		return "<container-transaction>" + method(ejbName, methodName) + "<trans-attribute>" + transAttribute + "</trans-attribute>"
+				+ "<transaction-timeout>" + transactionTimeout + "</transaction-timeout></container-transaction>";
+	}
+
+	private static String method(String ejbName, String methodName) {
+		return "<method><ejb-name>" + ejbName + "</ejb-name><method-name>" + methodName + "</method-name></method>";
+	}
+
+	/**
+	 * home bound by the container under its default JNDI name
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T lookup(Class<T> homeIntf) throws NamingException {
+		return (T) ResourceHolder.getJndiContext().lookup(JNDI_PREFIX + homeIntf.getSimpleName());
+	}
+}
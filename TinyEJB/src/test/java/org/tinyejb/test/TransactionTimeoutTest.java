@@ -0,0 +1,124 @@
+package org.tinyejb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import javax.ejb.TransactionRolledbackLocalException;
+import javax.transaction.Status;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tinyejb.core.EJBContainer;
+import org.tinyejb.test.ejbs.stateless.RelayBean;
+import org.tinyejb.test.ejbs.stateless.RelayLocal;
+import org.tinyejb.test.ejbs.stateless.RelayLocalHome;
+import org.tinyejb.transaction.LocalTransaction;
+import org.tinyejb.transaction.LocalTransactionManager;
+
+/**
+ * Timeouts of the transactions the container begins: declared for the bean, for its methods or on the '*' entry
+ */
+public class TransactionTimeoutTest {
+	private EJBContainer container;
+	private LocalTransactionManager txManager;
+
+	@Before
+	public void setUp() {
+		container = new EJBContainer();
+		txManager = LocalTransactionManager.getInstance();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (txManager.getTransaction() != null) {
+			txManager.rollback();
+		}
+
+		container.undeploy();
+	}
+
+	@Test
+	public void testMethodTimeouts() throws Exception {
+		RelayLocal relay = deploy(null,
+				TestContainers.containerTransaction("Relay", "*", "Required", 20),
+				TestContainers.containerTransaction("Relay", "requiresNew", "RequiresNew", 5),
+				TestContainers.containerTransaction("Relay", "supports", "RequiresNew"));
+
+		//'*' entry applies to methods with no timeout of their own
+		assertEquals(20, timeoutOf(relay.required().get(0)));
+		assertEquals(20, timeoutOf(relay.supports().get(0)));
+		assertEquals(5, timeoutOf(relay.requiresNew().get(0)));
+	}
+
+	@Test
+	public void testBeanTimeout() throws Exception {
+		RelayLocal relay = deploy("<transaction-timeout>60</transaction-timeout>",
+				TestContainers.containerTransaction("Relay", "*", "Required", 20),
+				TestContainers.containerTransaction("Relay", "requiresNew", "RequiresNew", 5));
+
+		//the bean's element prevails over the '*' entry, but not over the method's own
+		assertEquals(60, timeoutOf(relay.required().get(0)));
+		assertEquals(5, timeoutOf(relay.requiresNew().get(0)));
+	}
+
+	@Test
+	public void testNoTimeout() throws Exception {
+		RelayLocal relay = deploy(null, TestContainers.containerTransaction("Relay", "*", "Required"));
+
+		assertEquals(txManager.getDefaultTimeout(), timeoutOf(relay.required().get(0)));
+	}
+
+	@Test
+	public void testTimeoutResetAfterBegin() throws Exception {
+		RelayLocal relay = deploy(null, TestContainers.containerTransaction("Relay", "*", "Required", 5));
+
+		assertEquals(5, timeoutOf(relay.required().get(0)));
+
+		//transactions begun later on the thread get the default timeout
+		txManager.begin();
+		assertEquals(txManager.getDefaultTimeout(), ((LocalTransaction) txManager.getTransaction()).getTimeout());
+		txManager.rollback();
+	}
+
+	@Test
+	public void testNestedCallPastDeadline() throws Exception {
+		RelayLocal relay = deploy(null,
+				TestContainers.containerTransaction("Relay", "*", "Required"),
+				TestContainers.containerTransaction("Relay", "sleep", "Required", 1),
+				TestContainers.containerTransaction("Relay", "mandatory", "Mandatory"),
+				TestContainers.containerTransaction("Relay", "supports", "Supports"),
+				TestContainers.containerTransaction("Relay", "requiresNew", "RequiresNew"));
+
+		List<Object> result = relay.sleep(1100, "required", "mandatory", "supports", "requiresNew");
+		LocalTransaction tx = (LocalTransaction) result.get(0);
+
+		//calls joining the timed out transaction fail at once
+		assertEquals(TransactionRolledbackLocalException.class, result.get(1));
+		assertEquals(TransactionRolledbackLocalException.class, result.get(2));
+		assertEquals(TransactionRolledbackLocalException.class, result.get(3));
+
+		//a call with a transaction of its own still runs
+		assertTrue(result.get(4) instanceof LocalTransaction);
+		assertNotSame(tx, result.get(4));
+
+		assertEquals(Status.STATUS_ROLLEDBACK, tx.getStatus());
+		assertNull(txManager.getTransaction());
+	}
+
+	private RelayLocal deploy(String settings, String... transactions) throws Exception {
+		TestContainers.deploy(container, null, TestContainers.beans(
+				TestContainers.localSession("Relay", RelayLocalHome.class, RelayLocal.class, RelayBean.class, "Stateless", "Container", settings))
+				+ TestContainers.assembly(transactions));
+
+		return TestContainers.lookup(RelayLocalHome.class).create();
+	}
+
+	private static int timeoutOf(Object tx) {
+		return ((LocalTransaction) tx).getTimeout();
+	}
+}
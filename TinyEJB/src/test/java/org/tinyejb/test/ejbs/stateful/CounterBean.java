@@ -0,0 +1,89 @@
+package org.tinyejb.test.ejbs.stateful;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ejb.EJBException;
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+
+/**
+ * Stateful bean with a small serializable state, for container tests
+ */
+public class CounterBean implements SessionBean {
+	private static final long serialVersionUID = 1L;
+	private SessionContext ctx;
+	private int count;
+	private int activations;
+	//calls running on the instance now, and the most of them at once
+	private final AtomicInteger runningCalls = new AtomicInteger();
+	private final AtomicInteger maxRunningCalls = new AtomicInteger();
+
+	public void ejbCreate(int start) throws EJBException {
+		this.count = start;
+	}
+
+	@Override
+	public void ejbActivate() throws EJBException {
+		activations++;
+	}
+
+	@Override
+	public void ejbPassivate() throws EJBException {
+	}
+
+	@Override
+	public void ejbRemove() throws EJBException {
+	}
+
+	@Override
+	public void setSessionContext(SessionContext ctx) throws EJBException {
+		this.ctx = ctx;
+	}
+
+	public int increment() {
+		return ++count;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getActivations() {
+		return activations;
+	}
+
+	public CounterLocal getSelf() {
+		return (CounterLocal) ctx.getEJBLocalObject();
+	}
+
+	public void hold(long millis) {
+		int running = runningCalls.incrementAndGet();
+
+		try {
+			int max = maxRunningCalls.get();
+			while (running > max && !maxRunningCalls.compareAndSet(max, running)) {
+				max = maxRunningCalls.get();
+			}
+
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			runningCalls.decrementAndGet();
+		}
+	}
+
+	public int incrementOther(CounterLocal other, long millis) {
+		hold(millis);
+
+		return other.increment();
+	}
+
+	public void holdExclusive(long millis) {
+		hold(millis);
+	}
+
+	public int getMaxRunningCalls() {
+		return maxRunningCalls.get();
+	}
+}
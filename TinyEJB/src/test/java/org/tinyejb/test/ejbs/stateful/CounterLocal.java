@@ -0,0 +1,42 @@
+package org.tinyejb.test.ejbs.stateful;
+
+import javax.ejb.EJBLocalObject;
+
+/**
+ * Local business interface for Counter bean
+ */
+public interface CounterLocal extends EJBLocalObject {
+	int increment();
+
+	int getCount();
+
+	/**
+	 * times the instance was activated after passivation
+	 */
+	int getActivations();
+
+	/**
+	 * the session, as its context sees it
+	 */
+	CounterLocal getSelf();
+
+	/**
+	 * keeps the session busy for a while
+	 */
+	void hold(long millis);
+
+	/**
+	 * keeps the session busy for a while, and then calls the other one
+	 */
+	int incrementOther(CounterLocal other, long millis);
+
+	/**
+	 * same as hold(), for tests that declare different settings for them
+	 */
+	void holdExclusive(long millis);
+
+	/**
+	 * the most hold() calls that ran at once on the instance
+	 */
+	int getMaxRunningCalls();
+}
@@ -0,0 +1,10 @@
+package org.tinyejb.test.ejbs.stateful;
+
+import javax.ejb.EJBLocalHome;
+
+/**
+ * Local home interface for Counter bean
+ */
+public interface CounterLocalHome extends EJBLocalHome {
+	public CounterLocal create(int start) throws javax.ejb.CreateException;
+}
@@ -0,0 +1,89 @@
+package org.tinyejb.test.ejbs.stateful;
+
+import javax.ejb.EJBException;
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+import javax.transaction.UserTransaction;
+
+/**
+ * Stateful bean with bean-managed transactions kept across calls, for container tests
+ */
+public class LedgerBean implements SessionBean {
+	private static final long serialVersionUID = 1L;
+	private SessionContext ctx;
+	private UserTransaction keptTransaction;
+	private Object note;
+
+	public void ejbCreate() throws EJBException {
+	}
+
+	@Override
+	public void ejbActivate() throws EJBException {
+	}
+
+	@Override
+	public void ejbPassivate() throws EJBException {
+	}
+
+	@Override
+	public void ejbRemove() throws EJBException {
+	}
+
+	@Override
+	public void setSessionContext(SessionContext ctx) throws EJBException {
+		this.ctx = ctx;
+	}
+
+	public void begin() {
+		try {
+			ctx.getUserTransaction().begin();
+		} catch (Exception e) {
+			throw new EJBException(e);
+		}
+	}
+
+	public void commit() {
+		try {
+			ctx.getUserTransaction().commit();
+		} catch (Exception e) {
+			throw new EJBException(e);
+		}
+	}
+
+	public void rollback() {
+		try {
+			ctx.getUserTransaction().rollback();
+		} catch (Exception e) {
+			throw new EJBException(e);
+		}
+	}
+
+	public int getStatus() {
+		try {
+			return ctx.getUserTransaction().getStatus();
+		} catch (Exception e) {
+			throw new EJBException(e);
+		}
+	}
+
+	public void keep(Object note) {
+		this.keptTransaction = ctx.getUserTransaction();
+		this.note = note;
+	}
+
+	public Object getNote() {
+		return note;
+	}
+
+	public int getKeptStatus() {
+		try {
+			return keptTransaction.getStatus();
+		} catch (Exception e) {
+			throw new EJBException(e);
+		}
+	}
+
+	public boolean isKeptTransactionCurrent() {
+		return keptTransaction == ctx.getUserTransaction();
+	}
+}
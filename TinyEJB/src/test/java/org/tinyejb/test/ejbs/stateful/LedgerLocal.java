@@ -0,0 +1,33 @@
+package org.tinyejb.test.ejbs.stateful;
+
+import javax.ejb.EJBLocalObject;
+
+/**
+ * Local business interface for Ledger bean. Its calls demarcate the session's transaction one step at a time.
+ */
+public interface LedgerLocal extends EJBLocalObject {
+	void begin();
+
+	void commit();
+
+	void rollback();
+
+	/**
+	 * status of the transaction the session sees
+	 */
+	int getStatus();
+
+	/**
+	 * keeps the user transaction and the object on the session state
+	 */
+	void keep(Object note);
+
+	Object getNote();
+
+	/**
+	 * status of the transaction, seen through the kept user transaction
+	 */
+	int getKeptStatus();
+
+	boolean isKeptTransactionCurrent();
+}
@@ -0,0 +1,10 @@
+package org.tinyejb.test.ejbs.stateful;
+
+import javax.ejb.EJBLocalHome;
+
+/**
+ * Local home interface for Ledger bean
+ */
+public interface LedgerLocalHome extends EJBLocalHome {
+	public LedgerLocal create() throws javax.ejb.CreateException;
+}
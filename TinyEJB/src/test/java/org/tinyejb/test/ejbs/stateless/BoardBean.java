@@ -0,0 +1,71 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ejb.EJBException;
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+
+/**
+ * Stateless bean meant to be deployed as a singleton, that records how many calls ran on it at once, for container tests
+ */
+public class BoardBean implements SessionBean {
+	private static final long serialVersionUID = 1L;
+	private SessionContext ctx;
+	//calls running on the instance now, and the most of them at once
+	private final AtomicInteger runningCalls = new AtomicInteger();
+	private final AtomicInteger maxRunningCalls = new AtomicInteger();
+
+	public void ejbCreate() throws EJBException {
+	}
+
+	@Override
+	public void ejbActivate() throws EJBException {
+	}
+
+	@Override
+	public void ejbPassivate() throws EJBException {
+	}
+
+	@Override
+	public void ejbRemove() throws EJBException {
+	}
+
+	@Override
+	public void setSessionContext(SessionContext ctx) throws EJBException {
+		this.ctx = ctx;
+	}
+
+	public void read(long millis) {
+		hold(millis);
+	}
+
+	public void write(long millis) {
+		hold(millis);
+	}
+
+	public void readThenWrite() {
+		((BoardLocal) ctx.getEJBLocalObject()).write(0);
+	}
+
+	public int getMaxRunningCalls() {
+		return maxRunningCalls.get();
+	}
+
+	private void hold(long millis) {
+		int running = runningCalls.incrementAndGet();
+
+		try {
+			int max = maxRunningCalls.get();
+			while (running > max && !maxRunningCalls.compareAndSet(max, running)) {
+				max = maxRunningCalls.get();
+			}
+
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			runningCalls.decrementAndGet();
+		}
+	}
+}
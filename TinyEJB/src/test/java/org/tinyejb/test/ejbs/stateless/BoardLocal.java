@@ -0,0 +1,19 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import javax.ejb.EJBLocalObject;
+
+/**
+ * Local business interface for Board bean. Tests declare read() as a Read method, and leave the other ones as Write.
+ */
+public interface BoardLocal extends EJBLocalObject {
+	void read(long millis);
+
+	void write(long millis);
+
+	/**
+	 * calls write() on the bean, from a method that is declared Read
+	 */
+	void readThenWrite();
+
+	int getMaxRunningCalls();
+}
@@ -0,0 +1,10 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import javax.ejb.EJBLocalHome;
+
+/**
+ * Local home interface for Board bean
+ */
+public interface BoardLocalHome extends EJBLocalHome {
+	public BoardLocal create() throws javax.ejb.CreateException;
+}
@@ -0,0 +1,19 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import javax.ejb.EJBException;
+import javax.ejb.EJBObject;
+
+/**
+ * Remote business interface for Greeter bean
+ */
+public interface Greeter extends EJBObject {
+	/**
+	 * id of the instance that served the call
+	 */
+	int getInstanceId() throws EJBException;
+
+	/**
+	 * whether the instance's context has both the local and the remote views
+	 */
+	boolean hasBothViews() throws EJBException;
+}
@@ -0,0 +1,45 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ejb.EJBException;
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+
+/**
+ * Stateless bean with local and remote views, for container tests
+ */
+public class GreeterBean implements SessionBean {
+	private static final long serialVersionUID = 1L;
+	private static final AtomicInteger INSTANCE_COUNT = new AtomicInteger();
+	private final int instanceId = INSTANCE_COUNT.incrementAndGet();
+	private SessionContext ctx;
+
+	public void ejbCreate() throws EJBException {
+	}
+
+	@Override
+	public void ejbActivate() throws EJBException {
+	}
+
+	@Override
+	public void ejbPassivate() throws EJBException {
+	}
+
+	@Override
+	public void ejbRemove() throws EJBException {
+	}
+
+	@Override
+	public void setSessionContext(SessionContext ctx) throws EJBException {
+		this.ctx = ctx;
+	}
+
+	public int getInstanceId() {
+		return instanceId;
+	}
+
+	public boolean hasBothViews() {
+		return ctx.getEJBHome() != null && ctx.getEJBObject() != null && ctx.getEJBLocalHome() != null && ctx.getEJBLocalObject() != null;
+	}
+}
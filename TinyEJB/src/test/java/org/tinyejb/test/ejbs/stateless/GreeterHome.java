@@ -0,0 +1,10 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import javax.ejb.EJBHome;
+
+/**
+ * Remote home interface for Greeter bean
+ */
+public interface GreeterHome extends EJBHome {
+	public Greeter create() throws javax.ejb.CreateException;
+}
@@ -0,0 +1,12 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import javax.ejb.EJBLocalObject;
+
+/**
+ * Local business interface for Greeter bean
+ */
+public interface GreeterLocal extends EJBLocalObject {
+	int getInstanceId();
+
+	boolean hasBothViews();
+}
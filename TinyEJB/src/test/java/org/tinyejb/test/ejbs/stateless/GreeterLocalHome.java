@@ -0,0 +1,10 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import javax.ejb.EJBLocalHome;
+
+/**
+ * Local home interface for Greeter bean
+ */
+public interface GreeterLocalHome extends EJBLocalHome {
+	public GreeterLocal create() throws javax.ejb.CreateException;
+}
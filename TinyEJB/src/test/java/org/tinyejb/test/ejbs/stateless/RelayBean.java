@@ -0,0 +1,164 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.ejb.EJBException;
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+
+import org.tinyejb.transaction.LocalTransactionManager;
+
+/**
+ * Stateless bean that calls itself along a path, for transaction propagation tests. Runs on the built-in transaction manager.
+ */
+public class RelayBean implements SessionBean {
+	private static final long serialVersionUID = 1L;
+	private SessionContext ctx;
+
+	public void ejbCreate() throws EJBException {
+	}
+
+	@Override
+	public void ejbActivate() throws EJBException {
+	}
+
+	@Override
+	public void ejbPassivate() throws EJBException {
+	}
+
+	@Override
+	public void ejbRemove() throws EJBException {
+	}
+
+	@Override
+	public void setSessionContext(SessionContext ctx) throws EJBException {
+		this.ctx = ctx;
+	}
+
+	public List<Object> required(String... path) {
+		return relay(path);
+	}
+
+	public List<Object> requiresNew(String... path) {
+		return relay(path);
+	}
+
+	public List<Object> notSupported(String... path) {
+		return relay(path);
+	}
+
+	public List<Object> mandatory(String... path) {
+		return relay(path);
+	}
+
+	public List<Object> supports(String... path) {
+		return relay(path);
+	}
+
+	public List<Object> never(String... path) {
+		return relay(path);
+	}
+
+	public List<Object> failCommit(String... path) {
+		try {
+			LocalTransactionManager.getInstance().getTransaction().registerSynchronization(new Synchronization() {
+				@Override
+				public void beforeCompletion() {
+					throw new IllegalStateException("can't commit");
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+				}
+			});
+		} catch (Exception e) {
+			throw new EJBException(e);
+		}
+
+		return relay(path);
+	}
+
+	public List<Object> attempt(String[] first, String[] then) {
+		List<Object> result = new ArrayList<Object>();
+		result.add(currentTransaction());
+		result.addAll(attempt(first));
+		result.addAll(attempt(then));
+
+		return result;
+	}
+
+	public List<Object> sleep(long millis, String... attempts) {
+		List<Object> result = new ArrayList<Object>();
+		result.add(currentTransaction());
+
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (String attempt : attempts) {
+			result.addAll(attempt(new String[] { attempt }));
+		}
+
+		return result;
+	}
+
+	private List<Object> attempt(String[] path) {
+		try {
+			return next(path);
+		} catch (Exception e) {
+			List<Object> result = new ArrayList<Object>();
+			result.add(e.getClass());
+
+			return result;
+		}
+	}
+
+	private List<Object> relay(String[] path) {
+		List<Object> result = new ArrayList<Object>();
+		result.add(currentTransaction());
+		result.addAll(next(path));
+
+		return result;
+	}
+
+	private List<Object> next(String[] path) {
+		if (path.length == 0) {
+			return new ArrayList<Object>();
+		}
+
+		RelayLocal self = (RelayLocal) ctx.getEJBLocalObject();
+		String[] rest = Arrays.copyOfRange(path, 1, path.length);
+
+		if (path[0].equals("required")) {
+			return self.required(rest);
+		} else if (path[0].equals("requiresNew")) {
+			return self.requiresNew(rest);
+		} else if (path[0].equals("notSupported")) {
+			return self.notSupported(rest);
+		} else if (path[0].equals("mandatory")) {
+			return self.mandatory(rest);
+		} else if (path[0].equals("supports")) {
+			return self.supports(rest);
+		} else if (path[0].equals("never")) {
+			return self.never(rest);
+		} else if (path[0].equals("failCommit")) {
+			return self.failCommit(rest);
+		}
+
+		throw new IllegalArgumentException(path[0]);
+	}
+
+	private static Object currentTransaction() {
+		try {
+			return LocalTransactionManager.getInstance().getTransaction();
+		} catch (SystemException e) {
+			throw new EJBException(e);
+		}
+	}
+}
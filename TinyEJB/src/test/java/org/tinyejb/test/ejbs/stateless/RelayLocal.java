@@ -0,0 +1,40 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import java.util.List;
+
+import javax.ejb.EJBLocalObject;
+
+/**
+ * Local business interface for Relay bean. Each method is meant for a different transaction attribute, and calls the bean again
+ * along a path of method names, so a chain of nested calls is built with a single client call.
+ * 
+ * Results list the transaction each call of the chain ran on (null for none), outermost first.
+ */
+public interface RelayLocal extends EJBLocalObject {
+	List<Object> required(String... path);
+
+	List<Object> requiresNew(String... path);
+
+	List<Object> notSupported(String... path);
+
+	List<Object> mandatory(String... path);
+
+	List<Object> supports(String... path);
+
+	List<Object> never(String... path);
+
+	/**
+	 * same as requiresNew(), but the transaction fails to commit
+	 */
+	List<Object> failCommit(String... path);
+
+	/**
+	 * runs the first path and then the second one. Their failures are listed as the class of the exception
+	 */
+	List<Object> attempt(String[] first, String[] then);
+
+	/**
+	 * sleeps, and then attempts a call to each of the given methods
+	 */
+	List<Object> sleep(long millis, String... attempts);
+}
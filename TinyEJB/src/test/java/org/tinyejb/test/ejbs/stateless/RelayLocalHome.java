@@ -0,0 +1,10 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import javax.ejb.EJBLocalHome;
+
+/**
+ * Local home interface for Relay bean
+ */
+public interface RelayLocalHome extends EJBLocalHome {
+	public RelayLocal create() throws javax.ejb.CreateException;
+}
@@ -0,0 +1,84 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ejb.EJBException;
+import javax.ejb.SessionBean;
+import javax.ejb.SessionContext;
+import javax.transaction.UserTransaction;
+
+import org.tinyejb.transaction.LocalTransaction;
+import org.tinyejb.transaction.LocalTransactionManager;
+
+/**
+ * Stateless bean with bean-managed transactions, for container tests. Runs on the built-in transaction manager.
+ */
+public class TellerBean implements SessionBean {
+	private static final long serialVersionUID = 1L;
+	//instances removed so far, from all containers
+	private static final AtomicInteger REMOVED_COUNT = new AtomicInteger();
+	private SessionContext ctx;
+
+	public static int getRemovedCount() {
+		return REMOVED_COUNT.get();
+	}
+
+	public void ejbCreate() throws EJBException {
+	}
+
+	@Override
+	public void ejbActivate() throws EJBException {
+	}
+
+	@Override
+	public void ejbPassivate() throws EJBException {
+	}
+
+	@Override
+	public void ejbRemove() throws EJBException {
+		REMOVED_COUNT.incrementAndGet();
+	}
+
+	@Override
+	public void setSessionContext(SessionContext ctx) throws EJBException {
+		this.ctx = ctx;
+	}
+
+	public int getStatus() {
+		try {
+			return ctx.getUserTransaction().getStatus();
+		} catch (Exception e) {
+			throw new EJBException(e);
+		}
+	}
+
+	public int[] demarcate(int timeout, boolean commit) {
+		UserTransaction ut = ctx.getUserTransaction();
+
+		try {
+			ut.setTransactionTimeout(timeout);
+			ut.begin();
+
+			int inside = ut.getStatus();
+			int txTimeout = ((LocalTransaction) LocalTransactionManager.getInstance().getTransaction()).getTimeout();
+
+			if (commit) {
+				ut.commit();
+			} else {
+				ut.rollback();
+			}
+
+			return new int[] { inside, ut.getStatus(), txTimeout };
+		} catch (Exception e) {
+			throw new EJBException(e);
+		}
+	}
+
+	public void leaveOpen() {
+		try {
+			ctx.getUserTransaction().begin();
+		} catch (Exception e) {
+			throw new EJBException(e);
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import javax.ejb.EJBLocalObject;
+
+/**
+ * Local business interface for Teller bean
+ */
+public interface TellerLocal extends EJBLocalObject {
+	/**
+	 * status of the transaction the bean sees when the call begins
+	 */
+	int getStatus();
+
+	/**
+	 * begins a transaction, with the given timeout (zero for the default one), and completes it
+	 * 
+	 * @return status inside the transaction, status after completing it and the timeout the transaction got
+	 */
+	int[] demarcate(int timeout, boolean commit);
+
+	/**
+	 * begins a transaction and returns without completing it
+	 */
+	void leaveOpen();
+}
@@ -0,0 +1,10 @@
+package org.tinyejb.test.ejbs.stateless;
+
+import javax.ejb.EJBLocalHome;
+
+/**
+ * Local home interface for Teller bean
+ */
+public interface TellerLocalHome extends EJBLocalHome {
+	public TellerLocal create() throws javax.ejb.CreateException;
+}
@@ -0,0 +1,111 @@
+package org.tinyejb.test.mocks;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+/**
+ * Wraps a TransactionManager, counting the calls the container makes to it. The next resume() can be made to fail, leaving the
+ * thread with no transaction.
+ */
+public class CountingTransactionManager implements TransactionManager {
+	private final TransactionManager target;
+	private final AtomicInteger getTransactionCount = new AtomicInteger();
+	private final AtomicInteger beginCount = new AtomicInteger();
+	private final AtomicInteger resumeCount = new AtomicInteger();
+	private final AtomicInteger suspendCount = new AtomicInteger();
+	private volatile boolean failNextResume;
+
+	public CountingTransactionManager(TransactionManager target) {
+		this.target = target;
+	}
+
+	public int getGetTransactionCount() {
+		return getTransactionCount.get();
+	}
+
+	public int getBeginCount() {
+		return beginCount.get();
+	}
+
+	public int getResumeCount() {
+		return resumeCount.get();
+	}
+
+	public int getSuspendCount() {
+		return suspendCount.get();
+	}
+
+	public void reset() {
+		getTransactionCount.set(0);
+		beginCount.set(0);
+		resumeCount.set(0);
+		suspendCount.set(0);
+	}
+
+	public void setFailNextResume(boolean failNextResume) {
+		this.failNextResume = failNextResume;
+	}
+
+	@Override
+	public void begin() throws NotSupportedException, SystemException {
+		beginCount.incrementAndGet();
+		target.begin();
+	}
+
+	@Override
+	public void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SecurityException, IllegalStateException, SystemException {
+		target.commit();
+	}
+
+	@Override
+	public int getStatus() throws SystemException {
+		return target.getStatus();
+	}
+
+	@Override
+	public Transaction getTransaction() throws SystemException {
+		getTransactionCount.incrementAndGet();
+		return target.getTransaction();
+	}
+
+	@Override
+	public void resume(Transaction tx) throws InvalidTransactionException, IllegalStateException, SystemException {
+		resumeCount.incrementAndGet();
+
+		if (failNextResume) {
+			failNextResume = false;
+			throw new SystemException("resume failed");
+		}
+
+		target.resume(tx);
+	}
+
+	@Override
+	public void rollback() throws IllegalStateException, SecurityException, SystemException {
+		target.rollback();
+	}
+
+	@Override
+	public void setRollbackOnly() throws IllegalStateException, SystemException {
+		target.setRollbackOnly();
+	}
+
+	@Override
+	public void setTransactionTimeout(int seconds) throws SystemException {
+		target.setTransactionTimeout(seconds);
+	}
+
+	@Override
+	public Transaction suspend() throws SystemException {
+		suspendCount.incrementAndGet();
+		return target.suspend();
+	}
+}
@@ -31,7 +31,12 @@ public class MockTransacionManager implements TransactionManager {
 
 	@Override
 	public void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SecurityException, IllegalStateException, SystemException {
-		getCurrent().commit();
+		try {
+			getCurrent().commit();
+		} finally {
+			//as JTA determines, the thread is no longer associated with the transaction
+			current.remove();
+		}
 	}
 
 	private Transaction getCurrent() {
@@ -61,7 +66,11 @@ public class MockTransacionManager implements TransactionManager {
 
 	@Override
 	public void rollback() throws IllegalStateException, SecurityException, SystemException {
-		getCurrent().rollback();
+		try {
+			getCurrent().rollback();
+		} finally {
+			current.remove();
+		}
 	}
 
 	@Override
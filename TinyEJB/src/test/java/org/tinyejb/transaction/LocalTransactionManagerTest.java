@@ -0,0 +1,204 @@
+package org.tinyejb.transaction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalTransactionManagerTest {
+	private LocalTransactionManager	txManager;
+	private List<String>			events;
+
+	@Before
+	public void setUp() {
+		txManager = new LocalTransactionManager();
+		events = new ArrayList<String>();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		txManager.suspend();
+	}
+
+	@Test
+	public void testOnePhaseCommit() throws Exception {
+		txManager.begin();
+		txManager.getTransaction().enlistResource(new RecordingResource("db", null));
+		txManager.getTransaction().registerSynchronization(new RecordingSynchronization());
+		txManager.commit();
+
+		assertEquals(Arrays.asList("db start", "before", "db end", "db commit 1pc", "after " + Status.STATUS_COMMITTED), events);
+		assertNull(txManager.getTransaction());
+	}
+
+	@Test
+	public void testTwoPhaseCommit() throws Exception {
+		txManager.begin();
+		txManager.getTransaction().enlistResource(new RecordingResource("db", null));
+		txManager.getTransaction().enlistResource(new RecordingResource("jms", null));
+		txManager.commit();
+
+		assertEquals(Arrays.asList("db start", "jms start", "db end", "jms end", "db prepare", "jms prepare", "db commit 2pc", "jms commit 2pc"), events);
+	}
+
+	@Test
+	public void testRollbackOnly() throws Exception {
+		txManager.begin();
+		txManager.getTransaction().enlistResource(new RecordingResource("db", null));
+		txManager.getTransaction().registerSynchronization(new RecordingSynchronization());
+		txManager.setRollbackOnly();
+
+		try {
+			txManager.commit();
+			fail("transaction marked for rollback was committed");
+		} catch (RollbackException e) {
+		}
+
+		assertEquals(Arrays.asList("db start", "db end", "db rollback", "after " + Status.STATUS_ROLLEDBACK), events);
+	}
+
+	@Test
+	public void testPrepareFailureRollsBackAll() throws Exception {
+		txManager.begin();
+		txManager.getTransaction().enlistResource(new RecordingResource("db", null));
+		txManager.getTransaction().enlistResource(new RecordingResource("jms", "prepare"));
+
+		try {
+			txManager.commit();
+			fail("transaction with a failed resource was committed");
+		} catch (RollbackException e) {
+		}
+
+		assertEquals(Arrays.asList("db start", "jms start", "db end", "jms end", "db prepare", "jms prepare", "db rollback", "jms rollback"), events);
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		txManager.setTransactionTimeout(1);
+		txManager.begin();
+
+		Thread.sleep(1100);
+
+		assertEquals(Status.STATUS_MARKED_ROLLBACK, txManager.getStatus());
+
+		try {
+			txManager.commit();
+			fail("transaction past its timeout was committed");
+		} catch (RollbackException e) {
+		}
+	}
+
+	@Test
+	public void testSuspendResume() throws Exception {
+		txManager.begin();
+		Transaction outer = txManager.suspend();
+
+		assertNull(txManager.getTransaction());
+
+		txManager.begin();
+		txManager.commit();
+		txManager.resume(outer);
+
+		assertSame(outer, txManager.getTransaction());
+		assertEquals(Status.STATUS_ACTIVE, txManager.getStatus());
+
+		txManager.commit();
+	}
+
+	private class RecordingSynchronization implements Synchronization {
+		@Override
+		public void beforeCompletion() {
+			events.add("before");
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			events.add("after " + status);
+		}
+	}
+
+	private class RecordingResource implements XAResource {
+		private final String	name;
+		//operation that fails, if any
+		private final String	failOn;
+
+		RecordingResource(String name, String failOn) {
+			this.name = name;
+			this.failOn = failOn;
+		}
+
+		private void record(String operation) throws XAException {
+			events.add(name + " " + operation);
+
+			if (operation.equals(failOn)) {
+				throw new XAException(XAException.XA_RBROLLBACK);
+			}
+		}
+
+		@Override
+		public void start(Xid xid, int flags) throws XAException {
+			record("start");
+		}
+
+		@Override
+		public void end(Xid xid, int flags) throws XAException {
+			record("end");
+		}
+
+		@Override
+		public int prepare(Xid xid) throws XAException {
+			record("prepare");
+			return XA_OK;
+		}
+
+		@Override
+		public void commit(Xid xid, boolean onePhase) throws XAException {
+			record(onePhase ? "commit 1pc" : "commit 2pc");
+		}
+
+		@Override
+		public void rollback(Xid xid) throws XAException {
+			record("rollback");
+		}
+
+		@Override
+		public void forget(Xid xid) throws XAException {
+		}
+
+		@Override
+		public Xid[] recover(int flag) throws XAException {
+			return new Xid[0];
+		}
+
+		@Override
+		public boolean isSameRM(XAResource other) throws XAException {
+			return other == this;
+		}
+
+		@Override
+		public int getTransactionTimeout() throws XAException {
+			return 0;
+		}
+
+		@Override
+		public boolean setTransactionTimeout(int seconds) throws XAException {
+			return false;
+		}
+	}
+}